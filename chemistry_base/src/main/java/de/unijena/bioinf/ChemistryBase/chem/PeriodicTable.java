@@ -1021,6 +1021,22 @@ public class PeriodicTable implements Iterable<Element>, Cloneable {
      * @return an interval which should contain the isotopic peak
      */
     public Range<Double> getIsotopicMassWindow(ChemicalAlphabet alphabet, Deviation deviation, double monomz, int peakOffset) {
+        final double[] defects = getIsotopicMassDefects(alphabet, peakOffset);
+        final double a = monomz + peakOffset + defects[0];
+        final double b = monomz + peakOffset + defects[1];
+        return Range.closed(a - deviation.absoluteFor(a), b + deviation.absoluteFor(b));
+    }
+
+    /**
+     * Calculate for a given alphabet the minimal and maximal mass defect of an isotope peak. The defects do not depend
+     * on the monoisotopic mass, so they can be computed once and reused for all peaks of a spectrum.
+     *
+     * @param alphabet   chemical alphabet
+     * @param peakOffset integer distance between isotope peak and monoisotopic peak (minimum: 1)
+     * @return an array with the minimal and maximal mass defect
+     * @see #getIsotopicMassWindow(ChemicalAlphabet, Deviation, double, int)
+     */
+    public double[] getIsotopicMassDefects(ChemicalAlphabet alphabet, int peakOffset) {
         if (peakOffset < 1) throw new IllegalArgumentException("Expect a peak offset of at least 1");
         final IsotopicDistribution dist = getDistribution();
         double minmz = Double.POSITIVE_INFINITY;
@@ -1038,9 +1054,7 @@ public class PeriodicTable implements Iterable<Element>, Cloneable {
                 }
             }
         }
-        final double a = monomz + peakOffset + minmz;
-        final double b = monomz + peakOffset + maxmz;
-        return Range.closed(a - deviation.absoluteFor(a), b + deviation.absoluteFor(b));
+        return new double[]{minmz, maxmz};
     }
 
     /**
@@ -241,6 +241,13 @@ public class MolecularFormulaPacker {
 
     }
 
+    /**
+     * @return the elements which can be encoded by this packer
+     */
+    public Element[] getElements() {
+        return elements.clone();
+    }
+
     /**
      * serialize a packer as string
      *
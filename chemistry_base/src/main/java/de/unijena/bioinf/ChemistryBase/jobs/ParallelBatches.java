@@ -0,0 +1,124 @@
+package de.unijena.bioinf.ChemistryBase.jobs;
+
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.JobManager;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Splits the indizes 0 to n-1 into consecutive batches and processes them on the CPU threads of the global job manager.
+ *
+ * The calling thread does not block on the submitted jobs. Instead, it processes batches itself until all batches are
+ * taken and then only waits for batches which are already processed by other threads. Helper jobs which start after
+ * all batches are taken return immediately. So it is safe to use from within jobs of the job manager: if all CPU
+ * threads are busy, the calling thread just processes all batches on its own.
+ */
+public class ParallelBatches {
+
+    public interface Procedure {
+        /**
+         * processes the indizes from (inclusive) to (exclusive). The batch index is in the range 0 to
+         * numberOfBatches-1 and can be used to store the results of each batch separately.
+         */
+        void process(int batch, int from, int to);
+    }
+
+    /**
+     * @return the number of batches that {@link #forEachBatch(int, int, Procedure)} creates for n indizes and the
+     * given maximal number of batches
+     */
+    public static int numberOfBatches(int n, int maximalNumberOfBatches) {
+        if (n <= 0) return 0;
+        final int batchSize = batchSize(n, maximalNumberOfBatches);
+        return (n + batchSize - 1) / batchSize;
+    }
+
+    /**
+     * Processes the indizes 0 to n-1 in at most maximalNumberOfBatches batches. With a single batch the procedure
+     * is called in the calling thread without involving the job manager. Exceptions thrown by the procedure are
+     * rethrown in the calling thread after all started batches are finished.
+     */
+    public static void forEachBatch(int n, int maximalNumberOfBatches, Procedure procedure) {
+        if (n <= 0) return;
+        final int numberOfBatches = numberOfBatches(n, maximalNumberOfBatches);
+        if (numberOfBatches <= 1) {
+            procedure.process(0, 0, n);
+            return;
+        }
+        final Batches batches = new Batches(n, batchSize(n, maximalNumberOfBatches), numberOfBatches, procedure);
+        final JobManager manager = SiriusJobs.getGlobalJobManager();
+        for (int i = 1; i < numberOfBatches; ++i) {
+            manager.submitJob(new BasicJJob<Object>() {
+                @Override
+                protected Object compute() throws Exception {
+                    batches.processRemaining();
+                    return null;
+                }
+            });
+        }
+        batches.processRemaining();
+        batches.await();
+    }
+
+    private static int batchSize(int n, int maximalNumberOfBatches) {
+        final int numberOfBatches = Math.max(1, Math.min(n, maximalNumberOfBatches));
+        return (n + numberOfBatches - 1) / numberOfBatches;
+    }
+
+    private static class Batches {
+        private final int n, batchSize, numberOfBatches;
+        private final Procedure procedure;
+        private final AtomicInteger nextBatch;
+        private final CountDownLatch finished;
+        private final AtomicReference<Throwable> error;
+
+        private Batches(int n, int batchSize, int numberOfBatches, Procedure procedure) {
+            this.n = n;
+            this.batchSize = batchSize;
+            this.numberOfBatches = numberOfBatches;
+            this.procedure = procedure;
+            this.nextBatch = new AtomicInteger(0);
+            this.finished = new CountDownLatch(numberOfBatches);
+            this.error = new AtomicReference<>();
+        }
+
+        private void processRemaining() {
+            while (true) {
+                final int batch = nextBatch.getAndIncrement();
+                if (batch >= numberOfBatches) return;
+                try {
+                    // skip the remaining batches if one of them failed
+                    if (error.get() == null) {
+                        final int from = batch * batchSize;
+                        procedure.process(batch, from, Math.min(n, from + batchSize));
+                    }
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                } finally {
+                    finished.countDown();
+                }
+            }
+        }
+
+        private void await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    finished.await();
+                    break;
+                } catch (InterruptedException e) {
+                    // the other threads still work on our batches, so we have to wait for them anyways
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            final Throwable t = error.get();
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            if (t instanceof Error) throw (Error) t;
+            if (t != null) throw new RuntimeException(t);
+        }
+    }
+
+}
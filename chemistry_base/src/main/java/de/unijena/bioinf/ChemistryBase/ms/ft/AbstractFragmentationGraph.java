@@ -70,6 +70,60 @@ abstract class AbstractFragmentationGraph implements Iterable<Fragment> {
         }
     }
 
+    /**
+     * creates the subgraph induced by the given vertices. Vertices keep their relative order, incoming
+     * and outgoing edges of each vertex keep their order, too. Annotations are shared with the given graph.
+     */
+    protected AbstractFragmentationGraph(AbstractFragmentationGraph graph, BitSet vertices) {
+        this.annotations = new HashMap<Class<Object>, Object>(graph.annotations);
+        this.aliases = new HashSet<Class<Object>>();
+        this.fragmentAnnotations = new HashMap<Class<Object>, FragmentAnnotation<Object>>(graph.fragmentAnnotations);
+        this.lossAnnotations = new HashMap<Class<Object>, LossAnnotation<Object>>(graph.lossAnnotations);
+        this.edgeNum = 0;
+        this.fragments = new ArrayList<Fragment>(vertices.cardinality());
+        final int[] newIds = new int[graph.fragments.size()];
+        Arrays.fill(newIds, -1);
+        for (int i = vertices.nextSetBit(0); i >= 0; i = vertices.nextSetBit(i + 1)) {
+            final Fragment old = graph.fragments.get(i);
+            final Fragment f = new Fragment(fragments.size(), old.formula);
+            f.color = old.color;
+            f.annotations = old.annotations.clone();
+            newIds[i] = fragments.size();
+            fragments.add(f);
+        }
+        // first insert incoming edges in their original order and remember the new loss for each outgoing edge
+        final Loss[][] outgoing = new Loss[graph.fragments.size()][];
+        for (int i = vertices.nextSetBit(0); i >= 0; i = vertices.nextSetBit(i + 1)) {
+            outgoing[i] = new Loss[graph.fragments.get(i).outDegree];
+        }
+        for (int i = vertices.nextSetBit(0); i >= 0; i = vertices.nextSetBit(i + 1)) {
+            final Fragment old = graph.fragments.get(i);
+            final Fragment v = fragments.get(newIds[i]);
+            v.incomingEdges = new Loss[old.inDegree];
+            for (int k = 0; k < old.inDegree; ++k) {
+                final Loss l = old.incomingEdges[k];
+                final int u = newIds[l.source.vertexId];
+                if (u < 0) continue;
+                final Loss newl = new Loss(l, fragments.get(u), v);
+                newl.targetEdgeOffset = v.inDegree;
+                v.incomingEdges[v.inDegree++] = newl;
+                outgoing[l.source.vertexId][l.sourceEdgeOffset] = newl;
+                ++edgeNum;
+            }
+        }
+        for (int i = vertices.nextSetBit(0); i >= 0; i = vertices.nextSetBit(i + 1)) {
+            final Fragment u = fragments.get(newIds[i]);
+            final Loss[] losses = outgoing[i];
+            u.outgoingEdges = new Loss[losses.length];
+            for (Loss l : losses) {
+                if (l == null) continue;
+                l.sourceEdgeOffset = u.outDegree;
+                u.outgoingEdges[u.outDegree++] = l;
+            }
+        }
+        for (Fragment f : fragments) f.compact();
+    }
+
     /**
      * maps all vertices from graph1 to graph2. Returns a map (fragment a {@literal ->} fragment b) where a is a fragment of
      * graph1 and b is a corresponding fragment from graph 2. Two fragments belong to each other if they have the same
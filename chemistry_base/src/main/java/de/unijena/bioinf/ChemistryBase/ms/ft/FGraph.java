@@ -38,6 +38,21 @@ public class FGraph extends AbstractFragmentationGraph {
         assert pseudoRoot.isRoot();
     }
 
+    /**
+     * creates the subgraph of the given graph which is induced by the given vertices.
+     * The pseudo root (vertex 0) always has to be contained in the vertex set.
+     */
+    public FGraph(FGraph graph, BitSet vertices) {
+        super(graph, checkPseudoRoot(vertices));
+        this.pseudoRoot = fragments.get(0);
+        assert pseudoRoot.isRoot();
+    }
+
+    private static BitSet checkPseudoRoot(BitSet vertices) {
+        if (!vertices.get(0)) throw new IllegalArgumentException("Subgraph has to contain the pseudo root");
+        return vertices;
+    }
+
     @Override
     public Iterator<Fragment> iterator() {
         return new Iterator<Fragment>() {
@@ -0,0 +1,66 @@
+package de.unijena.bioinf.ChemistryBase.jobs;
+
+import de.unijena.bioinf.jjobs.BasicJJob;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class ParallelBatchesTest {
+
+    @Test
+    public void testEachIndexIsProcessedOnce() {
+        for (int n : new int[]{0, 1, 2, 7, 100, 1001}) {
+            for (int maximalNumberOfBatches : new int[]{1, 3, 8, 5000}) {
+                final AtomicIntegerArray counts = new AtomicIntegerArray(n);
+                final int numberOfBatches = ParallelBatches.numberOfBatches(n, maximalNumberOfBatches);
+                assertTrue(numberOfBatches <= maximalNumberOfBatches);
+                final AtomicIntegerArray batches = new AtomicIntegerArray(Math.max(1, numberOfBatches));
+                ParallelBatches.forEachBatch(n, maximalNumberOfBatches, (batch, from, to) -> {
+                    batches.incrementAndGet(batch);
+                    for (int i = from; i < to; ++i) counts.incrementAndGet(i);
+                });
+                for (int i = 0; i < n; ++i) assertEquals(1, counts.get(i));
+                for (int b = 0; b < numberOfBatches; ++b) assertEquals(1, batches.get(b));
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testExceptionIsRethrown() {
+        ParallelBatches.forEachBatch(100, 10, (batch, from, to) -> {
+            if (batch == 5) throw new IllegalStateException();
+        });
+    }
+
+    /**
+     * Each CPU thread of the job manager runs a job which itself splits its work into batches. Blocking on
+     * the batch jobs would deadlock here, as no thread is left to process them.
+     */
+    @Test(timeout = 60000)
+    public void testNestedBatchesFromAllThreads() {
+        final int numberOfJobs = 2 * SiriusJobs.getGlobalJobManager().getCPUThreads();
+        final List<BasicJJob<Long>> jobs = new ArrayList<>();
+        for (int j = 0; j < numberOfJobs; ++j) {
+            final BasicJJob<Long> job = new BasicJJob<Long>() {
+                @Override
+                protected Long compute() throws Exception {
+                    final long[] sums = new long[ParallelBatches.numberOfBatches(10000, 16)];
+                    ParallelBatches.forEachBatch(10000, 16, (batch, from, to) -> {
+                        for (int i = from; i < to; ++i) sums[batch] += i;
+                    });
+                    long sum = 0;
+                    for (long s : sums) sum += s;
+                    return sum;
+                }
+            };
+            SiriusJobs.getGlobalJobManager().submitJob(job);
+            jobs.add(job);
+        }
+        for (BasicJJob<Long> job : jobs) assertEquals(10000L * 9999L / 2, job.takeResult().longValue());
+    }
+
+}
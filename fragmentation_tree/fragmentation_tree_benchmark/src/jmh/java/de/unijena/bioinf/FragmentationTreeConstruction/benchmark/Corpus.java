@@ -0,0 +1,88 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.benchmark;
+
+import com.google.gson.JsonObject;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.DecompositionList;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import de.unijena.bioinf.babelms.GenericParser;
+import de.unijena.bioinf.babelms.json.JSONDocumentType;
+import de.unijena.bioinf.babelms.mgf.MgfParser;
+import de.unijena.bioinf.babelms.ms.JenaMsParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The experiments bundled with the benchmarks, ordered by precursor mass. Adenosine is a measured spectrum, which
+ * is read from the test resources of the io module. All other spectra are simulated from fragments of the given
+ * compound (neutral losses of the molecular formula plus mass errors and noise peaks), such that the graph sizes
+ * cover the mass range of typical inputs.
+ */
+public final class Corpus {
+
+    public static final String CAFFEINE = "caffeine.mgf";
+    public static final String ADENOSINE = "Adenosine.ms";
+    public static final String QUERCETIN_GLUCOSIDE = "quercetin-3-glucoside.ms";
+    public static final String RESERPINE = "reserpine.mgf";
+    public static final String ERYTHROMYCIN = "erythromycin.ms";
+
+    private Corpus() {
+    }
+
+    public static Ms2Experiment load(String name) throws IOException {
+        final GenericParser<Ms2Experiment> parser = name.endsWith(".mgf")
+                ? new GenericParser<Ms2Experiment>(new MgfParser())
+                : new GenericParser<Ms2Experiment>(new JenaMsParser());
+        final String resource = name.equals(ADENOSINE) ? "/" + name : "/corpus/" + name;
+        try (final InputStream stream = Corpus.class.getResourceAsStream(resource)) {
+            if (stream == null) throw new IOException("Unknown experiment '" + name + "' in benchmark corpus");
+            final Ms2Experiment experiment = parser.parse(stream);
+            if (experiment == null) throw new IOException("Cannot parse '" + name + "'");
+            return experiment;
+        }
+    }
+
+    /**
+     * @return the analyzer of the qtof profile, which is also used by SIRIUS by default
+     */
+    public static FragmentationPatternAnalysis analyzer() throws IOException {
+        final JsonObject json = JSONDocumentType.getJSON("/profiles/qtof.json", "qtof");
+        return FragmentationPatternAnalysis.loadFromProfile(new JSONDocumentType(), json);
+    }
+
+    /**
+     * @return the decomposition of the known molecular formula of the experiment or the best scoring decomposition
+     * of the precursor, if the formula is unknown
+     */
+    public static Decomposition candidateOf(ProcessedInput input) {
+        final DecompositionList list = input.getAnnotationOrThrow(DecompositionList.class);
+        if (input.getExperimentInformation().getMolecularFormula() != null) {
+            final Decomposition d = list.find(input.getExperimentInformation().getMolecularFormula());
+            if (d != null) return d;
+        }
+        Decomposition best = null;
+        for (Decomposition d : list.getDecompositions())
+            if (best == null || d.getScore() > best.getScore()) best = d;
+        if (best == null) throw new IllegalStateException("precursor has no decomposition");
+        return best;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.benchmark;
+
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+
+/**
+ * Benchmarks the decomposition of all peaks of an experiment. The input is preprocessed up to the parent peak
+ * detection before each invocation, as the decomposition annotates the input.
+ */
+@State(Scope.Thread)
+public class DecompositionBenchmark {
+
+    @Param({Corpus.CAFFEINE, Corpus.ADENOSINE, Corpus.QUERCETIN_GLUCOSIDE, Corpus.RESERPINE, Corpus.ERYTHROMYCIN})
+    public String experiment;
+
+    private FragmentationPatternAnalysis analyzer;
+    private Ms2Experiment data;
+    private ProcessedInput input;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        analyzer = Corpus.analyzer();
+        data = Corpus.load(experiment);
+    }
+
+    @Setup(Level.Invocation)
+    public void preprocess() {
+        input = analyzer.performParentPeakDetection(analyzer.performPeakMerging(analyzer.performNormalization(
+                analyzer.performPreprocessing(analyzer.performValidation(data)))));
+    }
+
+    @Benchmark
+    public ProcessedInput performDecomposition() {
+        return analyzer.performDecomposition(input);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.benchmark;
+
+import de.unijena.bioinf.ChemistryBase.ms.Peak;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.GraphBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedPeak;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * Benchmarks building and scoring the fragmentation graph of the correct (or best scoring) precursor candidate.
+ */
+@State(Scope.Thread)
+public class GraphBenchmark {
+
+    @Param({Corpus.CAFFEINE, Corpus.ADENOSINE, Corpus.QUERCETIN_GLUCOSIDE, Corpus.RESERPINE, Corpus.ERYTHROMYCIN})
+    public String experiment;
+
+    private FragmentationPatternAnalysis analyzer;
+    private ProcessedInput input;
+    private Decomposition candidate;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        analyzer = Corpus.analyzer();
+        input = analyzer.preprocessing(Corpus.load(experiment));
+        candidate = Corpus.candidateOf(input);
+    }
+
+    /**
+     * graph building including scoring and reduction
+     */
+    @Benchmark
+    public FGraph buildGraph() {
+        return analyzer.buildGraph(input, candidate);
+    }
+
+    @State(Scope.Thread)
+    public static class UnscoredGraph {
+        private FGraph graph;
+
+        @Setup(Level.Invocation)
+        public void build(GraphBenchmark benchmark) {
+            final GraphBuilder builder = benchmark.analyzer.getGraphBuilder();
+            graph = builder.fillGraph(builder.addRoot(builder.initializeEmptyGraph(benchmark.input),
+                    benchmark.input.getParentPeak(), Collections.singletonList(benchmark.candidate)));
+            graph.addAliasForFragmentAnnotation(ProcessedPeak.class, Peak.class);
+        }
+    }
+
+    @Benchmark
+    public FGraph performGraphScoring(UnscoredGraph unscored) {
+        return analyzer.performGraphScoring(unscored.graph);
+    }
+}
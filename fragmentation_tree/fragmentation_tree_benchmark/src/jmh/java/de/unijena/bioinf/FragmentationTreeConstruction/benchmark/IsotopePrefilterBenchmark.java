@@ -0,0 +1,76 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.benchmark;
+
+import de.unijena.bioinf.ChemistryBase.chem.FormulaConstraints;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMeasurementProfile;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.IsotopePatternAnalysis.IsotopePattern;
+import de.unijena.bioinf.IsotopePatternAnalysis.IsotopePatternAnalysis;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+
+/**
+ * Benchmarks MS1 isotope pattern analysis of high-mass compounds with and without prefiltering the decompositions
+ * by their M+1/M and M+2/M ratios. The measured pattern is the simulated pattern of the compound, so the correct
+ * formula always passes the prefilter.
+ */
+@State(Scope.Thread)
+public class IsotopePrefilterBenchmark {
+
+    /**
+     * compounds of about 730, 1230 and 1670 Da, with up to several hundred thousand CHNOPS decompositions
+     */
+    @Param({"C37H67NO13", "C58H84N6O21S", "C73H112N12O28P2"})
+    public String formula;
+
+    @Param({"0", "5"})
+    public double prefilterStandardDeviations;
+
+    private IsotopePatternAnalysis analyzer;
+    private MutableMs2Experiment experiment;
+    private MutableMeasurementProfile profile;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        analyzer = IsotopePatternAnalysis.defaultAnalyzer();
+        analyzer.setPrefilterStandardDeviations(prefilterStandardDeviations);
+        final PrecursorIonType ion = PrecursorIonType.getPrecursorIonType("[M+H]+");
+        final SimpleSpectrum pattern = analyzer.getPatternGenerator().simulatePattern(MolecularFormula.parse(formula), ion.getIonization());
+        experiment = new MutableMs2Experiment();
+        experiment.setPrecursorIonType(ion);
+        experiment.setIonMass(pattern.getMzAt(0));
+        experiment.setMergedMs1Spectrum(pattern);
+        profile = new MutableMeasurementProfile(analyzer.getDefaultProfile());
+        profile.setAllowedMassDeviation(new Deviation(5));
+        profile.setFormulaConstraints(new FormulaConstraints("CHNOP[5]S[5]"));
+    }
+
+    /**
+     * decomposition, prefiltering (if enabled) and scoring of all remaining formulas
+     */
+    @Benchmark
+    public List<IsotopePattern> deisotope() {
+        return analyzer.deisotope(experiment, profile);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.benchmark;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilderFactory;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.maximumColorfulSubtree.MaximumColorfulSubtreeAlgorithm;
+import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.ExtendedCriticalPathHeuristic;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks the tree computation on the reduced graph of the correct (or best scoring) precursor candidate.
+ * GLPK is the only ILP solver benchmarked, as it runs without a license.
+ */
+@State(Scope.Thread)
+public class TreeBenchmark {
+
+    /**
+     * the dynamic programming is exponential in the number of colors, so only the most intensive peaks are used
+     */
+    public static final int MAXIMAL_NUMBER_OF_COLORS_IN_DP = 12;
+
+    @Param({Corpus.CAFFEINE, Corpus.ADENOSINE, Corpus.QUERCETIN_GLUCOSIDE, Corpus.RESERPINE, Corpus.ERYTHROMYCIN})
+    public String experiment;
+
+    private ProcessedInput input;
+    private FGraph graph;
+    private TreeBuilder glpk;
+    private MaximumColorfulSubtreeAlgorithm dp;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        final FragmentationPatternAnalysis analyzer = Corpus.analyzer();
+        input = analyzer.preprocessing(Corpus.load(experiment));
+        graph = analyzer.buildGraph(input, Corpus.candidateOf(input));
+        glpk = TreeBuilderFactory.getInstance().getTreeBuilder(TreeBuilderFactory.DefaultBuilder.GLPK);
+        if (glpk == null) throw new IllegalStateException("GLPK is not available. Check the java.library.path.");
+        dp = new MaximumColorfulSubtreeAlgorithm();
+    }
+
+    @Benchmark
+    public FTree extendedCriticalPathHeuristic() {
+        return new ExtendedCriticalPathHeuristic(graph).solve();
+    }
+
+    @Benchmark
+    public FTree glpk() {
+        return glpk.computeTree().withMultithreading(1).solve(input, graph).tree;
+    }
+
+    @State(Scope.Thread)
+    public static class GraphCopy {
+        private FGraph graph;
+
+        /**
+         * the dynamic programming recolors the vertices of the graph, so each invocation gets its own copy
+         */
+        @Setup(Level.Invocation)
+        public void copy(TreeBenchmark benchmark) {
+            graph = new FGraph(benchmark.graph);
+        }
+    }
+
+    @Benchmark
+    public FTree maximumColorfulSubtree(GraphCopy copy) {
+        return dp.compute(copy.graph, MAXIMAL_NUMBER_OF_COLORS_IN_DP);
+    }
+
+    /**
+     * The heuristic on a random colored graph with more than 50000 edges, which is much larger than the graphs of the
+     * corpus. The graph is generated from a fixed seed, such that all runs use the same graph.
+     */
+    @State(Scope.Thread)
+    public static class LargeGraph {
+
+        public static final long SEED = 4711;
+        public static final int NUMBER_OF_COLORS = 250;
+        public static final int MAXIMAL_NUMBER_OF_VERTICES_PER_COLOR = 6;
+        public static final double EDGE_PROBABILITY = 0.2;
+
+        private FGraph graph;
+
+        @Setup(Level.Trial)
+        public void generate() {
+            graph = randomGraph(new Random(SEED));
+            if (graph.numberOfEdges() <= 50000)
+                throw new IllegalStateException("random graph has only " + graph.numberOfEdges() + " edges");
+        }
+
+        @Benchmark
+        public FTree extendedCriticalPathHeuristic() {
+            return new ExtendedCriticalPathHeuristic(graph).solve();
+        }
+
+        /**
+         * creates a graph sorted by color: the pseudo root has color 0, a single root candidate color 1 and each
+         * vertex an edge to each vertex of larger color with probability {@link #EDGE_PROBABILITY}. Edge weights are
+         * normally distributed.
+         */
+        private static FGraph randomGraph(Random random) {
+            final FGraph graph = new FGraph();
+            final List<Fragment> vertices = new ArrayList<>();
+            final Fragment root = graph.addRootVertex(MolecularFormula.parse("C1H1"));
+            root.setColor(1);
+            root.getIncomingEdge().setWeight(random.nextGaussian());
+            vertices.add(root);
+            for (int color = 2; color <= NUMBER_OF_COLORS; ++color) {
+                final int previousVertices = vertices.size();
+                for (int k = 0, n = 1 + random.nextInt(MAXIMAL_NUMBER_OF_VERTICES_PER_COLOR); k < n; ++k) {
+                    final Fragment v = graph.addFragment(MolecularFormula.parse("C" + color + "H" + (k + 1)));
+                    v.setColor(color);
+                    for (int i = 0; i < previousVertices; ++i) {
+                        if (random.nextDouble() < EDGE_PROBABILITY)
+                            graph.addLoss(vertices.get(i), v).setWeight(random.nextGaussian());
+                    }
+                    vertices.add(v);
+                }
+            }
+            return graph;
+        }
+    }
+}
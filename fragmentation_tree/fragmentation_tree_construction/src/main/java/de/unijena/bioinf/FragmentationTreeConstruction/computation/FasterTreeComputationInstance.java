@@ -3,9 +3,11 @@ package de.unijena.bioinf.FragmentationTreeConstruction.computation;
 import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
 import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
 import de.unijena.bioinf.ChemistryBase.ms.ft.*;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.MultiCandidateGraph;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.recalibration.HypothesenDrivenRecalibration2;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.recalibration.SpectralRecalibration;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring.TreeSizeScorer;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.PortfolioTreeBuilder;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
 import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.treebuilder.ExtendedCriticalPathHeuristicTreeBuilder;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.*;
@@ -36,6 +38,40 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
     protected volatile int restTime;
     protected int secondsPerInstance, secondsPerTree;
 
+    // scored graph shared by all precursor candidates of the current tree size. Null if each candidate
+    // has to be scored separately
+    protected volatile MultiCandidateGraph sharedGraph;
+
+    /**
+     * decides which candidates are computed with the heuristic and which with the exact solver of the analyzer
+     */
+    public enum TreeBuilderStrategy {
+        /**
+         * heuristic for all candidates if the precursor ion is above 300 m/z, exact solver for all candidates otherwise
+         */
+        BY_PRECURSOR_MASS,
+        /**
+         * exact solver for all candidates if the precursor ion is at most 300 m/z. Otherwise, heuristic for all
+         * candidates and the best heuristic trees are improved by the exact solver afterwards, as long as it does
+         * not exceed its deadline per tree and its time budget per compound
+         */
+        PORTFOLIO
+    }
+
+    protected TreeBuilderStrategy treeBuilderStrategy = TreeBuilderStrategy.BY_PRECURSOR_MASS;
+
+    // maximal running time of the exact solver for a single tree. If it is exceeded, the heuristic tree is used
+    protected double exactSolverDeadline = 10d;
+
+    // maximal running time of the exact solver for all trees of the compound. Afterwards, only the heuristic is used
+    protected double exactSolverBudget = 60d;
+
+    // number of best heuristic trees which are improved by the exact solver in each tree size iteration
+    protected int numberOfExactCandidates = 10;
+
+    // point in time at which the exact solver budget of this compound is used up
+    protected long exactSolverEndTime;
+
     public FasterTreeComputationInstance(FragmentationPatternAnalysis analyzer, Ms2Experiment input, int numberOfResultsToKeep) {
         super(analyzer);
         this.experiment = input;
@@ -127,10 +163,10 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
         // preprocess input
         List<Decomposition> decompositions = pinput.getAnnotationOrThrow(DecompositionList.class).getDecompositions();
         // as long as we do not find good quality results
-        final boolean useHeuristic = pinput.getParentPeak().getMz() > 300;
-        final ExactResult[] results = estimateTreeSizeAndRecalibration(decompositions, useHeuristic);
+        final ExactResult[] results = estimateTreeSizeAndRecalibration(decompositions);
         final List<FTree> trees = new ArrayList<>(results.length);
         for (ExactResult r : results) trees.add(r.tree);
+        sharedGraph = null;
         trees.forEach(this::recalculateScore);
         return new FinalResult(trees);
     }
@@ -144,11 +180,15 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
         }
     }
 
-    public ExactResult[] estimateTreeSizeAndRecalibration(List<Decomposition> decompositions, boolean useHeuristic) throws ExecutionException {
+    public ExactResult[] estimateTreeSizeAndRecalibration(List<Decomposition> decompositions) throws ExecutionException {
         final int NCPUS = jobManager.getCPUThreads();
         final int BATCH_SIZE = Math.min(4 * NCPUS, Math.max(30, NCPUS));
         final int MAX_GRAPH_CACHE_SIZE = Math.max(30, BATCH_SIZE);
         final int n = Math.min(decompositions.size(), numberOfResultsToKeep);
+        // the exact solver is cheap for small compounds, so they keep optimal trees for all candidates
+        final boolean useHeuristic = pinput.getParentPeak().getMz() > 300;
+        final boolean portfolio = useHeuristic && treeBuilderStrategy == TreeBuilderStrategy.PORTFOLIO;
+        exactSolverEndTime = exactSolverBudget > 0 ? System.currentTimeMillis() + (long) (exactSolverBudget * 1000) : 0L;
 
         TreeSizeScorer.TreeSizeBonus treeSizeBonus;
         final TreeSizeScorer tss = FragmentationPatternAnalysis.getByClassName(TreeSizeScorer.class, analyzer.getFragmentPeakScorers());
@@ -163,9 +203,10 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
         final List<ExactResult> results = new ArrayList<>(decompositions.size());
         // TREE SIZE
         while (inc <= MAX_TREESIZE_INCREASE) {
-            configureProgress(2, useHeuristic ? 50 : 90,decompositions.size());
+            configureProgress(2, useHeuristic ? 50 : 90, decompositions.size());
             if (tss != null) tss.fastReplace(pinput, new TreeSizeScorer.TreeSizeBonus(treeSize));
             results.clear();
+            sharedGraph = buildSharedGraph(decompositions);
             final List<TreeComputationJob> jobs = new ArrayList<>(decompositions.size());
             final TreeBuilder builder = useHeuristic ? getHeuristicTreeBuilder() : analyzer.getTreeBuilder();
             for (Decomposition d : decompositions) {
@@ -182,6 +223,10 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
                 }
             }
             Collections.sort(results, Collections.reverseOrder());
+            if (portfolio) {
+                improveWithExactSolver(results.subList(0, Math.min(results.size(), numberOfExactCandidates)));
+                Collections.sort(results, Collections.reverseOrder());
+            }
             final int treeSizeCheck = Math.min(results.size(), MIN_NUMBER_OF_TREES_CHECK_FOR_INTENSITY);
             if (tss == null || checkForTreeQuality(results.subList(0, treeSizeCheck), false)) {
                 break;
@@ -193,7 +238,7 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
         configureProgress(100, topResults.size());
         if (pinput.getAnnotation(ForbidRecalibration.class, ForbidRecalibration.ALLOWED).isForbidden()) {
             final List<BasicJJob<ExactResult>> jobs = new ArrayList<>();
-            if (useHeuristic) {
+            if (useHeuristic && !portfolio) {
                 topResults.forEach((t) -> jobs.add(new ExactJob(t)));
             } else {
                 topResults.forEach((t) -> jobs.add(new AnnotationJob(t)));
@@ -204,7 +249,7 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
         }
         final List<RecalibrationJob> recalibrationJobs = new ArrayList<>();
         for (ExactResult r : topResults) {
-            final RecalibrationJob recalibrationJob = new RecalibrationJob(r, useHeuristic ? getHeuristicTreeBuilder() : analyzer.getTreeBuilder());
+            final RecalibrationJob recalibrationJob = new RecalibrationJob(r, portfolio ? getTreeBuilder() : (useHeuristic ? getHeuristicTreeBuilder() : analyzer.getTreeBuilder()));
             submitSubJob(recalibrationJob);
             recalibrationJobs.add(recalibrationJob);
         }
@@ -218,11 +263,95 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
         return exact;
     }
 
+    /**
+     * recomputes the given heuristic results with the portfolio tree builder and replaces each of them by the
+     * recomputed tree if it is better
+     */
+    private void improveWithExactSolver(List<ExactResult> heuristicResults) {
+        final TreeBuilder builder = getTreeBuilder();
+        final List<TreeComputationJob> jobs = new ArrayList<>(heuristicResults.size());
+        for (ExactResult r : heuristicResults) {
+            final TreeComputationJob job = new TreeComputationJob(builder, null, r.decomposition);
+            submitSubJob(job);
+            jobs.add(job);
+        }
+        for (int i = 0; i < jobs.size(); ++i) {
+            final ExactResult improved = jobs.get(i).awaitResult();
+            if (improved.score > heuristicResults.get(i).score)
+                heuristicResults.set(i, improved);
+        }
+        checkTimeout();
+    }
+
+    private MultiCandidateGraph buildSharedGraph(List<Decomposition> decompositions) {
+        if (!analyzer.isSharedGraphScoringPossible(pinput)) return null;
+        final List<Decomposition> candidates = new ArrayList<>(decompositions.size());
+        for (Decomposition d : decompositions)
+            if (!Double.isInfinite(d.getScore())) candidates.add(d);
+        if (candidates.size() <= 1) return null;
+        return analyzer.buildMultiCandidateGraph(pinput, candidates);
+    }
+
+    /**
+     * returns the graph of the given candidate. Uses the shared graph if possible.
+     */
+    protected FGraph buildGraph(Decomposition decomposition, boolean withReduction) {
+        final MultiCandidateGraph shared = sharedGraph;
+        final MultiCandidateGraph.CandidateView view = shared == null ? null : shared.getView(decomposition);
+        if (view != null)
+            return withReduction ? analyzer.buildGraph(view) : analyzer.buildGraphWithoutReduction(view);
+        return withReduction ? analyzer.buildGraph(pinput, decomposition) : analyzer.buildGraphWithoutReduction(pinput, decomposition);
+    }
+
     @NotNull
     private ExtendedCriticalPathHeuristicTreeBuilder getHeuristicTreeBuilder() {
         return new ExtendedCriticalPathHeuristicTreeBuilder();
     }
 
+    /**
+     * returns a tree builder which starts with the heuristic and improves its tree with the exact solver of the
+     * analyzer, as long as the exact solver does not exceed its deadline and the budget of the compound is not used up.
+     */
+    protected TreeBuilder getTreeBuilder() {
+        return new PortfolioTreeBuilder(getHeuristicTreeBuilder(), analyzer.getTreeBuilder(), exactSolverDeadline, exactSolverEndTime);
+    }
+
+    public TreeBuilderStrategy getTreeBuilderStrategy() {
+        return treeBuilderStrategy;
+    }
+
+    public void setTreeBuilderStrategy(TreeBuilderStrategy treeBuilderStrategy) {
+        this.treeBuilderStrategy = treeBuilderStrategy;
+    }
+
+    public double getExactSolverDeadline() {
+        return exactSolverDeadline;
+    }
+
+    public void setExactSolverDeadline(double exactSolverDeadline) {
+        this.exactSolverDeadline = exactSolverDeadline;
+    }
+
+    public double getExactSolverBudget() {
+        return exactSolverBudget;
+    }
+
+    /**
+     * @param exactSolverBudget maximal running time in seconds of the exact solver for all trees of a compound. Zero
+     *                          or less means no budget
+     */
+    public void setExactSolverBudget(double exactSolverBudget) {
+        this.exactSolverBudget = exactSolverBudget;
+    }
+
+    public int getNumberOfExactCandidates() {
+        return numberOfExactCandidates;
+    }
+
+    public void setNumberOfExactCandidates(int numberOfExactCandidates) {
+        this.numberOfExactCandidates = numberOfExactCandidates;
+    }
+
     private ExactResult takeResultAndCheckTime(BasicJJob<ExactResult> r) {
         final ExactResult result = r.takeResult();
         checkTimeout();
@@ -238,7 +367,7 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
 
         @Override
         protected ExactResult compute() throws Exception {
-            FGraph graph = analyzer.buildGraph(pinput, template.decomposition);
+            FGraph graph = buildGraph(template.decomposition, true);
             final FTree tree = analyzer.getTreeBuilder().computeTree().withMultithreading(1).withTimeLimit(Math.min(restTime, secondsPerTree)).withMinimalScore(template.score - 1e-3)/*.withTemplate(template.tree)*/.solve(pinput, graph).tree;
             analyzer.addTreeAnnotations(graph, tree);
             tick();
@@ -255,7 +384,7 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
 
         @Override
         protected ExactResult compute() throws Exception {
-            FGraph graph = analyzer.buildGraph(pinput, template.decomposition);
+            FGraph graph = buildGraph(template.decomposition, true);
             final FTree tree = template.tree;
             analyzer.addTreeAnnotations(graph, tree);
             tick();
@@ -277,7 +406,7 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
 
         @Override
         protected ExactResult compute() throws Exception {
-            final FGraph graph = treeBuilder instanceof ExtendedCriticalPathHeuristicTreeBuilder ? analyzer.buildGraphWithoutReduction(pinput, decomposition) : analyzer.buildGraph(pinput, decomposition);
+            final FGraph graph = buildGraph(decomposition, !(treeBuilder instanceof ExtendedCriticalPathHeuristicTreeBuilder));
             final FTree tree = treeBuilder.computeTree().withTimeLimit(Math.min(restTime, secondsPerTree)).solve(pinput, graph).tree;
             final ExactResult er = new ExactResult(decomposition, null, tree, tree.getTreeWeight());
             if (graphCache != null) {
@@ -317,7 +446,7 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
         protected ExactResult compute() throws Exception {
             FGraph graph;
             if (r.graph == null) {
-                graph = analyzer.buildGraph(pinput, r.decomposition);
+                graph = buildGraph(r.decomposition, true);
             } else graph = r.graph;
             final FTree tree = r.tree;
             return recalibrate(pinput, tb, tree, graph);
@@ -325,35 +454,51 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
     }
 
     protected ExactResult recalibrate(ProcessedInput input, TreeBuilder tb, FTree tree, FGraph origGraph) {
-        if (tree.getAnnotationOrNull(ProcessedInput.class) == null)
-            analyzer.addTreeAnnotations(origGraph, tree);
-        final SpectralRecalibration rec = new HypothesenDrivenRecalibration2().collectPeaksFromMs2(input.getExperimentInformation(), tree);
-        final ProcessedInput pin = input.getRecalibratedVersion(rec);
-        // we have to completely rescore the input...
-        final DecompositionList l = new DecompositionList(Arrays.asList(pin.getAnnotationOrThrow(DecompositionList.class).find(tree.getRoot().getFormula())));
-        pin.setAnnotation(DecompositionList.class, l);
-        analyzer.performDecomposition(pin);
-        analyzer.performPeakScoring(pin);
-        FGraph graph = analyzer.buildGraph(pin, l.getDecompositions().get(0));
-        graph.addAnnotation(SpectralRecalibration.class, rec);
-        graph.setAnnotation(ProcessedInput.class, pin);
-        final FTree recal = tb.computeTree().withTimeLimit(Math.min(restTime, secondsPerTree)).solve(pin, graph).tree;
-        final FTree finalTree;
-        if (recal.getTreeWeight() >= tree.getTreeWeight()) {
-            finalTree = analyzer.getTreeBuilder().computeTree().withTimeLimit(Math.min(restTime, secondsPerTree)).withTemplate(recal).withMinimalScore(recal.getTreeWeight() - 1e-3).solve(pin, graph).tree;
-            finalTree.setAnnotation(SpectralRecalibration.class, rec);
-            finalTree.setAnnotation(ProcessedInput.class, pin);
-            finalTree.setAnnotation(RecalibrationFunction.class, rec.toPolynomial());
-            analyzer.addTreeAnnotations(graph, finalTree);
-        } else {
-            finalTree = analyzer.getTreeBuilder().computeTree().withTimeLimit(Math.min(restTime, secondsPerTree)).withTemplate(tree).withMinimalScore(tree.getTreeWeight() - 1e-3).solve(input, origGraph).tree;
-            finalTree.setAnnotation(ProcessedInput.class, input);
-            finalTree.setAnnotation(RecalibrationFunction.class, RecalibrationFunction.identity());
-            finalTree.setAnnotation(SpectralRecalibration.class, SpectralRecalibration.none());
-            analyzer.addTreeAnnotations(origGraph, finalTree);
+        final StageMetrics.Measurement measurement = StageMetrics.start(StageMetrics.of(input), StageMetrics.Stage.RECALIBRATION);
+        try {
+            if (tree.getAnnotationOrNull(ProcessedInput.class) == null)
+                analyzer.addTreeAnnotations(origGraph, tree);
+            final SpectralRecalibration rec = new HypothesenDrivenRecalibration2().collectPeaksFromMs2(input.getExperimentInformation(), tree);
+            final ProcessedInput pin = input.getRecalibratedVersion(rec);
+            final DecompositionList l = new DecompositionList(Arrays.asList(pin.getAnnotationOrThrow(DecompositionList.class).find(tree.getRoot().getFormula())));
+            pin.setAnnotation(DecompositionList.class, l);
+            // if the unreduced graph of the candidate is still available, we only update it to the shifted masses.
+            // Otherwise, we have to completely rescore the input...
+            final MultiCandidateGraph shared = sharedGraph;
+            final MultiCandidateGraph.CandidateView view = shared == null ? null : shared.getView(l.getDecompositions().get(0));
+            FGraph graph;
+            if (view != null && analyzer.isGraphRecalibrationPossible() && analyzer.performIncrementalDecomposition(input, pin) != null) {
+                analyzer.performPeakScoring(pin);
+                graph = analyzer.performGraphReduction(analyzer.recalibrateGraph(analyzer.buildGraphWithoutReduction(view), pin), 0d);
+            } else {
+                analyzer.performDecomposition(pin);
+                analyzer.performPeakScoring(pin);
+                graph = analyzer.buildGraph(pin, l.getDecompositions().get(0));
+            }
+            graph.addAnnotation(SpectralRecalibration.class, rec);
+            graph.setAnnotation(ProcessedInput.class, pin);
+            // the given tree builder only decides whether recalibration improves the tree. The final tree is always
+            // computed by the exact solver, starting from the better tree as template
+            final FTree recal = tb.computeTree().withTimeLimit(Math.min(restTime, secondsPerTree)).solve(pin, graph).tree;
+            final FTree finalTree;
+            if (recal.getTreeWeight() >= tree.getTreeWeight()) {
+                finalTree = analyzer.getTreeBuilder().computeTree().withTimeLimit(Math.min(restTime, secondsPerTree)).withTemplate(recal).withMinimalScore(recal.getTreeWeight() - 1e-3).solve(pin, graph).tree;
+                finalTree.setAnnotation(SpectralRecalibration.class, rec);
+                finalTree.setAnnotation(ProcessedInput.class, pin);
+                finalTree.setAnnotation(RecalibrationFunction.class, rec.toPolynomial());
+                analyzer.addTreeAnnotations(graph, finalTree);
+            } else {
+                finalTree = analyzer.getTreeBuilder().computeTree().withTimeLimit(Math.min(restTime, secondsPerTree)).withTemplate(tree).withMinimalScore(tree.getTreeWeight() - 1e-3).solve(input, origGraph).tree;
+                finalTree.setAnnotation(ProcessedInput.class, input);
+                finalTree.setAnnotation(RecalibrationFunction.class, RecalibrationFunction.identity());
+                finalTree.setAnnotation(SpectralRecalibration.class, SpectralRecalibration.none());
+                analyzer.addTreeAnnotations(origGraph, finalTree);
+            }
+            assert finalTree!=null;
+            tick();
+            return new ExactResult(l.getDecompositions().get(0), null, finalTree, finalTree.getTreeWeight());
+        } finally {
+            if (measurement != null) measurement.stop();
         }
-        assert finalTree!=null;
-        tick();
-        return new ExactResult(l.getDecompositions().get(0), null, finalTree, finalTree.getTreeWeight());
     }
 }
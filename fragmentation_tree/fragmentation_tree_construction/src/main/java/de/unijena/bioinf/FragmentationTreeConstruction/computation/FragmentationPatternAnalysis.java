@@ -24,8 +24,11 @@ import de.unijena.bioinf.ChemistryBase.algorithm.Parameterized;
 import de.unijena.bioinf.ChemistryBase.algorithm.Scored;
 import de.unijena.bioinf.ChemistryBase.chem.*;
 import de.unijena.bioinf.ChemistryBase.chem.utils.FormulaVisitor;
+import de.unijena.bioinf.ChemistryBase.chem.utils.MolecularFormulaPacker;
 import de.unijena.bioinf.ChemistryBase.chem.utils.scoring.Hetero2CarbonScorer;
 import de.unijena.bioinf.ChemistryBase.data.DataDocument;
+import de.unijena.bioinf.ChemistryBase.jobs.ParallelBatches;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
 import de.unijena.bioinf.ChemistryBase.math.ExponentialDistribution;
 import de.unijena.bioinf.ChemistryBase.math.LogNormalDistribution;
 import de.unijena.bioinf.ChemistryBase.ms.*;
@@ -38,6 +41,8 @@ import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.filtering.*;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.GraphBuilder;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.GraphReduction;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.IndexedSubFormulaGraphBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.MultiCandidateGraph;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.SimpleReduction;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.SubFormulaGraphBuilder;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.inputValidator.MissingValueValidator;
@@ -53,6 +58,9 @@ import de.unijena.bioinf.FragmentationTreeConstruction.model.*;
 import de.unijena.bioinf.IsotopePatternAnalysis.IsotopePattern;
 import de.unijena.bioinf.MassDecomposer.Chemistry.DecomposerCache;
 import de.unijena.bioinf.MassDecomposer.Chemistry.MassToFormulaDecomposer;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongDoubleHashMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
 import gnu.trove.map.hash.TObjectLongHashMap;
 import gnu.trove.procedure.TLongProcedure;
@@ -93,6 +101,7 @@ import java.util.*;
  *
  */
 public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
+
     private List<Ms2ExperimentValidator> inputValidators;
     private Warning validatorWarning;
     private boolean repairInput;
@@ -112,6 +121,10 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
     private GraphReduction reduction;
     private IsotopePatternInMs2Scorer isoInMs2Scorer;
     private IsotopeInMs2Handling isotopeInMs2Handling;
+    private int parallelGraphScoringThreshold;
+    private int parallelDecompositionThreshold;
+    private int parallelPreprocessingThreshold;
+    private boolean recordingStageMetrics;
 
     public enum IsotopeInMs2Handling {
         /**
@@ -186,53 +199,63 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
      * @return A ProcessedInput object wrapping the original input
      */
     public ProcessedInput performValidation(Ms2Experiment originalExperiment) {
-        // first of all: insert default profile if no profile is given
-
-        MutableMs2Experiment input = new MutableMs2Experiment(originalExperiment);
-        Ms2Experiment exp = input;
+        // the metrics might also be given as annotation of the experiment
+        StageMetrics metrics = originalExperiment.getAnnotation(StageMetrics.class, null);
+        if (metrics == null && recordingStageMetrics) metrics = new StageMetrics();
+        final StageMetrics.Measurement measurement = StageMetrics.start(metrics, StageMetrics.Stage.VALIDATION);
+        try {
+            // first of all: insert default profile if no profile is given
+
+            MutableMs2Experiment input = new MutableMs2Experiment(originalExperiment);
+            Ms2Experiment exp = input;
+
+            MeasurementProfile profile = input.getAnnotation(MeasurementProfile.class, null);
+            FormulaConstraints constraints = null;
+            if (profile == null) {
+                profile = defaultProfile;
+                exp.setAnnotation(MeasurementProfile.class, defaultProfile);
+            }  else {
+                constraints = profile.getFormulaConstraints();
+                profile = MutableMeasurementProfile.merge(defaultProfile, profile);
+            }
 
-        MeasurementProfile profile = input.getAnnotation(MeasurementProfile.class, null);
-        FormulaConstraints constraints = null;
-        if (profile == null) {
-            profile = defaultProfile;
-            exp.setAnnotation(MeasurementProfile.class, defaultProfile);
-        }  else {
-            constraints = profile.getFormulaConstraints();
-            profile = MutableMeasurementProfile.merge(defaultProfile, profile);
-        }
+            for (Ms2ExperimentValidator validator : inputValidators) {
+                exp = validator.validate(exp, validatorWarning, repairInput);
+            }
 
-        for (Ms2ExperimentValidator validator : inputValidators) {
-            exp = validator.validate(exp, validatorWarning, repairInput);
-        }
 
+            final ProcessedInput pinput =  new ProcessedInput(new MutableMs2Experiment(exp), originalExperiment, new MutableMeasurementProfile(profile));
+            if (constraints==null && (originalExperiment.getAnnotation(FormulaSettings.class,null)!=null)) {
+                constraints = originalExperiment.getAnnotation(FormulaSettings.class).getConstraints();
+                pinput.getMeasurementProfile().setFormulaConstraints(constraints);
+            }
 
-        final ProcessedInput pinput =  new ProcessedInput(new MutableMs2Experiment(exp), originalExperiment, new MutableMeasurementProfile(profile));
-        if (constraints==null && (originalExperiment.getAnnotation(FormulaSettings.class,null)!=null)) {
-            constraints = originalExperiment.getAnnotation(FormulaSettings.class).getConstraints();
-            pinput.getMeasurementProfile().setFormulaConstraints(constraints);
-        }
+            if (originalExperiment.getMolecularFormula()!=null) {
+                pinput.getMeasurementProfile().setFormulaConstraints(pinput.getMeasurementProfile().getFormulaConstraints().getExtendedConstraints(FormulaConstraints.allSubsetsOf(originalExperiment.getMolecularFormula())));
+            }
 
-        if (originalExperiment.getMolecularFormula()!=null) {
-            pinput.getMeasurementProfile().setFormulaConstraints(pinput.getMeasurementProfile().getFormulaConstraints().getExtendedConstraints(FormulaConstraints.allSubsetsOf(originalExperiment.getMolecularFormula())));
-        }
+            // set precursor ion types
+            if (pinput.getExperimentInformation().getPrecursorIonType().isIonizationUnknown()) {
+                PossibleIonModes adductTypes = pinput.getExperimentInformation().getAnnotation(PossibleIonModes.class, null);
+                if (adductTypes==null) {
+                    adductTypes = PossibleIonModes.defaultFor(pinput.getExperimentInformation().getPrecursorIonType().getCharge());
+                }
+                pinput.setAnnotation(PossibleIonModes.class, adductTypes);
+            } else {
+                pinput.setAnnotation(PossibleIonModes.class, PossibleIonModes.deterministic(pinput.getExperimentInformation().getPrecursorIonType()));
+            }
 
-        // set precursor ion types
-        if (pinput.getExperimentInformation().getPrecursorIonType().isIonizationUnknown()) {
-            PossibleIonModes adductTypes = pinput.getExperimentInformation().getAnnotation(PossibleIonModes.class, null);
-            if (adductTypes==null) {
-                adductTypes = PossibleIonModes.defaultFor(pinput.getExperimentInformation().getPrecursorIonType().getCharge());
+            // set whiteset
+            if (input.getAnnotation(Whiteset.class, null)!=null) {
+                pinput.setAnnotation(Whiteset.class, input.getAnnotation(Whiteset.class));
             }
-            pinput.setAnnotation(PossibleIonModes.class, adductTypes);
-        } else {
-            pinput.setAnnotation(PossibleIonModes.class, PossibleIonModes.deterministic(pinput.getExperimentInformation().getPrecursorIonType()));
-        }
 
-        // set whiteset
-        if (input.getAnnotation(Whiteset.class, null)!=null) {
-            pinput.setAnnotation(Whiteset.class, input.getAnnotation(Whiteset.class));
-        }
+            if (measurement != null) pinput.setAnnotation(StageMetrics.class, metrics);
 
-        return pinput;
+            return pinput;
+        } finally {
+            if (measurement != null) measurement.stop();
+        }
     }
 
     /**
@@ -242,12 +265,32 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
      * @return
      */
     public ProcessedInput performPreprocessing(ProcessedInput experiment) {
-        MutableMs2Experiment exp = experiment.getExperimentInformation();
-        for (Preprocessor proc : preprocessors) {
-            exp = proc.process(exp, experiment.getMeasurementProfile());
+        final StageMetrics.Measurement measurement = StageMetrics.start(StageMetrics.of(experiment), StageMetrics.Stage.PREPROCESSING);
+        try {
+            MutableMs2Experiment exp = experiment.getExperimentInformation();
+            for (Preprocessor proc : preprocessors) {
+                exp = proc.process(exp, experiment.getMeasurementProfile());
+            }
+            experiment.setExperimentInformation(exp);
+            return experiment;
+        } finally {
+            if (measurement != null) measurement.stop();
         }
-        experiment.setExperimentInformation(exp);
-        return experiment;
+    }
+
+    /**
+     * Apply all preprocessing routines to each of the given inputs. The inputs are processed in parallel
+     * batches, as preprocessing is cheap for a single input but adds up for large libraries.
+     * All preprocessors have to be thread-safe.
+     * @param inputs
+     * @return the preprocessed inputs in the same order
+     */
+    public List<ProcessedInput> performPreprocessing(List<ProcessedInput> inputs) {
+        final ProcessedInput[] processed = inputs.toArray(new ProcessedInput[inputs.size()]);
+        forEachBatch(processed.length, parallelPreprocessingThreshold, (from, to) -> {
+            for (int i = from; i < to; ++i) processed[i] = performPreprocessing(processed[i]);
+        });
+        return Arrays.asList(processed);
     }
 
     /**
@@ -256,66 +299,73 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
      * Return a list of peaks (from all spectra) with relative intensities
      */
     public ProcessedInput performNormalization(ProcessedInput input) {
-        final Ms2Experiment experiment = input.getExperimentInformation();
-        final double parentMass = experiment.getIonMass();
-        final ArrayList<ProcessedPeak> peaklist = new ArrayList<ProcessedPeak>(100);
-        final Deviation mergeWindow = getDefaultProfile().getAllowedMassDeviation().divide(2d);
-        double globalMaxIntensity = 0d;
-        for (Ms2Spectrum s : experiment.getMs2Spectra()) {
-            // merge peaks: iterate them from highest to lowest intensity and remove peaks which
-            // are in the mass range of a high intensive peak
-            final MutableSpectrum<Peak> sortedByIntensity = new SimpleMutableSpectrum(s);
-            Spectrums.sortSpectrumByDescendingIntensity(sortedByIntensity);
-            // simple spectra are always ordered by mass
-            final SimpleSpectrum sortedByMass = new SimpleSpectrum(s);
-            final BitSet deletedPeaks = new BitSet(s.size());
-            for (int i = 0; i < s.size(); ++i) {
-                // get index of peak in mass-ordered spectrum
-                final double mz = sortedByIntensity.getMzAt(i);
-                final int index = Spectrums.binarySearch(sortedByMass, mz);
-                assert index >= 0;
-                if (deletedPeaks.get(index)) continue; // peak is already deleted
-                // delete all peaks within the mass range
-                for (int j = index - 1; j >= 0 && mergeWindow.inErrorWindow(mz, sortedByMass.getMzAt(j)); --j)
-                    deletedPeaks.set(j, true);
-                for (int j = index + 1; j < s.size() && mergeWindow.inErrorWindow(mz, sortedByMass.getMzAt(j)); ++j)
-                    deletedPeaks.set(j, true);
-            }
-            final int offset = peaklist.size();
-            // add all remaining peaks to the peaklist
-            for (int i = 0; i < s.size(); ++i) {
-                if (!deletedPeaks.get(i)) {
-                    final ProcessedPeak propeak = new ProcessedPeak(new MS2Peak(s, sortedByMass.getMzAt(i), sortedByMass.getIntensityAt(i)));
-                    peaklist.add(propeak);
+        final StageMetrics.Measurement measurement = StageMetrics.start(StageMetrics.of(input), StageMetrics.Stage.NORMALIZATION);
+        try {
+            final Ms2Experiment experiment = input.getExperimentInformation();
+            final double parentMass = experiment.getIonMass();
+            final ArrayList<ProcessedPeak> peaklist = new ArrayList<ProcessedPeak>(100);
+            final Deviation mergeWindow = getDefaultProfile().getAllowedMassDeviation().divide(2d);
+            double globalMaxIntensity = 0d;
+            for (Ms2Spectrum s : experiment.getMs2Spectra()) {
+                // merge peaks: iterate them from highest to lowest intensity and remove peaks which
+                // are in the mass range of a high intensive peak
+                final MutableSpectrum<Peak> sortedByIntensity = new SimpleMutableSpectrum(s);
+                Spectrums.sortSpectrumByDescendingIntensity(sortedByIntensity);
+                // simple spectra are always ordered by mass
+                final SimpleSpectrum sortedByMass = new SimpleSpectrum(s);
+                final BitSet deletedPeaks = new BitSet(s.size());
+                for (int i = 0; i < s.size(); ++i) {
+                    // get index of peak in mass-ordered spectrum
+                    final double mz = sortedByIntensity.getMzAt(i);
+                    final int index = Spectrums.binarySearch(sortedByMass, mz);
+                    assert index >= 0;
+                    if (deletedPeaks.get(index)) continue; // peak is already deleted
+                    // delete all peaks within the mass range
+                    for (int j = index - 1; j >= 0 && mergeWindow.inErrorWindow(mz, sortedByMass.getMzAt(j)); --j)
+                        deletedPeaks.set(j, true);
+                    for (int j = index + 1; j < s.size() && mergeWindow.inErrorWindow(mz, sortedByMass.getMzAt(j)); ++j)
+                        deletedPeaks.set(j, true);
+                }
+                final int offset = peaklist.size();
+                // add all remaining peaks to the peaklist
+                for (int i = 0; i < s.size(); ++i) {
+                    if (!deletedPeaks.get(i)) {
+                        final ProcessedPeak propeak = new ProcessedPeak(new MS2Peak(s, sortedByMass.getMzAt(i), sortedByMass.getIntensityAt(i)));
+                        peaklist.add(propeak);
 
+                    }
                 }
+                // now performNormalization spectrum. Ignore peaks near to the parent peak
+                final double lowerbound = parentMass - 0.1d;
+                double scale = 0d;
+                for (int i = offset; i < peaklist.size() && peaklist.get(i).getMz() < lowerbound; ++i) {
+                    scale = Math.max(scale, peaklist.get(i).getIntensity());
+                }
+                if (scale==0) scale = peaklist.get(0).getIntensity(); // happens for spectra with only one peak
+                // now set local relative intensities
+                for (int i = offset; i < peaklist.size(); ++i) {
+                    final ProcessedPeak peak = peaklist.get(i);
+                    peak.setLocalRelativeIntensity(peak.getIntensity() / scale);
+                }
+                // and adjust global relative intensity
+                globalMaxIntensity = Math.max(globalMaxIntensity, scale);
             }
-            // now performNormalization spectrum. Ignore peaks near to the parent peak
-            final double lowerbound = parentMass - 0.1d;
-            double scale = 0d;
-            for (int i = offset; i < peaklist.size() && peaklist.get(i).getMz() < lowerbound; ++i) {
-                scale = Math.max(scale, peaklist.get(i).getIntensity());
-            }
-            if (scale==0) scale = peaklist.get(0).getIntensity(); // happens for spectra with only one peak
-            // now set local relative intensities
-            for (int i = offset; i < peaklist.size(); ++i) {
-                final ProcessedPeak peak = peaklist.get(i);
-                peak.setLocalRelativeIntensity(peak.getIntensity() / scale);
+            // now calculate global normalized intensities
+            for (ProcessedPeak peak : peaklist) {
+                peak.setGlobalRelativeIntensity(peak.getIntensity() / globalMaxIntensity);
+                peak.setRelativeIntensity(normalizationType == NormalizationType.GLOBAL ? peak.getGlobalRelativeIntensity() : peak.getLocalRelativeIntensity());
             }
-            // and adjust global relative intensity
-            globalMaxIntensity = Math.max(globalMaxIntensity, scale);
-        }
-        // now calculate global normalized intensities
-        for (ProcessedPeak peak : peaklist) {
-            peak.setGlobalRelativeIntensity(peak.getIntensity() / globalMaxIntensity);
-            peak.setRelativeIntensity(normalizationType == NormalizationType.GLOBAL ? peak.getGlobalRelativeIntensity() : peak.getLocalRelativeIntensity());
-        }
-        // finished!
-        input.setMergedPeaks(peaklist);
+            // finished!
+            input.setMergedPeaks(peaklist);
 
-        // postprocess
-        postProcess(PostProcessor.Stage.AFTER_NORMALIZING, input);
-        return input;
+            // postprocess
+            postProcess(PostProcessor.Stage.AFTER_NORMALIZING, input);
+            if (measurement != null)
+                measurement.getMetrics().addPeaks(StageMetrics.Stage.NORMALIZATION, peaklist.size());
+            return input;
+        } finally {
+            if (measurement != null) measurement.stop();
+        }
     }
     /**
      *
@@ -325,38 +375,45 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
      * - they are in the same mass range
      */
     public ProcessedInput performPeakMerging(ProcessedInput input) {
-        Ms2Experiment experiment = input.getExperimentInformation();
-        List<ProcessedPeak> peaklists = input.getMergedPeaks();
-        final ArrayList<ProcessedPeak> mergedPeaks = new ArrayList<ProcessedPeak>(peaklists.size());
-        peakMerger.mergePeaks(peaklists, experiment, getDefaultProfile().getAllowedMassDeviation().multiply(2), new Merger() {
-            @Override
-            public ProcessedPeak merge(List<ProcessedPeak> peaks, int index, double newMz) {
-                final ProcessedPeak newPeak = peaks.get(index);
-                // sum up global intensities, take maximum of local intensities
-                double local = 0d, global = 0d, relative = 0d;
-                for (ProcessedPeak p : peaks) {
-                    local = Math.max(local, p.getLocalRelativeIntensity());
-                    global += p.getGlobalRelativeIntensity();
-                    relative += p.getRelativeIntensity();
+        final StageMetrics.Measurement measurement = StageMetrics.start(StageMetrics.of(input), StageMetrics.Stage.MERGING);
+        try {
+            Ms2Experiment experiment = input.getExperimentInformation();
+            List<ProcessedPeak> peaklists = input.getMergedPeaks();
+            final ArrayList<ProcessedPeak> mergedPeaks = new ArrayList<ProcessedPeak>(peaklists.size());
+            peakMerger.mergePeaks(peaklists, experiment, getDefaultProfile().getAllowedMassDeviation().multiply(2), new Merger() {
+                @Override
+                public ProcessedPeak merge(List<ProcessedPeak> peaks, int index, double newMz) {
+                    final ProcessedPeak newPeak = peaks.get(index);
+                    // sum up global intensities, take maximum of local intensities
+                    double local = 0d, global = 0d, relative = 0d;
+                    for (ProcessedPeak p : peaks) {
+                        local = Math.max(local, p.getLocalRelativeIntensity());
+                        global += p.getGlobalRelativeIntensity();
+                        relative += p.getRelativeIntensity();
+                    }
+                    newPeak.setMz(newMz);
+                    newPeak.setLocalRelativeIntensity(local);
+                    newPeak.setGlobalRelativeIntensity(global);
+                    newPeak.setRelativeIntensity(relative);
+                    final MS2Peak[] originalPeaks = new MS2Peak[peaks.size()];
+                    for (int i = 0; i < peaks.size(); ++i) originalPeaks[i] = peaks.get(i).getOriginalPeaks().get(0);
+                    newPeak.setOriginalPeaks(Arrays.asList(originalPeaks));
+                    mergedPeaks.add(newPeak);
+                    return newPeak;
                 }
-                newPeak.setMz(newMz);
-                newPeak.setLocalRelativeIntensity(local);
-                newPeak.setGlobalRelativeIntensity(global);
-                newPeak.setRelativeIntensity(relative);
-                final MS2Peak[] originalPeaks = new MS2Peak[peaks.size()];
-                for (int i = 0; i < peaks.size(); ++i) originalPeaks[i] = peaks.get(i).getOriginalPeaks().get(0);
-                newPeak.setOriginalPeaks(Arrays.asList(originalPeaks));
-                mergedPeaks.add(newPeak);
-                return newPeak;
+            });
+            {
+                // DEBUGGING
+                Collections.sort(mergedPeaks);
             }
-        });
-        {
-            // DEBUGGING
-            Collections.sort(mergedPeaks);
+            input.setMergedPeaks(mergedPeaks);
+            postProcess(PostProcessor.Stage.AFTER_MERGING, input);
+            if (measurement != null)
+                measurement.getMetrics().addPeaks(StageMetrics.Stage.MERGING, mergedPeaks.size());
+            return input;
+        } finally {
+            if (measurement != null) measurement.stop();
         }
-        input.setMergedPeaks(mergedPeaks);
-        postProcess(PostProcessor.Stage.AFTER_MERGING, input);
-        return input;
     }
 
     /**
@@ -367,77 +424,84 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
      * is is guaranteed, that the heaviest peak in the list is always the parent peak.
      */
     public ProcessedInput performParentPeakDetection(ProcessedInput input) {
-        final List<ProcessedPeak> processedPeaks = input.getMergedPeaks();
-        final Ms2Experiment experiment = input.getExperimentInformation();
-        // and sort the resulting peaklist by mass
-        Collections.sort(processedPeaks, new ProcessedPeak.MassComparator());
-
-        double parentmass = experiment.getIonMass();
-
-        Peak ms1parent = null;
-
-        // if ms1 spectra are available: use the parentpeak from them
-        if (!experiment.getMs1Spectra().isEmpty()) {
-            Spectrum<Peak> spec = experiment.getMergedMs1Spectrum();
-            if (spec == null) spec = experiment.getMs1Spectra().get(0);
-            final Deviation parentDeviation = getDefaultProfile().getAllowedMassDeviation();
-            final int i = Spectrums.mostIntensivePeakWithin(Spectrums.getMassOrderedSpectrum(spec), parentmass, parentDeviation);
-            if (i >= 0) {
-                ms1parent = spec.getPeakAt(i);
+        final StageMetrics.Measurement measurement = StageMetrics.start(StageMetrics.of(input), StageMetrics.Stage.PARENT_PEAK_DETECTION);
+        try {
+            final List<ProcessedPeak> processedPeaks = input.getMergedPeaks();
+            final Ms2Experiment experiment = input.getExperimentInformation();
+            // and sort the resulting peaklist by mass
+            Collections.sort(processedPeaks, new ProcessedPeak.MassComparator());
+
+            double parentmass = experiment.getIonMass();
+
+            Peak ms1parent = null;
+
+            // if ms1 spectra are available: use the parentpeak from them
+            if (!experiment.getMs1Spectra().isEmpty()) {
+                Spectrum<Peak> spec = experiment.getMergedMs1Spectrum();
+                if (spec == null) spec = experiment.getMs1Spectra().get(0);
+                final Deviation parentDeviation = getDefaultProfile().getAllowedMassDeviation();
+                final int i = Spectrums.mostIntensivePeakWithin(Spectrums.getMassOrderedSpectrum(spec), parentmass, parentDeviation);
+                if (i >= 0) {
+                    ms1parent = spec.getPeakAt(i);
+                }
+            }
+            if (ms1parent!=null) {
+                parentmass = ms1parent.getMass();
             }
-        }
-        if (ms1parent!=null) {
-            parentmass = ms1parent.getMass();
-        }
-
 
-        // now search the parent peak. If it is not contained in the spectrum: create one!
-        // delete all peaks behind the parent, such that the parent is the heaviest peak in the spectrum
-        // Now we can access the parent peak by peaklist[peaklist.size-1]
-        final Deviation parentDeviation = getDefaultProfile().getAllowedMassDeviation().divide(2d);
-        for (int i = processedPeaks.size() - 1; i >= 0; --i) {
-            if (processedPeaks.get(i).getRelativeIntensity() < 0.05 || !parentDeviation.inErrorWindow(parentmass, processedPeaks.get(i).getMz())) {
-                if (processedPeaks.get(i).getMz() < parentmass) {
-                    // parent peak is not contained. Create a synthetic one
-                    addSyntheticParent(experiment, processedPeaks, parentmass);
-                    break;
-                } else processedPeaks.remove(i);
-            } else break;
-        }
-        if (processedPeaks.isEmpty()) {
-            addSyntheticParent(experiment, processedPeaks, parentmass);
-        }
 
-        // set parent peak mass to ms1 parent mass
-        if (ms1parent!=null) {
-            processedPeaks.get(processedPeaks.size() - 1).setMz(ms1parent.getMass());
-            processedPeaks.get(processedPeaks.size() - 1).setOriginalMz(ms1parent.getMass());
-        }
+            // now search the parent peak. If it is not contained in the spectrum: create one!
+            // delete all peaks behind the parent, such that the parent is the heaviest peak in the spectrum
+            // Now we can access the parent peak by peaklist[peaklist.size-1]
+            final Deviation parentDeviation = getDefaultProfile().getAllowedMassDeviation().divide(2d);
+            for (int i = processedPeaks.size() - 1; i >= 0; --i) {
+                if (processedPeaks.get(i).getRelativeIntensity() < 0.05 || !parentDeviation.inErrorWindow(parentmass, processedPeaks.get(i).getMz())) {
+                    if (processedPeaks.get(i).getMz() < parentmass) {
+                        // parent peak is not contained. Create a synthetic one
+                        addSyntheticParent(experiment, processedPeaks, parentmass);
+                        break;
+                    } else processedPeaks.remove(i);
+                } else break;
+            }
+            if (processedPeaks.isEmpty()) {
+                addSyntheticParent(experiment, processedPeaks, parentmass);
+            }
 
-        assert parentDeviation.inErrorWindow(parentmass, processedPeaks.get(processedPeaks.size() - 1).getMz()) : "heaviest peak is parent peak";
-        // the heaviest fragment that is possible is M - H
-        // everything which is heavier is noise
-        final double threshold = parentmass + getDefaultProfile().getAllowedMassDeviation().absoluteFor(parentmass) - PeriodicTable.getInstance().getByName("H").getMass();
-        final ProcessedPeak parentPeak = processedPeaks.get(processedPeaks.size() - 1);
+            // set parent peak mass to ms1 parent mass
+            if (ms1parent!=null) {
+                processedPeaks.get(processedPeaks.size() - 1).setMz(ms1parent.getMass());
+                processedPeaks.get(processedPeaks.size() - 1).setOriginalMz(ms1parent.getMass());
+            }
 
-        // if ms1 peak present, use his mass and intensity as parent peak
-        /*
-        if (ms1parent != null) {
-            parentPeak.setMz(ms1parent.getMass());
-            parentPeak.setOriginalMz(ms1parent.getMass());
-        }
-        */
+            assert parentDeviation.inErrorWindow(parentmass, processedPeaks.get(processedPeaks.size() - 1).getMz()) : "heaviest peak is parent peak";
+            // the heaviest fragment that is possible is M - H
+            // everything which is heavier is noise
+            final double threshold = parentmass + getDefaultProfile().getAllowedMassDeviation().absoluteFor(parentmass) - PeriodicTable.getInstance().getByName("H").getMass();
+            final ProcessedPeak parentPeak = processedPeaks.get(processedPeaks.size() - 1);
+
+            // if ms1 peak present, use his mass and intensity as parent peak
+            /*
+            if (ms1parent != null) {
+                parentPeak.setMz(ms1parent.getMass());
+                parentPeak.setOriginalMz(ms1parent.getMass());
+            }
+            */
 
-        // delete all peaks between parentmass-H and parentmass except the parent peak itself
-        for (int i = processedPeaks.size() - 2; i >= 0; --i) {
-            if (processedPeaks.get(i).getMz() <= threshold) break;
-            processedPeaks.set(processedPeaks.size() - 2, parentPeak);
-            processedPeaks.remove(processedPeaks.size() - 1);
-        }
+            // delete all peaks between parentmass-H and parentmass except the parent peak itself
+            for (int i = processedPeaks.size() - 2; i >= 0; --i) {
+                if (processedPeaks.get(i).getMz() <= threshold) break;
+                processedPeaks.set(processedPeaks.size() - 2, parentPeak);
+                processedPeaks.remove(processedPeaks.size() - 1);
+            }
 
-        input.setParentPeak(parentPeak);
+            input.setParentPeak(parentPeak);
 
-        return input;
+            if (measurement != null)
+                measurement.getMetrics().addPeaks(StageMetrics.Stage.PARENT_PEAK_DETECTION, processedPeaks.size());
+            return input;
+        } finally {
+            if (measurement != null) measurement.stop();
+        }
     }
 
     /**
@@ -445,103 +509,205 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
      * Decompose each peak as well as the parent peak
      */
     public ProcessedInput performDecomposition(ProcessedInput input) {
-        final PeriodicTable PT = PeriodicTable.getInstance();
-        final Whiteset whiteset = input.getAnnotation(Whiteset.class, null);
-        final FormulaConstraints constraints = input.getMeasurementProfile().getFormulaConstraints();
-        final Ms2Experiment experiment = input.getExperimentInformation();
-        final Deviation parentDeviation = input.getMeasurementProfile().getAllowedMassDeviation();
-        // sort again...
-        final ArrayList<ProcessedPeak> processedPeaks = new ArrayList<ProcessedPeak>(input.getMergedPeaks());
-        Collections.sort(processedPeaks, new ProcessedPeak.MassComparator());
-        final ProcessedPeak parentPeak = processedPeaks.get(processedPeaks.size() - 1);
-        // decompose peaks
-        final List<Ionization> ionModes = input.getAnnotationOrThrow(PossibleIonModes.class).getIonModesWithProbabilityAboutZero();
-        final PeakAnnotation<DecompositionList> decompositionList = input.getOrCreatePeakAnnotation(DecompositionList.class);
-        final MassToFormulaDecomposer decomposer = decomposers.getDecomposer(constraints.getChemicalAlphabet());
-        final Deviation fragmentDeviation = input.getMeasurementProfile().getAllowedMassDeviation();
-
-        final List<MolecularFormula> pmds;
-        final List<Decomposition> decomps = new ArrayList<>();
-
-        if (input.getOriginalInput().getMolecularFormula()!=null){
-            //always use formula. don't look at mass dev.
-            final MolecularFormula formula = input.getOriginalInput().getMolecularFormula();
-            final PrecursorIonType ionType = experiment.getPrecursorIonType();
-            Decomposition decomposition = new Decomposition(ionType.neutralMoleculeToMeasuredNeutralMolecule(formula), ionType.getIonization(), 0d);
-            decomps.add(decomposition);
-            pmds = new ArrayList<>();
-            pmds.add(decomposition.getCandidate());
-
-            if (!parentDeviation.inErrorWindow(parentPeak.getOriginalMz(), ionType.neutralMassToPrecursorMass(formula.getMass()))){
-                validatorWarning.warn("Specified precursor molecular formula does not fall into given m/z error window. "
-                        +formula.formatByHill()+" for m/z "+parentPeak.getOriginalMz()+" and ionization "+ionType);
-            }
-        } else if (whiteset != null && !whiteset.getFormulas().isEmpty()) {
-            final Collection<PrecursorIonType> ionTypes;
-            if (experiment.getPrecursorIonType().isIonizationUnknown())
-                ionTypes = experiment.getAnnotationOrThrow(PossibleAdducts.class).getAdducts();
-            else ionTypes = Arrays.asList(experiment.getPrecursorIonType());
-            decomps.addAll(whiteset.resolve(parentPeak.getOriginalMz(), parentDeviation, ionTypes));
-            pmds = new ArrayList<>();
-            for (Decomposition d : decomps) pmds.add(d.getCandidate());
-        } else if (!experiment.getPrecursorIonType().isIonizationUnknown()) {
-            // use given ionization
-            final PrecursorIonType ionType = experiment.getPrecursorIonType();
-            final List<MolecularFormula> forms = decomposer.decomposeToFormulas(ionType.precursorMassToNeutralMass(parentPeak.getOriginalMz()), parentDeviation.absoluteFor(parentPeak.getOriginalMz()), constraints);
-            pmds = new ArrayList<>();
-            for (MolecularFormula f : forms)  {
-                final MolecularFormula neutralMeasuredFormula = ionType.neutralMoleculeToMeasuredNeutralMolecule(f);
-                if (neutralMeasuredFormula.isAllPositiveOrZero()) {
-                    decomps.add(new Decomposition(neutralMeasuredFormula, ionType.getIonization() , 0d));
-                    pmds.add(neutralMeasuredFormula);
+        final StageMetrics.Measurement measurement = StageMetrics.start(StageMetrics.of(input), StageMetrics.Stage.DECOMPOSITION);
+        try {
+            final PeriodicTable PT = PeriodicTable.getInstance();
+            final Whiteset whiteset = input.getAnnotation(Whiteset.class, null);
+            final FormulaConstraints constraints = input.getMeasurementProfile().getFormulaConstraints();
+            final Ms2Experiment experiment = input.getExperimentInformation();
+            final Deviation parentDeviation = input.getMeasurementProfile().getAllowedMassDeviation();
+            // sort again...
+            final ArrayList<ProcessedPeak> processedPeaks = new ArrayList<ProcessedPeak>(input.getMergedPeaks());
+            Collections.sort(processedPeaks, new ProcessedPeak.MassComparator());
+            final ProcessedPeak parentPeak = processedPeaks.get(processedPeaks.size() - 1);
+            // decompose peaks
+            final List<Ionization> ionModes = input.getAnnotationOrThrow(PossibleIonModes.class).getIonModesWithProbabilityAboutZero();
+            final PeakAnnotation<DecompositionList> decompositionList = input.getOrCreatePeakAnnotation(DecompositionList.class);
+            final MassToFormulaDecomposer decomposer = decomposers.getDecomposer(constraints.getChemicalAlphabet());
+            final Deviation fragmentDeviation = input.getMeasurementProfile().getAllowedMassDeviation();
+
+            final List<MolecularFormula> pmds;
+            final List<Decomposition> decomps = new ArrayList<>();
+
+            if (input.getOriginalInput().getMolecularFormula()!=null){
+                //always use formula. don't look at mass dev.
+                final MolecularFormula formula = input.getOriginalInput().getMolecularFormula();
+                final PrecursorIonType ionType = experiment.getPrecursorIonType();
+                Decomposition decomposition = new Decomposition(ionType.neutralMoleculeToMeasuredNeutralMolecule(formula), ionType.getIonization(), 0d);
+                decomps.add(decomposition);
+                pmds = new ArrayList<>();
+                pmds.add(decomposition.getCandidate());
+
+                if (!parentDeviation.inErrorWindow(parentPeak.getOriginalMz(), ionType.neutralMassToPrecursorMass(formula.getMass()))){
+                    validatorWarning.warn("Specified precursor molecular formula does not fall into given m/z error window. "
+                            +formula.formatByHill()+" for m/z "+parentPeak.getOriginalMz()+" and ionization "+ionType);
                 }
-            }
-        } else {
+            } else if (whiteset != null && !whiteset.getFormulas().isEmpty()) {
+                final Collection<PrecursorIonType> ionTypes;
+                if (experiment.getPrecursorIonType().isIonizationUnknown())
+                    ionTypes = experiment.getAnnotationOrThrow(PossibleAdducts.class).getAdducts();
+                else ionTypes = Arrays.asList(experiment.getPrecursorIonType());
+                decomps.addAll(whiteset.resolve(parentPeak.getOriginalMz(), parentDeviation, ionTypes));
+                pmds = new ArrayList<>();
+                for (Decomposition d : decomps) pmds.add(d.getCandidate());
+            } else if (!experiment.getPrecursorIonType().isIonizationUnknown()) {
+                // use given ionization
+                final PrecursorIonType ionType = experiment.getPrecursorIonType();
+                final List<MolecularFormula> forms = decomposer.decomposeToFormulas(ionType.precursorMassToNeutralMass(parentPeak.getOriginalMz()), parentDeviation.absoluteFor(parentPeak.getOriginalMz()), constraints);
+                pmds = new ArrayList<>();
+                for (MolecularFormula f : forms)  {
+                    final MolecularFormula neutralMeasuredFormula = ionType.neutralMoleculeToMeasuredNeutralMolecule(f);
+                    if (neutralMeasuredFormula.isAllPositiveOrZero()) {
+                        decomps.add(new Decomposition(neutralMeasuredFormula, ionType.getIonization() , 0d));
+                        pmds.add(neutralMeasuredFormula);
+                    }
+                }
+            } else {
 
-            pmds = new ArrayList<>();
-            for (Ionization ion : ionModes) {
-                final List<MolecularFormula> forms = decomposer.decomposeToFormulas(ion.subtractFromMass(parentPeak.getOriginalMz()), parentDeviation.absoluteFor(parentPeak.getOriginalMz()), constraints);
-                pmds.addAll(forms);
-                for (MolecularFormula f : forms) decomps.add(new Decomposition(f, ion, 0d));
+                pmds = new ArrayList<>();
+                for (Ionization ion : ionModes) {
+                    final List<MolecularFormula> forms = decomposer.decomposeToFormulas(ion.subtractFromMass(parentPeak.getOriginalMz()), parentDeviation.absoluteFor(parentPeak.getOriginalMz()), constraints);
+                    pmds.addAll(forms);
+                    for (MolecularFormula f : forms) decomps.add(new Decomposition(f, ion, 0d));
+                }
             }
-        }
 
 
-        // may split pmds if multiple alphabets are present
-        final List<MassToFormulaDecomposer> decomposers = new ArrayList<>();
-        final List<FormulaConstraints> constraintList = new ArrayList<>();
-        getDecomposersFor(pmds, constraints, decomposers, constraintList);
-
-        decompositionList.set(parentPeak, new DecompositionList(decomps));
-        int j = 0;
-        for (ProcessedPeak peak : processedPeaks.subList(0, processedPeaks.size() - 1)) {
-            peak.setIndex(j++);
-            final List<Decomposition> decompositions = new ArrayList<>();
-            final double mz = peak.getMass();
-            for (Ionization ion : ionModes) {
-                final double mass = ion.subtractFromMass(mz);
-                if (mass > 0) {
-                    final HashSet<MolecularFormula> formulas = new HashSet<>();
-                    for (int D=0; D < decomposers.size(); ++D) {
-                        formulas.addAll(decomposers.get(D).decomposeToFormulas(mass, fragmentDeviation.absoluteFor(peak.getMass()), constraintList.get(D)));
+            // may split pmds if multiple alphabets are present
+            final List<MassToFormulaDecomposer> decomposers = new ArrayList<>();
+            final List<FormulaConstraints> constraintList = new ArrayList<>();
+            getDecomposersFor(pmds, constraints, decomposers, constraintList);
+
+            decompositionList.set(parentPeak, new DecompositionList(decomps));
+            for (int j = 0; j < processedPeaks.size(); ++j) processedPeaks.get(j).setIndex(j);
+            // decomposers are thread safe and each peak stores its own decompositions, so peaks can be decomposed in parallel
+            forEachBatch(processedPeaks.size() - 1, parallelDecompositionThreshold, (from, to) -> {
+                for (ProcessedPeak peak : processedPeaks.subList(from, to)) {
+                    final List<Decomposition> decompositions = new ArrayList<>();
+                    final double mz = peak.getMass();
+                    for (Ionization ion : ionModes) {
+                        final double mass = ion.subtractFromMass(mz);
+                        if (mass > 0) {
+                            final HashSet<MolecularFormula> formulas = new HashSet<>();
+                            for (int D=0; D < decomposers.size(); ++D) {
+                                formulas.addAll(decomposers.get(D).decomposeToFormulas(mass, fragmentDeviation.absoluteFor(peak.getMass()), constraintList.get(D)));
+                            }
+                            for (MolecularFormula f : formulas) decompositions.add(new Decomposition(f, ion, 0d));
+                        }
                     }
-                    for (MolecularFormula f : formulas) decompositions.add(new Decomposition(f, ion, 0d));
+                    decompositionList.set(peak, new DecompositionList(decompositions));
+                }
+            });
+            assert parentPeak == processedPeaks.get(processedPeaks.size() - 1);
+            // important: for each two peaks which are within 2*massrange:
+            //  => make decomposition list disjoint
+            final Deviation window = fragmentDeviation.multiply(2);
+            for (int i = 1; i < processedPeaks.size() - 1; ++i) {
+                if (window.inErrorWindow(processedPeaks.get(i).getMz(), processedPeaks.get(i - 1).getMz())) {
+                    decompositionList.get(processedPeaks.get(i-1)).disjoin(decompositionList.get(processedPeaks.get(i)), processedPeaks.get(i-1).getMz(), processedPeaks.get(i).getMz());
                 }
             }
-            decompositionList.set(peak, new DecompositionList(decompositions));
-        }
-        parentPeak.setIndex(processedPeaks.size() - 1);
-        assert parentPeak == processedPeaks.get(processedPeaks.size() - 1);
-        // important: for each two peaks which are within 2*massrange:
-        //  => make decomposition list disjoint
-        final Deviation window = fragmentDeviation.multiply(2);
-        for (int i = 1; i < processedPeaks.size() - 1; ++i) {
-            if (window.inErrorWindow(processedPeaks.get(i).getMz(), processedPeaks.get(i - 1).getMz())) {
-                decompositionList.get(processedPeaks.get(i-1)).disjoin(decompositionList.get(processedPeaks.get(i)), processedPeaks.get(i-1).getMz(), processedPeaks.get(i).getMz());
+            input.setAnnotation(DecompositionList.class, decompositionList.get(parentPeak));
+            final ProcessedInput result = postProcess(PostProcessor.Stage.AFTER_DECOMPOSING, input);
+            if (measurement != null)
+                recordDecompositions(measurement.getMetrics(), StageMetrics.Stage.DECOMPOSITION, result);
+            return result;
+        } finally {
+            if (measurement != null) measurement.stop();
+        }
+    }
+
+    /**
+     * Decomposes the peaks of a recalibrated input by reusing the decompositions of the original input. Only
+     * decompositions which leave the shifted mass window of their peak are dropped and only the mass ranges which
+     * are newly covered by the shifted window are decomposed. The parent peak keeps the precursor candidates of the
+     * recalibrated input.
+     *
+     * @param original     the input the recalibrated input was created from via {@link ProcessedInput#getRecalibratedVersion(SpectralRecalibration)}
+     * @param recalibrated the recalibrated input
+     * @return the decomposed input or null, if the recalibration changed the order of the peaks. In this case, the
+     * input has to be decomposed with {@link #performDecomposition(ProcessedInput)}.
+     */
+    public ProcessedInput performIncrementalDecomposition(ProcessedInput original, ProcessedInput recalibrated) {
+        final List<ProcessedPeak> oldPeaks = original.getMergedPeaks(), newPeaks = recalibrated.getMergedPeaks();
+        if (oldPeaks.size() != newPeaks.size()) return null;
+        // peaks are ordered by their index. Recalibration must not change this order
+        final ProcessedPeak[] before = new ProcessedPeak[oldPeaks.size()], after = new ProcessedPeak[newPeaks.size()];
+        for (int k = 0; k < before.length; ++k) {
+            final int index = oldPeaks.get(k).getIndex();
+            if (index < 0 || index >= before.length || before[index] != null || newPeaks.get(k).getIndex() != index)
+                return null;
+            before[index] = oldPeaks.get(k);
+            after[index] = newPeaks.get(k);
+        }
+        for (int k = 1; k < after.length; ++k)
+            if (after[k].getMass() < after[k - 1].getMass()) return null;
+        if (before[before.length - 1] != original.getParentPeak() || after[after.length - 1] != recalibrated.getParentPeak())
+            return null;
+
+        final StageMetrics.Measurement measurement = StageMetrics.start(StageMetrics.of(recalibrated), StageMetrics.Stage.DECOMPOSITION);
+        try {
+            final FormulaConstraints constraints = recalibrated.getMeasurementProfile().getFormulaConstraints();
+            final Deviation fragmentDeviation = recalibrated.getMeasurementProfile().getAllowedMassDeviation();
+            final List<Ionization> ionModes = recalibrated.getAnnotationOrThrow(PossibleIonModes.class).getIonModesWithProbabilityAboutZero();
+            final PeakAnnotation<DecompositionList> oldDecompositions = original.getPeakAnnotationOrThrow(DecompositionList.class);
+            final PeakAnnotation<DecompositionList> decompositionList = recalibrated.getOrCreatePeakAnnotation(DecompositionList.class);
+
+            final DecompositionList parentDecompositions = oldDecompositions.get(original.getParentPeak());
+            final List<MolecularFormula> pmds = new ArrayList<>(parentDecompositions.getFormulas());
+            final List<MassToFormulaDecomposer> decomposers = new ArrayList<>();
+            final List<FormulaConstraints> constraintList = new ArrayList<>();
+            getDecomposersFor(pmds, constraints, decomposers, constraintList);
+
+            final DecompositionList candidates = recalibrated.getAnnotation(DecompositionList.class, parentDecompositions);
+            decompositionList.set(after[after.length - 1], new DecompositionList(new ArrayList<>(candidates.getDecompositions())));
+            final int n = after.length - 1;
+            forEachBatch(n, parallelDecompositionThreshold, (from, to) -> {
+                for (int i = from; i < to; ++i) {
+                    final double oldMz = before[i].getMass(), newMz = after[i].getMass();
+                    final double oldDev = fragmentDeviation.absoluteFor(oldMz), newDev = fragmentDeviation.absoluteFor(newMz);
+                    final List<Decomposition> decompositions = new ArrayList<>();
+                    for (Ionization ion : ionModes) {
+                        final double oldMass = ion.subtractFromMass(oldMz), mass = ion.subtractFromMass(newMz);
+                        if (mass <= 0) continue;
+                        final HashSet<MolecularFormula> formulas = new HashSet<>();
+                        // decompositions of neighbouring peaks might have been assigned to them by disjoining
+                        for (int j = Math.max(0, i - 1), m = Math.min(n - 1, i + 1); j <= m; ++j) {
+                            for (Decomposition d : oldDecompositions.get(before[j]).getDecompositions()) {
+                                if (d.getIon().equals(ion) && Math.abs(d.getCandidate().getMass() - mass) <= newDev)
+                                    formulas.add(d.getCandidate());
+                            }
+                        }
+                        // decompose the parts of the new mass window which are not covered by the old one
+                        if (mass - newDev < oldMass - oldDev) {
+                            final double a = mass - newDev, b = Math.min(mass + newDev, oldMass - oldDev);
+                            for (int D = 0; D < decomposers.size(); ++D)
+                                formulas.addAll(decomposers.get(D).decomposeToFormulas((a + b) / 2d, (b - a) / 2d, constraintList.get(D)));
+                        }
+                        if (mass + newDev > oldMass + oldDev) {
+                            final double a = Math.max(mass - newDev, oldMass + oldDev), b = mass + newDev;
+                            for (int D = 0; D < decomposers.size(); ++D)
+                                formulas.addAll(decomposers.get(D).decomposeToFormulas((a + b) / 2d, (b - a) / 2d, constraintList.get(D)));
+                        }
+                        for (MolecularFormula f : formulas) decompositions.add(new Decomposition(f, ion, 0d));
+                    }
+                    decompositionList.set(after[i], new DecompositionList(decompositions));
+                }
+            });
+            final Deviation window = fragmentDeviation.multiply(2);
+            for (int i = 1; i < n; ++i) {
+                if (window.inErrorWindow(after[i].getMz(), after[i - 1].getMz())) {
+                    decompositionList.get(after[i - 1]).disjoin(decompositionList.get(after[i]), after[i - 1].getMz(), after[i].getMz());
+                }
             }
+            recalibrated.setAnnotation(DecompositionList.class, decompositionList.get(after[n]));
+            final ProcessedInput result = postProcess(PostProcessor.Stage.AFTER_DECOMPOSING, recalibrated);
+            if (measurement != null)
+                recordDecompositions(measurement.getMetrics(), StageMetrics.Stage.DECOMPOSITION, result);
+            return result;
+        } finally {
+            if (measurement != null) measurement.stop();
         }
-        input.setAnnotation(DecompositionList.class, decompositionList.get(parentPeak));
-        return postProcess(PostProcessor.Stage.AFTER_DECOMPOSING, input);
     }
 
     private void getDecomposersFor(List<MolecularFormula> pmds, FormulaConstraints constraint, List<MassToFormulaDecomposer> decomposers, List<FormulaConstraints> constraintList) {
@@ -598,68 +764,80 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
      * Scores each peak. Expects a decomposition list
      */
     public ProcessedInput performPeakScoring(ProcessedInput input) {
-        final List<ProcessedPeak> processedPeaks = input.getMergedPeaks();
-        final ProcessedPeak parentPeak = input.getParentPeak();
-        final int n = processedPeaks.size();
-        input.getOrCreateAnnotation(Scoring.class).initializeScoring(n);
-        // score peak pairs
-        final double[][] peakPairScores = input.getAnnotationOrThrow(Scoring.class).getPeakPairScores();
-        for (PeakPairScorer scorer : peakPairScorers) {
-            scorer.score(processedPeaks, input, peakPairScores);
-        }
-        // score fragment peaks
-        final double[] peakScores = input.getAnnotationOrThrow(Scoring.class).getPeakScores();
-        for (PeakScorer scorer : fragmentPeakScorers) {
-            scorer.score(processedPeaks, input, peakScores);
-        }
+        final StageMetrics.Measurement measurement = StageMetrics.start(StageMetrics.of(input), StageMetrics.Stage.PEAK_SCORING);
+        try {
+            final List<ProcessedPeak> processedPeaks = input.getMergedPeaks();
+            final ProcessedPeak parentPeak = input.getParentPeak();
+            final int n = processedPeaks.size();
+            // the scoring might be shared with copies of this input, so we never overwrite it but replace it.
+            // Cached loss scores are dropped, too: loss scorers are prepared on the input, which might have changed
+            // (e.g. after recalibration), so they are recomputed for the next graph
+            final Scoring scoring = new Scoring();
+            scoring.initializeScoring(n);
+            input.setAnnotation(Scoring.class, scoring);
+            // score peak pairs
+            final double[][] peakPairScores = scoring.getPeakPairScores();
+            for (PeakPairScorer scorer : peakPairScorers) {
+                scorer.score(processedPeaks, input, peakPairScores);
+            }
+            // score fragment peaks
+            final double[] peakScores = scoring.getPeakScores();
+            for (PeakScorer scorer : fragmentPeakScorers) {
+                scorer.score(processedPeaks, input, peakScores);
+            }
 
-        final PeakAnnotation<DecompositionList> decomp = input.getPeakAnnotationOrThrow(DecompositionList.class);
+            final PeakAnnotation<DecompositionList> decomp = input.getPeakAnnotationOrThrow(DecompositionList.class);
 
-        // dont score parent peak
-        peakScores[peakScores.length - 1] = 0d;
+            // dont score parent peak
+            peakScores[peakScores.length - 1] = 0d;
 
 
-        // score peaks
-        {
-            final ArrayList<Object> preparations = new ArrayList<Object>(decompositionScorers.size());
-            for (DecompositionScorer<?> scorer : decompositionScorers) preparations.add(scorer.prepare(input));
-            for (int i = 0; i < processedPeaks.size() - 1; ++i) {
-                final DecompositionList decomps = decomp.get(processedPeaks.get(i));
-                final ArrayList<Decomposition> scored = new ArrayList<Decomposition>(decomps.getDecompositions().size());
-                for (Decomposition f : decomps.getDecompositions()) {
+            // score peaks
+            {
+                final ArrayList<Object> preparations = new ArrayList<Object>(decompositionScorers.size());
+                for (DecompositionScorer<?> scorer : decompositionScorers) preparations.add(scorer.prepare(input));
+                for (int i = 0; i < processedPeaks.size() - 1; ++i) {
+                    final DecompositionList decomps = decomp.get(processedPeaks.get(i));
+                    final ArrayList<Decomposition> scored = new ArrayList<Decomposition>(decomps.getDecompositions().size());
+                    for (Decomposition f : decomps.getDecompositions()) {
+                        double score = 0d;
+                        int k = 0;
+                        for (DecompositionScorer<?> scorer : decompositionScorers) {
+                            score += ((DecompositionScorer<Object>) scorer).score(f.getCandidate(),f.getIon(), processedPeaks.get(i), input, preparations.get(k++));
+                        }
+                        scored.add(new Decomposition(f.getCandidate(),f.getIon(), score));
+                    }
+                    decomp.set(processedPeaks.get(i), new DecompositionList(scored));
+                }
+            }
+            // same with root
+            {
+                final ArrayList<Object> preparations = new ArrayList<Object>(rootScorers.size());
+                for (DecompositionScorer<?> scorer : rootScorers) preparations.add(scorer.prepare(input));
+                final ArrayList<Decomposition> scored = new ArrayList<>(decomp.get(parentPeak).getDecompositions());
+                for (int j=0; j < scored.size(); ++j) {
                     double score = 0d;
                     int k = 0;
-                    for (DecompositionScorer<?> scorer : decompositionScorers) {
-                        score += ((DecompositionScorer<Object>) scorer).score(f.getCandidate(),f.getIon(), processedPeaks.get(i), input, preparations.get(k++));
+                    final Decomposition f = scored.get(j);
+                    for (DecompositionScorer<?> scorer : rootScorers) {
+                        score += ((DecompositionScorer<Object>) scorer).score(f.getCandidate(),f.getIon(), input.getParentPeak(), input, preparations.get(k++));
                     }
-                    scored.add(new Decomposition(f.getCandidate(),f.getIon(), score));
+                    scored.set(j, new Decomposition(scored.get(j).getCandidate(), scored.get(j).getIon(), score));
+
                 }
-                decomp.set(processedPeaks.get(i), new DecompositionList(scored));
+                Collections.sort(scored, Collections.reverseOrder());
+                decomp.set(parentPeak, new DecompositionList(scored));
+                input.setAnnotation(DecompositionList.class, decomp.get(parentPeak));
             }
-        }
-        // same with root
-        {
-            final ArrayList<Object> preparations = new ArrayList<Object>(rootScorers.size());
-            for (DecompositionScorer<?> scorer : rootScorers) preparations.add(scorer.prepare(input));
-            final ArrayList<Decomposition> scored = new ArrayList<>(decomp.get(parentPeak).getDecompositions());
-            for (int j=0; j < scored.size(); ++j) {
-                double score = 0d;
-                int k = 0;
-                final Decomposition f = scored.get(j);
-                for (DecompositionScorer<?> scorer : rootScorers) {
-                    score += ((DecompositionScorer<Object>) scorer).score(f.getCandidate(),f.getIon(), input.getParentPeak(), input, preparations.get(k++));
-                }
-                scored.set(j, new Decomposition(scored.get(j).getCandidate(), scored.get(j).getIon(), score));
+            // set peak indizes
+            for (int i = 0; i < processedPeaks.size(); ++i) processedPeaks.get(i).setIndex(i);
 
-            }
-            Collections.sort(scored, Collections.reverseOrder());
-            decomp.set(parentPeak, new DecompositionList(scored));
-            input.setAnnotation(DecompositionList.class, decomp.get(parentPeak));
+            if (measurement != null)
+                measurement.getMetrics().addPeaks(StageMetrics.Stage.PEAK_SCORING, processedPeaks.size());
+            return input;
+        } finally {
+            if (measurement != null) measurement.stop();
         }
-        // set peak indizes
-        for (int i = 0; i < processedPeaks.size(); ++i) processedPeaks.get(i).setIndex(i);
-
-        return input;
     }
 
     ProcessedInput preprocessInputBeforeScoring(ProcessedInput input) {
@@ -1033,12 +1211,15 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
         this.rootScorers = new ArrayList<DecompositionScorer<?>>();
         this.peakPairScorers = new ArrayList<PeakPairScorer>();
         this.fragmentPeakScorers = new ArrayList<PeakScorer>();
-        this.graphBuilder = new SubFormulaGraphBuilder();
+        this.graphBuilder = new IndexedSubFormulaGraphBuilder();
         this.lossScorers = new ArrayList<LossScorer>();
         this.defaultProfile = new MutableMeasurementProfile();
         isoInMs2Scorer = new IsotopePatternInMs2Scorer();
         isotopeInMs2Handling = IsotopeInMs2Handling.IGNORE;
         this.reduction = new SimpleReduction();
+        this.parallelGraphScoringThreshold = 20000;
+        this.parallelDecompositionThreshold = 100;
+        this.parallelPreprocessingThreshold = 16;
 
         //final TreeBuilder solver = TreeBuilderFactory.getInstance().getTreeBuilder();
         //setTreeBuilder(solver);
@@ -1102,18 +1283,23 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
     }
 
     protected FTree recalibrate(ProcessedInput input, FTree tree) {
-        final SpectralRecalibration rec = new HypothesenDrivenRecalibration2().collectPeaksFromMs2(input.getExperimentInformation(), tree);
-        final ProcessedInput pin = input.getRecalibratedVersion(rec);
-        // we have to completely rescore the input...
-        final DecompositionList l = new DecompositionList(Arrays.asList(pin.getAnnotationOrThrow(DecompositionList.class).find(tree.getRoot().getFormula())));
-        pin.setAnnotation(DecompositionList.class, l);
-        performDecomposition(pin);
-        performPeakScoring(pin);
-        FGraph graph = buildGraph(pin, l.getDecompositions().get(0));
-        graph.addAnnotation(SpectralRecalibration.class, rec);
-        final FTree recalibratedTree = computeTree(graph);
-        recalibratedTree.setAnnotation(SpectralRecalibration.class, rec);
-        return recalibratedTree;
+        final StageMetrics.Measurement measurement = StageMetrics.start(StageMetrics.of(input), StageMetrics.Stage.RECALIBRATION);
+        try {
+            final SpectralRecalibration rec = new HypothesenDrivenRecalibration2().collectPeaksFromMs2(input.getExperimentInformation(), tree);
+            final ProcessedInput pin = input.getRecalibratedVersion(rec);
+            // we have to completely rescore the input...
+            final DecompositionList l = new DecompositionList(Arrays.asList(pin.getAnnotationOrThrow(DecompositionList.class).find(tree.getRoot().getFormula())));
+            pin.setAnnotation(DecompositionList.class, l);
+            performDecomposition(pin);
+            performPeakScoring(pin);
+            FGraph graph = buildGraph(pin, l.getDecompositions().get(0));
+            graph.addAnnotation(SpectralRecalibration.class, rec);
+            final FTree recalibratedTree = computeTree(graph);
+            recalibratedTree.setAnnotation(SpectralRecalibration.class, rec);
+            return recalibratedTree;
+        } finally {
+            if (measurement != null) measurement.stop();
+        }
     }
 
     protected static class Stackitem {
@@ -1288,11 +1474,17 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
     }
 
     private FGraph buildGraphWithoutReduction(ProcessedInput input, Decomposition candidate, boolean topologicalSort) {
+        final StageMetrics.Measurement measurement = StageMetrics.start(StageMetrics.of(input), StageMetrics.Stage.GRAPH_BUILDING);
         // build Graph
-        FGraph graph = graphBuilder.fillGraph(
-                graphBuilder.addRoot(graphBuilder.initializeEmptyGraph(input),
-                        input.getParentPeak(), Collections.singletonList(candidate)));
-        graph.addAliasForFragmentAnnotation(ProcessedPeak.class, Peak.class);
+        FGraph graph = null;
+        try {
+            graph = graphBuilder.fillGraph(
+                    graphBuilder.addRoot(graphBuilder.initializeEmptyGraph(input),
+                            input.getParentPeak(), Collections.singletonList(candidate)));
+            graph.addAliasForFragmentAnnotation(ProcessedPeak.class, Peak.class);
+        } finally {
+            if (measurement != null) measurement.stop(graph);
+        }
         graph = performGraphScoring(graph);
         if (topologicalSort) {
             graph.sortTopological();
@@ -1304,9 +1496,174 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
         return performGraphReduction(buildGraphWithoutReduction(input,candidate,reduction==null),0d);
     }
 
+    /**
+     * Transfers a graph of the original input to the recalibrated input, without building it again. The recalibrated
+     * input has to be decomposed with {@link #performIncrementalDecomposition(ProcessedInput, ProcessedInput)} and
+     * scored with {@link #performPeakScoring(ProcessedInput)}. Fragments whose decomposition left the mass window
+     * of their peak are removed, fragments for new decompositions are inserted and all edges are rescored.
+     *
+     * New fragments are connected by the edge rules of {@link SubFormulaGraphBuilder}, so this is only possible
+     * if the graph builder of this analyzer is one of the subformula graph builders, see
+     * {@link #isGraphRecalibrationPossible()}.
+     *
+     * @param graph an unreduced graph of the original input. It is not modified.
+     * @return a scored, topologically sorted and unreduced graph for the recalibrated input
+     */
+    public FGraph recalibrateGraph(FGraph graph, ProcessedInput recalibrated) {
+        if (!isGraphRecalibrationPossible())
+            throw new IllegalStateException("Graphs of " + graphBuilder.getClass().getSimpleName() + " cannot be recalibrated. Build the graph of the recalibrated input instead.");
+        final FragmentAnnotation<Ionization> ion = graph.getFragmentAnnotationOrThrow(Ionization.class);
+        final FragmentAnnotation<ProcessedPeak> peakAno = graph.getFragmentAnnotationOrThrow(ProcessedPeak.class);
+        final PeakAnnotation<DecompositionList> decompList = recalibrated.getPeakAnnotationOrThrow(DecompositionList.class);
+        final ProcessedPeak[] peaks = new ProcessedPeak[recalibrated.getMergedPeaks().size()];
+        for (ProcessedPeak peak : recalibrated.getMergedPeaks()) peaks[peak.getIndex()] = peak;
+        final List<HashMap<MolecularFormula, Decomposition>> decompositions = new ArrayList<>(peaks.length);
+        for (ProcessedPeak peak : peaks) {
+            final HashMap<MolecularFormula, Decomposition> map = new HashMap<>();
+            for (Decomposition d : decompList.get(peak).getDecompositions()) map.put(d.getCandidate(), d);
+            decompositions.add(map);
+        }
+        // keep all fragments whose decomposition is still in the mass window of its peak. The roots are always kept
+        final ScoredFormulaMap oldScoring = graph.getAnnotationOrThrow(ScoredFormulaMap.class);
+        final BitSet vertices = new BitSet(graph.numberOfVertices());
+        final TDoubleArrayList scores = new TDoubleArrayList(graph.numberOfVertices());
+        vertices.set(graph.getRoot().getVertexId());
+        for (Fragment f : graph.getFragmentsWithoutRoot()) {
+            final int peakIndex = peakAno.get(f).getIndex();
+            final Decomposition d = decompositions.get(peakIndex).remove(f.getFormula());
+            if (d != null && d.getIon().equals(ion.get(f))) {
+                vertices.set(f.getVertexId());
+                scores.add(d.getScore());
+            } else if (peakIndex == peaks.length - 1) {
+                vertices.set(f.getVertexId());
+                scores.add(oldScoring.get(f.getFormula()));
+            }
+        }
+        final FGraph newGraph = new FGraph(graph, vertices);
+        newGraph.setAnnotation(ProcessedInput.class, recalibrated);
+        final ScoredFormulaMap scoring = new ScoredFormulaMap();
+        newGraph.setAnnotation(ScoredFormulaMap.class, scoring);
+        final FragmentAnnotation<Ionization> newIon = newGraph.getFragmentAnnotationOrThrow(Ionization.class);
+        final FragmentAnnotation<ProcessedPeak> newPeakAno = newGraph.getFragmentAnnotationOrThrow(ProcessedPeak.class);
+        final HashSet<Ionization> allIons = new HashSet<>();
+        MolecularFormula pmd = null;
+        for (Fragment root : newGraph.getRoot().getChildren()) {
+            allIons.add(newIon.get(root));
+            pmd = pmd == null ? root.getFormula() : pmd.union(root.getFormula());
+        }
+        // the induced subgraph keeps the order of the vertices
+        final int numberOfOldVertices = newGraph.numberOfVertices();
+        for (int k = 1; k < numberOfOldVertices; ++k) {
+            final Fragment f = newGraph.getFragmentAt(k);
+            newPeakAno.set(f, peaks[newPeakAno.get(f).getIndex()]);
+            scoring.put(f.getFormula(), scores.get(k - 1));
+        }
+        // the remaining decompositions were not in the mass window before recalibration
+        final List<Fragment> newFragments = new ArrayList<>();
+        for (int i = 0; i < peaks.length - 1; ++i) {
+            for (Decomposition d : decompositions.get(i).values()) {
+                final MolecularFormula formula = d.getCandidate();
+                if (!allIons.contains(d.getIon()) || !(formula.getMass() < pmd.getMass() && pmd.isSubtractable(formula)))
+                    continue;
+                final Fragment f = newGraph.addFragment(formula);
+                newIon.set(f, d.getIon());
+                newPeakAno.set(f, peaks[i]);
+                f.setColor(peaks[i].getIndex());
+                scoring.put(formula, d.getScore());
+                newFragments.add(f);
+            }
+        }
+        // connect the new fragments with their parents (old and new ones) and with their old children
+        for (Fragment v : newFragments) {
+            final int vi = newPeakAno.get(v).getIndex();
+            for (Fragment u : newGraph) {
+                if (u.isRoot() || u == v || !newIon.get(u).equals(newIon.get(v))) continue;
+                final int ui = newPeakAno.get(u).getIndex();
+                if (ui > vi) {
+                    if (u.getFormula().getMass() > v.getFormula().getMass() && u.getFormula().isSubtractable(v.getFormula()))
+                        newGraph.addLoss(u, v);
+                } else if (ui < vi && u.getVertexId() < numberOfOldVertices) {
+                    if (v.getFormula().getMass() > u.getFormula().getMass() && v.getFormula().isSubtractable(u.getFormula()))
+                        newGraph.addLoss(v, u);
+                }
+            }
+        }
+        newGraph.sortTopological();
+        // remove all fragments which are no longer reachable from the root
+        final BitSet reachable = new BitSet(newGraph.numberOfVertices());
+        reachable.set(0);
+        for (int i = 0; i >= 0; i = reachable.nextSetBit(i + 1)) {
+            final Fragment u = newGraph.getFragmentAt(i);
+            for (int k = 0, m = u.getOutDegree(); k < m; ++k) reachable.set(u.getChildren(k).getVertexId());
+        }
+        FGraph result = newGraph;
+        if (reachable.cardinality() < newGraph.numberOfVertices()) {
+            result = new FGraph(newGraph, reachable);
+            result.sortTopological();
+        }
+        return performGraphScoring(result);
+    }
+
+    /**
+     * @return true, if graphs of this analyzer can be transferred to recalibrated inputs with
+     * {@link #recalibrateGraph(FGraph, ProcessedInput)}. Subclasses of the subformula graph builders might add
+     * other edges, so only the builders themselves are accepted.
+     */
+    public boolean isGraphRecalibrationPossible() {
+        return graphBuilder != null && (graphBuilder.getClass() == SubFormulaGraphBuilder.class || graphBuilder.getClass() == IndexedSubFormulaGraphBuilder.class);
+    }
+
+    /**
+     * Builds and scores a single graph for all given precursor candidates. The graph of each candidate
+     * can be obtained from its view via {@link #buildGraph(MultiCandidateGraph.CandidateView)}.
+     * This is only possible if the graph scoring does not depend on the root of the graph, see
+     * {@link #isSharedGraphScoringPossible(ProcessedInput)}. Only building and scoring are shared: the graph of a
+     * candidate is still copied out of the shared graph when it is requested.
+     */
+    public MultiCandidateGraph buildMultiCandidateGraph(ProcessedInput input, List<Decomposition> candidates) {
+        if (!isSharedGraphScoringPossible(input))
+            throw new IllegalArgumentException("Graph scoring depends on the precursor candidate. Build each graph separately.");
+        final StageMetrics.Measurement measurement = StageMetrics.start(StageMetrics.of(input), StageMetrics.Stage.GRAPH_BUILDING);
+        FGraph graph = null;
+        try {
+            graph = graphBuilder.fillGraph(
+                    graphBuilder.addRoot(graphBuilder.initializeEmptyGraph(input),
+                            input.getParentPeak(), candidates));
+            graph.addAliasForFragmentAnnotation(ProcessedPeak.class, Peak.class);
+        } finally {
+            if (measurement != null) measurement.stop(graph);
+        }
+        graph = performGraphScoring(graph);
+        graph.sortTopological();
+        return new MultiCandidateGraph(graph);
+    }
+
+    /**
+     * Isotope scoring in MS/MS simulates the isotope patterns of the fragments relative to the root of the graph.
+     * In this case each candidate needs its own graph.
+     */
+    public boolean isSharedGraphScoringPossible(ProcessedInput input) {
+        return !isScoringIsotopes(input);
+    }
+
+    public FGraph buildGraphWithoutReduction(MultiCandidateGraph.CandidateView view) {
+        return view.toGraph();
+    }
+
+    public FGraph buildGraph(MultiCandidateGraph.CandidateView view) {
+        return performGraphReduction(view.toGraph(), 0d);
+    }
+
     public FGraph performGraphReduction(FGraph fragments, double lowerbound) {
         if(reduction==null) return fragments;
-        return reduction.reduce(fragments, lowerbound);
+        final StageMetrics.Measurement measurement = StageMetrics.start(StageMetrics.of(fragments), StageMetrics.Stage.GRAPH_REDUCTION);
+        FGraph reduced = null;
+        try {
+            reduced = reduction.reduce(fragments, lowerbound);
+        } finally {
+            if (measurement != null) measurement.stop(reduced);
+        }
+        return reduced;
     }
 
     /*
@@ -1545,40 +1902,144 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
 
     public FGraph performGraphScoring(FGraph graph) {
         // score graph
-        final Iterator<Loss> edges = graph.lossIterator();
         final ProcessedInput input = graph.getAnnotationOrThrow(ProcessedInput.class);
-        final Scoring scoring = input.getAnnotationOrThrow(Scoring.class);
-        final double[] peakScores = scoring.getPeakScores();
-        final double[][] peakPairScores = scoring.getPeakPairScores();
-        final LossScorer[] lossScorers = this.lossScorers.toArray(new LossScorer[this.lossScorers.size()]);
-        final Object[] precomputeds = new Object[lossScorers.length];
-        final ScoredFormulaMap map = graph.getAnnotationOrThrow(ScoredFormulaMap.class);
-        final FragmentAnnotation<ProcessedPeak> peakAno = graph.getFragmentAnnotationOrThrow(ProcessedPeak.class);
-        for (int i = 0; i < precomputeds.length; ++i) precomputeds[i] = lossScorers[i].prepare(input);
-        while (edges.hasNext()) {
-            final Loss loss = edges.next();
-            final Fragment u = loss.getSource();
-            final Fragment v = loss.getTarget();
-            // take score of molecular formula
-            double score = map.get(v.getFormula());
-            assert !Double.isInfinite(score);
-            // add it to score of the peak
-            score += peakScores[peakAno.get(v).getIndex()];
-            assert !Double.isInfinite(score);
-            // add it to the score of the peak pairs
-            if (!u.isRoot())
-                score += peakPairScores[peakAno.get(u).getIndex()][peakAno.get(v).getIndex()]; // TODO: Umdrehen!
-            assert !Double.isInfinite(score);
-            // add the score of the loss
-            if (!u.isRoot())
-                for (int i = 0; i < lossScorers.length; ++i)
-                    score += lossScorers[i].score(loss, input, precomputeds[i]);
-            assert !Double.isInfinite(score);
-            loss.setWeight(score);
-        }
-        scoreIsotopesInMs2(input, graph);
+        final StageMetrics.Measurement measurement = StageMetrics.start(StageMetrics.of(input), StageMetrics.Stage.GRAPH_SCORING);
+        try {
+            final Scoring scoring = input.getAnnotationOrThrow(Scoring.class);
+            final double[] peakScores = scoring.getPeakScores();
+            final double[][] peakPairScores = scoring.getPeakPairScores();
+            final ScoredFormulaMap map = graph.getAnnotationOrThrow(ScoredFormulaMap.class);
+            final FragmentAnnotation<ProcessedPeak> peakAno = graph.getFragmentAnnotationOrThrow(ProcessedPeak.class);
+            final List<Loss> losses = graph.losses();
+            final ArrayList<LossScorer> formulaScorers = new ArrayList<>(), edgeScorers = new ArrayList<>();
+            for (LossScorer scorer : this.lossScorers) {
+                if (scorer instanceof FormulaOnlyLossScorer) formulaScorers.add(scorer);
+                else edgeScorers.add(scorer);
+            }
+            final double[] lossFormulaScores = scoreLossFormulas(graph, input, scoring, losses, formulaScorers);
+            final LossScorer[] lossScorers = edgeScorers.toArray(new LossScorer[edgeScorers.size()]);
+            final Object[] precomputeds = new Object[lossScorers.length];
+            for (int i = 0; i < precomputeds.length; ++i) precomputeds[i] = lossScorers[i].prepare(input);
+            forEachBatch(losses.size(), parallelGraphScoringThreshold, (from, to) -> {
+                for (int k = from; k < to; ++k) {
+                    final Loss loss = losses.get(k);
+                    final Fragment u = loss.getSource();
+                    final Fragment v = loss.getTarget();
+                    // take score of molecular formula
+                    double score = map.get(v.getFormula());
+                    assert !Double.isInfinite(score);
+                    // add it to score of the peak
+                    score += peakScores[peakAno.get(v).getIndex()];
+                    assert !Double.isInfinite(score);
+                    // add it to the score of the peak pairs
+                    if (!u.isRoot())
+                        score += peakPairScores[peakAno.get(u).getIndex()][peakAno.get(v).getIndex()]; // TODO: Umdrehen!
+                    assert !Double.isInfinite(score);
+                    // add the score of the loss
+                    if (!u.isRoot()) {
+                        score += lossFormulaScores[k];
+                        for (int i = 0; i < lossScorers.length; ++i)
+                            score += lossScorers[i].score(loss, input, precomputeds[i]);
+                    }
+                    assert !Double.isInfinite(score);
+                    loss.setWeight(score);
+                }
+            });
+            scoreIsotopesInMs2(input, graph);
 
-        return graph;
+            return graph;
+        } finally {
+            if (measurement != null) measurement.stop(graph);
+        }
+    }
+
+    /**
+     * Computes the sum of all {@link FormulaOnlyLossScorer}s for each loss. The sums are looked up in the loss formula
+     * cache of the input and only computed for loss formulas which are not cached yet. Losses from the pseudo root
+     * get a score of zero. The cache is only locked for the lookup and for publishing the new scores, such that
+     * graphs of other candidates can use the cache while the missing scores are computed.
+     */
+    private double[] scoreLossFormulas(FGraph graph, ProcessedInput input, Scoring scoring, List<Loss> losses, List<LossScorer> formulaScorers) {
+        final double[] lossScores = new double[losses.size()];
+        if (formulaScorers.isEmpty()) return lossScores;
+        final LossFormulaScores cache = getLossFormulaScores(graph, input, scoring, formulaScorers);
+        final long[] keys = new long[lossScores.length];
+        for (int k = 0; k < keys.length; ++k) {
+            final Loss loss = losses.get(k);
+            keys[k] = loss.getSource().isRoot() ? -1 : cache.key(loss.getFormula());
+        }
+        final TIntArrayList missing = new TIntArrayList();
+        synchronized (cache) {
+            for (int k = 0; k < lossScores.length; ++k) {
+                if (losses.get(k).getSource().isRoot()) continue;
+                final double score = keys[k] < 0 ? Double.NaN : cache.get(keys[k]);
+                if (Double.isNaN(score)) missing.add(k);
+                else lossScores[k] = score;
+            }
+        }
+        if (missing.isEmpty()) return lossScores;
+        final LossScorer[] scorers = formulaScorers.toArray(new LossScorer[formulaScorers.size()]);
+        final Object[] precomputeds = new Object[scorers.length];
+        for (int i = 0; i < precomputeds.length; ++i) precomputeds[i] = scorers[i].prepare(input);
+        // several losses of the graph might have the same formula, so each missing formula is scored only once
+        final TLongDoubleHashMap computed = new TLongDoubleHashMap(missing.size(), 0.75f, -1L, Double.NaN);
+        for (int j = 0; j < missing.size(); ++j) {
+            final int k = missing.get(j);
+            double score = keys[k] < 0 ? Double.NaN : computed.get(keys[k]);
+            if (Double.isNaN(score)) {
+                final Loss loss = losses.get(k);
+                score = 0d;
+                for (int i = 0; i < scorers.length; ++i)
+                    score += scorers[i].score(loss, input, precomputeds[i]);
+                // losses which cannot be encoded are never cached
+                if (keys[k] >= 0) computed.put(keys[k], score);
+            }
+            lossScores[k] = score;
+        }
+        synchronized (cache) {
+            computed.forEachEntry((key, score) -> {
+                cache.put(key, score);
+                return true;
+            });
+        }
+        return lossScores;
+    }
+
+    private interface BatchProcedure {
+        void process(int from, int to);
+    }
+
+    /**
+     * Calls the procedure for consecutive ranges covering the indizes 0 to n-1. If n is at least the given threshold,
+     * the ranges are processed in parallel by the calling thread and the CPU threads of the global job manager, see
+     * {@link ParallelBatches}. As the calling thread never blocks on queued jobs, this is also safe when called from
+     * within jobs, e.g. during tree computation. Otherwise, the procedure is called once for the whole range in the
+     * calling thread.
+     */
+    private static void forEachBatch(int n, int threshold, BatchProcedure procedure) {
+        if (n < threshold) {
+            procedure.process(0, n);
+            return;
+        }
+        ParallelBatches.forEachBatch(n, 2 * SiriusJobs.getGlobalJobManager().getCPUThreads(), (batch, from, to) -> procedure.process(from, to));
+    }
+
+    /**
+     * returns the loss formula cache of the input. The cache is created for all precursor candidates of the input,
+     * so every loss in the graphs of these candidates can be encoded.
+     */
+    private LossFormulaScores getLossFormulaScores(FGraph graph, ProcessedInput input, Scoring scoring, List<LossScorer> scorers) {
+        synchronized (scoring) {
+            final LossFormulaScores cache = scoring.getLossFormulaScores();
+            if (cache != null && cache.isValidFor(scorers)) return cache;
+            final ArrayList<MolecularFormula> formulas = new ArrayList<>();
+            for (Fragment root : graph.getRoot().getChildren()) formulas.add(root.getFormula());
+            final DecompositionList candidates = input.getAnnotation(DecompositionList.class, null);
+            if (candidates != null) formulas.addAll(candidates.getFormulas());
+            final LossFormulaScores newCache = new LossFormulaScores(scorers, MolecularFormulaPacker.newPackerFor(formulas.toArray(new MolecularFormula[formulas.size()])));
+            scoring.setLossFormulaScores(newCache);
+            return newCache;
+        }
     }
 
     public boolean isScoringIsotopes(ProcessedInput input) {
@@ -1624,6 +2085,17 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
      */
 
 
+    private static void recordDecompositions(StageMetrics metrics, StageMetrics.Stage stage, ProcessedInput input) {
+        final PeakAnnotation<DecompositionList> decompositions = input.getPeakAnnotationOrThrow(DecompositionList.class);
+        int numberOfDecompositions = 0;
+        for (ProcessedPeak peak : input.getMergedPeaks()) {
+            final DecompositionList list = decompositions.get(peak);
+            if (list != null) numberOfDecompositions += list.getDecompositions().size();
+        }
+        metrics.addPeaks(stage, input.getMergedPeaks().size());
+        metrics.addDecompositions(stage, numberOfDecompositions);
+    }
+
     ProcessedInput postProcess(PostProcessor.Stage stage, ProcessedInput input) {
         for (PostProcessor proc : postProcessors) {
             if (proc.getStage() == stage) {
@@ -1734,6 +2206,59 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
         this.postProcessors = postProcessors;
     }
 
+    public GraphBuilder getGraphBuilder() {
+        return graphBuilder;
+    }
+
+    public void setGraphBuilder(GraphBuilder graphBuilder) {
+        this.graphBuilder = graphBuilder;
+    }
+
+    public boolean isRecordingStageMetrics() {
+        return recordingStageMetrics;
+    }
+
+    /**
+     * If enabled, each validated input gets a {@link StageMetrics} annotation which records running time, allocated
+     * bytes and problem sizes of all stages computed for this input.
+     */
+    public void setRecordingStageMetrics(boolean recordingStageMetrics) {
+        this.recordingStageMetrics = recordingStageMetrics;
+    }
+
+    public int getParallelGraphScoringThreshold() {
+        return parallelGraphScoringThreshold;
+    }
+
+    /**
+     * graphs with at least the given number of edges are scored by several jobs of the global job manager
+     */
+    public void setParallelGraphScoringThreshold(int parallelGraphScoringThreshold) {
+        this.parallelGraphScoringThreshold = parallelGraphScoringThreshold;
+    }
+
+    public int getParallelDecompositionThreshold() {
+        return parallelDecompositionThreshold;
+    }
+
+    /**
+     * spectra with at least the given number of peaks are decomposed by several jobs of the global job manager
+     */
+    public void setParallelDecompositionThreshold(int parallelDecompositionThreshold) {
+        this.parallelDecompositionThreshold = parallelDecompositionThreshold;
+    }
+
+    public int getParallelPreprocessingThreshold() {
+        return parallelPreprocessingThreshold;
+    }
+
+    /**
+     * batches of at least the given number of inputs are preprocessed by several jobs of the global job manager
+     */
+    public void setParallelPreprocessingThreshold(int parallelPreprocessingThreshold) {
+        this.parallelPreprocessingThreshold = parallelPreprocessingThreshold;
+    }
+
     public TreeBuilder getTreeBuilder() {
         if (treeBuilder==null) {
             setTreeBuilder(TreeBuilderFactory.getInstance().getTreeBuilder());
@@ -19,15 +19,16 @@ package de.unijena.bioinf.FragmentationTreeConstruction.computation.filtering;
 
 import de.unijena.bioinf.ChemistryBase.algorithm.ParameterHelper;
 import de.unijena.bioinf.ChemistryBase.data.DataDocument;
-import de.unijena.bioinf.ChemistryBase.math.NormalDistribution;
 import de.unijena.bioinf.ChemistryBase.ms.MeasurementProfile;
 import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
 import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Spectrum;
 
-import java.util.ArrayList;
-
 /**
- * Remove satellite peaks around a large peak
+ * Remove satellite peaks around a large peak.
+ *
+ * The spectra are filtered in place: masses and intensities of a spectrum are copied once into primitive arrays,
+ * which are reused for all spectra of the experiment, and the remaining peaks are compacted within the spectrum.
+ * The spectra are expected to be ordered by mass.
  */
 public class DynamicBaselineFilter implements Preprocessor {
 
@@ -37,58 +38,66 @@ public class DynamicBaselineFilter implements Preprocessor {
 
     @Override
     public MutableMs2Experiment process(MutableMs2Experiment experiment, MeasurementProfile profile) {
-        final ArrayList<MutableMs2Spectrum> newList = new ArrayList<MutableMs2Spectrum>();
-        final NormalDistribution dist = new NormalDistribution(0d, standardDeviation*standardDeviation);
-        final double max = dist.getDensity(0d);
+        int maxSize = 0;
+        for (MutableMs2Spectrum spec : experiment.getMs2Spectra()) maxSize = Math.max(maxSize, spec.size());
+        final double[] mz = new double[maxSize], intensities = new double[maxSize];
+        final boolean[] remove = new boolean[maxSize];
         for (MutableMs2Spectrum spec : experiment.getMs2Spectra()) {
-            final boolean[] remove = new boolean[spec.size()];
-            int counter = 0;
-            counter = cleanSpectrum(dist, max, spec, remove, counter);
-            final MutableMs2Spectrum newSpec = new MutableMs2Spectrum();
-            newSpec.setCollisionEnergy(spec.getCollisionEnergy());
-            newSpec.setIonization(spec.getIonization());
-            newSpec.setMsLevel(spec.getMsLevel());
-            newSpec.setPrecursorMz(spec.getPrecursorMz());
-            newSpec.setTotalIonCount(spec.getTotalIonCount());
-            for (int i=0; i < remove.length; ++i) {
-                if (!remove[i]) newSpec.addPeak(spec.getMzAt(i), spec.getIntensityAt(i));
+            final int n = spec.size();
+            for (int k=0; k < n; ++k) {
+                mz[k] = spec.getMzAt(k);
+                intensities[k] = spec.getIntensityAt(k);
+                remove[k] = false;
             }
+            final int counter = cleanSpectrum(mz, intensities, n, remove);
             if (counter > 0) {
-                newList.add(newSpec);
-            } else newList.add(spec);
+                // move all remaining peaks to the front, keeping their order, and cut off the tail
+                int m = 0;
+                for (int k=0; k < n; ++k) {
+                    if (remove[k]) continue;
+                    if (m < k) {
+                        spec.setMzAt(m, mz[k]);
+                        spec.setIntensityAt(m, intensities[k]);
+                    }
+                    ++m;
+                }
+                for (int k=n-1; k >= m; --k) spec.removePeakAt(k);
+            }
         }
-        experiment.setMs2Spectra(newList);
         return experiment;
     }
 
-    private int cleanSpectrum(NormalDistribution dist, double max, MutableMs2Spectrum spec, boolean[] remove, int counter) {
-        max/=threshold;
-        for (int k=0; k < spec.size(); ++k) {
-            final double intensity = spec.getIntensityAt(k);
-            final double mz = spec.getMzAt(k);
-            final double massLimit = 10*standardDeviation;
-            final double a = mz-massLimit;
-            final double b = mz+massLimit;
-            for (int i = k-1; i >= 0 && spec.getMzAt(i) >= a; --i) {
+    /**
+     * marks all peaks whose intensity is below the gaussian-shaped baseline of a more intensive neighbouring peak
+     * @return number of removed peaks
+     */
+    private int cleanSpectrum(double[] mz, double[] intensities, int n, boolean[] remove) {
+        // the baseline of a peak with intensity I at distance d is threshold * I * exp(-d^2/(2*sd^2)),
+        // which is the density of the normal distribution relative to its maximum
+        final double massLimit = 10*standardDeviation;
+        final double scale = -1d/(2*standardDeviation*standardDeviation);
+        int counter = 0;
+        for (int k=0; k < n; ++k) {
+            final double intensity = intensities[k]*threshold;
+            final double a = mz[k]-massLimit;
+            final double b = mz[k]+massLimit;
+            for (int i = k-1; i >= 0 && mz[i] >= a; --i) {
                 if (remove[i]) continue;
-                final double limit = (dist.getDensity((mz-spec.getMzAt(i)))/max)*intensity;
-                if (spec.getIntensityAt(i) < limit) {
+                final double d = mz[k]-mz[i];
+                if (intensities[i] < Math.exp(d*d*scale)*intensity) {
                     remove[i] = true;
-                    //System.err.println(String.format(Locale.ENGLISH, "remove %.4f (%.4f %%) due to %.4f (%.4f %%)", spec.getMzAt(i), spec.getIntensityAt(i), spec.getMzAt(k), spec.getIntensityAt(k)));
                     ++counter;
                 }
             }
-            for (int i = k+1; i < spec.size() && spec.getMzAt(i) <= b; ++i) {
+            for (int i = k+1; i < n && mz[i] <= b; ++i) {
                 if (remove[i]) continue;
-                final double limit = (dist.getDensity((mz-spec.getMzAt(i)))/max)*intensity;
-                if (spec.getIntensityAt(i) < limit) {
+                final double d = mz[k]-mz[i];
+                if (intensities[i] < Math.exp(d*d*scale)*intensity) {
                     remove[i] = true;
                     ++counter;
-                    //System.err.println(String.format(Locale.ENGLISH, "remove %.4f (%.4f %%) due to %.4f (%.4f %%)", spec.getMzAt(i), spec.getIntensityAt(i), spec.getMzAt(k), spec.getIntensityAt(k)));
                 }
             }
         }
-        //System.out.println(counter + " (" + ((double)counter/spec.size()) + " %)");
         return counter;
     }
 
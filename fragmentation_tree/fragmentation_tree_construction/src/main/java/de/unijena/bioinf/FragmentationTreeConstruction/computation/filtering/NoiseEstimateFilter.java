@@ -6,7 +6,6 @@ import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
 import de.unijena.bioinf.ChemistryBase.data.DataDocument;
 import de.unijena.bioinf.ChemistryBase.ms.*;
-import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
 import de.unijena.bioinf.MassDecomposer.Chemistry.DecomposerCache;
 import de.unijena.bioinf.MassDecomposer.Chemistry.MassToFormulaDecomposer;
@@ -25,6 +24,7 @@ import java.util.List;
  * Estimate noise level from
  * - peaks with m/z over parent mass
  * - peaks with no explanation
+ * Peaks below the noise level are removed in place, the order of the remaining peaks is kept.
  */
 public class NoiseEstimateFilter implements Preprocessor, Initializable {
 
@@ -75,9 +75,14 @@ public class NoiseEstimateFilter implements Preprocessor, Initializable {
         final List<MutableMs2Spectrum> spectra = experiment.getMs2Spectra();
         final TIntObjectHashMap<TDoubleArrayList> noiseLevels = new TIntObjectHashMap<>();
         final TIntArrayList levels = new TIntArrayList();
+        // intensities of the current spectrum. The buffer is reused for all spectra
+        final TDoubleArrayList intensities = new TDoubleArrayList();
         for (MutableMs2Spectrum spec : spectra) {
             if (spec.size() < 10) continue;
-            final int intensityLevel = (int) Math.round(Math.log10(Spectrums.getMedianIntensity(spec)));
+            intensities.resetQuick();
+            for (int k = 0; k < spec.size(); ++k) intensities.add(spec.getIntensityAt(k));
+            final double median = intensities.getQuick(__quickselect(intensities, 0, intensities.size(), intensities.size()/2));
+            final int intensityLevel = (int) Math.round(Math.log10(median));
             levels.add(intensityLevel);
             if (!noiseLevels.containsKey(intensityLevel))
                 noiseLevels.put(intensityLevel, new TDoubleArrayList(minNumberOfNoisePeaks));
@@ -129,24 +134,23 @@ public class NoiseEstimateFilter implements Preprocessor, Initializable {
                 if (noiseThreshold>0) break;
             }
             if (noiseThreshold>0)  {
-                // apply baseline!
-                int n=spec.size();
-                for (int k=spec.size()-1; k >= 0; --k) {
-                    if (spec.getIntensityAt(k) <= noiseThreshold) {
-                        // never delete parent peak
-                        if (Math.abs(spec.getMzAt(k)-parentmass) > 0.5) {
-                            if (k!=n-1) spec.swap(k, n-1);
-                            --n;
-                        }
+                // apply baseline! Move all remaining peaks to the front, keeping their order, and cut off the tail
+                int n=0;
+                for (int k=0; k < spec.size(); ++k) {
+                    // never delete parent peak
+                    if (spec.getIntensityAt(k) <= noiseThreshold && Math.abs(spec.getMzAt(k)-parentmass) > 0.5) continue;
+                    if (n < k) {
+                        spec.setMzAt(n, spec.getMzAt(k));
+                        spec.setIntensityAt(n, spec.getIntensityAt(k));
                     }
+                    ++n;
                 }
                 int deleted=0;
                 for (int k=spec.size()-1; k >= n; --k) {
                     spec.removePeakAt(k);
                     ++deleted;
                 }
-                if (logger.isDebugEnabled()) logger.debug("Apply baseline at " + noiseThreshold + ", delete " + deleted + " peaks");
-                System.err.println("Apply baseline at " + noiseThreshold + ", delete " + deleted + " peaks, for " + String.valueOf(experiment.getSource()) );
+                if (logger.isDebugEnabled()) logger.debug("Apply baseline at " + noiseThreshold + ", delete " + deleted + " peaks, for " + String.valueOf(experiment.getSource()));
             }
         }
         return experiment;
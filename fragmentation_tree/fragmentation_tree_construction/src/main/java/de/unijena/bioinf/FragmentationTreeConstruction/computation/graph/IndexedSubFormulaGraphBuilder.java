@@ -0,0 +1,378 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.graph;
+
+import de.unijena.bioinf.ChemistryBase.chem.Element;
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.jobs.ParallelBatches;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FragmentAnnotation;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.*;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.*;
+
+/**
+ * Builds the same graph as {@link SubFormulaGraphBuilder}, but does not compare each new decomposition with
+ * all fragments in the graph. Instead, the fragments are indexed by their ionization and by the set of elements
+ * they contain. Within each bucket, the fragments are further divided into cells by the amounts of the two most
+ * frequent elements of the root formulas. Each cell stores the element amounts of its fragments in a flat int array
+ * and keeps the maximal amount of each element, such that whole buckets and cells can be skipped if they cannot
+ * contain a superformula of the decomposition.
+ *
+ * Edges are inserted in the same order as in {@link SubFormulaGraphBuilder}, so both builders produce identical graphs.
+ * The search for the parents of each decomposition only reads the index, so it runs in parallel for large inputs.
+ */
+public class IndexedSubFormulaGraphBuilder extends SubFormulaGraphBuilder {
+
+    /**
+     * minimal number of decompositions for which the graph is built in parallel
+     */
+    protected int parallelThreshold = 20000;
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * If the fragment peaks have at least this number of decompositions, the search for the parents of each
+     * decomposition is split into batches which are processed in parallel. Vertices and edges are still
+     * inserted by the calling thread in the same order as in {@link SubFormulaGraphBuilder}.
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    @Override
+    public FGraph fillGraph(FGraph graph) {
+        final FragmentAnnotation<Ionization> ion = graph.getFragmentAnnotationOrThrow(Ionization.class);
+        final FragmentAnnotation<ProcessedPeak> peakAno = graph.getFragmentAnnotationOrThrow(ProcessedPeak.class);
+        final ScoredFormulaMap scoring = graph.getAnnotationOrThrow(ScoredFormulaMap.class);
+
+        final PeakAnnotation<DecompositionList> decompList =
+                graph.getAnnotationOrThrow(ProcessedInput.class).getPeakAnnotationOrThrow(DecompositionList.class);
+
+        MolecularFormula pmd;
+        {
+            final Iterator<Fragment> roots = graph.getFragmentsWithoutRoot().iterator();
+            pmd = roots.next().getFormula();
+            while (roots.hasNext()) {
+                pmd = pmd.union(roots.next().getFormula());
+            }
+        }
+
+        // every fragment in the graph has to be a subformula of pmd, so it is sufficient to index the elements of pmd
+        final Element[] elements = pmd.elementArray();
+        final int[] pmdAmounts = new int[elements.length];
+        FragmentIndex.amountsOf(pmd, elements, pmdAmounts);
+        final HashMap<Ionization, FragmentIndex> rootIndex = new HashMap<>();
+        final HashMap<Ionization, FragmentIndex> index = new HashMap<>();
+        for (Fragment root : graph.getRoot().getChildren()) {
+            for (HashMap<Ionization, FragmentIndex> map : Arrays.asList(rootIndex, index)) {
+                FragmentIndex idx = map.get(ion.get(root));
+                if (idx == null) {
+                    idx = new FragmentIndex(pmdAmounts);
+                    map.put(ion.get(root), idx);
+                }
+                idx.add(root, elements);
+            }
+        }
+
+        // collect the decompositions of all peaks from the heaviest to the lightest peak
+        final ArrayList<Decomposition> decompositions = new ArrayList<>();
+        final ArrayList<ProcessedPeak> peakOfDecomposition = new ArrayList<>();
+        final ArrayList<ProcessedPeak> peaks = new ArrayList<ProcessedPeak>(graph.getAnnotationOrThrow(ProcessedInput.class).getMergedPeaks());
+        Collections.sort(peaks, new ProcessedPeak.MassComparator());
+        for (int i = peaks.size() - 1; i >= 0; --i) {
+            final ProcessedPeak peak = peaks.get(i);
+            for (Decomposition decomposition : decompList.get(peak).getDecompositions()) {
+                if (!index.containsKey(decomposition.getIon())) continue;
+                final MolecularFormula formula = decomposition.getCandidate();
+                if (!(formula.getMass() < pmd.getMass() && pmd.isSubtractable(formula))) continue;
+                decompositions.add(decomposition);
+                peakOfDecomposition.add(peak);
+            }
+        }
+        final int n = decompositions.size();
+        final int numberOfBatches = n < parallelThreshold ? 1 : 2 * SiriusJobs.getGlobalJobManager().getCPUThreads();
+
+        // a decomposition is inserted into the graph if it has a parent. As each fragment is a subformula of its
+        // parent, this is the case iff it is a subformula of one of the roots with the same ionization
+        final boolean[] hasParent = new boolean[n];
+        ParallelBatches.forEachBatch(n, numberOfBatches, (batch, from, to) -> {
+            final int[] amounts = new int[elements.length];
+            final TIntArrayList roots = new TIntArrayList();
+            for (int k = from; k < to; ++k) {
+                final Decomposition decomposition = decompositions.get(k);
+                final MolecularFormula formula = decomposition.getCandidate();
+                final long signature = FragmentIndex.amountsOf(formula, elements, amounts);
+                roots.resetQuick();
+                rootIndex.get(decomposition.getIon()).findSuperformulas(amounts, signature, formula.getMass(), roots);
+                hasParent[k] = !roots.isEmpty();
+            }
+        });
+
+        // insert the fragments in the same order as SubFormulaGraphBuilder and index them. The parents of a
+        // fragment are all fragments of heavier peaks, i.e. all fragments with a smaller vertex id than the first
+        // fragment of its peak
+        final Fragment[] fragments = new Fragment[n];
+        final int[] vertexIdBound = new int[n];
+        ProcessedPeak lastPeak = null;
+        int firstVertexOfPeak = graph.numberOfVertices();
+        for (int k = 0; k < n; ++k) {
+            if (!hasParent[k]) continue;
+            final Decomposition decomposition = decompositions.get(k);
+            final ProcessedPeak peak = peakOfDecomposition.get(k);
+            final Fragment newFragment = graph.addFragment(decomposition.getCandidate());
+            if (peak != lastPeak) {
+                lastPeak = peak;
+                firstVertexOfPeak = newFragment.getVertexId();
+            }
+            ion.set(newFragment, decomposition.getIon());
+            peakAno.set(newFragment, peak);
+            newFragment.setColor(peak.getIndex());
+            scoring.put(decomposition.getCandidate(), decomposition.getScore());
+            index.get(decomposition.getIon()).add(newFragment, elements);
+            fragments[k] = newFragment;
+            vertexIdBound[k] = firstVertexOfPeak;
+        }
+
+        // search the parents of all fragments. The index is not modified anymore, so this can be done in parallel
+        final int[][] parents = new int[n][];
+        ParallelBatches.forEachBatch(n, numberOfBatches, (batch, from, to) -> {
+            final int[] amounts = new int[elements.length];
+            final TIntArrayList buffer = new TIntArrayList();
+            for (int k = from; k < to; ++k) {
+                if (fragments[k] == null) continue;
+                final MolecularFormula formula = fragments[k].getFormula();
+                final long signature = FragmentIndex.amountsOf(formula, elements, amounts);
+                buffer.resetQuick();
+                index.get(decompositions.get(k).getIon()).findSuperformulas(amounts, signature, formula.getMass(), buffer);
+                // keep the insertion order of SubFormulaGraphBuilder, which iterates the fragments by vertex id
+                buffer.sort();
+                int size = 0;
+                while (size < buffer.size() && buffer.getQuick(size) < vertexIdBound[k]) ++size;
+                parents[k] = buffer.toArray(0, size);
+            }
+        });
+
+        for (int k = 0; k < n; ++k) {
+            if (fragments[k] == null) continue;
+            final Fragment newFragment = fragments[k];
+            for (int parent : parents[k]) {
+                final Fragment f = graph.getFragmentAt(parent);
+                assert (peakAno.get(f).getMz() > peakAno.get(newFragment).getMz());
+                graph.addLoss(f, newFragment);
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Index over all fragments with the same ionization. Fragments are grouped into buckets by their element
+     * signature (the bitset of elements with nonzero amount). A fragment can only be a superformula of another
+     * formula if its signature is a superset of the signature of this formula.
+     */
+    protected static class FragmentIndex {
+        private final int numberOfElements;
+        private final int[] maximalAmounts;
+        private final int firstPivot, secondPivot;
+        private final TLongObjectHashMap<Bucket> bucketsBySignature;
+        private final ArrayList<Bucket> buckets;
+        private final int[] buffer;
+
+        /**
+         * @param maximalAmounts the amount of each element in the union of all root formulas. No fragment in the
+         *                       graph can contain more atoms of an element.
+         */
+        protected FragmentIndex(int[] maximalAmounts) {
+            this.numberOfElements = maximalAmounts.length;
+            this.maximalAmounts = maximalAmounts;
+            // within a bucket, fragments are indexed by the amounts of the two most frequent elements. For organic
+            // compounds these are usually carbon and hydrogen
+            int first = -1, second = -1;
+            for (int k = 0; k < numberOfElements; ++k) {
+                if (first < 0 || maximalAmounts[k] > maximalAmounts[first]) {
+                    second = first;
+                    first = k;
+                } else if (second < 0 || maximalAmounts[k] > maximalAmounts[second]) {
+                    second = k;
+                }
+            }
+            this.firstPivot = first;
+            this.secondPivot = second;
+            this.bucketsBySignature = new TLongObjectHashMap<>();
+            this.buckets = new ArrayList<>();
+            this.buffer = new int[numberOfElements];
+        }
+
+        protected static long amountsOf(MolecularFormula formula, Element[] elements, int[] amounts) {
+            long signature = 0L;
+            for (int k = 0; k < elements.length; ++k) {
+                amounts[k] = formula.numberOf(elements[k]);
+                if (amounts[k] > 0) signature |= (1L << k);
+            }
+            return signature;
+        }
+
+        protected void add(Fragment fragment, Element[] elements) {
+            final long signature = amountsOf(fragment.getFormula(), elements, buffer);
+            Bucket bucket = bucketsBySignature.get(signature);
+            if (bucket == null) {
+                bucket = new Bucket(signature, maximalAmounts, firstPivot, secondPivot);
+                bucketsBySignature.put(signature, bucket);
+                buckets.add(bucket);
+            }
+            bucket.add(fragment.getVertexId(), fragment.getFormula().getMass(), buffer);
+        }
+
+        protected void findSuperformulas(int[] amounts, long signature, double mass, TIntArrayList vertexIds) {
+            for (int b = 0, n = buckets.size(); b < n; ++b) {
+                final Bucket bucket = buckets.get(b);
+                if ((bucket.signature & signature) != signature) continue;
+                bucket.findSuperformulas(amounts, mass, vertexIds);
+            }
+        }
+    }
+
+    /**
+     * All fragments with the same element signature. As nearly all fragments of a compound share the same
+     * signature, the bucket is further divided into cells by the amounts of two pivot elements. A query only
+     * visits cells whose pivot amounts are at least the pivot amounts of the query formula.
+     */
+    protected static class Bucket {
+        private final long signature;
+        private final int numberOfElements;
+        private final int firstPivot, secondPivot;
+        private final int numberOfColumns;
+        private final int[] maxAmounts;
+        // rows are indexed by the amount of the first pivot element, columns by the amount of the second one
+        private final Cell[][] rows;
+        private final TIntArrayList usedRows;
+        private final TIntArrayList[] usedColumns;
+
+        protected Bucket(long signature, int[] maximalAmounts, int firstPivot, int secondPivot) {
+            this.signature = signature;
+            this.numberOfElements = maximalAmounts.length;
+            this.firstPivot = firstPivot;
+            this.secondPivot = secondPivot;
+            this.numberOfColumns = (secondPivot < 0 ? 0 : maximalAmounts[secondPivot]) + 1;
+            this.maxAmounts = new int[numberOfElements];
+            final int numberOfRows = (firstPivot < 0 ? 0 : maximalAmounts[firstPivot]) + 1;
+            this.rows = new Cell[numberOfRows][];
+            this.usedRows = new TIntArrayList();
+            this.usedColumns = new TIntArrayList[numberOfRows];
+        }
+
+        private static int amountOf(int[] amounts, int pivot) {
+            return pivot < 0 ? 0 : amounts[pivot];
+        }
+
+        protected void add(int vertexId, double mass, int[] formulaAmounts) {
+            final int row = amountOf(formulaAmounts, firstPivot), column = amountOf(formulaAmounts, secondPivot);
+            Cell[] cells = rows[row];
+            if (cells == null) {
+                cells = new Cell[numberOfColumns];
+                rows[row] = cells;
+                usedColumns[row] = new TIntArrayList();
+                usedRows.insert(-usedRows.binarySearch(row) - 1, row);
+            }
+            Cell cell = cells[column];
+            if (cell == null) {
+                cell = new Cell(numberOfElements);
+                cells[column] = cell;
+                final TIntArrayList columns = usedColumns[row];
+                columns.insert(-columns.binarySearch(column) - 1, column);
+            }
+            cell.add(vertexId, mass, formulaAmounts);
+            for (int k = 0; k < numberOfElements; ++k)
+                maxAmounts[k] = Math.max(maxAmounts[k], formulaAmounts[k]);
+        }
+
+        protected void findSuperformulas(int[] formulaAmounts, double mass, TIntArrayList result) {
+            final int E = numberOfElements;
+            for (int k = 0; k < E; ++k)
+                if (maxAmounts[k] < formulaAmounts[k]) return;
+            final int minRow = amountOf(formulaAmounts, firstPivot), minColumn = amountOf(formulaAmounts, secondPivot);
+            for (int r = firstIndexNotBelow(usedRows, minRow), nr = usedRows.size(); r < nr; ++r) {
+                final int row = usedRows.getQuick(r);
+                final Cell[] cells = rows[row];
+                final TIntArrayList columns = usedColumns[row];
+                for (int c = firstIndexNotBelow(columns, minColumn), nc = columns.size(); c < nc; ++c) {
+                    cells[columns.getQuick(c)].findSuperformulas(formulaAmounts, mass, result);
+                }
+            }
+        }
+
+        private static int firstIndexNotBelow(TIntArrayList sorted, int value) {
+            final int i = sorted.binarySearch(value);
+            return i >= 0 ? i : -i - 1;
+        }
+    }
+
+    protected static class Cell {
+        private final int numberOfElements;
+        private final int[] maxAmounts;
+        private int[] amounts;
+        private int[] vertexIds;
+        private double[] masses;
+        private int size;
+
+        protected Cell(int numberOfElements) {
+            this.numberOfElements = numberOfElements;
+            this.maxAmounts = new int[numberOfElements];
+            this.amounts = new int[numberOfElements * 4];
+            this.vertexIds = new int[4];
+            this.masses = new double[4];
+            this.size = 0;
+        }
+
+        protected void add(int vertexId, double mass, int[] formulaAmounts) {
+            if (size >= vertexIds.length) {
+                final int newCapacity = vertexIds.length * 2;
+                vertexIds = Arrays.copyOf(vertexIds, newCapacity);
+                masses = Arrays.copyOf(masses, newCapacity);
+                amounts = Arrays.copyOf(amounts, newCapacity * numberOfElements);
+            }
+            System.arraycopy(formulaAmounts, 0, amounts, size * numberOfElements, numberOfElements);
+            for (int k = 0; k < numberOfElements; ++k)
+                maxAmounts[k] = Math.max(maxAmounts[k], formulaAmounts[k]);
+            vertexIds[size] = vertexId;
+            masses[size] = mass;
+            ++size;
+        }
+
+        protected void findSuperformulas(int[] formulaAmounts, double mass, TIntArrayList result) {
+            final int E = numberOfElements;
+            for (int k = 0; k < E; ++k)
+                if (maxAmounts[k] < formulaAmounts[k]) return;
+            eachFragment:
+            for (int i = 0, offset = 0; i < size; ++i, offset += E) {
+                if (masses[i] <= mass) continue;
+                for (int k = 0; k < E; ++k) {
+                    if (amounts[offset + k] < formulaAmounts[k]) continue eachFragment;
+                }
+                result.add(vertexIds[i]);
+            }
+        }
+    }
+}
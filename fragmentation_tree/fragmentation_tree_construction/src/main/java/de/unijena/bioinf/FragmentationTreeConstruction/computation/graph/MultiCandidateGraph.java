@@ -0,0 +1,133 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.graph;
+
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FragmentAnnotation;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+
+import java.util.*;
+
+/**
+ * A scored and topologically sorted fragmentation graph which contains the roots of several precursor candidates.
+ * Fragment decompositions and edges are shared between all candidates, so the graph is built and scored only once.
+ *
+ * The graph of a single candidate is the subgraph induced by all vertices reachable from its root. As each
+ * fragment in the graph is a subformula of its parent, this subgraph is identical to the graph built for this
+ * candidate alone. It is represented by a {@link CandidateView}, a bitset over the vertices of the shared graph,
+ * and is only materialized as {@link FGraph} when a tree builder needs it.
+ *
+ * Note that only the graph building and the graph scoring are shared. Tree builders and graph reductions work on
+ * {@link FGraph} instances, so {@link CandidateView#toGraph()} still copies the subgraph of the candidate. Callers
+ * should materialize this copy only for the time of its tree computation.
+ */
+public class MultiCandidateGraph {
+
+    private final FGraph graph;
+    private final List<CandidateView> views;
+    private final HashMap<MolecularFormula, CandidateView> viewsByFormula;
+
+    public MultiCandidateGraph(FGraph graph) {
+        if (!graph.isTopologicalOrdered())
+            throw new IllegalArgumentException("graph has to be sorted topologically");
+        this.graph = graph;
+        this.views = new ArrayList<>();
+        this.viewsByFormula = new HashMap<>();
+        final FragmentAnnotation<Ionization> ion = graph.getFragmentAnnotationOrThrow(Ionization.class);
+        final int n = graph.numberOfVertices();
+        for (Fragment root : graph.getRoot().getChildren()) {
+            final BitSet vertices = new BitSet(n);
+            vertices.set(0);
+            vertices.set(root.getVertexId());
+            int numberOfEdges = 1;
+            // vertices are in topological order, so a single sweep is sufficient to find all reachable vertices
+            for (int i = vertices.nextSetBit(root.getVertexId()); i >= 0; i = vertices.nextSetBit(i + 1)) {
+                final Fragment u = graph.getFragmentAt(i);
+                for (int k = 0, m = u.getOutDegree(); k < m; ++k) {
+                    vertices.set(u.getChildren(k).getVertexId());
+                    ++numberOfEdges;
+                }
+            }
+            final Decomposition candidate = new Decomposition(root.getFormula(), ion.get(root), graph.getLoss(graph.getRoot(), root).getWeight());
+            final CandidateView view = new CandidateView(candidate, vertices, numberOfEdges);
+            views.add(view);
+            viewsByFormula.put(candidate.getCandidate(), view);
+        }
+    }
+
+    /**
+     * @return the shared graph. Do not modify it, as all views depend on its vertex ids.
+     */
+    public FGraph getSharedGraph() {
+        return graph;
+    }
+
+    public List<CandidateView> getViews() {
+        return Collections.unmodifiableList(views);
+    }
+
+    /**
+     * @return the view of the given candidate or null, if the candidate is not a root of the shared graph
+     */
+    public CandidateView getView(Decomposition candidate) {
+        final CandidateView view = viewsByFormula.get(candidate.getCandidate());
+        if (view == null || !view.candidate.getIon().equals(candidate.getIon())) return null;
+        return view;
+    }
+
+    public class CandidateView {
+        private final Decomposition candidate;
+        private final BitSet vertices;
+        private final int numberOfEdges;
+
+        private CandidateView(Decomposition candidate, BitSet vertices, int numberOfEdges) {
+            this.candidate = candidate;
+            this.vertices = vertices;
+            this.numberOfEdges = numberOfEdges;
+        }
+
+        public Decomposition getCandidate() {
+            return candidate;
+        }
+
+        public int numberOfVertices() {
+            return vertices.cardinality();
+        }
+
+        public int numberOfEdges() {
+            return numberOfEdges;
+        }
+
+        public boolean contains(Fragment f) {
+            return vertices.get(f.getVertexId());
+        }
+
+        /**
+         * @return a new scored and topologically sorted graph containing only the vertices and edges of this
+         * candidate. The graph is a copy, so it needs as much memory as a graph built for this candidate alone.
+         */
+        public FGraph toGraph() {
+            final FGraph subgraph = new FGraph(graph, vertices);
+            subgraph.sortTopological();
+            return subgraph;
+        }
+    }
+}
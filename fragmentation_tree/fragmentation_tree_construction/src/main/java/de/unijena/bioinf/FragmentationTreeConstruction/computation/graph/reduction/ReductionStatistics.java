@@ -0,0 +1,112 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.reduction;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Summary of a single run of {@link TimeBudgetedReduction}. It is stored as annotation of the reduced graph.
+ */
+public class ReductionStatistics {
+
+    private final LinkedHashMap<String, Integer> edgesRemovedByRule;
+    private int iterations;
+    private long runningTimeInMillis;
+    private boolean budgetExceeded;
+    private boolean unsafeBounds;
+    private int removedVertices;
+
+    public ReductionStatistics() {
+        this.edgesRemovedByRule = new LinkedHashMap<>();
+    }
+
+    void addRemovedEdges(String rule, int numberOfEdges) {
+        final Integer before = edgesRemovedByRule.get(rule);
+        edgesRemovedByRule.put(rule, before == null ? numberOfEdges : before + numberOfEdges);
+    }
+
+    void addRemovedVertices(int numberOfVertices) {
+        removedVertices += numberOfVertices;
+    }
+
+    void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    void setRunningTimeInMillis(long runningTimeInMillis) {
+        this.runningTimeInMillis = runningTimeInMillis;
+    }
+
+    void setBudgetExceeded(boolean budgetExceeded) {
+        this.budgetExceeded = budgetExceeded;
+    }
+
+    void setUnsafeBounds(boolean unsafeBounds) {
+        this.unsafeBounds = unsafeBounds;
+    }
+
+    /**
+     * @return number of removed edges for each rule, in the order the rules were applied first
+     */
+    public Map<String, Integer> getEdgesRemovedByRule() {
+        return Collections.unmodifiableMap(edgesRemovedByRule);
+    }
+
+    public int getNumberOfRemovedEdges() {
+        int sum = 0;
+        for (int n : edgesRemovedByRule.values()) sum += n;
+        return sum;
+    }
+
+    public int getNumberOfRemovedVertices() {
+        return removedVertices;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public long getRunningTimeInMillis() {
+        return runningTimeInMillis;
+    }
+
+    /**
+     * @return true, if the reduction was stopped because it exceeded its time or iteration budget. The graph is
+     * still valid, but might be reduced further.
+     */
+    public boolean isBudgetExceeded() {
+        return budgetExceeded;
+    }
+
+    /**
+     * @return true, if an upper bound was found to be smaller than the score of a known subtree. In this case the
+     * reduction stopped before removing any edge by these bounds.
+     */
+    public boolean hasUnsafeBounds() {
+        return unsafeBounds;
+    }
+
+    @Override
+    public String toString() {
+        return "removed " + getNumberOfRemovedEdges() + " edges " + edgesRemovedByRule + " and " + removedVertices
+                + " vertices in " + iterations + " iterations (" + runningTimeInMillis + " ms"
+                + (budgetExceeded ? ", budget exceeded" : "") + (unsafeBounds ? ", unsafe bounds" : "") + ")";
+    }
+}
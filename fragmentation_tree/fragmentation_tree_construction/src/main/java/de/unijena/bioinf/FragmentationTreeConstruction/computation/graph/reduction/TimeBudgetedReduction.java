@@ -0,0 +1,216 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.reduction;
+
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.GraphReduction;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.SimpleReduction;
+import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.ExtendedCriticalPathHeuristic;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Reduces the graph with the vertex upper bounds of {@link TReduce} before it is passed to the tree builder:
+ * 1. apply an initial reduction (by default {@link SimpleReduction})
+ * 2. compute Sebastian's and Tim's vertex upper bounds and delete all edges uv with w(uv) + ub(v) &lt; 0
+ * 3. delete all vertices which are not reachable from the root anymore
+ * Steps 2 and 3 are repeated until no edge is deleted or the time or iteration budget is exhausted. Stopping early
+ * is always safe, as each deletion is valid on its own.
+ *
+ * Deleting an edge uv with w(uv) + ub(v) &lt; 0 is safe as long as ub(v) is a valid upper bound: removing the subtree of
+ * v from a tree containing uv yields a better tree. This tree still contains its root and the edge from the pseudo
+ * root, which the minimal tree size constraint of the ILP requires. Edges of the pseudo root are never deleted.
+ *
+ * The upper bounds are not proven to be valid. Before deleting any edge, they are only checked against the subtrees
+ * of a heuristic tree: each vertex of this tree is the root of a feasible colorful subtree, so its upper bound must
+ * not be smaller than the score of this subtree. If this check fails, the reduction stops. As this check cannot
+ * detect all invalid bounds, this reduction is not used by default. It has to be enabled explicitly via
+ * {@link de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis#setReduction(GraphReduction)}.
+ *
+ * The number of deleted edges per rule is stored as {@link ReductionStatistics} annotation of the graph.
+ */
+public class TimeBudgetedReduction implements GraphReduction {
+
+    public static final String RULE_VERTEX_UPPER_BOUND = "vertex-upper-bound";
+    public static final String RULE_UNREACHABLE = "unreachable";
+
+    private static final double TOLERANCE = 1e-6;
+
+    private final GraphReduction initialReduction;
+    private long timeLimitInMillis;
+    private int maxIterations;
+
+    public TimeBudgetedReduction() {
+        this(new SimpleReduction(), 1000, 10);
+    }
+
+    /**
+     * @param initialReduction  reduction which is applied first, may be null
+     * @param timeLimitInMillis wall-clock budget of the reduction. Zero or less means no time limit
+     * @param maxIterations     maximal number of rounds of upper bound computation and edge deletion
+     */
+    public TimeBudgetedReduction(GraphReduction initialReduction, long timeLimitInMillis, int maxIterations) {
+        this.initialReduction = initialReduction;
+        this.timeLimitInMillis = timeLimitInMillis;
+        this.maxIterations = maxIterations;
+    }
+
+    @Override
+    public FGraph reduce(FGraph graph, double lowerbound) {
+        final long start = System.currentTimeMillis();
+        final long deadline = timeLimitInMillis > 0 ? start + timeLimitInMillis : Long.MAX_VALUE;
+        final ReductionStatistics statistics = new ReductionStatistics();
+        if (initialReduction != null) {
+            final int edges = graph.numberOfEdges(), vertices = graph.numberOfVertices();
+            graph = initialReduction.reduce(graph, lowerbound);
+            statistics.addRemovedEdges(initialReduction.getClass().getSimpleName(), edges - graph.numberOfEdges());
+            statistics.addRemovedVertices(vertices - graph.numberOfVertices());
+        }
+        graph.sortTopological();
+
+        final ExtendedCriticalPathHeuristic heuristic = new ExtendedCriticalPathHeuristic(graph);
+        heuristic.solve();
+        final ArrayList<Loss> knownTree = new ArrayList<>(heuristic.getSelectedEdges());
+
+        int iteration = 0;
+        boolean changed = true;
+        while (changed) {
+            if (iteration >= maxIterations || System.currentTimeMillis() > deadline) {
+                statistics.setBudgetExceeded(true);
+                break;
+            }
+            ++iteration;
+            final TReduce reduce = new TReduce(graph);
+            final double[] upperbounds = new double[graph.numberOfVertices()];
+            Arrays.fill(upperbounds, Double.POSITIVE_INFINITY);
+            reduce.setUB(upperbounds);
+            reduce.doSebastianVertexUpperBounds();
+            reduce.doTimVertexUpperBounds();
+            if (!hasSafeUpperBounds(graph, reduce.getUB(), knownTree)) {
+                LoggerFactory.getLogger(TimeBudgetedReduction.class).warn("Upper bounds are smaller than the score of a known subtree. Stop graph reduction.");
+                statistics.setUnsafeBounds(true);
+                break;
+            }
+            final int deletedEdges = deleteEdgesByUpperBound(graph, reduce.getUB());
+            statistics.addRemovedEdges(RULE_VERTEX_UPPER_BOUND, deletedEdges);
+            final int edges = graph.numberOfEdges(), vertices = graph.numberOfVertices();
+            deleteUnreachableVertices(graph);
+            statistics.addRemovedEdges(RULE_UNREACHABLE, edges - graph.numberOfEdges());
+            statistics.addRemovedVertices(vertices - graph.numberOfVertices());
+            changed = deletedEdges > 0;
+        }
+        for (Fragment f : graph) {
+            f.compact();
+        }
+        statistics.setIterations(iteration);
+        statistics.setRunningTimeInMillis(System.currentTimeMillis() - start);
+        graph.setAnnotation(ReductionStatistics.class, statistics);
+        return graph;
+    }
+
+    /*
+        the edges of the pseudo root are never deleted, as each tree has to contain one of them
+     */
+    private static int deleteEdgesByUpperBound(FGraph graph, double[] upperbounds) {
+        int counter = 0;
+        final ArrayList<Loss> toDelete = new ArrayList<>();
+        for (int k = graph.numberOfVertices() - 1; k > 0; --k) {
+            final Fragment u = graph.getFragmentAt(k);
+            for (int i = 0, n = u.getOutDegree(); i < n; ++i) {
+                final Loss l = u.getOutgoingEdge(i);
+                if (l.getWeight() + upperbounds[l.getTarget().getVertexId()] < 0) {
+                    toDelete.add(l);
+                }
+            }
+            counter += toDelete.size();
+            for (Loss l : toDelete) graph.deleteLoss(l);
+            toDelete.clear();
+        }
+        return counter;
+    }
+
+    /*
+        vertices are topologically sorted, so a single sweep finds all vertices whose parents are all deleted
+     */
+    private static void deleteUnreachableVertices(FGraph graph) {
+        final BitSet unreachable = new BitSet(graph.numberOfVertices());
+        final ArrayList<Fragment> toDelete = new ArrayList<>();
+        eachVertex:
+        for (int k = 1; k < graph.numberOfVertices(); ++k) {
+            final Fragment u = graph.getFragmentAt(k);
+            for (int i = 0, n = u.getInDegree(); i < n; ++i) {
+                if (!unreachable.get(u.getParent(i).getVertexId())) continue eachVertex;
+            }
+            unreachable.set(k);
+            toDelete.add(u);
+        }
+        if (!toDelete.isEmpty()) graph.deleteFragmentsKeepTopologicalOrder(toDelete);
+    }
+
+    /*
+        the best subtree of the known tree below a vertex is a feasible colorful subtree rooted at this vertex. So
+        its score is a lower bound for the upper bound of the vertex
+     */
+    private static boolean hasSafeUpperBounds(FGraph graph, double[] upperbounds, List<Loss> knownTree) {
+        final ArrayList<Loss> edges = new ArrayList<>(knownTree.size());
+        for (Loss l : knownTree) {
+            if (graph.getLoss(l.getSource(), l.getTarget()) == l) edges.add(l);
+        }
+        // children are processed before their parents
+        Collections.sort(edges, new Comparator<Loss>() {
+            @Override
+            public int compare(Loss o1, Loss o2) {
+                return Integer.compare(o2.getTarget().getVertexId(), o1.getTarget().getVertexId());
+            }
+        });
+        final double[] subtreeScores = new double[graph.numberOfVertices()];
+        for (Loss l : edges) {
+            final int v = l.getTarget().getVertexId();
+            if (subtreeScores[v] > upperbounds[v] + TOLERANCE) return false;
+            subtreeScores[l.getSource().getVertexId()] += Math.max(0d, l.getWeight() + subtreeScores[v]);
+        }
+        for (Loss l : edges) {
+            final int u = l.getSource().getVertexId();
+            if (subtreeScores[u] > upperbounds[u] + TOLERANCE) return false;
+        }
+        return true;
+    }
+
+    public GraphReduction getInitialReduction() {
+        return initialReduction;
+    }
+
+    public long getTimeLimitInMillis() {
+        return timeLimitInMillis;
+    }
+
+    public void setTimeLimitInMillis(long timeLimitInMillis) {
+        this.timeLimitInMillis = timeLimitInMillis;
+    }
+
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+}
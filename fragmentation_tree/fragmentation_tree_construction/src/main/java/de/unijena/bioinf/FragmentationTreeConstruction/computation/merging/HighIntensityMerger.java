@@ -29,6 +29,7 @@ import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedPeak;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -38,6 +39,9 @@ import java.util.List;
  * 3. merging is done by "deleting" all merged peaks but the most intensive one.
  *
  * The advantage of this merger is that the mz values of the spectra does not change.
+ *
+ * The peaks are sorted only once by mass and once by intensity. Merged peaks are skipped instead of removed, such
+ * that merging a spectrum with n peaks takes O(n log n) time.
  */
 public class HighIntensityMerger implements PeakMerger {
 
@@ -55,7 +59,6 @@ public class HighIntensityMerger implements PeakMerger {
     public void mergePeaks(List<ProcessedPeak> peaks, Ms2Experiment experiment, Deviation mergeWindow, Merger merger) {
         mergeWindow = new Deviation(mergeWindow.getPpm(), Math.max(mergeWindow.getAbsolute(), minMergeDistance));
         final ProcessedPeak[] mzArray = peaks.toArray(new ProcessedPeak[peaks.size()]);
-        final ProcessedPeak.MassComparator massComparator = new ProcessedPeak.MassComparator();
         Arrays.sort(mzArray, new ProcessedPeak.MassComparator());
         final Spectrum<ProcessedPeak> massOrderedSpectrum = new PeaklistSpectrum<ProcessedPeak>(Arrays.asList(mzArray));
         int n = mzArray.length;
@@ -65,24 +68,62 @@ public class HighIntensityMerger implements PeakMerger {
         final double parentMass = experiment.getIonMass();
         for (; parentIndex > 0 && mzArray[parentIndex-1].getMz()+0.1d >= parentMass; --parentIndex);
         n = parentIndex;
-        final ProcessedPeak[] parray = Arrays.copyOf(mzArray, parentIndex);
-        Arrays.sort(parray, Collections.reverseOrder(new ProcessedPeak.RelativeIntensityComparator()));
-        for (int i=0; i < parray.length; ++i) {
-            final ProcessedPeak p = parray[i];
-            final int index = Arrays.binarySearch(mzArray, 0, n, p, massComparator);
-            if (index < 0) continue;
+        // iterate peaks in descending intensity. The sort is stable, so peaks with same intensity are processed in
+        // mass order
+        final Integer[] intensityOrder = new Integer[n];
+        for (int i=0; i < n; ++i) intensityOrder[i] = i;
+        final ProcessedPeak[] mzOrdered = mzArray;
+        Arrays.sort(intensityOrder, new Comparator<Integer>() {
+            private final Comparator<ProcessedPeak> comp = Collections.reverseOrder(new ProcessedPeak.RelativeIntensityComparator());
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return comp.compare(mzOrdered[o1], mzOrdered[o2]);
+            }
+        });
+        // merged peaks are not removed from the mass ordered array. Instead, nextAlive[i] points to a peak with
+        // index > i if peak i is already merged. Following these pointers (and compressing them on the way) yields
+        // the next unmerged peak, so each merge step costs only the number of merged peaks plus a binary search
+        final int[] nextAlive = new int[n+1];
+        for (int i=0; i <= n; ++i) nextAlive[i] = i;
+        final ArrayList<ProcessedPeak> window = new ArrayList<ProcessedPeak>();
+        for (int i=0; i < n; ++i) {
+            final int index = intensityOrder[i];
+            if (nextAlive(nextAlive, index) != index) continue; // peak was already merged
+            final ProcessedPeak p = mzArray[index];
             final double error = mergeWindow.absoluteFor(p.getMz());
             final double min = p.getMz() - error;
             final double max = p.getMz() + error;
-            int minIndex = index;
-            while (minIndex >= 0 && mzArray[minIndex].getMz() >= min) --minIndex;
-            ++minIndex;
-            int maxIndex = index;
-            while (maxIndex < n && mzArray[maxIndex].getMz() <= max) ++maxIndex;
-            merger.merge(new ArrayList<ProcessedPeak>(Arrays.asList(mzArray).subList(minIndex, maxIndex)), index-minIndex, p.getMz());
-            System.arraycopy(mzArray, maxIndex, mzArray, minIndex, n-maxIndex);
-            n -= (maxIndex - minIndex);
+            int mainIndex = -1;
+            int k = nextAlive(nextAlive, lowerBound(mzArray, n, min));
+            for (; k < n && mzArray[k].getMz() <= max; k = nextAlive(nextAlive, k+1)) {
+                if (k == index) mainIndex = window.size();
+                window.add(mzArray[k]);
+                nextAlive[k] = k+1;
+            }
+            merger.merge(new ArrayList<ProcessedPeak>(window), mainIndex, p.getMz());
+            window.clear();
+        }
+    }
+
+    private static int nextAlive(int[] nextAlive, int i) {
+        while (nextAlive[i] != i) {
+            nextAlive[i] = nextAlive[nextAlive[i]];
+            i = nextAlive[i];
+        }
+        return i;
+    }
+
+    /**
+     * @return the index of the first peak in mzArray[0..n) with mz >= mz
+     */
+    private static int lowerBound(ProcessedPeak[] mzArray, int n, double mz) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mzArray[mid].getMz() < mz) lo = mid + 1;
+            else hi = mid;
         }
+        return lo;
     }
 
     protected int mergeParentPeak(Ms2Experiment experiment, Deviation mergeWindow, Merger merger, ProcessedPeak[] mzArray, Spectrum<ProcessedPeak> massOrderedSpectrum) {
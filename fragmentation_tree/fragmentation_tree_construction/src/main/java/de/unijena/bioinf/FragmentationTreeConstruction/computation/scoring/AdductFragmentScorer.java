@@ -29,7 +29,7 @@ import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
  * during fragmentation. I exclude Cl as this element might also occur in organic compounds.
  */
 @Deprecated
-public class AdductFragmentScorer implements LossScorer<Element[]> {
+public class AdductFragmentScorer implements FormulaOnlyLossScorer<Element[]> {
 
     protected double penalty = Math.log(0.05);
 
@@ -0,0 +1,27 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring;
+
+/**
+ * A loss scorer whose score depends only on the molecular formula of the loss, the input and the precomputed
+ * object, but neither on the source nor on the target fragment of the loss. The score of such a scorer is computed
+ * only once for each loss formula in an input and is then reused for all edges with the same loss.
+ */
+public interface FormulaOnlyLossScorer<T> extends LossScorer<T> {
+
+}
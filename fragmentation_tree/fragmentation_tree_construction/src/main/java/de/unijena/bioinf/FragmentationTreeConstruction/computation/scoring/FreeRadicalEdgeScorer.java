@@ -32,7 +32,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 @Called("Free Radical")
-public class FreeRadicalEdgeScorer implements LossScorer, MolecularFormulaScorer {
+public class FreeRadicalEdgeScorer implements FormulaOnlyLossScorer, MolecularFormulaScorer {
 
     private final TObjectDoubleHashMap<MolecularFormula> freeRadicals;
     private double generalRadicalScore;
@@ -5,6 +5,8 @@ import de.unijena.bioinf.ChemistryBase.algorithm.Parameter;
 import de.unijena.bioinf.ChemistryBase.chem.Ionization;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.jobs.ParallelBatches;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
 import de.unijena.bioinf.ChemistryBase.ms.*;
 import de.unijena.bioinf.ChemistryBase.ms.ft.*;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
@@ -48,6 +50,19 @@ public class IsotopePatternInMs2Scorer {
     @Parameter
     protected double baselineAbsoluteIntensity = 500;
 
+    /**
+     * minimal number of fragments in a graph for which the MS1 isotope patterns are scored in parallel
+     */
+    protected int parallelThreshold = 5000;
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
     public double getBaselineAbsoluteIntensity() {
         return baselineAbsoluteIntensity;
     }
@@ -107,68 +122,68 @@ public class IsotopePatternInMs2Scorer {
 
         ////////////
 
-        final ArrayList<Fragment> isoFrags = new ArrayList<Fragment>();
+        final ArrayList<Fragment> fragments = new ArrayList<Fragment>();
         for (Fragment f : graph) {
-            if (f.getFormula()!=null && !f.getFormula().isEmpty()) {
-                final SimpleSpectrum simulated;
-
-                if (ms1Pattern!=null) {
-                    if (f.getFormula().equals(ms1Formula)) {
-                        simulated = ms1Pattern;
-                    } else {
-                        simulated = normalizeByFirstPeak(fisogen.simulatePattern(ms1Pattern, ms1Formula, ms1Formula.subtract(f.getFormula()), ion,true));
-                    }
-                    /////// DEBUG
-                    /*
-                    System.out.println(f.getCandidate());
-                    System.out.println(simulated);
-                    System.out.println(normalizeByFirstPeak(generator.simulatePattern(f.getCandidate(), ion)));
-                    */
-                    /////////////
+            if (f.getFormula()!=null && !f.getFormula().isEmpty()) fragments.add(f);
+        }
+        final SimpleSpectrum[] fragmentPatterns;
+        if (ms1Pattern!=null) {
+            final ArrayList<MolecularFormula> formulas = new ArrayList<MolecularFormula>(fragments.size());
+            for (Fragment f : fragments) formulas.add(f.getFormula());
+            fragmentPatterns = simulateFragmentPatterns(fisogen, ms1Pattern, ms1Formula, ion, formulas);
+        } else {
+            fragmentPatterns = null;
+        }
 
-                } else {
-                    simulated = normalizeByFirstPeak(generator.simulatePattern(f.getFormula(), ion));
-                }
+        final ArrayList<Fragment> isoFrags = new ArrayList<Fragment>();
+        for (int fragmentIndex=0; fragmentIndex < fragments.size(); ++fragmentIndex) {
+            final Fragment f = fragments.get(fragmentIndex);
+            final SimpleSpectrum simulated;
 
-                // match simulated spectrum against MS/MS spectra
-                ids.resetQuick();
-                scores.resetQuick();
-                patterns.clear();
-                // TODO: ensure that MS/MS spectra are ordered by mass
-                // TODO: maybe use original MS/MS spectra to avoid prefiltering?
-                int msmsId=-1;
-                eachSpec:
-                for (MutableMs2Spectrum msms : input.getExperimentInformation().getMs2Spectra()) {
-                    final UnivariateFunction F = recalibration.getRecalibrationFunctionFor(msms);
-                    ++msmsId;
-                    final double maxIntensity = Spectrums.getMaximalIntensity(msms);
-                    final int index = Spectrums.mostIntensivePeakWithin(msms, simulated.getMzAt(0), peakDev);
-                    if (index < 0) {
-                        continue;
-                    }
-                    final SimpleSpectrum foundPattern = extractPattern(peakDev, shiftDev, simulated, msms, maxIntensity, index, F);
-                    if (foundPattern.size() <= 1) continue ;
-                    final double[] pkscores = new double[foundPattern.size()];
-                    final double baselineAbs = Math.max(baselineAbsoluteIntensity/msms.getIntensityAt(index), sigmaAbs/msms.getIntensityAt(index));
-                    double score = scorePatternPeakByPeak(simulated, foundPattern, pkscores, peakAno.get(f).getRelativeIntensity(), baselineAbs);
-                    if (score <= 0) continue ;
-                    ids.add(msmsId);
-                    scores.add(score);
-                    patterns.add(foundPattern);
+            if (ms1Pattern!=null) {
+                simulated = fragmentPatterns[fragmentIndex];
+            } else {
+                simulated = normalizeByFirstPeak(generator.simulatePattern(f.getFormula(), ion));
+            }
+
+            // match simulated spectrum against MS/MS spectra
+            ids.resetQuick();
+            scores.resetQuick();
+            patterns.clear();
+            // TODO: ensure that MS/MS spectra are ordered by mass
+            // TODO: maybe use original MS/MS spectra to avoid prefiltering?
+            int msmsId=-1;
+            eachSpec:
+            for (MutableMs2Spectrum msms : input.getExperimentInformation().getMs2Spectra()) {
+                final UnivariateFunction F = recalibration.getRecalibrationFunctionFor(msms);
+                ++msmsId;
+                final double maxIntensity = Spectrums.getMaximalIntensity(msms);
+                final int index = Spectrums.mostIntensivePeakWithin(msms, simulated.getMzAt(0), peakDev);
+                if (index < 0) {
+                    continue;
                 }
+                final SimpleSpectrum foundPattern = extractPattern(peakDev, shiftDev, simulated, msms, maxIntensity, index, F);
+                if (foundPattern.size() <= 1) continue ;
+                final double[] pkscores = new double[foundPattern.size()];
+                final double baselineAbs = Math.max(baselineAbsoluteIntensity/msms.getIntensityAt(index), sigmaAbs/msms.getIntensityAt(index));
+                double score = scorePatternPeakByPeak(simulated, foundPattern, pkscores, peakAno.get(f).getRelativeIntensity(), baselineAbs);
+                if (score <= 0) continue ;
+                ids.add(msmsId);
+                scores.add(score);
+                patterns.add(foundPattern);
+            }
 
-                if (patterns.size()==0) continue;
+            if (patterns.size()==0) continue;
 
-                int argmax = 0;
-                for (int k=0; k < scores.size(); ++k) {
-                    if (scores.get(k) > scores.get(argmax)) {
-                        argmax=k;
-                    }
+            int argmax = 0;
+            for (int k=0; k < scores.size(); ++k) {
+                if (scores.get(k) > scores.get(argmax)) {
+                    argmax=k;
                 }
-                isoAno.set(f, new Ms2IsotopePatternMatch(simulated, patterns.get(argmax), scores.get(argmax)));
-
-                isoFrags.add(f);
             }
+            isoAno.set(f, new Ms2IsotopePatternMatch(simulated, patterns.get(argmax), scores.get(argmax)));
+
+            isoFrags.add(f);
         }
         final ArrayList<ProcessedPeak> peaklist = new ArrayList<ProcessedPeak>(input.getMergedPeaks());
         Collections.sort(peaklist, new ProcessedPeak.MassComparator());
@@ -362,7 +377,33 @@ public class IsotopePatternInMs2Scorer {
         return new SimpleSpectrum(buf2);
     }
 
-    private SimpleSpectrum normalizeByFirstPeak(SimpleSpectrum spec) {
+    /**
+     * simulate the patterns of all fragments from the MS1 pattern at once, such that the parent pattern is
+     * prepared only once and fragments with the same loss share their pattern
+     * @return the pattern of each fragment formula normalized to its first peak, in the same order
+     */
+    static SimpleSpectrum[] simulateFragmentPatterns(FragmentIsotopeGenerator fisogen, SimpleSpectrum ms1Pattern, MolecularFormula ms1Formula, Ionization ion, List<MolecularFormula> fragmentFormulas) {
+        final SimpleSpectrum[] fragmentPatterns = new SimpleSpectrum[fragmentFormulas.size()];
+        final FragmentIsotopeGenerator.ParentPattern parentPattern = fisogen.prepareParentPattern(ms1Pattern, ms1Formula, ion, true);
+        final ArrayList<MolecularFormula> losses = new ArrayList<MolecularFormula>(fragmentFormulas.size());
+        final TIntArrayList lossFragments = new TIntArrayList(fragmentFormulas.size());
+        for (int k=0; k < fragmentFormulas.size(); ++k) {
+            final MolecularFormula formula = fragmentFormulas.get(k);
+            if (formula.equals(ms1Formula)) {
+                fragmentPatterns[k] = ms1Pattern;
+            } else {
+                losses.add(ms1Formula.subtract(formula));
+                lossFragments.add(k);
+            }
+        }
+        final SimpleSpectrum[] simulatedPatterns = fisogen.simulatePatterns(parentPattern, losses);
+        for (int k=0; k < simulatedPatterns.length; ++k) {
+            fragmentPatterns[lossFragments.get(k)] = normalizeByFirstPeak(simulatedPatterns[k]);
+        }
+        return fragmentPatterns;
+    }
+
+    private static SimpleSpectrum normalizeByFirstPeak(SimpleSpectrum spec) {
         final double[] mz = new double[spec.size()];
         final double[] intensity = new double[spec.size()];
         for (int k=0; k < spec.size(); ++k) {
@@ -395,7 +436,6 @@ public class IsotopePatternInMs2Scorer {
 
     public void scoreFromMs1(ProcessedInput input, FGraph graph) {
         final PrecursorIonType ion = graph.getAnnotationOrThrow(PrecursorIonType.class);
-        final Deviation dev = input.getMeasurementProfile().getAllowedMassDeviation();
         final SimpleSpectrum mergedMs1 = input.getExperimentInformation().getMergedMs1Spectrum();
         if (mergedMs1 == null) return;
         final IsotopePatternAnalysis analyzer = new IsotopePatternAnalysis();
@@ -411,59 +451,73 @@ public class IsotopePatternInMs2Scorer {
         final MissingPeakScorer scorer4 = new MissingPeakScorer();
         if (!input.getPeakAnnotations().containsKey(IsotopePatternAssignment.class)) {
             final PeakAnnotation<IsotopePatternAssignment> ano = input.getOrCreatePeakAnnotation(IsotopePatternAssignment.class);
+            final ArrayList<ProcessedPeak> peaks = new ArrayList<>(input.getMergedPeaks().size());
             for (ProcessedPeak peak : input.getMergedPeaks()) {
-
-                if (peak == input.getParentPeak())
-                    continue;
-
-                final double ionMass = peak.getMz();
-                final int index = Spectrums.mostIntensivePeakWithin(mergedMs1, ionMass, dev);
-                if (index >= 0) {
-                    final SimpleSpectrum spec = Spectrums.getNormalizedSpectrum(analyzer.extractPattern(mergedMs1, input.getMeasurementProfile(), ionMass), Normalization.Max(1d));
-                    if (spec.size() > 1) {
-                        // use pattern!
-                        peak.setMz(spec.getMzAt(0));
-                        ano.set(peak, new IsotopePatternAssignment(spec));
-                    }
+                if (peak != input.getParentPeak())
+                    peaks.add(peak);
+            }
+            // extract the patterns of all peaks in a single sweep over the MS1 spectrum
+            final double[] ionMasses = new double[peaks.size()];
+            for (int i = 0; i < ionMasses.length; ++i) ionMasses[i] = peaks.get(i).getMz();
+            final SimpleSpectrum[] patterns = analyzer.extractPatterns(mergedMs1, input.getMeasurementProfile(), ionMasses);
+            for (int i = 0; i < patterns.length; ++i) {
+                if (patterns[i] == null) continue;
+                final SimpleSpectrum spec = Spectrums.getNormalizedSpectrum(patterns[i], Normalization.Max(1d));
+                if (spec.size() > 1) {
+                    // use pattern!
+                    final ProcessedPeak peak = peaks.get(i);
+                    peak.setMz(spec.getMzAt(0));
+                    ano.set(peak, new IsotopePatternAssignment(spec));
                 }
             }
         }
-        final IsotopePatternGenerator gen = new FastIsotopePatternGenerator(Normalization.Max(1d));
-
         final PeakAnnotation<IsotopePatternAssignment> ano = input.getOrCreatePeakAnnotation(IsotopePatternAssignment.class);
         final FragmentAnnotation<IsotopePattern> isoPat = graph.getOrCreateFragmentAnnotation(IsotopePattern.class);
-        for (Fragment f : graph.getFragmentsWithoutRoot()) {
-            final ProcessedPeak peak = input.getMergedPeaks().get(f.getColor());
-            final IsotopePatternAssignment assignment = ano.get(peak);
-            if (assignment != null) {
-                SimpleSpectrum spec = assignment.pattern;
-                gen.setMaximalNumberOfPeaks(spec.size());
-                final SimpleSpectrum simulated = Spectrums.subspectrum(gen.simulatePattern(f.getFormula(), ion.getIonization()), 0, assignment.pattern.size());
-                spec = Spectrums.subspectrum(spec, 0, simulated.size());
-                // shorten pattern
-
-                final double[] scores = new double[spec.size()];
-                scorer1.score(scores, spec, simulated, Normalization.Max(1d), input.getExperimentInformation(), input.getMeasurementProfile());
-                scorer2.score(scores, spec, simulated, Normalization.Max(1d), input.getExperimentInformation(), input.getMeasurementProfile());
-                scorer3.score(scores, spec, simulated, Normalization.Max(1d), input.getExperimentInformation(), input.getMeasurementProfile());
-                scorer4.score(scores, spec, simulated, Normalization.Max(1d), input.getExperimentInformation(), input.getMeasurementProfile());
-                double maxScore = 0d;
-                for (int i=0; i < scores.length; ++i) {
-                    maxScore = Math.max(scores[i], maxScore);
-                }
-                if (maxScore>0) {
-                    isoPat.set(f, new IsotopePattern(f.getFormula(), maxScore, spec));
-                    for (int i=0, n=f.getInDegree(); i < n; ++i) {
-                        final Loss l = f.getIncomingEdge(i);
-                        l.setWeight(l.getWeight() + maxScore);
+        final ArrayList<Fragment> fragments = new ArrayList<>(graph.numberOfVertices());
+        for (Fragment f : graph.getFragmentsWithoutRoot()) fragments.add(f);
+        // fragments are scored independently of each other, so large graphs are scored in parallel batches. The graph
+        // itself is only modified afterwards by the calling thread
+        final IsotopePattern[] scoredPatterns = new IsotopePattern[fragments.size()];
+        final int numberOfBatches = fragments.size() < parallelThreshold ? 1 : 2 * SiriusJobs.getGlobalJobManager().getCPUThreads();
+        ParallelBatches.forEachBatch(fragments.size(), numberOfBatches, (batch, from, to) -> {
+            // each batch needs its own generator, as the maximal number of peaks is changed for each fragment
+            final IsotopePatternGenerator gen = new FastIsotopePatternGenerator(Normalization.Max(1d));
+            for (int k = from; k < to; ++k) {
+                final Fragment f = fragments.get(k);
+                final ProcessedPeak peak = input.getMergedPeaks().get(f.getColor());
+                final IsotopePatternAssignment assignment = ano.get(peak);
+                if (assignment != null) {
+                    SimpleSpectrum spec = assignment.pattern;
+                    gen.setMaximalNumberOfPeaks(spec.size());
+                    final SimpleSpectrum simulated = Spectrums.subspectrum(gen.simulatePattern(f.getFormula(), ion.getIonization()), 0, assignment.pattern.size());
+                    spec = Spectrums.subspectrum(spec, 0, simulated.size());
+                    // shorten pattern
+
+                    final double[] scores = new double[spec.size()];
+                    scorer1.score(scores, spec, simulated, Normalization.Max(1d), input.getExperimentInformation(), input.getMeasurementProfile());
+                    scorer2.score(scores, spec, simulated, Normalization.Max(1d), input.getExperimentInformation(), input.getMeasurementProfile());
+                    scorer3.score(scores, spec, simulated, Normalization.Max(1d), input.getExperimentInformation(), input.getMeasurementProfile());
+                    scorer4.score(scores, spec, simulated, Normalization.Max(1d), input.getExperimentInformation(), input.getMeasurementProfile());
+                    double maxScore = 0d;
+                    for (int i=0; i < scores.length; ++i) {
+                        maxScore = Math.max(scores[i], maxScore);
+                    }
+                    if (maxScore>0) {
+                        scoredPatterns[k] = new IsotopePattern(f.getFormula(), maxScore, spec);
                     }
                 }
             }
-
+        });
+        for (int k = 0; k < scoredPatterns.length; ++k) {
+            if (scoredPatterns[k] == null) continue;
+            final Fragment f = fragments.get(k);
+            final double maxScore = scoredPatterns[k].getScore();
+            isoPat.set(f, scoredPatterns[k]);
+            for (int i=0, n=f.getInDegree(); i < n; ++i) {
+                final Loss l = f.getIncomingEdge(i);
+                l.setWeight(l.getWeight() + maxScore);
+            }
         }
-
-
-
     }
 
     protected static class IsotopePatternAssignment {
@@ -33,7 +33,7 @@ import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
  * elements in uncommon losses. So remark that you add this score to the CommonLossScorer to compensate this
  * penalty.
  */
-public class StrangeElementScorer implements LossScorer, MolecularFormulaScorer {
+public class StrangeElementScorer implements FormulaOnlyLossScorer, MolecularFormulaScorer {
 
     public static final double LEARNED_PENALTY = -1.9176802031231173d;
     public static final double LEARNED_NORMALIZATION = -0.13929596343581177d;
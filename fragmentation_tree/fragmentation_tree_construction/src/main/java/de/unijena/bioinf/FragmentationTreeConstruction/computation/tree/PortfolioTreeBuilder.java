@@ -0,0 +1,170 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree;
+
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import de.unijena.bioinf.jjobs.exceptions.TimeoutException;
+
+/**
+ * Combines a fast heuristic with an exact tree builder. The heuristic tree is computed first and used as lower bound
+ * and start solution for the exact solver, which runs at most for the given deadline. If the exact solver does not
+ * finish in time, the heuristic tree is returned and the result is flagged as not optimal.
+ *
+ * This gives a predictable running time per graph while trees are still optimal whenever the exact solver is fast.
+ * If several graphs of the same compound share one builder, an end time can be given additionally. The exact solver
+ * never runs beyond this end time, and after it has passed only the heuristic is used. This bounds the total running
+ * time of the exact solver for all graphs of a compound.
+ *
+ * In anytime mode (see {@link FluentInterface#withIncumbentListener(IncumbentListener)}) the heuristic tree is
+ * published immediately and each better tree found by the exact solver afterwards. If the exact solver does not finish
+ * in time, the best of both trees is returned together with the best known upper bound.
+ */
+public class PortfolioTreeBuilder implements TreeBuilder {
+
+    private final TreeBuilder heuristic;
+    private final TreeBuilder exact;
+    private final double deadlineInSeconds;
+    private final long endTimeInMillis;
+
+    /**
+     * @param heuristic         tree builder which always returns a (not necessarily optimal) tree
+     * @param exact             tree builder which computes optimal trees
+     * @param deadlineInSeconds maximal running time of the exact solver. Zero or less means no deadline
+     */
+    public PortfolioTreeBuilder(TreeBuilder heuristic, TreeBuilder exact, double deadlineInSeconds) {
+        this(heuristic, exact, deadlineInSeconds, 0L);
+    }
+
+    /**
+     * @param heuristic         tree builder which always returns a (not necessarily optimal) tree
+     * @param exact             tree builder which computes optimal trees
+     * @param deadlineInSeconds maximal running time of the exact solver per graph. Zero or less means no deadline
+     * @param endTimeInMillis   point in time (as in {@link System#currentTimeMillis()}) after which the exact solver
+     *                          is not used anymore. Zero or less means no end time
+     */
+    public PortfolioTreeBuilder(TreeBuilder heuristic, TreeBuilder exact, double deadlineInSeconds, long endTimeInMillis) {
+        this.heuristic = heuristic;
+        this.exact = exact;
+        this.deadlineInSeconds = deadlineInSeconds;
+        this.endTimeInMillis = endTimeInMillis;
+    }
+
+    @Override
+    public FluentInterface computeTree() {
+        return new FluentInterface(this);
+    }
+
+    @Override
+    public Result computeTree(ProcessedInput input, FGraph graph, FluentInterface options) {
+        Result heuristicResult = heuristic.computeTree(input, graph, options);
+        if (heuristicResult.isOptimal) return heuristicResult;
+        // a given template is used as start solution if it is better than the heuristic tree
+        final FTree template = options.getTemplate();
+        if (template != null && (heuristicResult.tree == null || template.getTreeWeight() > heuristicResult.tree.getTreeWeight()))
+            heuristicResult = new Result(template, false, AbortReason.COMPUTATION_CORRECT);
+        final FTree heuristicTree = heuristicResult.tree;
+        final double timeLimit = getTimeLimit(options.getTimeLimitsInSeconds());
+        FluentInterface exactOptions = options.withTimeLimit(timeLimit);
+        final ImprovingListener listener;
+        if (options.isAnytime()) {
+            listener = new ImprovingListener(options.getIncumbentListener());
+            listener.newIncumbent(heuristicResult);
+            exactOptions = exactOptions.withIncumbentListener(listener);
+        } else listener = null;
+        if (timeLimit < 0 && heuristicTree != null) {
+            // the time budget of the compound is used up
+            return new Result(heuristicTree, false, AbortReason.TIMEOUT);
+        }
+        if (heuristicTree != null) {
+            exactOptions = exactOptions.withTemplate(heuristicTree).withMinimalScore(Math.max(options.getMinimalScore(), heuristicTree.getTreeWeight() - 1e-3));
+        }
+        final Result exactResult;
+        try {
+            exactResult = exact.computeTree(input, graph, exactOptions);
+        } catch (TimeoutException e) {
+            if (heuristicTree == null) throw e;
+            return new Result(heuristicTree, false, AbortReason.TIMEOUT);
+        }
+        if (exactResult.tree == null && heuristicTree != null) {
+            // the exact solver found no tree above the lowerbound of the heuristic. This might happen due to rounding errors
+            return new Result(heuristicTree, false, heuristicResult.error);
+        }
+        if (listener == null) return exactResult;
+        if (!exactResult.isOptimal && heuristicTree != null) {
+            // the exact solver stopped with its best incumbent. Its bound might be below the heuristic score, if the
+            // minimal score constraint cut off all solutions
+            final double upperBound = Math.max(exactResult.upperBound, heuristicTree.getTreeWeight());
+            if (exactResult.tree == null || exactResult.tree.getTreeWeight() <= heuristicTree.getTreeWeight())
+                return new Result(heuristicTree, false, exactResult.error, upperBound);
+            // the exact solver might not have passed its last incumbent to the listener
+            final Result incumbent = new Result(exactResult.tree, false, exactResult.error, upperBound);
+            listener.newIncumbent(incumbent);
+            return incumbent;
+        }
+        listener.newIncumbent(exactResult);
+        return exactResult;
+    }
+
+    /**
+     * forwards only trees which are better than all trees forwarded before
+     */
+    private static class ImprovingListener implements IncumbentListener {
+        private final IncumbentListener listener;
+        private double bestScore = Double.NEGATIVE_INFINITY;
+
+        private ImprovingListener(IncumbentListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public synchronized void newIncumbent(Result result) {
+            if (result.tree == null) return;
+            if (result.tree.getTreeWeight() > bestScore || (result.isOptimal && result.tree.getTreeWeight() >= bestScore)) {
+                bestScore = result.tree.getTreeWeight();
+                listener.newIncumbent(result);
+            }
+        }
+    }
+
+    /**
+     * @return the time limit for the exact solver, zero if there is no time limit and a negative value if the end
+     * time has already passed
+     */
+    private double getTimeLimit(double timeLimit) {
+        if (deadlineInSeconds > 0)
+            timeLimit = timeLimit <= 0 ? deadlineInSeconds : Math.min(timeLimit, deadlineInSeconds);
+        if (endTimeInMillis > 0) {
+            final long rest = endTimeInMillis - System.currentTimeMillis();
+            if (rest <= 0) return -1d;
+            final double restInSeconds = rest / 1000d;
+            timeLimit = timeLimit <= 0 ? restInSeconds : Math.min(timeLimit, restInSeconds);
+        }
+        return timeLimit;
+    }
+
+    public TreeBuilder getHeuristic() {
+        return heuristic;
+    }
+
+    public TreeBuilder getExact() {
+        return exact;
+    }
+
+    public double getDeadlineInSeconds() {
+        return deadlineInSeconds;
+    }
+
+    public long getEndTimeInMillis() {
+        return endTimeInMillis;
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return heuristic.isThreadSafe() && exact.isThreadSafe();
+    }
+
+    @Override
+    public String toString() {
+        return "Portfolio Solver: " + heuristic + " and " + exact;
+    }
+}
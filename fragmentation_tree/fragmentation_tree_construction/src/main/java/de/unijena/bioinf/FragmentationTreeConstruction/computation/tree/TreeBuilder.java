@@ -3,6 +3,7 @@ package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.StageMetrics;
 
 public interface TreeBuilder {
 
@@ -18,17 +19,23 @@ public interface TreeBuilder {
         private final double timeLimitsInSeconds;
         private final int numberOfCPUS;
         private final FTree template;
+        private final IncumbentListener incumbentListener;
 
         public FluentInterface(TreeBuilder treeBuilder) {
             this(treeBuilder, Double.NEGATIVE_INFINITY, 0, 1, null);
         }
 
         public FluentInterface(TreeBuilder treeBuilder, double minimalScore, double timeout, int numberOfCPUS, FTree template) {
+            this(treeBuilder, minimalScore, timeout, numberOfCPUS, template, null);
+        }
+
+        public FluentInterface(TreeBuilder treeBuilder, double minimalScore, double timeout, int numberOfCPUS, FTree template, IncumbentListener incumbentListener) {
             this.treeBuilder = treeBuilder;
             this.minimalScore = minimalScore;
             this.timeLimitsInSeconds = timeout;
             this.numberOfCPUS = numberOfCPUS;
             this.template = template;
+            this.incumbentListener = incumbentListener;
         }
 
         public double getMinimalScore() {
@@ -47,24 +54,47 @@ public interface TreeBuilder {
             return template;
         }
 
+        public IncumbentListener getIncumbentListener() {
+            return incumbentListener;
+        }
+
+        public boolean isAnytime() {
+            return incumbentListener != null;
+        }
+
         public FluentInterface withMinimalScore(double score) {
-            return new FluentInterface(treeBuilder, score, timeLimitsInSeconds, numberOfCPUS, template);
+            return new FluentInterface(treeBuilder, score, timeLimitsInSeconds, numberOfCPUS, template, incumbentListener);
         }
 
         public FluentInterface withTimeLimit(double seconds) {
-            return new FluentInterface(treeBuilder, minimalScore, seconds, numberOfCPUS, template);
+            return new FluentInterface(treeBuilder, minimalScore, seconds, numberOfCPUS, template, incumbentListener);
         }
 
         public FluentInterface withMultithreading(int numberOfCPUS) {
-            return new FluentInterface(treeBuilder, minimalScore, timeLimitsInSeconds, numberOfCPUS, template);
+            return new FluentInterface(treeBuilder, minimalScore, timeLimitsInSeconds, numberOfCPUS, template, incumbentListener);
         }
 
         public FluentInterface withTemplate(FTree tree) {
-            return new FluentInterface(treeBuilder, minimalScore, timeLimitsInSeconds, numberOfCPUS, tree);
+            return new FluentInterface(treeBuilder, minimalScore, timeLimitsInSeconds, numberOfCPUS, tree, incumbentListener);
+        }
+
+        /**
+         * Enables the anytime mode: each improved tree found during the computation is passed to the listener,
+         * starting with a heuristic tree if the tree builder computes one. If the time limit is reached, the best
+         * tree found so far is returned instead of throwing a timeout exception, if there is one.
+         */
+        public FluentInterface withIncumbentListener(IncumbentListener listener) {
+            return new FluentInterface(treeBuilder, minimalScore, timeLimitsInSeconds, numberOfCPUS, template, listener);
         }
 
         public Result solve(ProcessedInput input, FGraph graph) {
-            return treeBuilder.computeTree(input,graph,this);
+            final StageMetrics.Measurement measurement = StageMetrics.start(StageMetrics.of(input), StageMetrics.Stage.TREE_COMPUTATION);
+            if (measurement == null) return treeBuilder.computeTree(input,graph,this);
+            try {
+                return treeBuilder.computeTree(input,graph,this);
+            } finally {
+                measurement.stop(graph);
+            }
         }
     }
 
@@ -75,16 +105,44 @@ public interface TreeBuilder {
         NO_SOLUTION     // is used when no tree with reasonable score is found
     };
 
+    /**
+     * Is notified each time the tree builder finds a better tree. Might be called from the thread of the solver,
+     * so implementations should return quickly.
+     */
+    public static interface IncumbentListener {
+        void newIncumbent(Result result);
+    }
+
     public static class Result {
 
         public final boolean isOptimal;
         public final AbortReason error;
         public final FTree tree;
+        /**
+         * upper bound on the score of the optimal tree. Is the score of the tree if it is optimal and positive
+         * infinity if no bound is known
+         */
+        public final double upperBound;
 
         public Result(FTree tree, boolean isOptimal, AbortReason error) {
+            this(tree, isOptimal, error, (isOptimal && tree != null) ? tree.getTreeWeight() : Double.POSITIVE_INFINITY);
+        }
+
+        public Result(FTree tree, boolean isOptimal, AbortReason error, double upperBound) {
             this.isOptimal = isOptimal;
             this.error = error;
             this.tree = tree;
+            this.upperBound = upperBound;
+        }
+
+        /**
+         * @return the relative gap between the score of the tree and the upper bound, or positive infinity if there
+         * is no tree or no upper bound
+         */
+        public double getGap() {
+            if (isOptimal) return 0d;
+            if (tree == null || Double.isInfinite(upperBound)) return Double.POSITIVE_INFINITY;
+            return Math.max(0d, upperBound - tree.getTreeWeight()) / Math.max(1e-10, Math.abs(tree.getTreeWeight()));
         }
     }
 
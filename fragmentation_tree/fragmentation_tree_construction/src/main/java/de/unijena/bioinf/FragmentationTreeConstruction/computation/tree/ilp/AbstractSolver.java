@@ -178,6 +178,11 @@ abstract public class AbstractSolver {
                     throw new RuntimeException("Can't find a feasible solution: Solution is buggy");
                 return new TreeBuilder.Result(tree, true, c);
             } else if (c == TreeBuilder.AbortReason.TIMEOUT) {
+                // in anytime mode, the best tree found so far is returned
+                if (options.isAnytime() && hasIncumbent()) {
+                    final FTree tree = buildSolution();
+                    if (tree != null) return new TreeBuilder.Result(tree, false, c, getBestBound());
+                }
                 throw new TimeoutException();
             } else return new TreeBuilder.Result(null, false, c);
         } catch (Exception e) {
@@ -325,6 +330,38 @@ abstract public class AbstractSolver {
     abstract protected double getSolverScore() throws Exception;
 
 
+    /**
+     * - after a timeout: returns true, if the solver found a feasible solution which can be obtained by
+     * 'getVariableAssignment'. Solvers which cannot report intermediate solutions return false.
+     *
+     * @return
+     * @throws Exception
+     */
+    protected boolean hasIncumbent() throws Exception {
+        return false;
+    }
+
+    /**
+     * - after a timeout: returns an upper bound on the score of the optimal solution or positive infinity if the
+     * solver does not provide one
+     *
+     * @return
+     * @throws Exception
+     */
+    protected double getBestBound() throws Exception {
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * - passes a new feasible solution found during 'solveMIP' to the incumbent listener of the options, if any
+     */
+    protected void publishIncumbent(double score, boolean[] edgesAreUsed, double bound) {
+        final TreeBuilder.IncumbentListener listener = options.getIncumbentListener();
+        if (listener == null) return;
+        final FTree tree = buildSolution(score, edgesAreUsed);
+        if (tree != null) listener.newIncumbent(new TreeBuilder.Result(tree, false, TreeBuilder.AbortReason.COMPUTATION_CORRECT, bound));
+    }
+
     protected FTree buildSolution(double score, boolean[] edesAreUsed) {
         Fragment graphRoot = null;
         double rootScore = 0d;
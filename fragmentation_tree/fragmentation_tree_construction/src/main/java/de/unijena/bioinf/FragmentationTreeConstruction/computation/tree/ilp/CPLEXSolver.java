@@ -190,6 +190,14 @@ public class CPLEXSolver extends AbstractSolver {
     protected TreeBuilder.AbortReason solveMIP() throws Exception {
         model.setParam(IloCplex.IntParam.RootAlg, IloCplex.Algorithm.Auto);
         model.setParam(IloCplex.IntParam.NodeAlg, IloCplex.Algorithm.Auto);
+        if (options.isAnytime()) {
+            model.use(new IloCplex.IncumbentCallback() {
+                @Override
+                protected void main() throws IloException {
+                    publishIncumbent(getObjValue(), toAssignment(getValues(variables)), getBestObjValue());
+                }
+            });
+        }
         final boolean done = model.solve();
         final IloCplex.Status status = model.getStatus();
         if (done && status == IloCplex.Status.Optimal)
@@ -209,7 +217,10 @@ public class CPLEXSolver extends AbstractSolver {
 
     @Override
     protected boolean[] getVariableAssignment() throws Exception {
-        final double[] weights = model.getValues(variables);
+        return toAssignment(model.getValues(variables));
+    }
+
+    private static boolean[] toAssignment(double[] weights) {
         final boolean[] assigned = new boolean[weights.length];
         for (int i=0; i < weights.length; ++i) {
             assigned[i] = weights[i] > 0.5d;
@@ -221,4 +232,14 @@ public class CPLEXSolver extends AbstractSolver {
     protected double getSolverScore() throws Exception {
         return model.getObjValue();
     }
+
+    @Override
+    protected boolean hasIncumbent() throws Exception {
+        return model.isPrimalFeasible();
+    }
+
+    @Override
+    protected double getBestBound() throws Exception {
+        return model.getBestObjValue();
+    }
 }
@@ -327,4 +327,12 @@ public class GLPKSolver extends AbstractSolver {
     protected double getSolverScore() throws Exception {
         return GLPK.glp_mip_obj_val(this.LP);
     }
+
+    /**
+     * GLPK does not report intermediate solutions, but keeps the best integer solution found before the time limit
+     */
+    @Override
+    protected boolean hasIncumbent() throws Exception {
+        return GLPK.glp_mip_status(this.LP) == GLPKConstants.GLP_FEAS;
+    }
 }
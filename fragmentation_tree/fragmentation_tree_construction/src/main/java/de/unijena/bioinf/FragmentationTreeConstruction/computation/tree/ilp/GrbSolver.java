@@ -138,6 +138,19 @@ public class GrbSolver extends AbstractSolver{
 
     @Override
     protected TreeBuilder.AbortReason solveMIP() throws Exception {
+        if (options.isAnytime()) {
+            model.setCallback(new GRBCallback() {
+                @Override
+                protected void callback() {
+                    if (where != GRB.CB_MIPSOL) return;
+                    try {
+                        publishIncumbent(-getDoubleInfo(GRB.CB_MIPSOL_OBJ), toAssignment(getSolution(variables)), -getDoubleInfo(GRB.CB_MIPSOL_OBJBND));
+                    } catch (GRBException e) {
+                        logger.error(e.getMessage(), e);
+                    }
+                }
+            });
+        }
         model.optimize();
         int status = model.get(GRB.IntAttr.Status);
         switch (status) {
@@ -174,7 +187,10 @@ public class GrbSolver extends AbstractSolver{
 
     @Override
     protected boolean[] getVariableAssignment() throws Exception {
-        final double[] edgesAreUsed = model.get(GRB.DoubleAttr.X, variables);
+        return toAssignment(model.get(GRB.DoubleAttr.X, variables));
+    }
+
+    private boolean[] toAssignment(double[] edgesAreUsed) {
         final boolean[] assignments = new boolean[variables.length];
         for (int i = 0; i < assignments.length; ++i) {
             assert edgesAreUsed[i] > -0.5 : "lowerbound violation for var " + i + " with value " + edgesAreUsed[i];
@@ -189,6 +205,16 @@ public class GrbSolver extends AbstractSolver{
         return -model.get(GRB.DoubleAttr.ObjVal);
     }
 
+    @Override
+    protected boolean hasIncumbent() throws Exception {
+        return model.get(GRB.IntAttr.SolCount) > 0;
+    }
+
+    @Override
+    protected double getBestBound() throws Exception {
+        return -model.get(GRB.DoubleAttr.ObjBound);
+    }
+
     private static GRBEnv getDefaultEnv() {
         try {
             final GRBEnv env = new GRBEnv();
@@ -23,6 +23,13 @@ public class CriticalPathInsertionHeuristic extends AbstractHeuristic {
     protected final double[] maxOut;
     protected final Loss[] maxOutLoss;
 
+    // vertices whose critical path might have changed
+    protected final BitSet dirtyVertices;
+
+    // vertex ids grouped by color: the vertices with color c are verticesByColor[colorOffsets[c]..colorOffsets[c+1])
+    protected final int[] verticesByColor;
+    protected final int[] colorOffsets;
+
     public CriticalPathInsertionHeuristic(FGraph graph) {
         super(graph);
         this.graph = graph;
@@ -34,10 +41,19 @@ public class CriticalPathInsertionHeuristic extends AbstractHeuristic {
         this.maxOut = new double[graph.numberOfVertices()];
         this.maxOutLoss = new Loss[graph.numberOfVertices()];
         usedColorList = new TIntArrayList(ncolors);
+        this.dirtyVertices = new BitSet(graph.numberOfVertices());
+        this.colorOffsets = new int[ncolors+1];
+        this.verticesByColor = new int[graph.numberOfVertices()];
+        for (Fragment f : graph.getFragments()) ++colorOffsets[f.getColor()+1];
+        for (int c=1; c < colorOffsets.length; ++c) colorOffsets[c] += colorOffsets[c-1];
+        {
+            final int[] offsets = colorOffsets.clone();
+            for (Fragment f : graph.getFragments()) verticesByColor[offsets[f.getColor()]++] = f.getVertexId();
+        }
     }
 
 
-    private void insert(Loss maxLoss) {
+    protected void insert(Loss maxLoss) {
         final Fragment newVertex = maxLoss.getTarget();
         usedColors.set(newVertex.getColor());
         usedColorList.add(newVertex.getColor());
@@ -93,22 +109,44 @@ public class CriticalPathInsertionHeuristic extends AbstractHeuristic {
 
     }
 
+    /**
+     * Invalidates the critical paths of all vertices with the given color, as this color is now used. Their parents
+     * are marked as dirty and have to be updated by {@link #updateCriticalPaths()}.
+     */
     protected void invalidateColor(int color) {
-        final Fragment pseudoFragment = new Fragment(0,null);
-        pseudoFragment.setColor(color);
-        int searchKey = Collections.binarySearch(graph.getFragments(), pseudoFragment,new Comparator<Fragment>() {
-            @Override
-            public int compare(Fragment o1, Fragment o2) {
-                return o1.getColor()-o2.getColor();
+        for (int i=colorOffsets[color], n=colorOffsets[color+1]; i < n; ++i) {
+            final Fragment v = graph.getFragmentAt(verticesByColor[i]);
+            criticalPaths[v.getVertexId()] = Double.NaN;
+            for (int j=0, m = v.getInDegree(); j < m; ++j)
+                dirtyVertices.set(v.getParent(j).getVertexId());
+        }
+    }
+
+    /**
+     * Recomputes the critical paths of all dirty vertices in reverse topological order. If the critical path of a
+     * vertex does not change, its ancestors are not affected and are not visited. Vertices whose critical path was
+     * never computed are skipped, as they are computed on demand.
+     * This yields the same critical paths as invalidating and recomputing all vertices.
+     */
+    protected void updateCriticalPaths() {
+        for (int u = dirtyVertices.length()-1; u >= 0; u = dirtyVertices.previousSetBit(u-1)) {
+            dirtyVertices.clear(u);
+            final double before = criticalPaths[u];
+            if (Double.isNaN(before)) continue;
+            final Fragment v = graph.getFragmentAt(u);
+            double after = 0d;
+            for (int i=0, n = v.getOutDegree(); i < n; ++i) {
+                final Loss uv = v.getOutgoingEdge(i);
+                if (!usedColors.get(uv.getTarget().getColor())) {
+                    after = Math.max(after, recomputeCriticalScore(uv.getTarget().getVertexId()) + uv.getWeight());
+                }
+            }
+            criticalPaths[u] = after;
+            if (after != before) {
+                for (int i=0, n = v.getInDegree(); i < n; ++i)
+                    dirtyVertices.set(v.getParent(i).getVertexId());
             }
-        });
-        if (searchKey < 0) {
-            searchKey = -(searchKey+1);
-        } else {
-            while (searchKey< graph.numberOfVertices() && graph.getFragmentAt(searchKey).getColor() == color)
-                ++searchKey;
         }
-        Arrays.fill(criticalPaths, 0, searchKey, Double.NaN);
     }
 
     public FTree solve() {
@@ -165,8 +203,10 @@ public class CriticalPathInsertionHeuristic extends AbstractHeuristic {
         }
         if (bestLoss==null) return false;
         final Fragment u = bestLoss.getTarget();
-        invalidateColor(u.getColor());
         insert(bestLoss);
+        // only the critical paths through the newly used color have changed
+        invalidateColor(u.getColor());
+        updateCriticalPaths();
         selectableEdges.clear();
         for (int i=0, n=usedColorList.size(); i < n; ++i) {
             addSeletableEdgesFor(color2Edge.get(usedColorList.getQuick(i)).getTarget());
@@ -19,9 +19,20 @@ public class ExtendedCriticalPathHeuristic {
     protected BitSet usedColors;
     protected Loss[] usedEdges;
     protected int numberOfSelectedEdges;
-    protected ArrayList<Loss> selectableEdges;
     protected double[] criticalPaths;
 
+    // for each vertex in the tree: its outgoing edge with highest critical path score into an unused color.
+    // Only valid if the vertex is set in hasBestSelectableEdge
+    protected Loss[] bestSelectableEdge;
+    protected double[] bestSelectableScore;
+    protected BitSet hasBestSelectableEdge;
+    // vertices whose critical path (or best selectable edge) might have changed
+    protected BitSet dirtyVertices;
+
+    // vertex ids grouped by color: the vertices with color c are verticesByColor[colorOffsets[c]..colorOffsets[c+1])
+    protected int[] verticesByColor;
+    protected int[] colorOffsets;
+
     public ExtendedCriticalPathHeuristic(FGraph graph) {
         this(graph,true,1);
     }
@@ -33,35 +44,66 @@ public class ExtendedCriticalPathHeuristic {
         this.usedColors = new BitSet(graph.maxColor()+1);
         this.usedEdges = new Loss[graph.maxColor()+1];
         this.numberOfSelectedEdges = 0;
-        this.selectableEdges = new ArrayList(graph.maxColor()+1);
         this.criticalPaths = new double[graph.numberOfVertices()];
+        this.bestSelectableEdge = new Loss[graph.numberOfVertices()];
+        this.bestSelectableScore = new double[graph.numberOfVertices()];
+        this.hasBestSelectableEdge = new BitSet(graph.numberOfVertices());
+        this.dirtyVertices = new BitSet(graph.numberOfVertices());
+        this.colorOffsets = new int[graph.maxColor()+2];
+        this.verticesByColor = new int[graph.numberOfVertices()];
+        for (Fragment f : graph.getFragments()) ++colorOffsets[f.getColor()+1];
+        for (int c=1; c < colorOffsets.length; ++c) colorOffsets[c] += colorOffsets[c-1];
+        {
+            final int[] offsets = colorOffsets.clone();
+            for (Fragment f : graph.getFragments()) verticesByColor[offsets[f.getColor()]++] = f.getVertexId();
+        }
         if (graph.getRoot().getOutDegree()==1) {
             // just add this edge
             usedEdges[numberOfSelectedEdges++] = graph.getRoot().getOutgoingEdge(0);
             //System.out.println("ADD \"\" WITH WEIGHT " + graph.getRoot().getOutgoingEdge(0).getWeight() );
-            addSeletableEdgesFor(graph.getRoot().getChildren(0));
-        } else {
-            addSeletableEdgesFor(graph.getRoot());
         }
         Arrays.fill(criticalPaths, Double.NaN);
     }
 
+    /**
+     * Invalidates the critical paths of all vertices with the given color, as this color is now used. Their parents
+     * are marked as dirty and have to be updated by {@link #updateCriticalPaths()}.
+     */
     protected void invalidateColor(int color) {
-        final Fragment pseudoFragment = new Fragment(0,null);
-        pseudoFragment.setColor(color);
-        int searchKey = Collections.binarySearch(graph.getFragments(), pseudoFragment,new Comparator<Fragment>() {
-            @Override
-            public int compare(Fragment o1, Fragment o2) {
-                return o1.getColor()-o2.getColor();
+        for (int i=colorOffsets[color], n=colorOffsets[color+1]; i < n; ++i) {
+            final Fragment v = graph.getFragmentAt(verticesByColor[i]);
+            criticalPaths[v.getVertexId()] = Double.NaN;
+            for (int j=0, m = v.getInDegree(); j < m; ++j)
+                dirtyVertices.set(v.getParent(j).getVertexId());
+        }
+    }
+
+    /**
+     * Recomputes the critical paths of all dirty vertices in reverse topological order. If the critical path of a
+     * vertex does not change, its ancestors are not affected and are not visited. Vertices whose critical path was
+     * never computed are skipped, as they are computed on demand.
+     * This yields the same critical paths as invalidating and recomputing all vertices with smaller color.
+     */
+    protected void updateCriticalPaths() {
+        for (int u = dirtyVertices.length()-1; u >= 0; u = dirtyVertices.previousSetBit(u-1)) {
+            dirtyVertices.clear(u);
+            hasBestSelectableEdge.clear(u);
+            final double before = criticalPaths[u];
+            if (Double.isNaN(before)) continue;
+            final Fragment v = graph.getFragmentAt(u);
+            double after = 0d;
+            for (int i=0, n = v.getOutDegree(); i < n; ++i) {
+                final Loss uv = v.getOutgoingEdge(i);
+                if (!usedColors.get(uv.getTarget().getColor())) {
+                    after = Math.max(after, recomputeCriticalScore(uv.getTarget().getVertexId()) + uv.getWeight());
+                }
+            }
+            criticalPaths[u] = after;
+            if (after != before) {
+                for (int i=0, n = v.getInDegree(); i < n; ++i)
+                    dirtyVertices.set(v.getParent(i).getVertexId());
             }
-        });
-        if (searchKey < 0) {
-            searchKey = -(searchKey+1);
-        } else {
-            while (searchKey< graph.numberOfVertices() && graph.getFragmentAt(searchKey).getColor() == color)
-                ++searchKey;
         }
-        Arrays.fill(criticalPaths, 0, searchKey, Double.NaN);
     }
 
     public FTree solve() {
@@ -73,6 +115,13 @@ public class ExtendedCriticalPathHeuristic {
         return buildSolution();
     }
 
+    /**
+     * @return the edges of the graph which form the tree computed by {@link #solve()}
+     */
+    public List<Loss> getSelectedEdges() {
+        return Collections.unmodifiableList(Arrays.asList(usedEdges).subList(0, numberOfSelectedEdges));
+    }
+
     protected FTree buildSolution() {
         if (numberOfSelectedEdges==0) {
             Fragment bestFrag = null;
@@ -106,29 +155,60 @@ public class ExtendedCriticalPathHeuristic {
      SIMPLE CASE: Graph is layered (i.e. no isotope peaks!)
      */
     protected boolean findCriticalPaths() {
-        //System.out.println(".....");
-        //Arrays.fill(criticalPaths, Double.NaN);
         double bestPathScore = 0d;
         Loss bestLoss = null;
-        for (Loss l : selectableEdges) {
-            final double criticalScore = recomputeCriticalScore(l.getTarget().getVertexId())+l.getWeight();
-            if (criticalScore > bestPathScore) {
-                bestPathScore = criticalScore;
+        final int numberOfPreviouslySelectedEdges = numberOfSelectedEdges;
+        if (numberOfSelectedEdges == 0) {
+            final Loss l = findBestSelectableEdge(graph.getRoot());
+            if (l != null) {
+                bestPathScore = bestSelectableScore[graph.getRoot().getVertexId()];
                 bestLoss = l;
             }
+        } else {
+            // the selectable edges are the edges from the tree into unused colors. Vertices are visited in the order
+            // they were inserted into the tree, such that ties are broken as if all selectable edges were listed
+            for (int i=0; i < numberOfSelectedEdges; ++i) {
+                final Fragment u = usedEdges[i].getTarget();
+                final Loss l = findBestSelectableEdge(u);
+                if (l != null && bestSelectableScore[u.getVertexId()] > bestPathScore) {
+                    bestPathScore = bestSelectableScore[u.getVertexId()];
+                    bestLoss = l;
+                }
+            }
         }
-        int maxColor = -1;
         if (bestLoss!=null)
-            maxColor = backtrackBestPath(bestLoss,maxColor);
-        selectableEdges.clear();
-        for (int i=0, n=numberOfSelectedEdges; i < n; ++i) {
-            addSeletableEdgesFor(usedEdges[i].getTarget());
-        }
-
-        if (maxColor >= 0) invalidateColor(maxColor);
+            backtrackBestPath(bestLoss,-1);
+        // only the critical paths through the newly used colors have changed
+        for (int i=numberOfPreviouslySelectedEdges; i < numberOfSelectedEdges; ++i)
+            invalidateColor(usedEdges[i].getTarget().getColor());
+        updateCriticalPaths();
         return bestLoss!=null;
     }
 
+    /**
+     * @return the first outgoing edge of u into an unused color with maximal positive critical path score, or null
+     */
+    protected Loss findBestSelectableEdge(Fragment u) {
+        final int id = u.getVertexId();
+        if (hasBestSelectableEdge.get(id)) return bestSelectableEdge[id];
+        double bestScore = 0d;
+        Loss bestLoss = null;
+        for (int i=0, n = u.getOutDegree(); i < n; ++i) {
+            final Loss l = u.getOutgoingEdge(i);
+            if (!usedColors.get(l.getTarget().getColor())) {
+                final double criticalScore = recomputeCriticalScore(l.getTarget().getVertexId())+l.getWeight();
+                if (criticalScore > bestScore) {
+                    bestScore = criticalScore;
+                    bestLoss = l;
+                }
+            }
+        }
+        bestSelectableEdge[id] = bestLoss;
+        bestSelectableScore[id] = bestScore;
+        hasBestSelectableEdge.set(id);
+        return bestLoss;
+    }
+
     protected int backtrackBestPath(Loss loss,int maxColor) {
         usedEdges[numberOfSelectedEdges++] = loss;
         //System.out.println("ADD " + loss + " WITH WEIGHT " + loss.getWeight() );
@@ -173,15 +253,6 @@ public class ExtendedCriticalPathHeuristic {
     }
 
 
-    protected void addSeletableEdgesFor(Fragment root) {
-        for (int i=0, n = root.getOutDegree(); i < n; ++i) {
-            final Loss l = root.getOutgoingEdge(i);
-            if (!usedColors.get(l.getTarget().getColor())) {
-                selectableEdges.add(l);
-            }
-        }
-    }
-
     protected BitSet usedFragments;
     protected void relocateAll() {
         //double score=0d;
@@ -0,0 +1,78 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.model;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.utils.MolecularFormulaPacker;
+import gnu.trove.map.hash.TLongDoubleHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Caches the summed scores of all formula-only loss scorers for each loss formula of an input. Loss formulas are
+ * keyed by their encoding with a {@link MolecularFormulaPacker}, so a lookup neither allocates nor hashes formula
+ * objects.
+ *
+ * The cache is only valid for the list of scorers it was created for. Access has to be synchronized on the
+ * cache object, as the graphs of several candidates might be scored concurrently.
+ */
+public final class LossFormulaScores {
+
+    private final List<?> scorers;
+    private final MolecularFormulaPacker packer;
+    private final TLongDoubleHashMap scores;
+
+    /**
+     * @param scorers the scorers whose summed scores are cached
+     * @param packer  a packer which is able to encode all losses of the input, e.g. created from all precursor candidates
+     */
+    public LossFormulaScores(List<?> scorers, MolecularFormulaPacker packer) {
+        this.scorers = new ArrayList<>(scorers);
+        this.packer = packer;
+        this.scores = new TLongDoubleHashMap(256, 0.75f, -1L, Double.NaN);
+    }
+
+    public boolean isValidFor(List<?> scorers) {
+        return this.scorers.equals(scorers);
+    }
+
+    /**
+     * @return the key of the given loss formula or a negative value, if the formula cannot be encoded. Scores of
+     * such losses are not cached.
+     */
+    public long key(MolecularFormula loss) {
+        return packer.tryEncode(loss);
+    }
+
+    /**
+     * @return the cached score of the loss with the given key or NaN, if the loss is not cached yet
+     */
+    public double get(long key) {
+        return scores.get(key);
+    }
+
+    public void put(long key, double score) {
+        if (key >= 0) scores.put(key, score);
+    }
+
+    public int size() {
+        return scores.size();
+    }
+
+}
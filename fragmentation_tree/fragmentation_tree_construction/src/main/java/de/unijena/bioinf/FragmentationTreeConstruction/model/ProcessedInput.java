@@ -69,6 +69,10 @@ public class ProcessedInput implements Cloneable {
     private ProcessedPeak parentPeak;
     private HashMap<Class, PeakAnnotation> peakAnnotations;
     private HashMap<Class, Object> annotations;
+    // annotation maps might be shared with copies of this input until one of them adds or replaces an annotation.
+    // Copies are often processed in other threads (e.g. recalibration jobs), so the maps and flags are only
+    // changed while holding the lock of this input
+    private boolean sharedPeakAnnotations, sharedAnnotations;
 
     public ProcessedInput(MutableMs2Experiment experiment, Ms2Experiment originalExperiment, MeasurementProfile measurementProfile) {
         this.experiment = experiment;
@@ -96,17 +100,25 @@ public class ProcessedInput implements Cloneable {
         this.measurementProfile = new MutableMeasurementProfile(measurementProfile);
     }
 
+    /**
+     * Creates a copy of this input with recalibrated peaks. Peak annotations, annotations and the experiment data are
+     * shared with this input until one of both inputs modifies them. The recalibrated input has to be decomposed
+     * and scored again before computing trees: until then, its peaks still carry the decompositions of the
+     * uncalibrated peaks.
+     */
     public ProcessedInput getRecalibratedVersion(SpectralRecalibration rec) {
-        final ProcessedInput p = clone();
+        final ProcessedInput p;
+        synchronized (this) {
+            p = clone();
+            // the recalibrated peaks are new objects, so the ids of peak annotations do not have to be unique among both inputs
+            sharedPeakAnnotations = true;
+            p.sharedPeakAnnotations = true;
+        }
         // at this point we do not copy the MS experiment data. HOWEVER; this is somewhat dangerous as
         // it might introduce side effects. I just hope that nobody access this object at this stage of computation
         p.mergedPeaks = new ArrayList<>(mergedPeaks.size());
-        p.peakAnnotations = (HashMap<Class, PeakAnnotation>) peakAnnotations.clone();
-        p.annotations = (HashMap<Class, Object>) annotations.clone();
-        final PeakAnnotation<DecompositionList> dl = p.getPeakAnnotationOrThrow(DecompositionList.class);
         for (ProcessedPeak peak : mergedPeaks) {
             ProcessedPeak recalibrated = peak.recalibrate(rec);
-            dl.set(recalibrated, new DecompositionList(new ArrayList<>()));
             p.mergedPeaks.add(recalibrated);
             if (peak==parentPeak)
                 p.setParentPeak(recalibrated);
@@ -116,17 +128,38 @@ public class ProcessedInput implements Cloneable {
         return p;
     }
 
+    /**
+     * Creates a shallow copy of this input. Peaks, peak list and peak annotations are shared, the annotation map
+     * is copied on the first write of either input.
+     */
     @Override
-    public ProcessedInput clone() {
+    public synchronized ProcessedInput clone() {
         try {
             ProcessedInput p =  (ProcessedInput) super.clone();
-            p.annotations = new HashMap<>(p.annotations);
+            sharedAnnotations = true;
+            p.sharedAnnotations = true;
             return p;
         } catch (CloneNotSupportedException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private HashMap<Class, Object> mutableAnnotations() {
+        if (sharedAnnotations) {
+            annotations = new HashMap<>(annotations);
+            sharedAnnotations = false;
+        }
+        return annotations;
+    }
+
+    private HashMap<Class, PeakAnnotation> mutablePeakAnnotations() {
+        if (sharedPeakAnnotations) {
+            peakAnnotations = new HashMap<>(peakAnnotations);
+            sharedPeakAnnotations = false;
+        }
+        return peakAnnotations;
+    }
+
     public MutableMeasurementProfile getMeasurementProfile() {
         return measurementProfile;
     }
@@ -166,36 +199,36 @@ public class ProcessedInput implements Cloneable {
         return ano;
     }
 
-    public <T> PeakAnnotation<T> addPeakAnnotation(Class<T> klass) {
+    public synchronized <T> PeakAnnotation<T> addPeakAnnotation(Class<T> klass) {
         if (peakAnnotations.containsKey(klass)) throw new RuntimeException("Peak annotation '" + klass.getName() + "' is already present.");
         final PeakAnnotation<T> ano = new PeakAnnotation<T>(peakAnnotations.size(), klass);
-        peakAnnotations.put(klass, ano);
+        mutablePeakAnnotations().put(klass, ano);
         return ano;
     }
 
-    public <T> void addAnnotation(Class<T> klass, T annotation) {
+    public synchronized <T> void addAnnotation(Class<T> klass, T annotation) {
         if (annotations.containsKey(klass)) throw new RuntimeException("Peak annotation '" + klass.getName() + "' is already present.");
-        annotations.put(klass, annotation);
+        mutableAnnotations().put(klass, annotation);
     }
 
-    public <T> boolean setAnnotation(Class<T> klass, T annotation) {
-        return annotations.put(klass, annotation) == annotation;
+    public synchronized <T> boolean setAnnotation(Class<T> klass, T annotation) {
+        return mutableAnnotations().put(klass, annotation) == annotation;
     }
 
     @SuppressWarnings("unchecked cast")
-    public <T> PeakAnnotation<T> getOrCreatePeakAnnotation(Class<T> klass) {
+    public synchronized <T> PeakAnnotation<T> getOrCreatePeakAnnotation(Class<T> klass) {
         if (peakAnnotations.containsKey(klass)) return peakAnnotations.get(klass);
         final PeakAnnotation<T> ano = new PeakAnnotation<T>(peakAnnotations.size(), klass);
-        peakAnnotations.put(klass, ano);
+        mutablePeakAnnotations().put(klass, ano);
         return ano;
     }
 
     @SuppressWarnings("unchecked cast")
-    public <T> T getOrCreateAnnotation(Class<T> klass) {
+    public synchronized <T> T getOrCreateAnnotation(Class<T> klass) {
         if (annotations.containsKey(klass)) return (T)annotations.get(klass);
         try {
             final T obj = klass.newInstance();
-            annotations.put(klass, obj);
+            mutableAnnotations().put(klass, obj);
             return obj;
         } catch (InstantiationException e) {
             throw new RuntimeException(e.getMessage());
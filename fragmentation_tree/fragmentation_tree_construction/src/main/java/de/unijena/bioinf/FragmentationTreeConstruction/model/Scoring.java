@@ -21,6 +21,7 @@ public class Scoring {
 
     private double[] peakScores;
     private double[][] peakPairScores;
+    private LossFormulaScores lossFormulaScores;
 
     public Scoring() {
 
@@ -39,4 +40,12 @@ public class Scoring {
         return peakPairScores;
     }
 
+    public synchronized LossFormulaScores getLossFormulaScores() {
+        return lossFormulaScores;
+    }
+
+    public synchronized void setLossFormulaScores(LossFormulaScores lossFormulaScores) {
+        this.lossFormulaScores = lossFormulaScores;
+    }
+
 }
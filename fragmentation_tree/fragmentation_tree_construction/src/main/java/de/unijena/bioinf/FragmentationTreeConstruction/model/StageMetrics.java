@@ -0,0 +1,278 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.model;
+
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Records running time, allocated bytes and problem sizes of each stage of the
+ * {@link de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis}. The stages are
+ * only measured if the processed input carries a StageMetrics annotation, otherwise instrumentation costs a single
+ * map lookup per stage.
+ *
+ * Allocated bytes are measured for the calling thread only and are -1 if the JVM does not support allocation
+ * measurement. Batches which are processed by helper jobs of
+ * {@link de.unijena.bioinf.ChemistryBase.jobs.ParallelBatches} run on other threads: they are included in the running
+ * time of a stage but not in its allocated bytes. So for decomposition and graph scoring of large inputs the allocated
+ * bytes are a lower bound, which depends on how many batches the calling thread processed itself. Recalibration
+ * contains the stages which are repeated for the recalibrated input, so these are counted twice in the total
+ * running time.
+ *
+ * A stage is recorded when it finishes, also if it fails with an exception.
+ *
+ * A StageMetrics object is thread-safe. Metrics of several inputs can be aggregated with {@link #add(StageMetrics)}
+ * and exported with {@link #writeCSV(Writer)} or {@link #writeJSON(Writer)}.
+ */
+public final class StageMetrics {
+
+    public enum Stage {
+        VALIDATION, PREPROCESSING, NORMALIZATION, MERGING, PARENT_PEAK_DETECTION, DECOMPOSITION, PEAK_SCORING,
+        GRAPH_BUILDING, GRAPH_SCORING, GRAPH_REDUCTION, TREE_COMPUTATION, RECALIBRATION
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean ALLOCATION_SUPPORTED = isAllocationSupported();
+
+    private static boolean isAllocationSupported() {
+        try {
+            if (!(THREADS instanceof com.sun.management.ThreadMXBean)) return false;
+            final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) THREADS;
+            if (!bean.isThreadAllocatedMemorySupported()) return false;
+            if (!bean.isThreadAllocatedMemoryEnabled()) bean.setThreadAllocatedMemoryEnabled(true);
+            return bean.isThreadAllocatedMemoryEnabled();
+        } catch (LinkageError | UnsupportedOperationException | SecurityException e) {
+            return false;
+        }
+    }
+
+    /*
+    bytes allocated by the calling thread so far. Allocations of other threads are not visible here
+     */
+    private static long allocatedBytes() {
+        if (!ALLOCATION_SUPPORTED) return -1L;
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * @return the metrics of the given input or null, if the input is not instrumented
+     */
+    public static StageMetrics of(ProcessedInput input) {
+        return input == null ? null : input.getAnnotation(StageMetrics.class, null);
+    }
+
+    /**
+     * @return the metrics of the input of the given graph or null, if the graph or its input is not instrumented
+     */
+    public static StageMetrics of(FGraph graph) {
+        return of(graph.getAnnotation(ProcessedInput.class, null));
+    }
+
+    /**
+     * starts measuring the given stage
+     */
+    public static Measurement start(StageMetrics metrics, Stage stage) {
+        if (metrics == null) return null;
+        return new Measurement(metrics, stage);
+    }
+
+    public static final class Measurement {
+        private final StageMetrics metrics;
+        private final Stage stage;
+        private final long startTime, startBytes;
+
+        private Measurement(StageMetrics metrics, Stage stage) {
+            this.metrics = metrics;
+            this.stage = stage;
+            this.startBytes = allocatedBytes();
+            this.startTime = System.nanoTime();
+        }
+
+        public StageMetrics getMetrics() {
+            return metrics;
+        }
+
+        /**
+         * stops the measurement and records it for its stage. Has to be called in a finally block, such that failing
+         * stages are recorded, too. Allocated bytes only contain the allocations of the calling thread
+         */
+        public void stop() {
+            final long time = System.nanoTime() - startTime;
+            final long bytes = startBytes < 0 ? -1L : allocatedBytes() - startBytes;
+            metrics.record(stage, time, bytes);
+        }
+
+        /**
+         * stops the measurement and records it together with the size of the graph, if the graph is not null
+         */
+        public void stop(FGraph graph) {
+            stop();
+            if (graph != null) metrics.addGraphSize(stage, graph.numberOfVertices(), graph.numberOfEdges());
+        }
+    }
+
+    private final long[] calls, nanoseconds, allocatedBytes, peaks, decompositions, vertices, edges;
+
+    public StageMetrics() {
+        final int n = Stage.values().length;
+        this.calls = new long[n];
+        this.nanoseconds = new long[n];
+        this.allocatedBytes = new long[n];
+        this.peaks = new long[n];
+        this.decompositions = new long[n];
+        this.vertices = new long[n];
+        this.edges = new long[n];
+    }
+
+    public static boolean isAllocationMeasurable() {
+        return ALLOCATION_SUPPORTED;
+    }
+
+    public synchronized void record(Stage stage, long nanoseconds, long allocatedBytes) {
+        final int i = stage.ordinal();
+        ++calls[i];
+        this.nanoseconds[i] += nanoseconds;
+        if (allocatedBytes >= 0) this.allocatedBytes[i] += allocatedBytes;
+    }
+
+    public synchronized void addGraphSize(Stage stage, int numberOfVertices, int numberOfEdges) {
+        vertices[stage.ordinal()] += numberOfVertices;
+        edges[stage.ordinal()] += numberOfEdges;
+    }
+
+    public synchronized void addPeaks(Stage stage, int numberOfPeaks) {
+        peaks[stage.ordinal()] += numberOfPeaks;
+    }
+
+    public synchronized void addDecompositions(Stage stage, int numberOfDecompositions) {
+        decompositions[stage.ordinal()] += numberOfDecompositions;
+    }
+
+    /**
+     * adds all measurements of the given metrics to this one
+     */
+    public void add(StageMetrics other) {
+        final long[][] values;
+        synchronized (other) {
+            values = new long[][]{other.calls.clone(), other.nanoseconds.clone(), other.allocatedBytes.clone(),
+                    other.peaks.clone(), other.decompositions.clone(), other.vertices.clone(), other.edges.clone()};
+        }
+        synchronized (this) {
+            final long[][] own = new long[][]{calls, nanoseconds, allocatedBytes, peaks, decompositions, vertices, edges};
+            for (int k = 0; k < own.length; ++k)
+                for (int i = 0; i < own[k].length; ++i)
+                    own[k][i] += values[k][i];
+        }
+    }
+
+    public synchronized long getNumberOfCalls(Stage stage) {
+        return calls[stage.ordinal()];
+    }
+
+    public synchronized long getNanoseconds(Stage stage) {
+        return nanoseconds[stage.ordinal()];
+    }
+
+    /**
+     * @return allocated bytes of the stage or -1 if allocation cannot be measured on this JVM
+     */
+    public synchronized long getAllocatedBytes(Stage stage) {
+        return ALLOCATION_SUPPORTED ? allocatedBytes[stage.ordinal()] : -1L;
+    }
+
+    public synchronized long getNumberOfPeaks(Stage stage) {
+        return peaks[stage.ordinal()];
+    }
+
+    public synchronized long getNumberOfDecompositions(Stage stage) {
+        return decompositions[stage.ordinal()];
+    }
+
+    public synchronized long getNumberOfVertices(Stage stage) {
+        return vertices[stage.ordinal()];
+    }
+
+    public synchronized long getNumberOfEdges(Stage stage) {
+        return edges[stage.ordinal()];
+    }
+
+    private static final String[] COLUMNS = new String[]{"stage", "calls", "nanoseconds", "allocatedBytes", "peaks", "decompositions", "vertices", "edges"};
+
+    private synchronized long[] row(Stage stage) {
+        final int i = stage.ordinal();
+        return new long[]{calls[i], nanoseconds[i], ALLOCATION_SUPPORTED ? allocatedBytes[i] : -1L, peaks[i], decompositions[i], vertices[i], edges[i]};
+    }
+
+    /**
+     * writes one line per stage, preceded by a header line
+     */
+    public void writeCSV(Writer writer) throws IOException {
+        for (int k = 0; k < COLUMNS.length; ++k) {
+            if (k > 0) writer.write(',');
+            writer.write(COLUMNS[k]);
+        }
+        writer.write('\n');
+        for (Stage stage : Stage.values()) {
+            writer.write(stage.name());
+            for (long value : row(stage)) {
+                writer.write(',');
+                writer.write(Long.toString(value));
+            }
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * writes a JSON object with one entry per stage
+     */
+    public void writeJSON(Writer writer) throws IOException {
+        writer.write("{\n");
+        final Stage[] stages = Stage.values();
+        for (int s = 0; s < stages.length; ++s) {
+            writer.write("  \"");
+            writer.write(stages[s].name());
+            writer.write("\": {");
+            final long[] row = row(stages[s]);
+            for (int k = 0; k < row.length; ++k) {
+                if (k > 0) writer.write(", ");
+                writer.write('"');
+                writer.write(COLUMNS[k + 1]);
+                writer.write("\": ");
+                writer.write(Long.toString(row[k]));
+            }
+            writer.write(s + 1 < stages.length ? "},\n" : "}\n");
+        }
+        writer.write("}\n");
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder buffer = new StringBuilder("StageMetrics{");
+        for (Stage stage : Stage.values()) {
+            final long[] row = row(stage);
+            if (row[0] == 0) continue;
+            if (buffer.length() > 13) buffer.append(", ");
+            buffer.append(stage.name()).append('=').append(row[1] / 1000000L).append(" ms");
+        }
+        return buffer.append('}').toString();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation;
+
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FragmentAnnotation;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring.FractionOfParentLossScorer;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring.LossScorer;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring.StrangeElementLossScorer;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.*;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Compares the edge weights of {@link FragmentationPatternAnalysis#performGraphScoring(FGraph)}, which memoises
+ * the scores of formula-only loss scorers, with the former scoring, which calls every loss scorer for every edge.
+ */
+public class GraphScoringTest {
+
+    @Test
+    public void testMemoisedScoresWithDefaultScorers() {
+        assertSameScoresForAllCandidates(FragmentationPatternAnalysis.defaultAnalyzer());
+    }
+
+    @Test
+    public void testMemoisedScoresWithInputDependentScorers() {
+        final FragmentationPatternAnalysis analyzer = FragmentationPatternAnalysis.defaultAnalyzer();
+        analyzer.getLossScorers().add(new FractionOfParentLossScorer());
+        analyzer.getLossScorers().add(new StrangeElementLossScorer());
+        assertSameScoresForAllCandidates(analyzer);
+    }
+
+    private static void assertSameScoresForAllCandidates(FragmentationPatternAnalysis analyzer) {
+        final ProcessedInput input = TestInputs.preprocessedAdenosine(analyzer);
+        // the second round reads all loss formula scores from the cache of the input
+        for (int round = 0; round < 2; ++round) {
+            for (Decomposition candidate : TestInputs.candidatesOf(input)) {
+                final FGraph graph = analyzer.buildGraphWithoutReduction(input, candidate);
+                assertNotNull(input.getAnnotationOrThrow(Scoring.class).getLossFormulaScores());
+                assertSameScores(analyzer, graph);
+            }
+        }
+    }
+
+    private static void assertSameScores(FragmentationPatternAnalysis analyzer, FGraph graph) {
+        final ProcessedInput input = graph.getAnnotationOrThrow(ProcessedInput.class);
+        final Scoring scoring = input.getAnnotationOrThrow(Scoring.class);
+        final double[] peakScores = scoring.getPeakScores();
+        final double[][] peakPairScores = scoring.getPeakPairScores();
+        final ScoredFormulaMap map = graph.getAnnotationOrThrow(ScoredFormulaMap.class);
+        final FragmentAnnotation<ProcessedPeak> peakAno = graph.getFragmentAnnotationOrThrow(ProcessedPeak.class);
+        final List<LossScorer> lossScorers = analyzer.getLossScorers();
+        final Object[] precomputeds = new Object[lossScorers.size()];
+        for (int i = 0; i < precomputeds.length; ++i) precomputeds[i] = lossScorers.get(i).prepare(input);
+        for (Loss loss : graph.losses()) {
+            final Fragment u = loss.getSource();
+            final Fragment v = loss.getTarget();
+            double score = map.get(v.getFormula());
+            score += peakScores[peakAno.get(v).getIndex()];
+            if (!u.isRoot()) {
+                score += peakPairScores[peakAno.get(u).getIndex()][peakAno.get(v).getIndex()];
+                for (int i = 0; i < precomputeds.length; ++i)
+                    score += lossScorers.get(i).score(loss, input, precomputeds[i]);
+            }
+            // memoised scores are summed in a different order
+            assertEquals(score, loss.getWeight(), 1e-9);
+        }
+    }
+
+}
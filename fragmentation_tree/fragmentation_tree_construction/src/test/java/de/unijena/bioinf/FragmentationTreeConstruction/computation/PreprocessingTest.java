@@ -23,11 +23,16 @@ import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
 import de.unijena.bioinf.ChemistryBase.ms.*;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
 import de.unijena.bioinf.babelms.GenericParser;
 import de.unijena.bioinf.babelms.ms.JenaMsParser;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
 
 public class PreprocessingTest {
 
@@ -128,4 +133,39 @@ public class PreprocessingTest {
 
     }
 
+    /**
+     * the batch preprocessing has to return the inputs in the given order, each preprocessed as by
+     * {@link FragmentationPatternAnalysis#performPreprocessing(ProcessedInput)}
+     */
+    @Test
+    public void testBatchPreprocessingKeepsOrder() {
+        final FragmentationPatternAnalysis analyzer = FragmentationPatternAnalysis.defaultAnalyzer();
+        analyzer.setParallelPreprocessingThreshold(1);
+        final List<ProcessedInput> inputs = new ArrayList<>(), expected = new ArrayList<>();
+        for (int i = 0; i < 40; ++i) {
+            final MutableMs2Experiment experiment = TestInputs.adenosine();
+            experiment.setName("Adenosine-" + i);
+            // the inputs differ in their number of spectra
+            experiment.setMs2Spectra(new ArrayList<>(experiment.getMs2Spectra().subList(0, 1 + i % experiment.getMs2Spectra().size())));
+            inputs.add(analyzer.performValidation(experiment));
+            expected.add(analyzer.performPreprocessing(analyzer.performValidation(experiment)));
+        }
+        final List<ProcessedInput> processed = analyzer.performPreprocessing(new ArrayList<>(inputs));
+        assertEquals(inputs.size(), processed.size());
+        for (int i = 0; i < inputs.size(); ++i) {
+            assertSame(inputs.get(i), processed.get(i));
+            final MutableMs2Experiment e = expected.get(i).getExperimentInformation(), a = processed.get(i).getExperimentInformation();
+            assertEquals("Adenosine-" + i, a.getName());
+            assertEquals(e.getMs2Spectra().size(), a.getMs2Spectra().size());
+            for (int s = 0; s < e.getMs2Spectra().size(); ++s) {
+                final MutableMs2Spectrum x = e.getMs2Spectra().get(s), y = a.getMs2Spectra().get(s);
+                assertEquals(x.size(), y.size());
+                for (int k = 0; k < x.size(); ++k) {
+                    assertEquals(x.getMzAt(k), y.getMzAt(k), 0d);
+                    assertEquals(x.getIntensityAt(k), y.getIntensityAt(k), 0d);
+                }
+            }
+        }
+    }
+
 }
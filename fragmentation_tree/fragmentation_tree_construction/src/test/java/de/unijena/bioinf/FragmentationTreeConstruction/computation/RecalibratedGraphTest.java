@@ -0,0 +1,189 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation;
+
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Spectrum;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FragmentAnnotation;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.GraphBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.MultiCandidateGraph;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.SubFormulaGraphBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.recalibration.SpectralRecalibration;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.*;
+import org.apache.commons.math3.analysis.UnivariateFunction;
+import org.apache.commons.math3.analysis.polynomials.PolynomialFunction;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the incremental decomposition and graph update after recalibration with decomposing, scoring and building
+ * the graph of the recalibrated input from scratch. Fragments are identified by their formula, ionization and peak
+ * index, as the vertex order of both graphs differs.
+ */
+public class RecalibratedGraphTest {
+
+    /**
+     * shifts towards higher and towards lower masses, such that decompositions leave and enter the mass windows
+     */
+    private static final double[][] SHIFTS = new double[][]{{1.5e-3, 1 + 4e-6}, {-1e-3, 1 - 6e-6}};
+
+    @Test
+    public void testIncrementalGraphEqualsRebuiltGraph() {
+        final FragmentationPatternAnalysis analyzer = FragmentationPatternAnalysis.defaultAnalyzer();
+        assertTrue(analyzer.isGraphRecalibrationPossible());
+        final ProcessedInput input = TestInputs.preprocessedAdenosine(analyzer);
+        final List<Decomposition> candidates = TestInputs.candidatesOf(input);
+        final MultiCandidateGraph shared = analyzer.buildMultiCandidateGraph(input, candidates);
+        boolean decompositionsChanged = false;
+        for (double[] shift : SHIFTS) {
+            final SpectralRecalibration recalibration = shiftBy(input, shift[0], shift[1]);
+            for (Decomposition candidate : candidates) {
+                final ProcessedInput incremental = recalibratedVersion(input, recalibration, candidate);
+                assertNotNull(analyzer.performIncrementalDecomposition(input, incremental));
+                analyzer.performPeakScoring(incremental);
+                final FGraph actual = analyzer.recalibrateGraph(analyzer.buildGraphWithoutReduction(shared.getView(candidate)), incremental);
+
+                final ProcessedInput rebuilt = recalibratedVersion(input, recalibration, candidate);
+                analyzer.performDecomposition(rebuilt);
+                analyzer.performPeakScoring(rebuilt);
+                final FGraph expected = analyzer.buildGraphWithoutReduction(rebuilt, candidate);
+
+                assertEquals(decompositionsOf(rebuilt), decompositionsOf(incremental));
+                assertTrue(actual.isTopologicalOrdered());
+                assertSame(incremental, actual.getAnnotationOrThrow(ProcessedInput.class));
+                assertEquals(expected.numberOfVertices(), actual.numberOfVertices());
+                assertEquals(expected.numberOfEdges(), actual.numberOfEdges());
+                assertEquals(edgesOf(expected), edgesOf(actual));
+                // the reduction of equal graphs has to be equal, too
+                assertEquals(edgesOf(analyzer.performGraphReduction(expected, 0d)), edgesOf(analyzer.performGraphReduction(actual, 0d)));
+                decompositionsChanged |= !decompositionsOf(input).equals(decompositionsOf(rebuilt));
+            }
+        }
+        // otherwise the recalibration would not test anything
+        assertTrue(decompositionsChanged);
+    }
+
+    /**
+     * the original graph is not modified by the update
+     */
+    @Test
+    public void testOriginalGraphIsUnchanged() {
+        final FragmentationPatternAnalysis analyzer = FragmentationPatternAnalysis.defaultAnalyzer();
+        final ProcessedInput input = TestInputs.preprocessedAdenosine(analyzer);
+        final Decomposition candidate = TestInputs.candidatesOf(input).get(0);
+        final FGraph graph = analyzer.buildGraphWithoutReduction(input, candidate);
+        final Map<String, Map<String, Double>> before = edgesOf(graph);
+        final ProcessedInput recalibrated = recalibratedVersion(input, shiftBy(input, SHIFTS[0][0], SHIFTS[0][1]), candidate);
+        assertNotNull(analyzer.performIncrementalDecomposition(input, recalibrated));
+        analyzer.performPeakScoring(recalibrated);
+        analyzer.recalibrateGraph(graph, recalibrated);
+        assertEquals(before, edgesOf(graph));
+        assertSame(input, graph.getAnnotationOrThrow(ProcessedInput.class));
+    }
+
+    /**
+     * graph builders which might use other edge rules than the subformula graph builders are not recalibrated
+     */
+    @Test
+    public void testOtherGraphBuildersAreNotRecalibrated() {
+        final FragmentationPatternAnalysis analyzer = FragmentationPatternAnalysis.defaultAnalyzer();
+        analyzer.setGraphBuilder(new SubFormulaGraphBuilder());
+        assertTrue(analyzer.isGraphRecalibrationPossible());
+        final GraphBuilder custom = new SubFormulaGraphBuilder() {
+        };
+        analyzer.setGraphBuilder(custom);
+        assertFalse(analyzer.isGraphRecalibrationPossible());
+        final ProcessedInput input = TestInputs.preprocessedAdenosine(analyzer);
+        final Decomposition candidate = TestInputs.candidatesOf(input).get(0);
+        final FGraph graph = analyzer.buildGraphWithoutReduction(input, candidate);
+        final ProcessedInput recalibrated = recalibratedVersion(input, shiftBy(input, SHIFTS[0][0], SHIFTS[0][1]), candidate);
+        assertNotNull(analyzer.performIncrementalDecomposition(input, recalibrated));
+        analyzer.performPeakScoring(recalibrated);
+        try {
+            analyzer.recalibrateGraph(graph, recalibrated);
+            fail("graph of a custom graph builder was recalibrated");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * @return a recalibration which maps each original mass m to offset + slope*m. The scan numbers of the spectra
+     * are assigned as in the hypothesis driven recalibration
+     */
+    private static SpectralRecalibration shiftBy(ProcessedInput input, double offset, double slope) {
+        final List<MutableMs2Spectrum> spectra = input.getExperimentInformation().getMs2Spectra();
+        final MutableMs2Spectrum[] originalSpectra = new MutableMs2Spectrum[spectra.size()];
+        for (int k = 0; k < originalSpectra.length; ++k) {
+            originalSpectra[k] = spectra.get(k);
+            originalSpectra[k].setScanNumber(k);
+        }
+        return new SpectralRecalibration(originalSpectra, new UnivariateFunction[originalSpectra.length], new PolynomialFunction(new double[]{offset, slope}));
+    }
+
+    /**
+     * same preparation as in {@link FasterTreeComputationInstance#recalibrate}
+     */
+    private static ProcessedInput recalibratedVersion(ProcessedInput input, SpectralRecalibration recalibration, Decomposition candidate) {
+        final ProcessedInput recalibrated = input.getRecalibratedVersion(recalibration);
+        final DecompositionList l = new DecompositionList(Arrays.asList(recalibrated.getAnnotationOrThrow(DecompositionList.class).find(candidate.getCandidate())));
+        recalibrated.setAnnotation(DecompositionList.class, l);
+        return recalibrated;
+    }
+
+    /**
+     * decompositions of all fragment peaks by peak index
+     */
+    private static List<Set<String>> decompositionsOf(ProcessedInput input) {
+        final PeakAnnotation<DecompositionList> decompositions = input.getPeakAnnotationOrThrow(DecompositionList.class);
+        final List<Set<String>> result = new ArrayList<>();
+        for (ProcessedPeak peak : input.getMergedPeaks()) {
+            if (peak == input.getParentPeak()) continue;
+            final Set<String> formulas = new HashSet<>();
+            for (Decomposition d : decompositions.get(peak).getDecompositions()) formulas.add(d.getCandidate() + " " + d.getIon());
+            while (result.size() <= peak.getIndex()) result.add(null);
+            result.set(peak.getIndex(), formulas);
+        }
+        return result;
+    }
+
+    private static Map<String, Map<String, Double>> edgesOf(FGraph graph) {
+        final FragmentAnnotation<Ionization> ion = graph.getFragmentAnnotationOrThrow(Ionization.class);
+        final Map<String, Map<String, Double>> edges = new HashMap<>();
+        for (Fragment u : graph) {
+            final Map<String, Double> outgoing = new HashMap<>();
+            for (Loss l : u.getOutgoingEdges()) {
+                // round the weights, such that different summation orders do not matter
+                outgoing.put(keyOf(l.getTarget(), ion), Math.round(l.getWeight() * 1e6) / 1e6);
+            }
+            assertNull(edges.put(keyOf(u, ion), outgoing));
+        }
+        return edges;
+    }
+
+    private static String keyOf(Fragment f, FragmentAnnotation<Ionization> ion) {
+        return f.isRoot() ? "root" : f.getFormula() + " " + ion.get(f) + " " + f.getColor();
+    }
+
+}
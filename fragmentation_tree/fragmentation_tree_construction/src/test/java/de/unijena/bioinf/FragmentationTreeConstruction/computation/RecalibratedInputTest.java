@@ -0,0 +1,119 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation;
+
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.recalibration.SpectralRecalibration;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that copies and recalibrated versions of a {@link ProcessedInput} stay independent of the original input,
+ * although they share their annotations until one of them modifies them.
+ */
+public class RecalibratedInputTest {
+
+    @Test
+    public void testRecalibratedPeaksDoNotShareAnnotations() {
+        final ProcessedInput input = TestInputs.preprocessedAdenosine(FragmentationPatternAnalysis.defaultAnalyzer());
+        final PeakAnnotation<DecompositionList> decompositions = input.getPeakAnnotationOrThrow(DecompositionList.class);
+        final List<DecompositionList> before = new ArrayList<>();
+        for (ProcessedPeak peak : input.getMergedPeaks()) before.add(decompositions.get(peak));
+
+        final ProcessedInput recalibrated = input.getRecalibratedVersion(SpectralRecalibration.none());
+        assertNotSame(input.getAnnotationOrThrow(Scoring.class), recalibrated.getAnnotationOrThrow(Scoring.class));
+        final PeakAnnotation<DecompositionList> recalibratedDecompositions = recalibrated.getPeakAnnotationOrThrow(DecompositionList.class);
+        for (ProcessedPeak peak : recalibrated.getMergedPeaks())
+            recalibratedDecompositions.set(peak, new DecompositionList(new ArrayList<Decomposition>()));
+
+        for (int i = 0; i < before.size(); ++i)
+            assertSame(before.get(i), decompositions.get(input.getMergedPeaks().get(i)));
+    }
+
+    @Test
+    public void testConcurrentCopiesAreIndependent() throws Exception {
+        final ProcessedInput input = TestInputs.preprocessedAdenosine(FragmentationPatternAnalysis.defaultAnalyzer());
+        final Scoring originalScoring = input.getAnnotationOrThrow(Scoring.class);
+        final ExecutorService service = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<ProcessedInput>> futures = new ArrayList<>();
+            for (int i = 0; i < 64; ++i) {
+                final Integer marker = i;
+                futures.add(service.submit(new Callable<ProcessedInput>() {
+                    @Override
+                    public ProcessedInput call() throws Exception {
+                        // clones share their peaks with the original input, so only recalibrated copies get peak annotations
+                        if (marker % 2 == 0) {
+                            final ProcessedInput copy = input.clone();
+                            copy.setAnnotation(Integer.class, marker);
+                            return copy;
+                        }
+                        final ProcessedInput copy = input.getRecalibratedVersion(SpectralRecalibration.none());
+                        copy.setAnnotation(Integer.class, marker);
+                        copy.getOrCreatePeakAnnotation(Integer.class).set(copy.getParentPeak(), marker);
+                        return copy;
+                    }
+                }));
+                // the original input is modified while the copies are created
+                input.setAnnotation(Scoring.class, originalScoring);
+            }
+            for (int i = 0; i < futures.size(); ++i) {
+                final ProcessedInput copy = futures.get(i).get();
+                assertEquals(Integer.valueOf(i), copy.getAnnotationOrThrow(Integer.class));
+                if (i % 2 != 0)
+                    assertEquals(Integer.valueOf(i), copy.getPeakAnnotationOrThrow(Integer.class).get(copy.getParentPeak()));
+            }
+        } finally {
+            service.shutdown();
+        }
+        assertNull(input.getAnnotation(Integer.class, null));
+        assertFalse(input.getPeakAnnotations().containsKey(Integer.class));
+        assertSame(originalScoring, input.getAnnotationOrThrow(Scoring.class));
+    }
+
+    /**
+     * peak scoring installs a new scoring without the loss formula scores of the previous one, as loss scorers are
+     * prepared on the input which might have changed since
+     */
+    @Test
+    public void testPeakScoringDropsLossFormulaScores() {
+        final FragmentationPatternAnalysis analyzer = FragmentationPatternAnalysis.defaultAnalyzer();
+        final ProcessedInput input = TestInputs.preprocessedAdenosine(analyzer);
+        analyzer.buildGraph(input, TestInputs.candidatesOf(input).get(0));
+        final Scoring previousScoring = input.getAnnotationOrThrow(Scoring.class);
+        final LossFormulaScores previousLossScores = previousScoring.getLossFormulaScores();
+        assertNotNull(previousLossScores);
+
+        final ProcessedInput recalibrated = input.getRecalibratedVersion(SpectralRecalibration.none());
+        recalibrated.setAnnotation(Scoring.class, previousScoring);
+        analyzer.performDecomposition(recalibrated);
+        analyzer.performPeakScoring(recalibrated);
+        assertNull(recalibrated.getAnnotationOrThrow(Scoring.class).getLossFormulaScores());
+        // the scoring of the original input is untouched
+        assertSame(previousScoring, input.getAnnotationOrThrow(Scoring.class));
+        assertSame(previousLossScores, previousScoring.getLossFormulaScores());
+        analyzer.buildGraph(recalibrated, TestInputs.candidatesOf(recalibrated).get(0));
+        assertNotNull(recalibrated.getAnnotationOrThrow(Scoring.class).getLossFormulaScores());
+    }
+
+}
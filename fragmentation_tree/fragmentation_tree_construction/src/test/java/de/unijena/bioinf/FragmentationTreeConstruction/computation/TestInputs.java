@@ -0,0 +1,63 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation;
+
+import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.DecompositionList;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import de.unijena.bioinf.babelms.GenericParser;
+import de.unijena.bioinf.babelms.ms.JenaMsParser;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Test inputs which are shared by the tests of the graph building, scoring and tree computation.
+ */
+public class TestInputs {
+
+    /**
+     * @return the Adenosine measurement from the test resources with known [M+H]+ ionization
+     */
+    public static MutableMs2Experiment adenosine() {
+        final GenericParser<Ms2Experiment> parser = new GenericParser<Ms2Experiment>(new JenaMsParser());
+        final MutableMs2Experiment experiment;
+        try {
+            experiment = new MutableMs2Experiment(parser.parse(TestInputs.class.getResourceAsStream("/Adenosine.ms")));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        experiment.setPrecursorIonType(PeriodicTable.getInstance().ionByName("[M+H]+"));
+        return experiment;
+    }
+
+    /**
+     * @return the preprocessed and scored Adenosine measurement
+     */
+    public static ProcessedInput preprocessedAdenosine(FragmentationPatternAnalysis analyzer) {
+        return analyzer.preprocessing(adenosine());
+    }
+
+    public static List<Decomposition> candidatesOf(ProcessedInput input) {
+        return input.getPeakAnnotationOrThrow(DecompositionList.class).get(input.getParentPeak()).getDecompositions();
+    }
+
+}
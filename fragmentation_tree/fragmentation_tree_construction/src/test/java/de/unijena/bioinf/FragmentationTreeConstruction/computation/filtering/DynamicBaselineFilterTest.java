@@ -0,0 +1,171 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.filtering;
+
+import de.unijena.bioinf.ChemistryBase.math.NormalDistribution;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Spectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.TestInputs;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DynamicBaselineFilterTest {
+
+    /**
+     * parameters of the filter in the default profiles, which are also the defaults of the filter
+     */
+    private static final double STANDARD_DEVIATION = 0.05d, THRESHOLD = 0.25d;
+
+    @Test
+    public void testSamePeaksAsFormerImplementationOnAdenosine() {
+        assertSamePeaksAsFormerImplementation(sorted(TestInputs.adenosine()));
+    }
+
+    @Test
+    public void testSamePeaksAsFormerImplementationOnSpectraWithSatellitePeaks() {
+        final Random random = new Random(4711);
+        int removed = 0;
+        for (int i = 0; i < 20; ++i) {
+            final MutableMs2Experiment experiment = experimentWithSatellitePeaks(random);
+            int before = 0;
+            for (MutableMs2Spectrum spec : experiment.getMs2Spectra()) before += spec.size();
+            final MutableMs2Experiment filtered = assertSamePeaksAsFormerImplementation(experiment);
+            for (MutableMs2Spectrum spec : filtered.getMs2Spectra()) before -= spec.size();
+            removed += before;
+        }
+        assertTrue(removed > 0);
+    }
+
+    /**
+     * filters copies of the experiment with the former and the current implementation. The current implementation
+     * has to keep the same peaks in the same (mass) order and has to keep the spectrum objects.
+     *
+     * @return the experiment filtered by the current implementation
+     */
+    private static MutableMs2Experiment assertSamePeaksAsFormerImplementation(MutableMs2Experiment experiment) {
+        final MutableMs2Experiment expected = formerProcess(new MutableMs2Experiment(experiment));
+        final MutableMs2Experiment input = new MutableMs2Experiment(experiment);
+        final ArrayList<MutableMs2Spectrum> spectra = new ArrayList<>(input.getMs2Spectra());
+        final MutableMs2Experiment actual = new DynamicBaselineFilter().process(input, FragmentationPatternAnalysis.defaultAnalyzer().getDefaultProfile());
+        assertEquals(expected.getMs2Spectra().size(), actual.getMs2Spectra().size());
+        for (int i = 0; i < spectra.size(); ++i) {
+            final MutableMs2Spectrum e = expected.getMs2Spectra().get(i), a = actual.getMs2Spectra().get(i);
+            assertSame(spectra.get(i), a);
+            assertEquals(e.size(), a.size());
+            for (int k = 0; k < e.size(); ++k) {
+                assertEquals(e.getMzAt(k), a.getMzAt(k), 0d);
+                assertEquals(e.getIntensityAt(k), a.getIntensityAt(k), 0d);
+                if (k > 0) assertTrue(a.getMzAt(k - 1) <= a.getMzAt(k));
+            }
+            assertEquals(e.getCollisionEnergy(), a.getCollisionEnergy());
+            assertEquals(e.getPrecursorMz(), a.getPrecursorMz(), 0d);
+        }
+        return actual;
+    }
+
+    private static MutableMs2Experiment sorted(MutableMs2Experiment experiment) {
+        for (MutableMs2Spectrum spec : experiment.getMs2Spectra()) Spectrums.sortSpectrumByMass(spec);
+        return experiment;
+    }
+
+    /**
+     * spectra with intensive peaks which are surrounded by less intensive satellite peaks within 0.4 Da
+     */
+    private static MutableMs2Experiment experimentWithSatellitePeaks(Random random) {
+        final MutableMs2Experiment experiment = TestInputs.adenosine();
+        final ArrayList<MutableMs2Spectrum> spectra = new ArrayList<>();
+        for (int s = 0, n = 1 + random.nextInt(4); s < n; ++s) {
+            final MutableMs2Spectrum spec = new MutableMs2Spectrum();
+            spec.setMsLevel(2);
+            spec.setPrecursorMz(experiment.getIonMass());
+            for (int k = 0, m = 5 + random.nextInt(40); k < m; ++k) {
+                final double mz = 50 + 450 * random.nextDouble();
+                final double intensity = Math.pow(10, 2 + 4 * random.nextDouble());
+                spec.addPeak(mz, intensity);
+                for (int j = 0, satellites = random.nextInt(5); j < satellites; ++j)
+                    spec.addPeak(mz + 0.8 * random.nextDouble() - 0.4, intensity * 0.5 * random.nextDouble());
+            }
+            spectra.add(spec);
+        }
+        experiment.setMs2Spectra(spectra);
+        return sorted(experiment);
+    }
+
+    /**
+     * the former implementation: each peak which is below the scaled normal density around a neighbouring peak is
+     * removed. A new spectrum is created for each spectrum with removed peaks.
+     */
+    private static MutableMs2Experiment formerProcess(MutableMs2Experiment experiment) {
+        final ArrayList<MutableMs2Spectrum> newList = new ArrayList<MutableMs2Spectrum>();
+        final NormalDistribution dist = new NormalDistribution(0d, STANDARD_DEVIATION * STANDARD_DEVIATION);
+        final double max = dist.getDensity(0d);
+        for (MutableMs2Spectrum spec : experiment.getMs2Spectra()) {
+            final boolean[] remove = new boolean[spec.size()];
+            int counter = 0;
+            counter = formerCleanSpectrum(dist, max, spec, remove, counter);
+            final MutableMs2Spectrum newSpec = new MutableMs2Spectrum();
+            newSpec.setCollisionEnergy(spec.getCollisionEnergy());
+            newSpec.setIonization(spec.getIonization());
+            newSpec.setMsLevel(spec.getMsLevel());
+            newSpec.setPrecursorMz(spec.getPrecursorMz());
+            newSpec.setTotalIonCount(spec.getTotalIonCount());
+            for (int i = 0; i < remove.length; ++i) {
+                if (!remove[i]) newSpec.addPeak(spec.getMzAt(i), spec.getIntensityAt(i));
+            }
+            if (counter > 0) {
+                newList.add(newSpec);
+            } else newList.add(spec);
+        }
+        experiment.setMs2Spectra(newList);
+        return experiment;
+    }
+
+    private static int formerCleanSpectrum(NormalDistribution dist, double max, MutableMs2Spectrum spec, boolean[] remove, int counter) {
+        max /= THRESHOLD;
+        for (int k = 0; k < spec.size(); ++k) {
+            final double intensity = spec.getIntensityAt(k);
+            final double mz = spec.getMzAt(k);
+            final double massLimit = 10 * STANDARD_DEVIATION;
+            final double a = mz - massLimit;
+            final double b = mz + massLimit;
+            for (int i = k - 1; i >= 0 && spec.getMzAt(i) >= a; --i) {
+                if (remove[i]) continue;
+                final double limit = (dist.getDensity((mz - spec.getMzAt(i))) / max) * intensity;
+                if (spec.getIntensityAt(i) < limit) {
+                    remove[i] = true;
+                    ++counter;
+                }
+            }
+            for (int i = k + 1; i < spec.size() && spec.getMzAt(i) <= b; ++i) {
+                if (remove[i]) continue;
+                final double limit = (dist.getDensity((mz - spec.getMzAt(i))) / max) * intensity;
+                if (spec.getIntensityAt(i) < limit) {
+                    remove[i] = true;
+                    ++counter;
+                }
+            }
+        }
+        return counter;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.filtering;
+
+import de.unijena.bioinf.ChemistryBase.chem.FormulaConstraints;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.*;
+import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.TestInputs;
+import de.unijena.bioinf.MassDecomposer.Chemistry.MassToFormulaDecomposer;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class NoiseEstimateFilterTest {
+
+    private static final int MIN_NUMBER_OF_NOISE_PEAKS = 5;
+
+    @Test
+    public void testSamePeaksAsFormerImplementationOnAdenosine() {
+        for (boolean checkOnlyNonRadicals : new boolean[]{false, true})
+            assertSamePeaksAsFormerImplementation(sorted(TestInputs.adenosine()), checkOnlyNonRadicals);
+    }
+
+    @Test
+    public void testSamePeaksAsFormerImplementationOnNoisySpectra() {
+        final Random random = new Random(4711);
+        int removed = 0;
+        for (int i = 0; i < 20; ++i) {
+            final MutableMs2Experiment experiment = noisy(TestInputs.adenosine(), random);
+            int before = 0;
+            for (MutableMs2Spectrum spec : experiment.getMs2Spectra()) before += spec.size();
+            final MutableMs2Experiment filtered = assertSamePeaksAsFormerImplementation(experiment, i % 2 == 0);
+            for (MutableMs2Spectrum spec : filtered.getMs2Spectra()) before -= spec.size();
+            removed += before;
+        }
+        assertTrue(removed > 0);
+    }
+
+    /**
+     * filters copies of the experiment with the former and the current implementation. Both have to keep the same
+     * peaks. The former implementation moved removed peaks to the end of the spectrum by swapping, so the order of
+     * its peaks is not compared. The current implementation has to keep the mass order of the input.
+     *
+     * @return the experiment filtered by the current implementation
+     */
+    private static MutableMs2Experiment assertSamePeaksAsFormerImplementation(MutableMs2Experiment experiment, boolean checkOnlyNonRadicals) {
+        final MeasurementProfile profile = FragmentationPatternAnalysis.defaultAnalyzer().getDefaultProfile();
+        final NoiseEstimateFilter former = new FormerNoiseEstimateFilter(), filter = new NoiseEstimateFilter();
+        for (NoiseEstimateFilter f : new NoiseEstimateFilter[]{former, filter}) {
+            f.minNumberOfNoisePeaks = MIN_NUMBER_OF_NOISE_PEAKS;
+            f.checkOnlyNonRadicals = checkOnlyNonRadicals;
+        }
+        final MutableMs2Experiment expected = former.process(new MutableMs2Experiment(experiment), profile);
+        final MutableMs2Experiment actual = filter.process(new MutableMs2Experiment(experiment), profile);
+        assertEquals(expected.getMs2Spectra().size(), actual.getMs2Spectra().size());
+        for (int i = 0; i < expected.getMs2Spectra().size(); ++i) {
+            final MutableMs2Spectrum e = expected.getMs2Spectra().get(i), a = actual.getMs2Spectra().get(i);
+            assertEquals(peaks(e), peaks(a));
+            for (int k = 1; k < a.size(); ++k) assertTrue(a.getMzAt(k - 1) <= a.getMzAt(k));
+        }
+        return actual;
+    }
+
+    /**
+     * @return the peaks of the spectrum as (mass, intensity) pairs, sorted by mass and intensity
+     */
+    private static List<String> peaks(Spectrum<Peak> spec) {
+        final double[][] peaks = new double[spec.size()][];
+        for (int k = 0; k < peaks.length; ++k) peaks[k] = new double[]{spec.getMzAt(k), spec.getIntensityAt(k)};
+        Arrays.sort(peaks, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] o1, double[] o2) {
+                final int c = Double.compare(o1[0], o2[0]);
+                return c != 0 ? c : Double.compare(o1[1], o2[1]);
+            }
+        });
+        final List<String> list = new ArrayList<>(peaks.length);
+        for (double[] peak : peaks) list.add(peak[0] + " " + peak[1]);
+        return list;
+    }
+
+    private static MutableMs2Experiment sorted(MutableMs2Experiment experiment) {
+        for (MutableMs2Spectrum spec : experiment.getMs2Spectra()) Spectrums.sortSpectrumByMass(spec);
+        return experiment;
+    }
+
+    /**
+     * adds noise peaks to each spectrum: peaks above the parent mass, which are always noise, and peaks with random
+     * masses below the parent mass. Their intensities are in the range of the median intensity of the spectrum.
+     */
+    private static MutableMs2Experiment noisy(MutableMs2Experiment experiment, Random random) {
+        final double parentmass = experiment.getIonMass();
+        for (MutableMs2Spectrum spec : experiment.getMs2Spectra()) {
+            final double median = Spectrums.getMedianIntensity(spec);
+            for (int k = 0, n = random.nextInt(20); k < n; ++k)
+                spec.addPeak(parentmass + 6 + 100 * random.nextDouble(), median * 2 * random.nextDouble());
+            for (int k = 0, n = random.nextInt(40); k < n; ++k)
+                spec.addPeak(50 + (parentmass - 52) * random.nextDouble(), median * 2 * random.nextDouble());
+        }
+        return sorted(experiment);
+    }
+
+    /**
+     * the former implementation: the median intensity is computed by {@link Spectrums#getMedianIntensity(Spectrum)}
+     * and noise peaks are swapped to the end of the spectrum and removed
+     */
+    private static class FormerNoiseEstimateFilter extends NoiseEstimateFilter {
+
+        @Override
+        public MutableMs2Experiment process(MutableMs2Experiment experiment, MeasurementProfile profile) {
+            int npeaks = 0;
+            for (Ms2Spectrum spec : experiment.getMs2Spectra()) npeaks += spec.size();
+            if (npeaks <= minNumberOfNoisePeaks) return experiment;
+
+            final MassToFormulaDecomposer decomposer = getCache().getDecomposer(profile.getFormulaConstraints().getChemicalAlphabet());
+            final Deviation dev = profile.getAllowedMassDeviation();
+            final FormulaConstraints constraints = profile.getFormulaConstraints();
+            final boolean intrinsicalCharged = experiment.getPrecursorIonType().isIntrinsicalCharged();
+            final PrecursorIonType ion = experiment.getPrecursorIonType();
+            final boolean ionIsKnown = !ion.isIonizationUnknown();
+
+            final double parentmass = Double.isNaN(experiment.getIonMass()) || experiment.getIonMass() <= 0 ? 0 : experiment.getIonMass();
+
+            final List<MutableMs2Spectrum> spectra = experiment.getMs2Spectra();
+            final TIntObjectHashMap<TDoubleArrayList> noiseLevels = new TIntObjectHashMap<>();
+            final TIntArrayList levels = new TIntArrayList();
+            for (MutableMs2Spectrum spec : spectra) {
+                if (spec.size() < 10) continue;
+                final int intensityLevel = (int) Math.round(Math.log10(Spectrums.getMedianIntensity(spec)));
+                levels.add(intensityLevel);
+                if (!noiseLevels.containsKey(intensityLevel))
+                    noiseLevels.put(intensityLevel, new TDoubleArrayList(minNumberOfNoisePeaks));
+                final TDoubleArrayList noise = noiseLevels.get(intensityLevel);
+
+                eachPeak:
+                for (int k = 0; k < spec.size(); ++k) {
+                    if (parentmass > 0 && spec.getMzAt(k) >= (parentmass - 1)) {
+                        if (spec.getMzAt(k) > (parentmass + 5)) {
+                            noise.add(spec.getIntensityAt(k));
+                        } else continue;
+                    }
+                    final Iterator<MolecularFormula> finder = decomposer.formulaIterator(ion.subtractIonAndAdduct(spec.getMzAt(k)), dev, constraints);
+                    while (finder.hasNext()) {
+                        final MolecularFormula f = finder.next();
+                        if (ionIsKnown && checkOnlyNonRadicals) {
+                            if (f.maybeCharged() != intrinsicalCharged) continue;
+                        }
+                        continue eachPeak;
+                    }
+                    noise.add(spec.getIntensityAt(k));
+                }
+            }
+
+            // the median of the noise intensities of each level
+            final TIntDoubleHashMap noiseThresholds = new TIntDoubleHashMap(10, 0.75f, Integer.MIN_VALUE, 0);
+            for (int level : noiseLevels.keys()) {
+                final double[] noise = noiseLevels.get(level).toArray();
+                Arrays.sort(noise);
+                noiseThresholds.put(level, noise.length >= minNumberOfNoisePeaks ? noise[noise.length / 2] : 0d);
+            }
+
+            int index = 0;
+            for (MutableMs2Spectrum spec : spectra) {
+                if (spec.size() < 10) continue;
+                final int level = levels.get(index++);
+                double noiseThreshold = 0d;
+                for (int k = level; k >= 0; --k) {
+                    noiseThreshold = noiseThresholds.get(k);
+                    if (noiseThreshold > 0) break;
+                }
+                if (noiseThreshold > 0) {
+                    int n = spec.size();
+                    for (int k = spec.size() - 1; k >= 0; --k) {
+                        if (spec.getIntensityAt(k) <= noiseThreshold) {
+                            if (Math.abs(spec.getMzAt(k) - parentmass) > 0.5) {
+                                if (k != n - 1) spec.swap(k, n - 1);
+                                --n;
+                            }
+                        }
+                    }
+                    for (int k = spec.size() - 1; k >= n; --k) spec.removePeakAt(k);
+                }
+            }
+            return experiment;
+        }
+    }
+}
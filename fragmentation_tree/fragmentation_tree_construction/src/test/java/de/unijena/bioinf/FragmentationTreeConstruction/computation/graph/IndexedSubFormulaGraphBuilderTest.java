@@ -0,0 +1,88 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.graph;
+
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.TestInputs;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IndexedSubFormulaGraphBuilderTest {
+
+    @Test
+    public void testSameGraphForEachCandidate() {
+        final ProcessedInput input = TestInputs.preprocessedAdenosine(FragmentationPatternAnalysis.defaultAnalyzer());
+        final List<Decomposition> candidates = TestInputs.candidatesOf(input);
+        assertTrue(candidates.size() > 1);
+        for (Decomposition candidate : candidates) {
+            final List<Decomposition> roots = Collections.singletonList(candidate);
+            assertSameGraph(build(new SubFormulaGraphBuilder(), input, roots), build(new IndexedSubFormulaGraphBuilder(), input, roots));
+        }
+    }
+
+    @Test
+    public void testSameGraphForAllCandidates() {
+        final ProcessedInput input = TestInputs.preprocessedAdenosine(FragmentationPatternAnalysis.defaultAnalyzer());
+        final List<Decomposition> candidates = TestInputs.candidatesOf(input);
+        assertSameGraph(build(new SubFormulaGraphBuilder(), input, candidates), build(new IndexedSubFormulaGraphBuilder(), input, candidates));
+    }
+
+    @Test
+    public void testSameGraphWhenBuiltInParallel() {
+        final ProcessedInput input = TestInputs.preprocessedAdenosine(FragmentationPatternAnalysis.defaultAnalyzer());
+        final List<Decomposition> candidates = TestInputs.candidatesOf(input);
+        final IndexedSubFormulaGraphBuilder parallelBuilder = new IndexedSubFormulaGraphBuilder();
+        parallelBuilder.setParallelThreshold(0);
+        assertSameGraph(build(new SubFormulaGraphBuilder(), input, candidates), build(parallelBuilder, input, candidates));
+        for (Decomposition candidate : candidates) {
+            final List<Decomposition> roots = Collections.singletonList(candidate);
+            assertSameGraph(build(new SubFormulaGraphBuilder(), input, roots), build(parallelBuilder, input, roots));
+        }
+    }
+
+    private static FGraph build(GraphBuilder builder, ProcessedInput input, List<Decomposition> roots) {
+        return builder.fillGraph(builder.addRoot(builder.initializeEmptyGraph(input), input.getParentPeak(), roots));
+    }
+
+    /**
+     * both builders have to insert the same fragments in the same order and connect them by the same losses
+     */
+    private static void assertSameGraph(FGraph expected, FGraph actual) {
+        assertEquals(expected.numberOfVertices(), actual.numberOfVertices());
+        assertEquals(expected.numberOfEdges(), actual.numberOfEdges());
+        for (int i = 0; i < expected.numberOfVertices(); ++i) {
+            final Fragment u = expected.getFragmentAt(i), v = actual.getFragmentAt(i);
+            assertEquals(u.getFormula(), v.getFormula());
+            assertEquals(u.getColor(), v.getColor());
+            assertEquals(u.getOutDegree(), v.getOutDegree());
+            for (int k = 0; k < u.getOutDegree(); ++k) {
+                assertEquals(u.getChildren(k).getVertexId(), v.getChildren(k).getVertexId());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.graph;
+
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FragmentAnnotation;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.TestInputs;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MultiCandidateGraphTest {
+
+    /**
+     * The graph of each candidate view has to contain the same fragments and the same scored losses as the graph
+     * built and scored for this candidate alone. The vertex order of both graphs might differ, so fragments are
+     * identified by their formula and ionization.
+     */
+    @Test
+    public void testViewsMatchSeparatelyBuiltGraphs() {
+        final FragmentationPatternAnalysis analyzer = FragmentationPatternAnalysis.defaultAnalyzer();
+        final ProcessedInput input = TestInputs.preprocessedAdenosine(analyzer);
+        assertTrue(analyzer.isSharedGraphScoringPossible(input));
+        final List<Decomposition> candidates = TestInputs.candidatesOf(input);
+        assertTrue(candidates.size() > 1);
+        final MultiCandidateGraph shared = analyzer.buildMultiCandidateGraph(input, candidates);
+        assertEquals(candidates.size(), shared.getViews().size());
+        for (Decomposition candidate : candidates) {
+            final MultiCandidateGraph.CandidateView view = shared.getView(candidate);
+            assertNotNull(view);
+            final FGraph expected = analyzer.buildGraphWithoutReduction(input, candidate);
+            final FGraph actual = analyzer.buildGraphWithoutReduction(view);
+            assertTrue(actual.isTopologicalOrdered());
+            assertEquals(expected.numberOfVertices(), view.numberOfVertices());
+            assertEquals(expected.numberOfEdges(), view.numberOfEdges());
+            assertEquals(expected.numberOfVertices(), actual.numberOfVertices());
+            assertEquals(expected.numberOfEdges(), actual.numberOfEdges());
+            assertEquals(edgesOf(expected), edgesOf(actual));
+        }
+    }
+
+    private static Map<String, Map<String, Double>> edgesOf(FGraph graph) {
+        final FragmentAnnotation<Ionization> ion = graph.getFragmentAnnotationOrThrow(Ionization.class);
+        final Map<String, Map<String, Double>> edges = new HashMap<>();
+        for (Fragment u : graph) {
+            final Map<String, Double> outgoing = new HashMap<>();
+            for (Loss l : u.getOutgoingEdges()) {
+                // round the weights, such that different summation orders do not matter
+                outgoing.put(keyOf(l.getTarget(), ion), Math.round(l.getWeight() * 1e6) / 1e6);
+            }
+            assertNull(edges.put(keyOf(u, ion), outgoing));
+        }
+        return edges;
+    }
+
+    private static String keyOf(Fragment f, FragmentAnnotation<Ionization> ion) {
+        return f.isRoot() ? "root" : f.getFormula() + " " + ion.get(f) + " " + f.getColor();
+    }
+
+}
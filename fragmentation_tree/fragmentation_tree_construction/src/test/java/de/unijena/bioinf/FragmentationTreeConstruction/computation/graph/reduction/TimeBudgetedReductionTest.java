@@ -0,0 +1,129 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.reduction;
+
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.TestInputs;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.SimpleReduction;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class TimeBudgetedReductionTest {
+
+    /**
+     * number of colors of the test graphs. The optimal trees are computed by dynamic programming over all color sets
+     */
+    private static final int NUMBER_OF_COLORS = 10;
+
+    @Test
+    public void testIsNotUsedByDefault() {
+        assertTrue(FragmentationPatternAnalysis.defaultAnalyzer().getReduction() instanceof SimpleReduction);
+    }
+
+    /**
+     * the reduction must not change the score of the optimal tree. The graphs are the Adenosine candidate graphs
+     * restricted to the peaks with highest mass, such that the optimal tree can be computed exactly
+     */
+    @Test
+    public void testOptimalScoreIsPreserved() {
+        final FragmentationPatternAnalysis analyzer = FragmentationPatternAnalysis.defaultAnalyzer();
+        final ProcessedInput input = TestInputs.preprocessedAdenosine(analyzer);
+        int numberOfGraphs = 0;
+        for (Decomposition candidate : TestInputs.candidatesOf(input)) {
+            if (Double.isInfinite(candidate.getScore())) continue;
+            final FGraph graph = restrictToColors(analyzer.buildGraphWithoutReduction(input, candidate), NUMBER_OF_COLORS);
+            final double expected = optimalScore(graph);
+            final FGraph reduced = new TimeBudgetedReduction(null, 0, Integer.MAX_VALUE).reduce(new FGraph(graph), 0d);
+            assertEquals(candidate.getCandidate().toString(), expected, optimalScore(reduced), 1e-9);
+            final FGraph reducedAfterSimpleReduction = new TimeBudgetedReduction().reduce(new FGraph(graph), 0d);
+            assertEquals(candidate.getCandidate().toString(), expected, optimalScore(reducedAfterSimpleReduction), 1e-9);
+            ++numberOfGraphs;
+        }
+        assertTrue(numberOfGraphs > 0);
+    }
+
+    private static FGraph restrictToColors(FGraph graph, int numberOfColors) {
+        final TreeSet<Integer> colors = new TreeSet<>();
+        for (Fragment f : graph.getFragmentsWithoutRoot()) colors.add(f.getColor());
+        while (colors.size() > numberOfColors) colors.pollLast();
+        final BitSet vertices = new BitSet(graph.numberOfVertices());
+        vertices.set(graph.getRoot().getVertexId());
+        for (Fragment f : graph.getFragmentsWithoutRoot())
+            if (colors.contains(f.getColor())) vertices.set(f.getVertexId());
+        return new FGraph(graph, vertices);
+    }
+
+    /**
+     * computes the score of the maximum colorful subtree. score[v][S] is the maximal score of a subtree rooted at v
+     * which uses exactly the colors in S. Vertices have to be sorted topologically.
+     */
+    private static double optimalScore(FGraph graph) {
+        final int[] colorBits = new int[graph.maxColor() + 1];
+        Arrays.fill(colorBits, -1);
+        int numberOfColors = 0;
+        for (Fragment f : graph.getFragmentsWithoutRoot())
+            if (colorBits[f.getColor()] < 0) colorBits[f.getColor()] = numberOfColors++;
+        assertTrue(numberOfColors <= 16);
+        final int allColors = 1 << numberOfColors;
+        final double[][] score = new double[graph.numberOfVertices()][];
+        for (int i = graph.numberOfVertices() - 1; i > 0; --i) {
+            final Fragment v = graph.getFragmentAt(i);
+            final int color = 1 << colorBits[v.getColor()];
+            final double[] scores = new double[allColors];
+            Arrays.fill(scores, Double.NEGATIVE_INFINITY);
+            scores[color] = 0d;
+            for (int set = 0; set < allColors; ++set) {
+                if ((set & color) == 0 || set == color) continue;
+                final int rest = set & ~color;
+                double best = Double.NEGATIVE_INFINITY;
+                // v has a single child which covers the remaining colors
+                for (int k = 0; k < v.getOutDegree(); ++k) {
+                    final Loss l = v.getOutgoingEdge(k);
+                    final int child = l.getTarget().getVertexId();
+                    if ((rest & (1 << colorBits[l.getTarget().getColor()])) != 0)
+                        best = Math.max(best, score[child][rest] + l.getWeight());
+                }
+                // the remaining colors are split between two subtrees of v
+                final int lowestColor = rest & -rest;
+                for (int subset = (rest - 1) & rest; subset > 0; subset = (subset - 1) & rest) {
+                    if ((subset & lowestColor) == 0) continue;
+                    best = Math.max(best, scores[subset | color] + scores[(rest & ~subset) | color]);
+                }
+                scores[set] = best;
+            }
+            score[i] = scores;
+        }
+        double optimum = Double.NEGATIVE_INFINITY;
+        for (int k = 0; k < graph.getRoot().getOutDegree(); ++k) {
+            final Loss l = graph.getRoot().getOutgoingEdge(k);
+            for (double s : score[l.getTarget().getVertexId()]) optimum = Math.max(optimum, s + l.getWeight());
+        }
+        return optimum;
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.merging;
+
+import de.unijena.bioinf.ChemistryBase.ms.*;
+import de.unijena.bioinf.ChemistryBase.ms.utils.PeaklistSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedPeak;
+import de.unijena.bioinf.babelms.GenericParser;
+import de.unijena.bioinf.babelms.mgf.MgfParser;
+import de.unijena.bioinf.babelms.ms.JenaMsParser;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Compares the merge calls of {@link HighIntensityMerger} with the former implementation, which removed each
+ * merged window from the peak array.
+ */
+public class HighIntensityMergerTest {
+
+    @Test
+    public void testSameMergesAsFormerImplementation() {
+        final Random random = new Random(4711);
+        final Deviation[] windows = new Deviation[]{new Deviation(10, 0.002), new Deviation(20, 0.01), new Deviation(5, 0.0005)};
+        final int[] sizes = new int[]{0, 1, 2, 10, 50, 200, 1000, 5000};
+        for (int size : sizes) {
+            for (int repetition = 0; repetition < 10; ++repetition) {
+                final double parentMass = 100d + random.nextDouble() * 800d;
+                final boolean withParentPeak = random.nextBoolean();
+                final List<ProcessedPeak> peaks = randomSpectrum(random, size, parentMass, withParentPeak);
+                final MutableMs2Experiment experiment = new MutableMs2Experiment();
+                experiment.setIonMass(parentMass);
+                for (Deviation window : windows) {
+                    for (double minDistance : new double[]{0d, 0.005}) {
+                        final RecordingMerger expected = new RecordingMerger();
+                        new FormerHighIntensityMerger(minDistance).mergePeaks(new ArrayList<ProcessedPeak>(peaks), experiment, window, expected);
+                        final RecordingMerger actual = new RecordingMerger();
+                        new HighIntensityMerger(minDistance).mergePeaks(new ArrayList<ProcessedPeak>(peaks), experiment, window, actual);
+                        assertEquals("spectrum with " + size + " peaks, window " + window, expected.merges, actual.merges);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * the measured Adenosine spectrum and the spectra of the benchmark corpus, merged per MS/MS spectrum and over
+     * all MS/MS spectra of an experiment as in the preprocessing
+     */
+    @Test
+    public void testSameMergesAsFormerImplementationOnBundledSpectra() throws IOException {
+        final Deviation[] windows = new Deviation[]{new Deviation(10, 0.002), new Deviation(20, 0.01), new Deviation(5, 0.0005)};
+        final String[] resources = new String[]{"/Adenosine.ms", "/corpus/caffeine.mgf", "/corpus/quercetin-3-glucoside.ms", "/corpus/reserpine.mgf", "/corpus/erythromycin.ms"};
+        for (String resource : resources) {
+            final Ms2Experiment experiment = load(resource);
+            final List<List<ProcessedPeak>> spectra = new ArrayList<List<ProcessedPeak>>();
+            final List<ProcessedPeak> allPeaks = new ArrayList<ProcessedPeak>();
+            for (Ms2Spectrum<Peak> spectrum : experiment.getMs2Spectra()) {
+                final List<ProcessedPeak> peaks = peaksOf(spectrum);
+                spectra.add(peaks);
+                allPeaks.addAll(peaks);
+            }
+            spectra.add(allPeaks);
+            for (List<ProcessedPeak> peaks : spectra) {
+                for (Deviation window : windows) {
+                    for (double minDistance : new double[]{0d, 0.005}) {
+                        final RecordingMerger expected = new RecordingMerger();
+                        new FormerHighIntensityMerger(minDistance).mergePeaks(new ArrayList<ProcessedPeak>(peaks), experiment, window, expected);
+                        final RecordingMerger actual = new RecordingMerger();
+                        new HighIntensityMerger(minDistance).mergePeaks(new ArrayList<ProcessedPeak>(peaks), experiment, window, actual);
+                        assertEquals(resource + " with " + peaks.size() + " peaks, window " + window, expected.merges, actual.merges);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Ms2Experiment load(String resource) throws IOException {
+        final GenericParser<Ms2Experiment> parser = resource.endsWith(".mgf")
+                ? new GenericParser<Ms2Experiment>(new MgfParser())
+                : new GenericParser<Ms2Experiment>(new JenaMsParser());
+        try (final InputStream stream = HighIntensityMergerTest.class.getResourceAsStream(resource)) {
+            assertNotNull(resource, stream);
+            final Ms2Experiment experiment = parser.parse(stream);
+            assertNotNull(resource, experiment);
+            return experiment;
+        }
+    }
+
+    private static <P extends Peak> List<ProcessedPeak> peaksOf(Spectrum<P> spectrum) {
+        final double maxIntensity = Spectrums.getMaximalIntensity(spectrum);
+        final List<ProcessedPeak> peaks = new ArrayList<ProcessedPeak>(spectrum.size());
+        for (int k = 0; k < spectrum.size(); ++k) {
+            final ProcessedPeak peak = new ProcessedPeak();
+            peak.setMz(spectrum.getMzAt(k));
+            peak.setIntensity(spectrum.getIntensityAt(k));
+            peak.setRelativeIntensity(spectrum.getIntensityAt(k) / maxIntensity);
+            peaks.add(peak);
+        }
+        return peaks;
+    }
+
+    /*
+        peaks are drawn in clusters, such that many merge windows overlap. Intensities are drawn from a small set of
+        values to test the order of peaks with same intensity
+     */
+    private static List<ProcessedPeak> randomSpectrum(Random random, int size, double parentMass, boolean withParentPeak) {
+        final ArrayList<ProcessedPeak> peaks = new ArrayList<ProcessedPeak>(size + 1);
+        double center = 50d;
+        for (int i = 0; i < size; ++i) {
+            if (random.nextInt(4) == 0) center = 50d + random.nextDouble() * (parentMass + 20d - 50d);
+            final double mz = center + random.nextGaussian() * 0.005;
+            peaks.add(peak(mz, (1 + random.nextInt(20)) / 20d));
+        }
+        if (withParentPeak) peaks.add(peak(parentMass + random.nextGaussian() * 0.001, 0.5));
+        Collections.shuffle(peaks, random);
+        return peaks;
+    }
+
+    private static ProcessedPeak peak(double mz, double intensity) {
+        final ProcessedPeak peak = new ProcessedPeak();
+        peak.setMz(mz);
+        peak.setIntensity(intensity);
+        peak.setRelativeIntensity(intensity);
+        return peak;
+    }
+
+    private static class RecordingMerger implements Merger {
+        private final List<String> merges = new ArrayList<String>();
+
+        @Override
+        public ProcessedPeak merge(List<ProcessedPeak> peaks, int index, double newMz) {
+            final StringBuilder buffer = new StringBuilder();
+            for (ProcessedPeak p : peaks) buffer.append(System.identityHashCode(p)).append(' ');
+            buffer.append("main=").append(index).append(" mz=").append(newMz);
+            merges.add(buffer.toString());
+            return peaks.get(index);
+        }
+    }
+
+    /*
+        the implementation of HighIntensityMerger before merged peaks were skipped instead of removed from the array
+     */
+    private static class FormerHighIntensityMerger extends HighIntensityMerger {
+        private final double minMergeDistance;
+
+        private FormerHighIntensityMerger(double minMergeDistance) {
+            super(minMergeDistance);
+            this.minMergeDistance = minMergeDistance;
+        }
+
+        @Override
+        public void mergePeaks(List<ProcessedPeak> peaks, Ms2Experiment experiment, Deviation mergeWindow, Merger merger) {
+            mergeWindow = new Deviation(mergeWindow.getPpm(), Math.max(mergeWindow.getAbsolute(), minMergeDistance));
+            final ProcessedPeak[] mzArray = peaks.toArray(new ProcessedPeak[peaks.size()]);
+            final ProcessedPeak.MassComparator massComparator = new ProcessedPeak.MassComparator();
+            Arrays.sort(mzArray, new ProcessedPeak.MassComparator());
+            final Spectrum<ProcessedPeak> massOrderedSpectrum = new PeaklistSpectrum<ProcessedPeak>(Arrays.asList(mzArray));
+            int n = mzArray.length;
+            int parentIndex = mergeParentPeak(experiment, mergeWindow, merger, mzArray, massOrderedSpectrum);
+            final double parentMass = experiment.getIonMass();
+            for (; parentIndex > 0 && mzArray[parentIndex-1].getMz()+0.1d >= parentMass; --parentIndex);
+            n = parentIndex;
+            final ProcessedPeak[] parray = Arrays.copyOf(mzArray, parentIndex);
+            Arrays.sort(parray, Collections.reverseOrder(new ProcessedPeak.RelativeIntensityComparator()));
+            for (int i=0; i < parray.length; ++i) {
+                final ProcessedPeak p = parray[i];
+                final int index = Arrays.binarySearch(mzArray, 0, n, p, massComparator);
+                if (index < 0) continue;
+                final double error = mergeWindow.absoluteFor(p.getMz());
+                final double min = p.getMz() - error;
+                final double max = p.getMz() + error;
+                int minIndex = index;
+                while (minIndex >= 0 && mzArray[minIndex].getMz() >= min) --minIndex;
+                ++minIndex;
+                int maxIndex = index;
+                while (maxIndex < n && mzArray[maxIndex].getMz() <= max) ++maxIndex;
+                merger.merge(new ArrayList<ProcessedPeak>(Arrays.asList(mzArray).subList(minIndex, maxIndex)), index-minIndex, p.getMz());
+                System.arraycopy(mzArray, maxIndex, mzArray, minIndex, n-maxIndex);
+                n -= (maxIndex - minIndex);
+            }
+        }
+    }
+}
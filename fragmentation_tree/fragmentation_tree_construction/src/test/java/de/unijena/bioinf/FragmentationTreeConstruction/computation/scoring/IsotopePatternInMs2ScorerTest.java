@@ -0,0 +1,141 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring;
+
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.ms.Normalization;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FragmentAnnotation;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.TestInputs;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.GraphBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import de.unijena.bioinf.IsotopePatternAnalysis.IsotopePattern;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.FastIsotopePatternGenerator;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.FragmentIsotopeGenerator;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class IsotopePatternInMs2ScorerTest {
+
+    /**
+     * scoring the MS1 isotope patterns of the fragments in parallel batches has to yield exactly the same edge
+     * weights and pattern annotations as scoring them in the calling thread
+     */
+    @Test
+    public void testParallelScoringFromMs1() {
+        final FragmentationPatternAnalysis analyzer = FragmentationPatternAnalysis.defaultAnalyzer();
+        final ProcessedInput input = TestInputs.preprocessedAdenosine(analyzer);
+        assertNotNull(input.getExperimentInformation().getMergedMs1Spectrum());
+        final IsotopePatternInMs2Scorer sequential = new IsotopePatternInMs2Scorer();
+        final IsotopePatternInMs2Scorer parallel = new IsotopePatternInMs2Scorer();
+        parallel.setParallelThreshold(0);
+        for (Decomposition candidate : TestInputs.candidatesOf(input)) {
+            final FGraph expected = buildGraph(analyzer, input, candidate);
+            final FGraph actual = buildGraph(analyzer, input, candidate);
+            sequential.scoreFromMs1(input, expected);
+            parallel.scoreFromMs1(input, actual);
+            final FragmentAnnotation<IsotopePattern> expectedPatterns = expected.getFragmentAnnotationOrThrow(IsotopePattern.class);
+            final FragmentAnnotation<IsotopePattern> actualPatterns = actual.getFragmentAnnotationOrThrow(IsotopePattern.class);
+            assertEquals(expected.numberOfVertices(), actual.numberOfVertices());
+            for (int i = 1; i < expected.numberOfVertices(); ++i) {
+                final Fragment u = expected.getFragmentAt(i), v = actual.getFragmentAt(i);
+                assertEquals(u.getFormula(), v.getFormula());
+                final IsotopePattern p = expectedPatterns.get(u), q = actualPatterns.get(v);
+                assertEquals(p == null, q == null);
+                if (p != null) assertEquals(p.getScore(), q.getScore(), 0d);
+                assertEquals(u.getInDegree(), v.getInDegree());
+                for (int k = 0; k < u.getInDegree(); ++k)
+                    assertEquals(u.getIncomingEdge(k).getWeight(), v.getIncomingEdge(k).getWeight(), 0d);
+            }
+        }
+    }
+
+    /**
+     * simulating the patterns of all fragments of a graph in one batch has to yield the same patterns as the former
+     * per-fragment simulation, also for fragments which share their loss and for MS1 patterns whose unfolding yields
+     * negative intensities
+     */
+    @Test
+    public void testBatchedFragmentPatternsEqualPerFragmentPatterns() {
+        final FragmentationPatternAnalysis analyzer = FragmentationPatternAnalysis.defaultAnalyzer();
+        final ProcessedInput input = TestInputs.preprocessedAdenosine(analyzer);
+        final Ionization ion = input.getExperimentInformation().getPrecursorIonType().getIonization();
+        final FastIsotopePatternGenerator generator = new FastIsotopePatternGenerator(Normalization.Sum(1d));
+        int truncated = 0;
+        for (Decomposition candidate : TestInputs.candidatesOf(input)) {
+            final FGraph graph = buildGraph(analyzer, input, candidate);
+            final MolecularFormula ms1Formula = graph.getRoot().getChildren(0).getFormula();
+            final List<MolecularFormula> formulas = new ArrayList<MolecularFormula>();
+            for (Fragment f : graph) {
+                if (f.getFormula()!=null && !f.getFormula().isEmpty()) formulas.add(f.getFormula());
+            }
+            // the same fragment formulas again, such that each loss occurs at least twice
+            formulas.addAll(new ArrayList<MolecularFormula>(formulas));
+            final SimpleSpectrum simulatedMs1 = generator.simulatePattern(ms1Formula, ion);
+            final SimpleMutableSpectrum distorted = new SimpleMutableSpectrum(simulatedMs1);
+            distorted.setIntensityAt(1, distorted.getIntensityAt(1) / 10d);
+            for (SimpleSpectrum ms1Pattern : new SimpleSpectrum[]{simulatedMs1, new SimpleSpectrum(distorted)}) {
+                final FragmentIsotopeGenerator fisogen = new FragmentIsotopeGenerator();
+                final SimpleSpectrum[] batched = IsotopePatternInMs2Scorer.simulateFragmentPatterns(fisogen, ms1Pattern, ms1Formula, ion, formulas);
+                assertEquals(formulas.size(), batched.length);
+                for (int k = 0; k < formulas.size(); ++k) {
+                    final SimpleSpectrum expected = formerFragmentPattern(fisogen, ms1Pattern, ms1Formula, formulas.get(k), ion);
+                    assertEquals(expected.size(), batched[k].size());
+                    for (int i = 0; i < expected.size(); ++i) {
+                        assertEquals(expected.getMzAt(i), batched[k].getMzAt(i), 0d);
+                        assertEquals(expected.getIntensityAt(i), batched[k].getIntensityAt(i), 0d);
+                    }
+                    if (batched[k].size() < ms1Pattern.size()) ++truncated;
+                }
+            }
+        }
+        assertTrue("distorted MS1 pattern should yield negative fragment intensities", truncated > 0);
+    }
+
+    /**
+     * the pattern of a single fragment as it was simulated by the scorer before the fragments were batched
+     */
+    private static SimpleSpectrum formerFragmentPattern(FragmentIsotopeGenerator fisogen, SimpleSpectrum ms1Pattern, MolecularFormula ms1Formula, MolecularFormula formula, Ionization ion) {
+        if (formula.equals(ms1Formula)) return ms1Pattern;
+        final SimpleSpectrum spec = fisogen.simulatePattern(ms1Pattern, ms1Formula, ms1Formula.subtract(formula), ion, true);
+        final double[] mz = new double[spec.size()];
+        final double[] intensity = new double[spec.size()];
+        for (int k=0; k < spec.size(); ++k) {
+            mz[k] = spec.getMzAt(k);
+            intensity[k] = spec.getIntensityAt(k)/spec.getIntensityAt(0);
+        }
+        return new SimpleSpectrum(mz, intensity);
+    }
+
+    private static FGraph buildGraph(FragmentationPatternAnalysis analyzer, ProcessedInput input, Decomposition candidate) {
+        final GraphBuilder builder = analyzer.getGraphBuilder();
+        return builder.fillGraph(builder.addRoot(builder.initializeEmptyGraph(input), input.getParentPeak(), Collections.singletonList(candidate)));
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PortfolioTreeBuilderTest {
+
+    @Test
+    public void testExactSolverRunsWithinDeadline() {
+        final StubTreeBuilder heuristic = new StubTreeBuilder(tree(1d), false);
+        final StubTreeBuilder exact = new StubTreeBuilder(tree(2d), true);
+        final TreeBuilder.Result result = new PortfolioTreeBuilder(heuristic, exact, 10d).computeTree().withTimeLimit(60).solve(null, null);
+        assertTrue(result.isOptimal);
+        assertEquals(2d, result.tree.getTreeWeight(), 0d);
+        assertEquals(1, exact.numberOfCalls);
+        assertEquals(10d, exact.lastTimeLimit, 0d);
+        assertEquals(1d - 1e-3, exact.lastMinimalScore, 1e-9);
+    }
+
+    @Test
+    public void testExactSolverIsBoundedByEndTime() {
+        final StubTreeBuilder heuristic = new StubTreeBuilder(tree(1d), false);
+        final StubTreeBuilder exact = new StubTreeBuilder(tree(2d), true);
+        final PortfolioTreeBuilder builder = new PortfolioTreeBuilder(heuristic, exact, 10d, System.currentTimeMillis() + 3000);
+        builder.computeTree().solve(null, null);
+        assertEquals(1, exact.numberOfCalls);
+        assertTrue(exact.lastTimeLimit > 0 && exact.lastTimeLimit <= 3d);
+    }
+
+    /**
+     * after the end time of the compound has passed, the exact solver is not called anymore and the heuristic tree
+     * is returned
+     */
+    @Test
+    public void testHeuristicOnlyAfterEndTime() {
+        final StubTreeBuilder heuristic = new StubTreeBuilder(tree(1d), false);
+        final StubTreeBuilder exact = new StubTreeBuilder(tree(2d), true);
+        final PortfolioTreeBuilder builder = new PortfolioTreeBuilder(heuristic, exact, 10d, System.currentTimeMillis() - 1);
+        final TreeBuilder.Result result = builder.computeTree().solve(null, null);
+        assertEquals(0, exact.numberOfCalls);
+        assertFalse(result.isOptimal);
+        assertEquals(TreeBuilder.AbortReason.TIMEOUT, result.error);
+        assertEquals(1d, result.tree.getTreeWeight(), 0d);
+    }
+
+    /**
+     * if the exact solver stops with a non-optimal tree which is better than the heuristic tree, this tree has to be
+     * passed to the listener before it is returned, even if the exact solver did not publish it itself
+     */
+    @Test
+    public void testNonOptimalIncumbentIsPublished() {
+        final StubTreeBuilder heuristic = new StubTreeBuilder(tree(1d), false);
+        final StubTreeBuilder exact = new StubTreeBuilder(tree(2d), false) {
+            @Override
+            protected Result result(FluentInterface options) {
+                return new Result(super.result(options).tree, false, AbortReason.TIMEOUT, 3d);
+            }
+        };
+        final RecordingListener listener = new RecordingListener();
+        final TreeBuilder.Result result = new PortfolioTreeBuilder(heuristic, exact, 10d).computeTree().withIncumbentListener(listener).solve(null, null);
+        assertFalse(result.isOptimal);
+        assertEquals(2d, result.tree.getTreeWeight(), 0d);
+        assertEquals(3d, result.upperBound, 0d);
+        assertEquals(2, listener.scores.size());
+        assertEquals(1d, listener.scores.get(0), 0d);
+        assertEquals(2d, listener.scores.get(1), 0d);
+        assertSame(result.tree, listener.results.get(1).tree);
+    }
+
+    /**
+     * an incumbent which the exact solver already published is not passed to the listener a second time, and
+     * incumbents worse than the heuristic tree are never published
+     */
+    @Test
+    public void testOnlyImprovingIncumbentsArePublished() {
+        final StubTreeBuilder heuristic = new StubTreeBuilder(tree(1d), false);
+        final StubTreeBuilder publishingExact = new StubTreeBuilder(tree(2d), false) {
+            @Override
+            protected Result result(FluentInterface options) {
+                final Result r = new Result(super.result(options).tree, false, AbortReason.TIMEOUT);
+                options.getIncumbentListener().newIncumbent(r);
+                return r;
+            }
+        };
+        final RecordingListener listener = new RecordingListener();
+        new PortfolioTreeBuilder(heuristic, publishingExact, 10d).computeTree().withIncumbentListener(listener).solve(null, null);
+        assertEquals(2, listener.scores.size());
+
+        final StubTreeBuilder worseExact = new StubTreeBuilder(tree(0.5d), false);
+        final RecordingListener listener2 = new RecordingListener();
+        final TreeBuilder.Result result = new PortfolioTreeBuilder(heuristic, worseExact, 10d).computeTree().withIncumbentListener(listener2).solve(null, null);
+        assertEquals(1d, result.tree.getTreeWeight(), 0d);
+        assertEquals(1, listener2.scores.size());
+        assertEquals(1d, listener2.scores.get(0), 0d);
+    }
+
+    private static FTree tree(double score) {
+        final FTree tree = new FTree(MolecularFormula.parse("C6H12O6"));
+        tree.setTreeWeight(score);
+        return tree;
+    }
+
+    private static class RecordingListener implements TreeBuilder.IncumbentListener {
+        private final List<TreeBuilder.Result> results = new ArrayList<>();
+        private final List<Double> scores = new ArrayList<>();
+
+        @Override
+        public synchronized void newIncumbent(TreeBuilder.Result result) {
+            results.add(result);
+            scores.add(result.tree.getTreeWeight());
+        }
+    }
+
+    /**
+     * returns always the same tree and records the options of its last call
+     */
+    protected static class StubTreeBuilder implements TreeBuilder {
+        private final FTree tree;
+        private final boolean optimal;
+        protected int numberOfCalls = 0;
+        protected double lastTimeLimit = Double.NaN, lastMinimalScore = Double.NaN;
+
+        protected StubTreeBuilder(FTree tree, boolean optimal) {
+            this.tree = tree;
+            this.optimal = optimal;
+        }
+
+        @Override
+        public FluentInterface computeTree() {
+            return new FluentInterface(this);
+        }
+
+        @Override
+        public Result computeTree(ProcessedInput input, FGraph graph, FluentInterface options) {
+            ++numberOfCalls;
+            lastTimeLimit = options.getTimeLimitsInSeconds();
+            lastMinimalScore = options.getMinimalScore();
+            return result(options);
+        }
+
+        protected Result result(FluentInterface options) {
+            return new Result(tree, optimal, AbortReason.COMPUTATION_CORRECT);
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return true;
+        }
+    }
+
+}
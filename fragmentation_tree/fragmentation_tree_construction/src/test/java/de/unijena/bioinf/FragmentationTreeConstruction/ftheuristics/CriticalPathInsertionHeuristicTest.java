@@ -0,0 +1,151 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics;
+
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.TestInputs;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CriticalPathInsertionHeuristicTest {
+
+    /**
+     * maintaining the critical paths incrementally has to yield exactly the same trees as the former implementation,
+     * which invalidated the critical paths of all vertices with smaller color after each insertion
+     */
+    @Test
+    public void testSameTreesAsFormerImplementation() {
+        for (FGraph graph : adenosineGraphs()) {
+            final CriticalPathInsertionHeuristic expected = new FormerCriticalPathInsertionHeuristic(graph);
+            final CriticalPathInsertionHeuristic actual = new CriticalPathInsertionHeuristic(graph);
+            assertSameTree(expected, expected.solve(), actual, actual.solve());
+        }
+    }
+
+    /**
+     * the critical paths have to be the same as if they were recomputed from scratch after each insertion, also for
+     * the heuristic with isotope peaks
+     */
+    @Test
+    public void testSameTreesAsRecomputation() {
+        for (FGraph graph : adenosineGraphs()) {
+            final CriticalPathInsertionHeuristic expected = new CriticalPathInsertionWithIsotopePeaksHeuristic(graph) {
+                @Override
+                protected void invalidateColor(int color) {
+                    Arrays.fill(criticalPaths, Double.NaN);
+                }
+
+                @Override
+                protected void updateCriticalPaths() {
+                }
+            };
+            final CriticalPathInsertionHeuristic actual = new CriticalPathInsertionWithIsotopePeaksHeuristic(graph);
+            assertSameTree(expected, expected.solve(), actual, actual.solve());
+        }
+    }
+
+    private static void assertSameTree(CriticalPathInsertionHeuristic expected, FTree expectedTree, CriticalPathInsertionHeuristic actual, FTree actualTree) {
+        assertEquals(expectedTree.getTreeWeight(), actualTree.getTreeWeight(), 0d);
+        assertEquals(expected.usedColorList, actual.usedColorList);
+        for (int i = 0; i < expected.usedColorList.size(); ++i) {
+            final int color = expected.usedColorList.get(i);
+            assertSame(expected.color2Edge.get(color), actual.color2Edge.get(color));
+        }
+        assertEquals(expectedTree.numberOfVertices(), actualTree.numberOfVertices());
+        final Iterator<Fragment> fs = expectedTree.iterator(), gs = actualTree.iterator();
+        while (fs.hasNext()) {
+            final Fragment f = fs.next(), g = gs.next();
+            assertEquals(f.getFormula(), g.getFormula());
+            if (!f.isRoot()) assertEquals(f.getIncomingEdge().getWeight(), g.getIncomingEdge().getWeight(), 0d);
+        }
+    }
+
+    private static List<FGraph> adenosineGraphs() {
+        final FragmentationPatternAnalysis analyzer = FragmentationPatternAnalysis.defaultAnalyzer();
+        final ProcessedInput input = TestInputs.preprocessedAdenosine(analyzer);
+        final List<FGraph> graphs = new ArrayList<>();
+        for (Decomposition candidate : TestInputs.candidatesOf(input)) {
+            if (Double.isInfinite(candidate.getScore())) continue;
+            graphs.add(analyzer.buildGraph(input, candidate));
+            graphs.add(analyzer.buildGraphWithoutReduction(input, candidate));
+        }
+        assertFalse(graphs.isEmpty());
+        return graphs;
+    }
+
+    /**
+     * the former implementation: the critical paths of all vertices up to the inserted color are invalidated and the
+     * selectable edges are collected again in each round
+     */
+    private static class FormerCriticalPathInsertionHeuristic extends CriticalPathInsertionHeuristic {
+
+        private FormerCriticalPathInsertionHeuristic(FGraph graph) {
+            super(graph);
+        }
+
+        @Override
+        protected boolean findCriticalPaths() {
+            double bestPathScore = 0d;
+            Loss bestLoss = null;
+            for (Loss l : selectableEdges) {
+                final double criticalScore = recomputeCriticalScore(l.getTarget().getVertexId()) + l.getWeight() + maxOut[l.getTarget().getVertexId()];
+                if (criticalScore > bestPathScore) {
+                    bestPathScore = criticalScore;
+                    bestLoss = l;
+                }
+            }
+            if (bestLoss == null) return false;
+            final Fragment u = bestLoss.getTarget();
+            formerInvalidateColor(u.getColor());
+            insert(bestLoss);
+            selectableEdges.clear();
+            for (int i = 0, n = usedColorList.size(); i < n; ++i) {
+                addSeletableEdgesFor(color2Edge.get(usedColorList.getQuick(i)).getTarget());
+            }
+            return true;
+        }
+
+        private void formerInvalidateColor(int color) {
+            final Fragment pseudoFragment = new Fragment(0, null);
+            pseudoFragment.setColor(color);
+            int searchKey = Collections.binarySearch(graph.getFragments(), pseudoFragment, new Comparator<Fragment>() {
+                @Override
+                public int compare(Fragment o1, Fragment o2) {
+                    return o1.getColor() - o2.getColor();
+                }
+            });
+            if (searchKey < 0) {
+                searchKey = -(searchKey + 1);
+            } else {
+                while (searchKey < graph.numberOfVertices() && graph.getFragmentAt(searchKey).getColor() == color)
+                    ++searchKey;
+            }
+            Arrays.fill(criticalPaths, 0, searchKey, Double.NaN);
+        }
+    }
+
+}
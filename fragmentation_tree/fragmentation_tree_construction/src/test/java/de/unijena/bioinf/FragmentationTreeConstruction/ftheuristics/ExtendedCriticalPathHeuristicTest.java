@@ -0,0 +1,360 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.TestInputs;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ExtendedCriticalPathHeuristicTest {
+
+    private static final int NUMBER_OF_RANDOM_GRAPHS = 200;
+
+    /**
+     * maintaining the critical paths and the best selectable edges incrementally has to yield exactly the same trees
+     * as the former implementation, which invalidated the critical paths of all vertices with smaller color and
+     * collected all selectable edges again after each insertion
+     */
+    @Test
+    public void testSameTreesAsFormerImplementationOnRandomGraphs() {
+        final Random random = new Random(4711);
+        for (int i = 0; i < NUMBER_OF_RANDOM_GRAPHS; ++i) {
+            final int numberOfColors = 2 + random.nextInt(40);
+            final int maxVerticesPerColor = 1 + random.nextInt(6);
+            final int numberOfRoots = 1 + random.nextInt(3);
+            final double edgeProbability = 0.05 + 0.6 * random.nextDouble();
+            final FGraph graph = randomGraph(random, numberOfColors, maxVerticesPerColor, numberOfRoots, edgeProbability);
+            assertSameTreesForAllVariants("random graph " + i, graph);
+        }
+    }
+
+    @Test
+    public void testSameTreesAsFormerImplementationOnAdenosine() {
+        final FragmentationPatternAnalysis analyzer = FragmentationPatternAnalysis.defaultAnalyzer();
+        final ProcessedInput input = TestInputs.preprocessedAdenosine(analyzer);
+        int numberOfGraphs = 0;
+        for (Decomposition candidate : TestInputs.candidatesOf(input)) {
+            if (Double.isInfinite(candidate.getScore())) continue;
+            assertSameTreesForAllVariants(candidate.getCandidate().toString(), analyzer.buildGraph(input, candidate));
+            assertSameTreesForAllVariants(candidate.getCandidate().toString(), analyzer.buildGraphWithoutReduction(input, candidate));
+            ++numberOfGraphs;
+        }
+        assertTrue(numberOfGraphs > 0);
+    }
+
+    private static void assertSameTreesForAllVariants(String name, FGraph graph) {
+        for (boolean stopEarly : new boolean[]{true, false}) {
+            for (int insertion = 0; insertion <= 2; ++insertion) {
+                final String message = name + " (stopEarly = " + stopEarly + ", insertion = " + insertion + ")";
+                final FormerExtendedCriticalPathHeuristic expected = new FormerExtendedCriticalPathHeuristic(graph, stopEarly, insertion);
+                final ExtendedCriticalPathHeuristic actual = new ExtendedCriticalPathHeuristic(graph, stopEarly, insertion);
+                final FTree expectedTree = expected.solve(), actualTree = actual.solve();
+                assertEquals(message, Arrays.asList(expected.usedEdges).subList(0, expected.numberOfSelectedEdges), actual.getSelectedEdges());
+                assertSameTree(message, expectedTree, actualTree);
+            }
+        }
+    }
+
+    private static void assertSameTree(String message, FTree expectedTree, FTree actualTree) {
+        assertEquals(message, expectedTree.getTreeWeight(), actualTree.getTreeWeight(), 0d);
+        assertEquals(message, expectedTree.numberOfVertices(), actualTree.numberOfVertices());
+        final Iterator<Fragment> fs = expectedTree.iterator(), gs = actualTree.iterator();
+        while (fs.hasNext()) {
+            final Fragment f = fs.next(), g = gs.next();
+            assertEquals(message, f.getFormula(), g.getFormula());
+            if (!f.isRoot()) assertEquals(message, f.getIncomingEdge().getWeight(), g.getIncomingEdge().getWeight(), 0d);
+        }
+    }
+
+    /**
+     * creates a colored graph whose vertices are sorted by color, as the graphs built by the
+     * {@link FragmentationPatternAnalysis}. The pseudo root has color 0 and the root candidates color 1. Each vertex
+     * gets a unique formula and an edge to each vertex of larger color with the given probability.
+     * Edge weights are normally distributed, such that the graphs contain positive and negative edges.
+     */
+    static FGraph randomGraph(Random random, int numberOfColors, int maxVerticesPerColor, int numberOfRoots, double edgeProbability) {
+        final FGraph graph = new FGraph();
+        graph.getRoot().setColor(0);
+        final List<Fragment> vertices = new ArrayList<>();
+        for (int k = 0; k < numberOfRoots; ++k) {
+            final Fragment root = graph.addRootVertex(formula(1, k));
+            root.setColor(1);
+            root.getIncomingEdge().setWeight(random.nextGaussian());
+            vertices.add(root);
+        }
+        for (int color = 2; color <= numberOfColors; ++color) {
+            final int previousVertices = vertices.size();
+            for (int k = 0, n = 1 + random.nextInt(maxVerticesPerColor); k < n; ++k) {
+                final Fragment v = graph.addFragment(formula(color, k));
+                v.setColor(color);
+                for (int i = 0; i < previousVertices; ++i) {
+                    if (random.nextDouble() < edgeProbability)
+                        graph.addLoss(vertices.get(i), v).setWeight(random.nextGaussian());
+                }
+                vertices.add(v);
+            }
+        }
+        return graph;
+    }
+
+    private static MolecularFormula formula(int color, int k) {
+        return MolecularFormula.parse("C" + color + "H" + (k + 1));
+    }
+
+    /**
+     * the former implementation: the selectable edges are collected again and the critical paths of all vertices up
+     * to the maximal inserted color are invalidated in each round
+     */
+    private static class FormerExtendedCriticalPathHeuristic {
+
+        protected final boolean STOP_EARLY;
+        protected final int INSERTION;
+
+        protected FGraph graph;
+
+        protected BitSet usedColors;
+        protected Loss[] usedEdges;
+        protected int numberOfSelectedEdges;
+        protected ArrayList<Loss> selectableEdges;
+        protected double[] criticalPaths;
+
+        private FormerExtendedCriticalPathHeuristic(FGraph graph, boolean stopEarly, int insertion) {
+            this.STOP_EARLY = stopEarly;
+            this.INSERTION = insertion;
+            this.graph = graph;
+            this.usedColors = new BitSet(graph.maxColor() + 1);
+            this.usedEdges = new Loss[graph.maxColor() + 1];
+            this.numberOfSelectedEdges = 0;
+            this.selectableEdges = new ArrayList<>(graph.maxColor() + 1);
+            this.criticalPaths = new double[graph.numberOfVertices()];
+            if (graph.getRoot().getOutDegree() == 1) {
+                usedEdges[numberOfSelectedEdges++] = graph.getRoot().getOutgoingEdge(0);
+                addSeletableEdgesFor(graph.getRoot().getChildren(0));
+            } else {
+                addSeletableEdgesFor(graph.getRoot());
+            }
+            Arrays.fill(criticalPaths, Double.NaN);
+        }
+
+        protected void invalidateColor(int color) {
+            final Fragment pseudoFragment = new Fragment(0, null);
+            pseudoFragment.setColor(color);
+            int searchKey = Collections.binarySearch(graph.getFragments(), pseudoFragment, new Comparator<Fragment>() {
+                @Override
+                public int compare(Fragment o1, Fragment o2) {
+                    return o1.getColor() - o2.getColor();
+                }
+            });
+            if (searchKey < 0) {
+                searchKey = -(searchKey + 1);
+            } else {
+                while (searchKey < graph.numberOfVertices() && graph.getFragmentAt(searchKey).getColor() == color)
+                    ++searchKey;
+            }
+            Arrays.fill(criticalPaths, 0, searchKey, Double.NaN);
+        }
+
+        public FTree solve() {
+            while (findCriticalPaths()) {
+
+            }
+            if (INSERTION == 1) relocateAll();
+            else if (INSERTION == 2) relocateBySpanningTree();
+            return buildSolution();
+        }
+
+        protected FTree buildSolution() {
+            if (numberOfSelectedEdges == 0) {
+                Fragment bestFrag = null;
+                for (Fragment f : graph.getRoot().getChildren()) {
+                    if (bestFrag == null || bestFrag.getIncomingEdge().getWeight() < f.getIncomingEdge().getWeight()) {
+                        bestFrag = f;
+                    }
+                }
+                final FTree t = new FTree(bestFrag.getFormula());
+                t.setTreeWeight(bestFrag.getIncomingEdge().getWeight());
+                return t;
+            }
+            Arrays.sort(usedEdges, 0, numberOfSelectedEdges, Comparator.comparingInt(a -> a.getTarget().getColor()));
+            final FTree tree = new FTree(usedEdges[0].getTarget().getFormula());
+            final HashMap<MolecularFormula, Fragment> fragmentsByFormula = new HashMap<>();
+            fragmentsByFormula.put(tree.getRoot().getFormula(), tree.getRoot());
+            for (int i = 1; i < numberOfSelectedEdges; ++i) {
+                final Fragment f = tree.addFragment(fragmentsByFormula.get(usedEdges[i].getSource().getFormula()), usedEdges[i].getTarget().getFormula());
+                f.getIncomingEdge().setWeight(usedEdges[i].getWeight());
+                fragmentsByFormula.put(f.getFormula(), f);
+            }
+            double score = 0d;
+            for (int i = 0; i < numberOfSelectedEdges; ++i) {
+                score += usedEdges[i].getWeight();
+            }
+            tree.setTreeWeight(score);
+            return tree;
+        }
+
+        protected boolean findCriticalPaths() {
+            double bestPathScore = 0d;
+            Loss bestLoss = null;
+            for (Loss l : selectableEdges) {
+                final double criticalScore = recomputeCriticalScore(l.getTarget().getVertexId()) + l.getWeight();
+                if (criticalScore > bestPathScore) {
+                    bestPathScore = criticalScore;
+                    bestLoss = l;
+                }
+            }
+            int maxColor = -1;
+            if (bestLoss != null)
+                maxColor = backtrackBestPath(bestLoss, maxColor);
+            selectableEdges.clear();
+            for (int i = 0, n = numberOfSelectedEdges; i < n; ++i) {
+                addSeletableEdgesFor(usedEdges[i].getTarget());
+            }
+
+            if (maxColor >= 0) invalidateColor(maxColor);
+            return bestLoss != null;
+        }
+
+        protected int backtrackBestPath(Loss loss, int maxColor) {
+            usedEdges[numberOfSelectedEdges++] = loss;
+            usedColors.set(loss.getTarget().getColor());
+            final Fragment u = loss.getTarget();
+            maxColor = Math.max(u.getColor(), maxColor);
+            double bestWeight = criticalPaths[u.getVertexId()];
+            if (bestWeight + loss.getWeight() <= 0 || STOP_EARLY) {
+                return maxColor;
+            }
+            double heighestWeight = 0d;
+            Loss bestLoss = null;
+            for (int i = 0, n = u.getOutDegree(); i < n; ++i) {
+                final Loss uv = u.getOutgoingEdge(i);
+                final double weight = criticalPaths[uv.getTarget().getVertexId()] + uv.getWeight();
+                if (Double.isNaN(weight)) continue;
+                if (weight >= bestWeight) {
+                    bestLoss = uv;
+                    break;
+                } else if (weight >= heighestWeight) {
+                    heighestWeight = weight;
+                    bestLoss = uv;
+                }
+            }
+            if (bestLoss != null)
+                return backtrackBestPath(bestLoss, maxColor);
+            return maxColor;
+        }
+
+        protected double recomputeCriticalScore(int vertexId) {
+            if (!Double.isNaN(criticalPaths[vertexId]))
+                return criticalPaths[vertexId];
+            final Fragment u = graph.getFragmentAt(vertexId);
+            criticalPaths[vertexId] = 0d;
+            for (int i = 0, n = u.getOutDegree(); i < n; ++i) {
+                final Loss uv = u.getOutgoingEdge(i);
+                if (!usedColors.get(uv.getTarget().getColor())) {
+                    final double weight = recomputeCriticalScore(uv.getTarget().getVertexId()) + uv.getWeight();
+                    criticalPaths[vertexId] = Math.max(criticalPaths[vertexId], weight);
+                }
+            }
+            return criticalPaths[vertexId];
+        }
+
+        protected void addSeletableEdgesFor(Fragment root) {
+            for (int i = 0, n = root.getOutDegree(); i < n; ++i) {
+                final Loss l = root.getOutgoingEdge(i);
+                if (!usedColors.get(l.getTarget().getColor())) {
+                    selectableEdges.add(l);
+                }
+            }
+        }
+
+        protected BitSet usedFragments;
+
+        protected void relocateAll() {
+            this.usedFragments = new BitSet(graph.numberOfVertices());
+            for (int l = 0; l < numberOfSelectedEdges; ++l) {
+                usedFragments.set(usedEdges[l].getTarget().getVertexId());
+            }
+            for (int l = 0; l < numberOfSelectedEdges; ++l) {
+                relocate(l);
+            }
+        }
+
+        protected void relocateBySpanningTree() {
+            final TIntObjectHashMap<ArrayList<Loss>> availableLosses = new TIntObjectHashMap<>();
+            final BitSet usedFragments = new BitSet(graph.numberOfVertices());
+            for (int l = 0; l < numberOfSelectedEdges; ++l) {
+                usedFragments.set(usedEdges[l].getTarget().getVertexId());
+            }
+            usedFragments.set(graph.getRoot().getVertexId());
+            for (int l = 0; l < numberOfSelectedEdges; ++l) {
+                final Fragment f = usedEdges[l].getTarget();
+                final ArrayList<Loss> ls = new ArrayList<>();
+                for (int i = 0; i < f.getInDegree(); ++i) {
+                    if (usedFragments.get(f.getParent(i).getVertexId())) {
+                        ls.add(f.getIncomingEdge(i));
+                    }
+                }
+                availableLosses.put(f.getVertexId(), ls);
+            }
+            numberOfSelectedEdges = 0;
+            while (!availableLosses.isEmpty()) {
+                Loss maximum = findMax(availableLosses);
+                usedEdges[numberOfSelectedEdges++] = maximum;
+                availableLosses.remove(maximum.getTarget().getVertexId());
+            }
+        }
+
+        protected Loss findMax(TIntObjectHashMap<ArrayList<Loss>> map) {
+            Loss[] maxLoss = new Loss[1];
+            map.forEachValue((x) -> {
+                for (Loss l : x) {
+                    if (maxLoss[0] == null || l.getWeight() > maxLoss[0].getWeight())
+                        maxLoss[0] = l;
+                }
+                return true;
+            });
+            return maxLoss[0];
+        }
+
+        protected boolean relocate(int lossId) {
+            Loss uv = usedEdges[lossId];
+            final Fragment v = uv.getTarget();
+            for (int l = 0; l < v.getInDegree(); ++l) {
+                final Loss x = v.getIncomingEdge(l);
+                if (x.getWeight() > uv.getWeight() && usedFragments.get(x.getSource().getVertexId())) {
+                    uv = x;
+                }
+            }
+            if (usedEdges[lossId] != uv) {
+                usedEdges[lossId] = uv;
+                return true;
+            } else return false;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.model;
+
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.TestInputs;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.StageMetrics.Stage;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class StageMetricsTest {
+
+    @Test
+    public void testRecord() {
+        final StageMetrics metrics = new StageMetrics();
+        metrics.record(Stage.GRAPH_SCORING, 10, 100);
+        metrics.record(Stage.GRAPH_SCORING, 20, 50);
+        // allocations which cannot be measured are not added
+        metrics.record(Stage.GRAPH_SCORING, 5, -1);
+        assertEquals(3, metrics.getNumberOfCalls(Stage.GRAPH_SCORING));
+        assertEquals(35, metrics.getNanoseconds(Stage.GRAPH_SCORING));
+        assertEquals(bytes(150), metrics.getAllocatedBytes(Stage.GRAPH_SCORING));
+        for (Stage stage : Stage.values()) {
+            if (stage == Stage.GRAPH_SCORING) continue;
+            assertEquals(0, metrics.getNumberOfCalls(stage));
+            assertEquals(0, metrics.getNanoseconds(stage));
+            assertEquals(bytes(0), metrics.getAllocatedBytes(stage));
+        }
+    }
+
+    @Test
+    public void testAdd() {
+        final StageMetrics a = example(), b = new StageMetrics();
+        b.record(Stage.DECOMPOSITION, 7, 3);
+        b.addDecompositions(Stage.DECOMPOSITION, 2);
+        b.record(Stage.TREE_COMPUTATION, 1000, 9);
+        b.addGraphSize(Stage.TREE_COMPUTATION, 4, 6);
+        a.add(b);
+        assertEquals(2, a.getNumberOfCalls(Stage.DECOMPOSITION));
+        assertEquals(107, a.getNanoseconds(Stage.DECOMPOSITION));
+        assertEquals(bytes(1003), a.getAllocatedBytes(Stage.DECOMPOSITION));
+        assertEquals(12, a.getNumberOfDecompositions(Stage.DECOMPOSITION));
+        assertEquals(1, a.getNumberOfCalls(Stage.TREE_COMPUTATION));
+        assertEquals(4, a.getNumberOfVertices(Stage.TREE_COMPUTATION));
+        assertEquals(6, a.getNumberOfEdges(Stage.TREE_COMPUTATION));
+        assertEquals(1, a.getNumberOfCalls(Stage.MERGING));
+        assertEquals(25, a.getNumberOfPeaks(Stage.MERGING));
+        // the added metrics are not changed
+        assertEquals(1, b.getNumberOfCalls(Stage.DECOMPOSITION));
+        assertEquals(0, b.getNumberOfCalls(Stage.MERGING));
+    }
+
+    @Test
+    public void testWriteCSV() throws IOException {
+        final StringWriter writer = new StringWriter();
+        example().writeCSV(writer);
+        final String[] lines = writer.toString().split("\n");
+        assertEquals(Stage.values().length + 1, lines.length);
+        assertEquals("stage,calls,nanoseconds,allocatedBytes,peaks,decompositions,vertices,edges", lines[0]);
+        for (Stage stage : Stage.values()) {
+            final String line = lines[stage.ordinal() + 1];
+            if (stage == Stage.MERGING) assertEquals("MERGING,1,50," + bytes(0) + ",25,0,0,0", line);
+            else if (stage == Stage.DECOMPOSITION) assertEquals("DECOMPOSITION,1,100," + bytes(1000) + ",0,10,0,0", line);
+            else if (stage == Stage.GRAPH_BUILDING) assertEquals("GRAPH_BUILDING,1,200," + bytes(0) + ",0,0,30,40", line);
+            else assertEquals(stage.name() + ",0,0," + bytes(0) + ",0,0,0,0", line);
+        }
+    }
+
+    @Test
+    public void testWriteJSON() throws IOException {
+        final StringWriter writer = new StringWriter();
+        example().writeJSON(writer);
+        final String[] lines = writer.toString().split("\n");
+        assertEquals(Stage.values().length + 2, lines.length);
+        assertEquals("{", lines[0]);
+        assertEquals("}", lines[lines.length - 1]);
+        for (Stage stage : Stage.values()) {
+            final String line = lines[stage.ordinal() + 1];
+            final String separator = stage.ordinal() + 1 < Stage.values().length ? "}," : "}";
+            final long[] row;
+            if (stage == Stage.MERGING) row = new long[]{1, 50, bytes(0), 25, 0, 0, 0};
+            else if (stage == Stage.DECOMPOSITION) row = new long[]{1, 100, bytes(1000), 0, 10, 0, 0};
+            else if (stage == Stage.GRAPH_BUILDING) row = new long[]{1, 200, bytes(0), 0, 0, 30, 40};
+            else row = new long[]{0, 0, bytes(0), 0, 0, 0, 0};
+            assertEquals("  \"" + stage.name() + "\": {\"calls\": " + row[0] + ", \"nanoseconds\": " + row[1]
+                    + ", \"allocatedBytes\": " + row[2] + ", \"peaks\": " + row[3] + ", \"decompositions\": " + row[4]
+                    + ", \"vertices\": " + row[5] + ", \"edges\": " + row[6] + separator, line);
+        }
+    }
+
+    @Test
+    public void testMeasurementIsOnlyStartedForInstrumentedInputs() {
+        assertNull(StageMetrics.start(null, Stage.PREPROCESSING));
+        final StageMetrics metrics = new StageMetrics();
+        final StageMetrics.Measurement measurement = StageMetrics.start(metrics, Stage.PREPROCESSING);
+        assertSame(metrics, measurement.getMetrics());
+        assertEquals(0, metrics.getNumberOfCalls(Stage.PREPROCESSING));
+        measurement.stop();
+        assertEquals(1, metrics.getNumberOfCalls(Stage.PREPROCESSING));
+        assertTrue(metrics.getNanoseconds(Stage.PREPROCESSING) >= 0);
+    }
+
+    /**
+     * a stage which fails with an exception is recorded, too
+     */
+    @Test
+    public void testFailingStageIsRecorded() {
+        final FragmentationPatternAnalysis analyzer = FragmentationPatternAnalysis.defaultAnalyzer();
+        analyzer.setRecordingStageMetrics(true);
+        final ProcessedInput input = TestInputs.preprocessedAdenosine(analyzer);
+        final StageMetrics metrics = StageMetrics.of(input);
+        assertNotNull(metrics);
+        final FGraph graph = analyzer.buildGraphWithoutReduction(input, TestInputs.candidatesOf(input).get(0));
+        analyzer.setReduction((g, lowerbound) -> {
+            throw new IllegalStateException("reduction failed");
+        });
+        try {
+            analyzer.performGraphReduction(graph, 0d);
+            fail("reduction did not fail");
+        } catch (IllegalStateException e) {
+            assertEquals("reduction failed", e.getMessage());
+        }
+        assertEquals(1, metrics.getNumberOfCalls(Stage.GRAPH_REDUCTION));
+        assertEquals(0, metrics.getNumberOfVertices(Stage.GRAPH_REDUCTION));
+    }
+
+    private static StageMetrics example() {
+        final StageMetrics metrics = new StageMetrics();
+        metrics.record(Stage.MERGING, 50, 0);
+        metrics.addPeaks(Stage.MERGING, 25);
+        metrics.record(Stage.DECOMPOSITION, 100, 1000);
+        metrics.addDecompositions(Stage.DECOMPOSITION, 10);
+        metrics.record(Stage.GRAPH_BUILDING, 200, 0);
+        metrics.addGraphSize(Stage.GRAPH_BUILDING, 30, 40);
+        return metrics;
+    }
+
+    /**
+     * allocated bytes are reported as -1 if the JVM cannot measure allocations
+     */
+    private static long bytes(long value) {
+        return StageMetrics.isAllocationMeasurable() ? value : -1L;
+    }
+}
@@ -1,472 +1,499 @@
 package de.unijena.bioinf.FragmentationTreeConstruction.computation;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Multimaps;
-import de.unijena.bioinf.ChemistryBase.algorithm.Scored;
-import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
-import de.unijena.bioinf.ChemistryBase.ms.ft.TreeScoring;
-import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.solver.CriticalPathSolver;
+import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.ExtendedCriticalPathHeuristic;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.DecompositionList;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * - compute fragmentation graphs in parallel
- * - compute heuristics in parallel
- * - use heuristics to estimate subset of molecular formulas to compute exactly
- * - (optional) compute trees in parallel if Gurobi is used
+ * Streaming pipeline which computes fragmentation trees for a sequence of experiments.
+ *
+ * - experiments are read one by one from an iterator (e.g. a parser), so the input is never loaded completely
+ * - preprocessing, graph building with heuristic trees and exact tree computation are separate stages, each with
+ * its own thread pool
+ * - the heuristic trees are used to select the subset of molecular formulas which are computed exactly. The graphs of
+ * these formulas are passed to the exact tree computation instead of being built again. Only the graphs of the
+ * formulas with the best heuristic scores so far are kept, so at most {@link #getNumberOfExactTrees()} graphs per
+ * experiment are in memory
+ * - results are passed to a consumer, either in the order of the input or as soon as they are finished
+ *
+ * Each stage accepts only a limited number of waiting tasks. A stage which is faster than its successor blocks
+ * until the successor catches up (backpressure). Furthermore, the number of experiments which are in the pipeline at
+ * the same time is limited, which bounds the memory for intermediate results and for reordering the output.
  */
-
-
 public class FasterMultithreadedTreeComputation {
 
-    /*
-    I recommend to use queues whenever possible to schedule the jobs.
-    Blocking Queues allow to limit the number of instances that can be enqueued at the same
-    time (and therefore, avoid memory overflows)
-     */
-    private final BlockingQueue<Future<FGraph>> graphsToCompute;
-    private final BlockingQueue<Future<FTree>> treesToCompute;
-
-    /*
-    You can use TreeMaps to store your heuristical or exact computed trees
-     */
-    private final TreeMap<MolecularFormula, FTree> map;
-    private final Multimap<Double, MolecularFormula> multimap = Multimaps.synchronizedListMultimap(
-            ArrayListMultimap.<Double, MolecularFormula>create());
-
+    private static final Logger logger = LoggerFactory.getLogger(FasterMultithreadedTreeComputation.class);
 
     /*
     The underlying framework
      */
     private final FragmentationPatternAnalysis analyzer;
 
-    /*
-    The actual input data
-     */
-    private ProcessedInput input;
-    private HashMap<MolecularFormula, Scored<MolecularFormula>> formulasToConsider;
-    private MolecularFormula poison_pill = MolecularFormula.emptyFormula();
-    private FGraph poison_pill_FGraph = new FGraph();
-    private FTree poison_pill_FTree = new FTree(poison_pill);
-    private Queue<Future<Response>> futureRes = new ConcurrentLinkedQueue(); //TODO ueberlegen ob nicht blocking queue sinvoller
+    private int numberOfPreprocessingThreads;
+    private int numberOfGraphThreads;
+    private int numberOfTreeThreads;
+    private int queueCapacity;
+    private int maximalNumberOfExperimentsInPipeline;
+    private int numberOfExactTrees;
+    private boolean keepingInputOrder;
 
     public FasterMultithreadedTreeComputation(FragmentationPatternAnalysis analyzer) {
-        this.graphsToCompute = new ArrayBlockingQueue<>(100);
-        this.treesToCompute = new ArrayBlockingQueue<>(10);
-        this.map = new TreeMap<>();
         this.analyzer = analyzer;
-
+        final int processors = Runtime.getRuntime().availableProcessors();
+        this.numberOfPreprocessingThreads = Math.max(1, processors / 4);
+        this.numberOfGraphThreads = processors;
+        this.numberOfTreeThreads = processors;
+        this.queueCapacity = 4 * processors;
+        this.maximalNumberOfExperimentsInPipeline = 2 * processors;
+        this.numberOfExactTrees = 50;
+        this.keepingInputOrder = true;
     }
 
-    public void setInput(ProcessedInput input) {
-        setInput(input, null);
-    }
+    /**
+     * The result of a single experiment.
+     */
+    public static class Result {
+        /**
+         * position of the experiment in the input
+         */
+        public final int index;
+        public final Ms2Experiment experiment;
+        /**
+         * number of molecular formulas of the precursor
+         */
+        public final int numberOfCandidates;
+        /**
+         * exactly computed trees, sorted by descending score
+         */
+        public final List<FTree> trees;
+        /**
+         * is not null if the experiment could not be processed
+         */
+        public final Throwable error;
+
+        protected Result(int index, Ms2Experiment experiment, int numberOfCandidates, List<FTree> trees, Throwable error) {
+            this.index = index;
+            this.experiment = experiment;
+            this.numberOfCandidates = numberOfCandidates;
+            this.trees = trees;
+            this.error = error;
+        }
 
-    public void setInput(ProcessedInput input, HashSet<MolecularFormula> formulas) {
-        this.input = input;
-        this.formulasToConsider = new HashMap<>();
-        for (Scored<MolecularFormula> formula : input.getPeakAnnotationOrThrow(DecompositionList.class).get(input.getParentPeak()).getDecompositions()) {
-            if (formulas == null || formulas.contains(formula.getCandidate()))
-                formulasToConsider.put(formula.getCandidate(), formula);
+        public FTree getBestTree() {
+            return trees.isEmpty() ? null : trees.get(0);
         }
     }
 
     /**
-     * start multi-threaded computation
+     * Receives the results of the pipeline. The consumer is never called concurrently, so it does not have to be
+     * thread-safe.
      */
-    private class CallToRemoteServiceFormula implements Callable<FGraph> {
-        private final MolecularFormula formula;
+    public interface ResultConsumer {
+        void accept(Result result) throws IOException;
+    }
 
-        public CallToRemoteServiceFormula(MolecularFormula formula) {
-            this.formula = formula;
-        }
+    /**
+     * Computes the trees of all experiments and passes them to the consumer. Returns after all results are consumed.
+     *
+     * @throws IOException if the consumer throws an exception. No further experiments are read in this case
+     */
+    public void compute(Iterator<? extends Ms2Experiment> experiments, ResultConsumer consumer) throws IOException, InterruptedException {
+        new Run(consumer).compute(experiments);
+    }
 
-        @Override
-        public FGraph call() throws Exception {
-            if (formula == poison_pill) {
-                return poison_pill_FGraph;
-            }
-            return computeGraph(formula);
+    /*
+    one run of the pipeline over an input
+     */
+    private class Run {
+        private final Stage preprocessing, graphs, trees;
+        private final Semaphore experimentsInPipeline;
+        private final ResultConsumer consumer;
+        // results which are finished but cannot be written yet, as an experiment with smaller index is not finished
+        private final TreeMap<Integer, Result> reorderBuffer;
+        private int nextIndexToWrite;
+        private volatile IOException consumerError;
+
+        private Run(ResultConsumer consumer) {
+            this.consumer = consumer;
+            this.preprocessing = new Stage("preprocessing", numberOfPreprocessingThreads, queueCapacity);
+            this.graphs = new Stage("graphs", numberOfGraphThreads, queueCapacity);
+            this.trees = new Stage("trees", analyzer.getTreeBuilder().isThreadSafe() ? numberOfTreeThreads : 1, queueCapacity);
+            this.experimentsInPipeline = new Semaphore(maximalNumberOfExperimentsInPipeline);
+            this.reorderBuffer = new TreeMap<>();
+            this.nextIndexToWrite = 0;
         }
 
-    }
-
-    //Consumes Trees and builds multimaps.
-    //in first test seemed single thread fully enough
-    private class ConsumerTrees implements Runnable {
-
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    final Future<FTree> heuTree = treesToCompute.take(); //waits until element available
-                    FTree test = heuTree.get();
-                    if (heuTree.get() == poison_pill_FTree) {
-                        //damit scoreMap vollständig, vielleicht nicht mehr nötig
-                        while (formulasToConsider.keySet().size() != multimap.size()) {
-                            Thread.sleep(5);
+        private void compute(Iterator<? extends Ms2Experiment> experiments) throws IOException, InterruptedException {
+            try {
+                int index = 0;
+                while (consumerError == null && experiments.hasNext()) {
+                    experimentsInPipeline.acquire();
+                    final Instance instance = new Instance(index++, experiments.next());
+                    preprocessing.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            preprocess(instance);
                         }
-                        break;
-                    } else {
-                        multimap.put(getScore(test), test.getRoot().getFormula());
-                    }
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    System.out.println("Warning");
-                } catch (ExecutionException e) {
-                    e.printStackTrace();
-                    System.out.println("Warning");
+                    });
                 }
+            } finally {
+                // graph tasks are only submitted by the preprocessing stage and tree tasks only by the graph stage.
+                // So all tasks are submitted after the preceding stage is terminated
+                preprocessing.finish();
+                graphs.finish();
+                trees.finish();
             }
+            if (consumerError != null) throw consumerError;
         }
 
-
-    }
-
-    private class Response {
-        public int index;
-        public double result;
-        public double prediction;
-    }
-
-    public class Output extends Response {
-        public double maxPrediction;
-        public float cut;
-        public int subsearch1;
-        public int subsearch2;
-        public int subsearch3;
-        public int subsearch4;
-        public int subsearch5;
-        public int subsearch6;
-        public int subsearch7;
-        public int subsearch8;
-
-        public int length;
-        public long heuEndTime;
-
-    }
-
-    private class ConsumeGraphs implements Runnable {
-        public void run() {
-            int processors = Runtime.getRuntime().availableProcessors();
-            ExecutorService service = Executors.newFixedThreadPool(processors);
-            while (true) {
-                try {
-
-                    final Future<FGraph> graph = graphsToCompute.take();
-                    // check if job is done (gets poison_pill)
-                    if (graph.get() == poison_pill_FGraph) {
-                        treesToCompute.put(service.submit(new Callable<FTree>() {
-                            @Override
-                            public FTree call() throws Exception {
-//                            adds poison_pill tree to output
-                                return poison_pill_FTree;
-                            }
-                        }));
-                        service.shutdown();
-                        break;
-                    } else {
-                        treesToCompute.put(service.submit(new Callable<FTree>() {
-                            @Override
-                            public FTree call() throws Exception {
-                                return computeTreeHeuristically(graph.get());
-                            }
-                        }));
+        private void preprocess(final Instance instance) {
+            final List<Decomposition> candidates;
+            try {
+                instance.input = analyzer.preprocessing(instance.experiment);
+                candidates = instance.input.getPeakAnnotationOrThrow(DecompositionList.class).get(instance.input.getParentPeak()).getDecompositions();
+            } catch (Throwable e) {
+                instance.error = e;
+                complete(instance);
+                return;
+            }
+            instance.candidates = new ArrayList<>(candidates);
+            instance.heuristicScores = new double[candidates.size()];
+            instance.graphs = new FGraph[candidates.size()];
+            instance.retained = new PriorityQueue<>(instance.byAscendingRank());
+            if (candidates.isEmpty()) {
+                complete(instance);
+                return;
+            }
+            instance.pending.set(candidates.size());
+            for (int i = 0; i < candidates.size(); ++i) {
+                final int candidate = i;
+                if (!submit(graphs, new Runnable() {
+                    @Override
+                    public void run() {
+                        computeHeuristic(instance, candidate);
                     }
-
-
-                } catch (Exception e) {
-                    System.out.println("Warning");
-                    e.printStackTrace();
+                }, instance)) {
+                    instance.heuristicScores[candidate] = Double.NEGATIVE_INFINITY;
+                    heuristicDone(instance);
                 }
             }
         }
 
-    }
-
-    private class ConsumeGraphExact implements Runnable {
-        private Double[] sortedHeuScores;
-        private int thresh;
-
-        ConsumeGraphExact(Double[] sortedHeuScores, int thresh) {
-            this.sortedHeuScores = sortedHeuScores;
-            this.thresh = thresh;
+        private void computeHeuristic(Instance instance, int candidate) {
+            double score = Double.NEGATIVE_INFINITY;
+            FGraph graph = null;
+            try {
+                graph = analyzer.buildGraph(instance.input, instance.candidates.get(candidate));
+                final FTree tree = new ExtendedCriticalPathHeuristic(graph).solve();
+                if (tree != null) score = tree.getTreeWeight();
+            } catch (Throwable e) {
+                logger.warn("Cannot compute heuristic tree for " + instance.candidates.get(candidate).getCandidate() + " of experiment " + instance.experiment.getName(), e);
+            }
+            instance.heuristicScores[candidate] = score;
+            if (!Double.isInfinite(score)) instance.retainGraph(candidate, graph, numberOfExactTrees);
+            heuristicDone(instance);
         }
 
-        public void run() {
-            int processors = Runtime.getRuntime().availableProcessors();
-            ExecutorService service = Executors.newFixedThreadPool(processors);
-
-            int j = multimap.size();        //irgendwas wie mul.size -50
-            for (int i = sortedHeuScores.length - 1; i >= thresh; i--) {
-
-                final int index = i;
-                final Collection<MolecularFormula> formulas_for_exact_method = multimap.get(sortedHeuScores[i]);
-                for (final MolecularFormula formula : formulas_for_exact_method) {
-                    j--;                    //muss geändert werden
-                    final int finalJ = j;  //
-                    futureRes.add(service.submit(new Callable<Response>() {
-                        @Override
-                        public Response call() throws Exception {
-
-                            final Response out = new Response();
-
-                            out.index = finalJ;
-                            out.result = getScore(computeTreeExactly(computeGraph(formula)));
-                            out.prediction = sortedHeuScores[index];
-                            return out;
-                        }
-
-                    }));
+        private void heuristicDone(final Instance instance) {
+            if (instance.pending.decrementAndGet() > 0) return;
+            // all heuristic trees are computed: the best candidates, whose graphs are retained, are computed exactly
+            final Integer[] order;
+            synchronized (instance) {
+                order = instance.retained.toArray(new Integer[instance.retained.size()]);
+                instance.retained = null;
+            }
+            Arrays.sort(order, Collections.reverseOrder(instance.byAscendingRank()));
+            final int numberOfSelected = order.length;
+            if (numberOfSelected == 0) {
+                complete(instance);
+                return;
+            }
+            instance.pending.set(numberOfSelected);
+            for (int k = 0; k < numberOfSelected; ++k) {
+                final int candidate = order[k];
+                if (!submit(trees, new Runnable() {
+                    @Override
+                    public void run() {
+                        computeExactly(instance, candidate);
+                    }
+                }, instance)) {
+                    exactDone(instance);
                 }
             }
-
-            service.shutdown();
-
         }
-    }
-
-    public Output startComputation() throws InterruptedException, ExecutionException {
-
-        int processors = Runtime.getRuntime().availableProcessors();
-        ExecutorService service = Executors.newFixedThreadPool(processors);
 
-// oposite starting order to actual running order
-
-//  Start consume trees and build multimap , single thread
-        (new Thread(new ConsumerTrees())).start();
-
-//  Start consume Graph and build heuristic Trees
-        (new Thread(new ConsumeGraphs())).start();
-
-//  Build graphs
-        for (final MolecularFormula formula : formulasToConsider.keySet()) {
-            //hier vieleicht anonyme Klasse anlegen siehe unten
-            graphsToCompute.put(service.submit(new CallToRemoteServiceFormula(formula)));
+        private void computeExactly(Instance instance, int candidate) {
+            final FGraph graph;
+            synchronized (instance) {
+                graph = instance.graphs[candidate];
+                instance.graphs[candidate] = null;
+            }
+            try {
+                final FTree tree = analyzer.computeTree(graph);
+                if (tree != null) {
+                    synchronized (instance) {
+                        instance.trees.add(tree);
+                    }
+                }
+            } catch (Throwable e) {
+                logger.warn("Cannot compute tree for " + instance.candidates.get(candidate).getCandidate() + " of experiment " + instance.experiment.getName(), e);
+            }
+            exactDone(instance);
         }
-        graphsToCompute.put(service.submit(new CallToRemoteServiceFormula(poison_pill)));
-
 
-//  wait until all trees consumed
-        int x = formulasToConsider.keySet().size();
-        while (multimap.size() != x) {
-            Thread.sleep(5);
+        private void exactDone(Instance instance) {
+            if (instance.pending.decrementAndGet() == 0) complete(instance);
         }
-        service.shutdownNow();
 
-        Set<Double> heuScoreSet = multimap.keySet();
-        Double[] sortedHeuScores = heuScoreSet.toArray(new Double[multimap.keySet().size()]);
-        Arrays.sort(sortedHeuScores);
-        long heuEndTime = System.currentTimeMillis();
-
-
-//        new thresh method
-        if (sortedHeuScores.length >50){
-            int thresh = sortedHeuScores.length - 50;
-            (new Thread(new ConsumeGraphExact(sortedHeuScores, thresh))).start();
-
-        }
-        else {
-            int thresh = 0;
-            (new Thread(new ConsumeGraphExact(sortedHeuScores, thresh))).start();
+        /*
+        submits a task from a worker thread. Returns false, if the worker is interrupted while waiting for the stage
+         */
+        private boolean submit(Stage stage, Runnable task, Instance instance) {
+            try {
+                stage.submit(task);
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                instance.error = e;
+                return false;
+            }
         }
 
-//////        OLD //////////
-/////        int thresh = (sortedHeuScores.length / 2); //if 0 than no speedup
-//  calc best predited trees exactly
-
-//////        (new Thread(new ConsumeGraphExact(sortedHeuScores, thresh))).start();
-
-        int maxPosition = -1;
-        double maxValue = -Double.MAX_VALUE;
-
-//  initialize output
-        Double[] presortedExScores = new Double[multimap.size()];
-        Double[] predictedScores = new Double[multimap.size()];
-
-
-        while (futureRes.size() < 1) {
-            Thread.sleep(5);
+        private void complete(Instance instance) {
+            final List<FTree> computedTrees;
+            synchronized (instance) {
+                computedTrees = new ArrayList<>(instance.trees);
+            }
+            Collections.sort(computedTrees, new Comparator<FTree>() {
+                @Override
+                public int compare(FTree o1, FTree o2) {
+                    return Double.compare(o2.getTreeWeight(), o1.getTreeWeight());
+                }
+            });
+            final Result result = new Result(instance.index, instance.experiment,
+                    instance.candidates == null ? 0 : instance.candidates.size(), computedTrees, instance.error);
+            // free memory of intermediate results
+            instance.input = null;
+            instance.candidates = null;
+            instance.heuristicScores = null;
+            synchronized (instance) {
+                instance.graphs = null;
+                instance.retained = null;
+            }
+            synchronized (reorderBuffer) {
+                if (keepingInputOrder) {
+                    reorderBuffer.put(result.index, result);
+                    while (!reorderBuffer.isEmpty() && reorderBuffer.firstKey() == nextIndexToWrite) {
+                        write(reorderBuffer.pollFirstEntry().getValue());
+                        ++nextIndexToWrite;
+                    }
+                } else {
+                    write(result);
+                }
+            }
         }
 
-        List<Double> differenceList= new ArrayList<Double>();
-        List<Double> portionList =  new ArrayList<Double>();
-        List<Double> resultList= new ArrayList<Double>();
+        private void write(Result result) {
+            try {
+                if (consumerError == null) consumer.accept(result);
+            } catch (IOException e) {
+                consumerError = e;
+            } catch (RuntimeException e) {
+                consumerError = new IOException(e);
+            } finally {
+                experimentsInPipeline.release();
+            }
+        }
+    }
 
+    /*
+    the state of an experiment in the pipeline
+     */
+    private static class Instance {
+        private final int index;
+        private final Ms2Experiment experiment;
+        // number of tasks of the current stage which are not finished yet
+        private final AtomicInteger pending;
+        private final List<FTree> trees;
+        private ProcessedInput input;
+        private List<Decomposition> candidates;
+        private double[] heuristicScores;
+        // graphs of the candidates with the best heuristic scores so far. They are passed to the exact computation
+        private FGraph[] graphs;
+        // the candidates whose graphs are retained, the worst candidate first
+        private PriorityQueue<Integer> retained;
+        private volatile Throwable error;
+
+        private Instance(int index, Ms2Experiment experiment) {
+            this.index = index;
+            this.experiment = experiment;
+            this.pending = new AtomicInteger();
+            this.trees = new ArrayList<>();
+        }
 
-        while (futureRes.size() > 0) {
-            Future<Response> future = futureRes.poll();
-            Response response = future.get();
-            presortedExScores[response.index] = response.result;
-            predictedScores[response.index] = response.prediction;
-            differenceList.add(response.result-response.prediction);
-            portionList.add(response.result/response.prediction);
-            resultList.add(response.result);
+        /*
+        orders candidates from worst to best: by ascending heuristic score and, for equal scores, by descending index.
+        So the selected candidates do not depend on the order in which the heuristic trees are finished.
+         */
+        private Comparator<Integer> byAscendingRank() {
+            return new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    final int c = Double.compare(heuristicScores[o1], heuristicScores[o2]);
+                    return c != 0 ? c : o2.compareTo(o1);
+                }
+            };
         }
 
-        Output output = new Output();
-        output.subsearch1=multimap.keySet().size();
-        output.subsearch2=multimap.keySet().size();
-        output.subsearch3=multimap.keySet().size();
-        output.subsearch4=multimap.keySet().size();
-        output.subsearch5=multimap.keySet().size();
-        output.subsearch6=multimap.keySet().size();
-        output.subsearch7=multimap.keySet().size();
-        output.subsearch8=multimap.keySet().size();
-
-        output.heuEndTime=heuEndTime;
-
-//  bestimme den median
-        if(resultList.size()>=50){
-            Double[] sortedTop50Results = resultList.toArray(new Double[resultList.size()]);
-            Double[] sortedDifferences = differenceList.toArray(new Double[differenceList.size()]);
-            Double[] sortedPortions = portionList.toArray(new Double[portionList.size()]);
-
-            Arrays.sort(sortedTop50Results);
-            Arrays.sort(sortedDifferences);
-            Arrays.sort(sortedPortions);
-
-            double medianResult;
-            double medianDifference;
-            double medianPortion;
-            int middle = sortedTop50Results.length/2;
-            if (sortedTop50Results.length%2 == 1) {
-                medianResult = sortedTop50Results[middle];
-                medianDifference = sortedDifferences[middle];
-                medianPortion = sortedPortions[middle];
-            } else {
-                medianResult =  (sortedTop50Results[middle-1] + sortedTop50Results[middle]) / 2.0;
-                medianDifference =  (sortedDifferences[middle-1] + sortedDifferences[middle]) / 2.0;
-                medianPortion =  (sortedPortions[middle-1] + sortedPortions[middle]) / 2.0;
+        /*
+        keeps the graph if the candidate is among the given number of best candidates so far. The graph of the
+        candidate which drops out of this set is released.
+         */
+        private synchronized void retainGraph(int candidate, FGraph graph, int numberOfGraphs) {
+            if (retained.size() < numberOfGraphs) {
+                graphs[candidate] = graph;
+                retained.add(candidate);
+            } else if (retained.comparator().compare(candidate, retained.peek()) > 0) {
+                graphs[retained.poll()] = null;
+                graphs[candidate] = graph;
+                retained.add(candidate);
             }
-            int start1 =0;
-            int start2 =0;
-            int start3 =0;
-            int start4 =0;
-            int start5 =0;
-            int start6 =0;
-            int start7 =0;
-            int start8 =0;
-
-            // suche nach dem index des  ersten wert der zu klein ist.
-            for(int i = sortedHeuScores.length-51 ; i >=0 ;i--){
-//                median 50 exact scores <= heuscore(g) + median abweichung
-                if(medianResult <= sortedHeuScores[i]+medianDifference){
-                    start1++;
-                }
-//          seems to be too agressiv so now more conservativ
-                if (medianResult<=sortedHeuScores[i]+sortedDifferences[sortedDifferences.length-1]){
-                    start2++;
-                }
-                if(sortedTop50Results[0]<=sortedHeuScores[i]+sortedDifferences[sortedDifferences.length-1]){
-                    start3++;
-                }
-                if(sortedTop50Results[0]<=sortedHeuScores[i]+sortedDifferences[(int) (sortedDifferences.length*0.9)]){
-                    start4++;
-                }
-                if(sortedTop50Results[0]<=sortedHeuScores[i]+medianDifference){
-                    start5++;
-                }
-                if(sortedTop50Results[0]<=sortedHeuScores[i]*medianPortion){
-                    start6++;
-                }
-                if(sortedTop50Results[0]<=sortedHeuScores[i]*sortedPortions[(int) (sortedPortions.length*0.9)]){
-                    start7++;
-                }
-                if(sortedTop50Results[0]<=sortedHeuScores[i]*sortedPortions[(sortedPortions.length-1)]){
-                    start8++;
-                }
+        }
+    }
 
-                else {
-                    break;
+    /*
+    a thread pool which accepts at most a fixed number of tasks. Submitting a task blocks if the stage is full.
+     */
+    private static class Stage {
+        private final ThreadPoolExecutor executor;
+        private final Semaphore capacity;
+
+        private Stage(final String name, int numberOfThreads, int queueCapacity) {
+            final AtomicInteger threadCounter = new AtomicInteger();
+            this.executor = new ThreadPoolExecutor(numberOfThreads, numberOfThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, name + "-" + threadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
                 }
+            });
+            this.capacity = new Semaphore(numberOfThreads + queueCapacity);
+        }
 
+        private void submit(final Runnable task) throws InterruptedException {
+            capacity.acquire();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            capacity.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                capacity.release();
+                throw e;
             }
-            output.subsearch1=resultList.size()+start1-1;
-            output.subsearch2=resultList.size()+start2-1;
-            output.subsearch3=resultList.size()+start3-1;
-            output.subsearch4=resultList.size()+start4-1;
-            output.subsearch5=resultList.size()+start5-1;
-            output.subsearch5=resultList.size()+start6-1;
-            output.subsearch5=resultList.size()+start7-1;
-            output.subsearch5=resultList.size()+start8-1;
-
-            if(sortedHeuScores.length>50){
-//            start again with extra values
-//                System.out.println("start2: " + Integer.toString(start2));
-                int thresh = 0;
-                (new Thread(new ConsumeGraphExact(Arrays.copyOfRange(sortedHeuScores,0,sortedHeuScores.length-50), thresh))).start();
-
-                while (futureRes.size() < 1) {
-                    Thread.sleep(5);
-                }
-                while (futureRes.size() > 0) {
-                    Future<Response> future = futureRes.poll();
-                    Response response = future.get();
-                    presortedExScores[response.index-resultList.size()] = response.result;
-                    predictedScores[response.index-resultList.size()] = response.prediction;
-                }
+        }
 
+        private void finish() throws InterruptedException {
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
             }
         }
+    }
 
+    public int getNumberOfPreprocessingThreads() {
+        return numberOfPreprocessingThreads;
+    }
 
-        for (int j = presortedExScores.length - 1; j >= 0; j--) {
+    public void setNumberOfPreprocessingThreads(int numberOfPreprocessingThreads) {
+        this.numberOfPreprocessingThreads = checkPositive(numberOfPreprocessingThreads);
+    }
 
-            if (presortedExScores[j] != null) {
-                if (presortedExScores[j] > maxValue) {
-                    maxValue = presortedExScores[j];
-                    maxPosition = j;
-                }
-            } else {
-                break;
-            }
-        }
+    public int getNumberOfGraphThreads() {
+        return numberOfGraphThreads;
+    }
 
-        int position = presortedExScores.length - 1 - maxPosition;
-        float cut = ((float) (maxPosition + 1) / (presortedExScores.length));
+    public void setNumberOfGraphThreads(int numberOfGraphThreads) {
+        this.numberOfGraphThreads = checkPositive(numberOfGraphThreads);
+    }
 
-        output.cut = cut;
-        output.result = maxValue;
-        output.prediction = predictedScores[maxPosition];
-        output.index = position;
-        output.maxPrediction = sortedHeuScores[sortedHeuScores.length - 1];
-        output.length = presortedExScores.length;
-        return output;
+    public int getNumberOfTreeThreads() {
+        return numberOfTreeThreads;
     }
 
+    /**
+     * the number of threads is reduced to one if the tree builder is not thread-safe
+     */
+    public void setNumberOfTreeThreads(int numberOfTreeThreads) {
+        this.numberOfTreeThreads = checkPositive(numberOfTreeThreads);
+    }
 
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
 
+    /**
+     * number of tasks which might wait for a free thread in each stage
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 0) throw new IllegalArgumentException("negative queue capacity: " + queueCapacity);
+        this.queueCapacity = queueCapacity;
+    }
 
+    public int getMaximalNumberOfExperimentsInPipeline() {
+        return maximalNumberOfExperimentsInPipeline;
+    }
 
-    /*
-        some helper functions you might need
+    /**
+     * number of experiments which are read but not written yet. Bounds the memory of the pipeline.
      */
-
-    private double getScore(FTree tree) {
-        return tree.getAnnotationOrThrow(TreeScoring.class).getOverallScore();
+    public void setMaximalNumberOfExperimentsInPipeline(int maximalNumberOfExperimentsInPipeline) {
+        this.maximalNumberOfExperimentsInPipeline = checkPositive(maximalNumberOfExperimentsInPipeline);
     }
 
-    private FTree computeTreeExactly(FGraph graph) {
-        FTree test = analyzer.computeTree(graph);
-        return test;
+    public int getNumberOfExactTrees() {
+        return numberOfExactTrees;
     }
 
-    private FGraph computeGraph(MolecularFormula formula) {
-        return analyzer.buildGraph(input, formulasToConsider.get(formula));
+    /**
+     * number of molecular formulas with best heuristic score which are computed exactly. The graphs of these formulas
+     * are kept in memory until their trees are computed
+     */
+    public void setNumberOfExactTrees(int numberOfExactTrees) {
+        this.numberOfExactTrees = checkPositive(numberOfExactTrees);
     }
 
-    private FTree computeTreeHeuristically(FGraph graph) {
-        FTree tree = new CriticalPathSolver(graph).solve();
-        analyzer.addTreeAnnotations(graph, tree);
-        return tree;
+    public boolean isKeepingInputOrder() {
+        return keepingInputOrder;
     }
 
+    /**
+     * if true, results are passed to the consumer in the order of the input. Otherwise, each result is passed as
+     * soon as it is finished.
+     */
+    public void setKeepingInputOrder(boolean keepingInputOrder) {
+        this.keepingInputOrder = keepingInputOrder;
+    }
 
+    private static int checkPositive(int value) {
+        if (value <= 0) throw new IllegalArgumentException("expect positive value, but " + value + " is given");
+        return value;
+    }
 }
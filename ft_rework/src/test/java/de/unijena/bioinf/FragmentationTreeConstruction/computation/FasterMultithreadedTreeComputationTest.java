@@ -0,0 +1,264 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.computation;
+
+import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.ExtendedCriticalPathHeuristic;
+import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.treebuilder.ExtendedCriticalPathHeuristicTreeBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.DecompositionList;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import de.unijena.bioinf.babelms.GenericParser;
+import de.unijena.bioinf.babelms.ms.JenaMsParser;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * The tree builder of the analyzer is replaced by the heuristic, so the pipeline runs without an ILP solver.
+ */
+public class FasterMultithreadedTreeComputationTest {
+
+    private static final int NUMBER_OF_EXACT_TREES = 5;
+
+    /**
+     * the pipeline has to pass the results in input order and with the same trees as computing each experiment
+     * sequentially: preprocessing, heuristic trees for all candidates and exact trees for the best candidates
+     */
+    @Test(timeout = 120000)
+    public void testSameResultsAsSequentialComputation() throws Exception {
+        final FragmentationPatternAnalysis analyzer = analyzer();
+        final List<Ms2Experiment> experiments = experiments(8);
+        // an invalid experiment must not block or reorder the following ones
+        experiments.set(3, new MutableMs2Experiment());
+        final FasterMultithreadedTreeComputation pipeline = pipeline(analyzer);
+        final List<FasterMultithreadedTreeComputation.Result> results = new ArrayList<>();
+        pipeline.compute(experiments.iterator(), new FasterMultithreadedTreeComputation.ResultConsumer() {
+            @Override
+            public void accept(FasterMultithreadedTreeComputation.Result result) {
+                results.add(result);
+            }
+        });
+        assertEquals(experiments.size(), results.size());
+        for (int i = 0; i < experiments.size(); ++i) {
+            final FasterMultithreadedTreeComputation.Result result = results.get(i);
+            assertEquals(i, result.index);
+            assertSame(experiments.get(i), result.experiment);
+            if (i == 3) {
+                assertNotNull(result.error);
+                assertTrue(result.trees.isEmpty());
+                continue;
+            }
+            assertNull(result.error);
+            assertEquals(describe(sequentialTrees(analyzer, experiments.get(i))), describe(result.trees));
+        }
+    }
+
+    /**
+     * without input order, each experiment is still passed exactly once
+     */
+    @Test(timeout = 120000)
+    public void testEachResultIsPassedOnceWithoutInputOrder() throws Exception {
+        final FasterMultithreadedTreeComputation pipeline = pipeline(analyzer());
+        pipeline.setKeepingInputOrder(false);
+        final BitSet indizes = new BitSet();
+        final AtomicInteger counter = new AtomicInteger();
+        pipeline.compute(experiments(8).iterator(), new FasterMultithreadedTreeComputation.ResultConsumer() {
+            @Override
+            public void accept(FasterMultithreadedTreeComputation.Result result) {
+                indizes.set(result.index);
+                counter.incrementAndGet();
+            }
+        });
+        assertEquals(8, counter.get());
+        assertEquals(8, indizes.cardinality());
+    }
+
+    /**
+     * as long as the consumer blocks, the pipeline must not read more experiments than it may hold at once
+     */
+    @Test(timeout = 120000)
+    public void testBackpressure() throws Exception {
+        final FasterMultithreadedTreeComputation pipeline = pipeline(analyzer());
+        final CountingIterator input = new CountingIterator(experiments(20));
+        final CountDownLatch firstResult = new CountDownLatch(1), release = new CountDownLatch(1);
+        final AtomicInteger consumed = new AtomicInteger();
+        final Throwable[] error = new Throwable[1];
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pipeline.compute(input, new FasterMultithreadedTreeComputation.ResultConsumer() {
+                        @Override
+                        public void accept(FasterMultithreadedTreeComputation.Result result) {
+                            firstResult.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                throw new RuntimeException(e);
+                            }
+                            consumed.incrementAndGet();
+                        }
+                    });
+                } catch (Throwable e) {
+                    error[0] = e;
+                }
+            }
+        });
+        thread.start();
+        assertTrue(firstResult.await(60, TimeUnit.SECONDS));
+        // give the pipeline time to read further experiments, if it would do so
+        Thread.sleep(500);
+        assertTrue(input.numberOfReadExperiments.get() <= pipeline.getMaximalNumberOfExperimentsInPipeline());
+        release.countDown();
+        thread.join();
+        assertNull(error[0]);
+        assertEquals(20, input.numberOfReadExperiments.get());
+        assertEquals(20, consumed.get());
+    }
+
+    /**
+     * if the consumer fails, the pipeline stops reading the (infinite) input, terminates all its threads and rethrows
+     * the error
+     */
+    @Test(timeout = 120000)
+    public void testShutdownAfterConsumerError() throws Exception {
+        final FasterMultithreadedTreeComputation pipeline = pipeline(analyzer());
+        final List<Ms2Experiment> experiments = experiments(1);
+        final Iterator<Ms2Experiment> infiniteInput = new Iterator<Ms2Experiment>() {
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public Ms2Experiment next() {
+                return experiments.get(0);
+            }
+        };
+        try {
+            pipeline.compute(infiniteInput, new FasterMultithreadedTreeComputation.ResultConsumer() {
+                @Override
+                public void accept(FasterMultithreadedTreeComputation.Result result) throws IOException {
+                    throw new IOException("cannot write " + result.index);
+                }
+            });
+            fail("expect IOException");
+        } catch (IOException e) {
+            assertEquals("cannot write 0", e.getMessage());
+        }
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            final String name = thread.getName();
+            if (name.startsWith("preprocessing-") || name.startsWith("graphs-") || name.startsWith("trees-")) {
+                thread.join(10000);
+                assertFalse(name + " is still running", thread.isAlive());
+            }
+        }
+    }
+
+    private static FasterMultithreadedTreeComputation pipeline(FragmentationPatternAnalysis analyzer) {
+        final FasterMultithreadedTreeComputation pipeline = new FasterMultithreadedTreeComputation(analyzer);
+        pipeline.setNumberOfPreprocessingThreads(2);
+        pipeline.setNumberOfGraphThreads(2);
+        pipeline.setNumberOfTreeThreads(2);
+        pipeline.setQueueCapacity(1);
+        pipeline.setMaximalNumberOfExperimentsInPipeline(3);
+        pipeline.setNumberOfExactTrees(NUMBER_OF_EXACT_TREES);
+        return pipeline;
+    }
+
+    private static FragmentationPatternAnalysis analyzer() {
+        final FragmentationPatternAnalysis analyzer = FragmentationPatternAnalysis.defaultAnalyzer();
+        analyzer.setTreeBuilder(new ExtendedCriticalPathHeuristicTreeBuilder());
+        return analyzer;
+    }
+
+    private static List<Ms2Experiment> experiments(int n) throws IOException {
+        final GenericParser<Ms2Experiment> parser = new GenericParser<Ms2Experiment>(new JenaMsParser());
+        final Ms2Experiment adenosine = parser.parse(FasterMultithreadedTreeComputationTest.class.getResourceAsStream("/Adenosine.ms"));
+        final List<Ms2Experiment> experiments = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            final MutableMs2Experiment experiment = new MutableMs2Experiment(adenosine);
+            experiment.setName("Adenosine-" + i);
+            experiment.setPrecursorIonType(PeriodicTable.getInstance().ionByName("[M+H]+"));
+            experiments.add(experiment);
+        }
+        return experiments;
+    }
+
+    /**
+     * the sequential computation of the trees of a single experiment
+     */
+    private static List<FTree> sequentialTrees(FragmentationPatternAnalysis analyzer, Ms2Experiment experiment) {
+        final ProcessedInput input = analyzer.preprocessing(experiment);
+        final List<Decomposition> candidates = input.getPeakAnnotationOrThrow(DecompositionList.class).get(input.getParentPeak()).getDecompositions();
+        final double[] scores = new double[candidates.size()];
+        final Integer[] order = new Integer[candidates.size()];
+        for (int i = 0; i < candidates.size(); ++i) {
+            final FGraph graph = analyzer.buildGraph(input, candidates.get(i));
+            scores[i] = new ExtendedCriticalPathHeuristic(graph).solve().getTreeWeight();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Double.compare(scores[o2], scores[o1]);
+            }
+        });
+        final List<FTree> trees = new ArrayList<>();
+        for (int k = 0; k < Math.min(NUMBER_OF_EXACT_TREES, order.length); ++k) {
+            if (Double.isInfinite(scores[order[k]])) break;
+            final FTree tree = analyzer.computeTree(analyzer.buildGraph(input, candidates.get(order[k])));
+            if (tree != null) trees.add(tree);
+        }
+        return trees;
+    }
+
+    /**
+     * root formula and score of each tree, sorted by descending score. Trees with equal score are sorted by formula,
+     * as the pipeline does not order them deterministically
+     */
+    private static List<String> describe(List<FTree> trees) {
+        final List<FTree> sorted = new ArrayList<>(trees);
+        Collections.sort(sorted, new Comparator<FTree>() {
+            @Override
+            public int compare(FTree o1, FTree o2) {
+                final int c = Double.compare(o2.getTreeWeight(), o1.getTreeWeight());
+                return c != 0 ? c : o1.getRoot().getFormula().toString().compareTo(o2.getRoot().getFormula().toString());
+            }
+        });
+        final List<String> descriptions = new ArrayList<>(sorted.size());
+        for (FTree tree : sorted)
+            descriptions.add(tree.getRoot().getFormula() + " " + tree.getTreeWeight() + " " + tree.numberOfVertices());
+        return descriptions;
+    }
+
+    private static class CountingIterator implements Iterator<Ms2Experiment> {
+        private final Iterator<Ms2Experiment> iterator;
+        private final AtomicInteger numberOfReadExperiments = new AtomicInteger();
+
+        private CountingIterator(List<Ms2Experiment> experiments) {
+            this.iterator = experiments.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public Ms2Experiment next() {
+            numberOfReadExperiments.incrementAndGet();
+            return iterator.next();
+        }
+    }
+
+}
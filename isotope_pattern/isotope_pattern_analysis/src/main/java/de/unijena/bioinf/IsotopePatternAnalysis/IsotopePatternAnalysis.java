@@ -17,23 +17,27 @@
  */
 package de.unijena.bioinf.IsotopePatternAnalysis;
 
-import com.google.common.collect.Range;
 import de.unijena.bioinf.ChemistryBase.algorithm.ParameterHelper;
 import de.unijena.bioinf.ChemistryBase.algorithm.Parameterized;
 import de.unijena.bioinf.ChemistryBase.algorithm.Scored;
 import de.unijena.bioinf.ChemistryBase.chem.*;
 import de.unijena.bioinf.ChemistryBase.chem.utils.IsotopicDistribution;
 import de.unijena.bioinf.ChemistryBase.data.DataDocument;
+import de.unijena.bioinf.ChemistryBase.jobs.ParallelBatches;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
 import de.unijena.bioinf.ChemistryBase.ms.*;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.IsotopePatternAnalysis.extraction.IsotopePatternIndex;
 import de.unijena.bioinf.IsotopePatternAnalysis.generation.FastIsotopePatternGenerator;
 import de.unijena.bioinf.IsotopePatternAnalysis.generation.IsotopePatternGenerator;
+import de.unijena.bioinf.IsotopePatternAnalysis.scoring.FusedIsotopePatternScorer;
 import de.unijena.bioinf.IsotopePatternAnalysis.scoring.IsotopePatternScorer;
 import de.unijena.bioinf.IsotopePatternAnalysis.scoring.MassDifferenceDeviationScorer;
 import de.unijena.bioinf.IsotopePatternAnalysis.scoring.NormalDistributedIntensityScorer;
 import de.unijena.bioinf.MassDecomposer.Chemistry.DecomposerCache;
+import de.unijena.bioinf.MassDecomposer.Chemistry.MassToFormulaDecomposer;
 
 import java.util.*;
 
@@ -43,6 +47,7 @@ import static de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums.normalize;
 public class IsotopePatternAnalysis implements Parameterized {
 
     public static final String ANALYZER_NAME = "IsotopePatternAnalysis";
+    private static final double DEFAULT_PREFILTER_STANDARD_DEVIATIONS = 5d;
 
     private List<IsotopePatternScorer> isotopePatternScorers;
     private double cutoff;
@@ -51,6 +56,9 @@ public class IsotopePatternAnalysis implements Parameterized {
     private IsotopicDistribution isotopicDistribution;
     private IsotopePatternGenerator patternGenerator;
     private MutableMeasurementProfile defaultProfile;
+    private int parallelScoringThreshold;
+    private int parallelIonModeThreshold;
+    private double prefilterStandardDeviations;
 
     @Override
     public <G, D, L> void importParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
@@ -141,6 +149,8 @@ public class IsotopePatternAnalysis implements Parameterized {
         this.cutoff = 0.01d;
         this.intensityOffset = 0d;
         this.patternGenerator = new FastIsotopePatternGenerator(isotopicDistribution, Normalization.Max(1d));
+        this.parallelScoringThreshold = Integer.MAX_VALUE;
+        this.parallelIonModeThreshold = 2;
     }
 
     public static IsotopePatternAnalysis defaultAnalyzer() {
@@ -193,36 +203,17 @@ public class IsotopePatternAnalysis implements Parameterized {
 
     public SimpleSpectrum extractPattern(Spectrum<Peak> ms1Spec, MeasurementProfile profile, double targetMz) {
         // extract all isotope peaks starting from the given target mz
-        final ChemicalAlphabet stdalphabet = profile.getFormulaConstraints().getExtendedConstraints(new FormulaConstraints(ChemicalAlphabet.getExtendedAlphabet())).getChemicalAlphabet();
-        final Spectrum<Peak> massOrderedSpectrum = Spectrums.getMassOrderedSpectrum(ms1Spec);
-        final ArrayList<SimpleSpectrum> patterns = new ArrayList<SimpleSpectrum>();
-        final int index = Spectrums.mostIntensivePeakWithin(massOrderedSpectrum, targetMz, profile.getAllowedMassDeviation());
-        if (index < 0) return null;
-        final SimpleMutableSpectrum spec = new SimpleMutableSpectrum();
-        spec.addPeak(massOrderedSpectrum.getPeakAt(index));
-        // add additional peaks
-        for (int k = 1; k <= 5; ++k) {
-            final Range<Double> nextMz = PeriodicTable.getInstance().getIsotopicMassWindow(stdalphabet, profile.getAllowedMassDeviation(), spec.getMzAt(0), k);
-            final double a = nextMz.lowerEndpoint();
-            final double b = nextMz.upperEndpoint();
-            final double m = a + (b - a) / 2d;
-            final double startPoint = a - profile.getStandardMassDifferenceDeviation().absoluteFor(a);
-            final double endPoint = b + profile.getStandardMassDifferenceDeviation().absoluteFor(b);
-            final int nextIndex = Spectrums.indexOfFirstPeakWithin(massOrderedSpectrum, startPoint, endPoint);
-            if (nextIndex < 0) break;
-            double mzBuffer = 0d;
-            double intensityBuffer = 0d;
-            for (int i = nextIndex; i < massOrderedSpectrum.size(); ++i) {
-                final double mz = massOrderedSpectrum.getMzAt(i);
-                if (mz > endPoint) break;
-                final double intensity = massOrderedSpectrum.getIntensityAt(i);
-                mzBuffer += mz * intensity;
-                intensityBuffer += intensity;
-            }
-            mzBuffer /= intensityBuffer;
-            spec.addPeak(mzBuffer, intensityBuffer);
-        }
-        return new SimpleSpectrum(spec);
+        return new IsotopePatternIndex(ms1Spec, profile).extractPattern(targetMz);
+    }
+
+    /**
+     * Extracts the isotope patterns of many precursors from the same spectrum. The spectrum is indexed only once and
+     * all patterns are extracted in a single sweep over the spectrum.
+     *
+     * @return the isotope pattern for each target mass or null, if there is no peak for the target mass
+     */
+    public SimpleSpectrum[] extractPatterns(Spectrum<Peak> ms1Spec, MeasurementProfile profile, double[] targetMzs) {
+        return new IsotopePatternIndex(ms1Spec, profile).extractPatterns(targetMzs);
     }
 
     private MeasurementProfile getProfile(MeasurementProfile measurementProfile) {
@@ -238,7 +229,8 @@ public class IsotopePatternAnalysis implements Parameterized {
         return scoreFormulas(pattern, formulas, experiment, profile);
     }
 
-    public List<IsotopePattern> deisotope(Ms2Experiment experiment, MeasurementProfile profile) {
+    @SuppressWarnings("unchecked")
+    public List<IsotopePattern> deisotope(final Ms2Experiment experiment, final MeasurementProfile profile) {
         if (experiment.getMs1Spectra().isEmpty() && experiment.getMergedMs1Spectrum() == null) return new ArrayList<>();
         final SimpleSpectrum pattern = extractPattern(experiment, getProfile(profile), experiment.getIonMass());
         if (pattern == null) return Collections.emptyList();
@@ -250,25 +242,174 @@ public class IsotopePatternAnalysis implements Parameterized {
             final Iterable<Ionization> ionModes = experiment.hasAnnotation(PossibleIonModes.class)
                     ? experiment.getAnnotation(PossibleIonModes.class).getIonModes()
                     : PeriodicTable.getInstance().getKnownIonModes(charge);
-            for (Ionization ion : ionModes) {
-                final List<MolecularFormula> formulas = decomposer.getDecomposer(profile.getFormulaConstraints().getChemicalAlphabet()).decomposeToFormulas(ion.subtractFromMass(pattern.getMzAt(0)), profile.getAllowedMassDeviation(), profile.getFormulaConstraints());
-                ionFormulas.addAll(scoreFormulas(pattern, formulas, experiment, profile, PrecursorIonType.getPrecursorIonType(ion)));
+            final List<List<Ionization>> groups = groupOverlappingIonModes(pattern.getMzAt(0), ionModes, profile.getAllowedMassDeviation());
+            if (groups.size() < parallelIonModeThreshold) {
+                for (List<Ionization> group : groups)
+                    ionFormulas.addAll(deisotope(pattern, group, experiment, profile));
+            } else {
+                // this method is called from within jobs, so we must not block on sub jobs
+                final List<IsotopePattern>[] groupFormulas = new List[groups.size()];
+                ParallelBatches.forEachBatch(groups.size(), groups.size(), new ParallelBatches.Procedure() {
+                    @Override
+                    public void process(int batch, int from, int to) {
+                        groupFormulas[batch] = deisotope(pattern, groups.get(from), experiment, profile);
+                    }
+                });
+                for (List<IsotopePattern> patterns : groupFormulas) ionFormulas.addAll(patterns);
             }
             Collections.sort(ionFormulas, Scored.<MolecularFormula>desc());
             return ionFormulas;
         } else {
             // use given ionization
             final List<Scored<MolecularFormula>> neutralFormulas = new ArrayList<Scored<MolecularFormula>>();
-            final List<MolecularFormula> formulas = decomposer.getDecomposer(profile.getFormulaConstraints().getChemicalAlphabet()).decomposeToFormulas(ionization.precursorMassToNeutralMass(pattern.getMzAt(0)), profile.getAllowedMassDeviation(), profile.getFormulaConstraints());
+            final List<MolecularFormula> formulas = decompose(pattern, ionization.precursorMassToNeutralMass(pattern.getMzAt(0)), profile, ionization);
             return scoreFormulas(pattern, formulas, experiment, profile);
         }
     }
 
+    /**
+     * Groups the ion modes whose neutral mass windows for the given monoisotopic m/z overlap. The groups and the ion
+     * modes within each group keep the order of the given ion modes.
+     */
+    private static List<List<Ionization>> groupOverlappingIonModes(double monoMz, Iterable<Ionization> ionModes, Deviation deviation) {
+        final List<Ionization> modes = new ArrayList<>();
+        for (Ionization ion : ionModes) modes.add(ion);
+        final int n = modes.size();
+        final double[] from = new double[n], to = new double[n];
+        final Integer[] massOrder = new Integer[n];
+        for (int i = 0; i < n; ++i) {
+            final double neutralMass = modes.get(i).subtractFromMass(monoMz);
+            final double abs = deviation.absoluteFor(neutralMass);
+            from[i] = neutralMass - abs;
+            to[i] = neutralMass + abs;
+            massOrder[i] = i;
+        }
+        Arrays.sort(massOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(from[a], from[b]);
+            }
+        });
+        final int[] groupOf = new int[n];
+        int numberOfGroups = 0;
+        double end = Double.NEGATIVE_INFINITY;
+        for (int i : massOrder) {
+            if (numberOfGroups == 0 || from[i] > end) {
+                ++numberOfGroups;
+                end = to[i];
+            } else end = Math.max(end, to[i]);
+            groupOf[i] = numberOfGroups - 1;
+        }
+        final List<List<Ionization>> groups = new ArrayList<>(numberOfGroups);
+        final int[] groupIndex = new int[numberOfGroups];
+        Arrays.fill(groupIndex, -1);
+        for (int i = 0; i < n; ++i) {
+            if (groupIndex[groupOf[i]] < 0) {
+                groupIndex[groupOf[i]] = groups.size();
+                groups.add(new ArrayList<Ionization>());
+            }
+            groups.get(groupIndex[groupOf[i]]).add(modes.get(i));
+        }
+        return groups;
+    }
+
+    /**
+     * Decomposes and scores the pattern for the given group of ion modes with overlapping neutral mass windows. The
+     * union of all windows is decomposed only once and each ion mode takes the formulas within its own window.
+     */
+    private List<IsotopePattern> deisotope(SimpleSpectrum pattern, List<Ionization> ionModes, Ms2Experiment experiment, MeasurementProfile profile) {
+        final double monoMz = pattern.getMzAt(0);
+        if (ionModes.size() == 1) {
+            final Ionization ion = ionModes.get(0);
+            final PrecursorIonType ionType = PrecursorIonType.getPrecursorIonType(ion);
+            return scoreFormulas(pattern, decompose(pattern, ion.subtractFromMass(monoMz), profile, ionType), experiment, profile, ionType);
+        }
+        final Deviation deviation = profile.getAllowedMassDeviation();
+        double from = Double.POSITIVE_INFINITY, to = Double.NEGATIVE_INFINITY;
+        for (Ionization ion : ionModes) {
+            final double neutralMass = ion.subtractFromMass(monoMz);
+            final double abs = deviation.absoluteFor(neutralMass);
+            from = Math.min(from, neutralMass - abs);
+            to = Math.max(to, neutralMass + abs);
+        }
+        final MassToFormulaDecomposer decomposer = this.decomposer.getDecomposer(profile.getFormulaConstraints().getChemicalAlphabet());
+        final List<MolecularFormula> decompositions = decomposer.decomposeToFormulas((from + to) / 2d, (to - from) / 2d, profile.getFormulaConstraints());
+        final List<IsotopePattern> patterns = new ArrayList<>();
+        for (Ionization ion : ionModes) {
+            final PrecursorIonType ionType = PrecursorIonType.getPrecursorIonType(ion);
+            final double neutralMass = ion.subtractFromMass(monoMz);
+            final double abs = deviation.absoluteFor(neutralMass);
+            final IsotopeRatioPrefilter prefilter = prefilterStandardDeviations <= 0 ? null : createIsotopeRatioPrefilter(pattern, decomposer.getChemicalAlphabet(), ionType);
+            final List<MolecularFormula> formulas = new ArrayList<>();
+            for (MolecularFormula formula : decompositions) {
+                final double mass = formula.getMass();
+                if (mass >= neutralMass - abs && mass <= neutralMass + abs && (prefilter == null || prefilter.isValid(formula)))
+                    formulas.add(formula);
+            }
+            patterns.addAll(scoreFormulas(pattern, formulas, experiment, profile, ionType));
+        }
+        return patterns;
+    }
+
+    private List<MolecularFormula> decompose(SimpleSpectrum pattern, double neutralMass, MeasurementProfile profile, PrecursorIonType ion) {
+        final MassToFormulaDecomposer decomposer = this.decomposer.getDecomposer(profile.getFormulaConstraints().getChemicalAlphabet());
+        if (prefilterStandardDeviations <= 0)
+            return decomposer.decomposeToFormulas(neutralMass, profile.getAllowedMassDeviation(), profile.getFormulaConstraints());
+        return decomposer.decomposeToFormulas(neutralMass, profile.getAllowedMassDeviation(), profile.getFormulaConstraints(),
+                createIsotopeRatioPrefilter(pattern, decomposer.getChemicalAlphabet(), ion));
+    }
+
+    /**
+     * Creates a filter which rejects all formulas with the given ionization whose M+1/M and M+2/M ratios cannot
+     * explain the given pattern. The allowed intensity deviations are taken from the first
+     * {@link NormalDistributedIntensityScorer} of this analyzer (or its default values) and are multiplied by
+     * {@link #getPrefilterStandardDeviations()}.
+     * @param alphabet alphabet of the decomposer whose decompositions are filtered
+     */
+    public IsotopeRatioPrefilter createIsotopeRatioPrefilter(Spectrum<Peak> pattern, ChemicalAlphabet alphabet, PrecursorIonType ion) {
+        NormalDistributedIntensityScorer intensityScorer = null;
+        for (IsotopePatternScorer scorer : isotopePatternScorers) {
+            if (scorer instanceof NormalDistributedIntensityScorer) {
+                intensityScorer = (NormalDistributedIntensityScorer) scorer;
+                break;
+            }
+        }
+        if (intensityScorer == null) intensityScorer = new NormalDistributedIntensityScorer();
+        // atoms which are added to the neutral formula before simulating its pattern
+        MolecularFormula offset = ion.neutralMoleculeToMeasuredNeutralMolecule(MolecularFormula.emptyFormula());
+        final MolecularFormula ionAtoms = ion.getIonization().getAtoms();
+        if (ionAtoms != null && ionAtoms.getIntMass() > 0) offset = offset.add(ionAtoms);
+        final double deviations = prefilterStandardDeviations > 0 ? prefilterStandardDeviations : DEFAULT_PREFILTER_STANDARD_DEVIATIONS;
+        return new IsotopeRatioPrefilter(patternGenerator.getDistribution(), alphabet, offset, pattern, intensityScorer.getSigmaA(), intensityScorer.getSigmaR(), deviations);
+    }
+
+    public double getPrefilterStandardDeviations() {
+        return prefilterStandardDeviations;
+    }
+
+    /**
+     * If positive, decompositions are prefiltered by their M+1/M and M+2/M ratios before their patterns are
+     * simulated and scored. Each measured intensity might deviate by the given number of standard deviations.
+     * Zero disables the prefilter (default).
+     */
+    public void setPrefilterStandardDeviations(double prefilterStandardDeviations) {
+        this.prefilterStandardDeviations = prefilterStandardDeviations;
+    }
+
     public List<IsotopePattern> scoreFormulas(SimpleSpectrum extractedSpectrum, List<MolecularFormula> formulas, Ms2Experiment experiment, MeasurementProfile profile) {
         return scoreFormulas(extractedSpectrum, formulas, experiment, profile, experiment.getPrecursorIonType());
     }
 
-    public List<IsotopePattern> scoreFormulas(SimpleSpectrum extractedSpectrum, List<MolecularFormula> formulas, Ms2Experiment experiment, MeasurementProfile profile, PrecursorIonType ion) {
+    /**
+     * Scores the isotope patterns of all given formulas against the measured pattern. The measured pattern is
+     * normalized only once for all formulas and the theoretical patterns are simulated as batch, such that similar
+     * formulas share intermediate results. The batch might fold the elements in another order than
+     * {@link IsotopePatternGenerator#simulatePattern(MolecularFormula, Ionization)}, so the scores are the same up to
+     * floating point rounding. If there are at least {@link #getParallelScoringThreshold()} formulas, they are scored
+     * in parallel chunks (see {@link ParallelBatches}).
+     */
+    @SuppressWarnings("unchecked")
+    public List<IsotopePattern> scoreFormulas(SimpleSpectrum extractedSpectrum, final List<MolecularFormula> formulas, final Ms2Experiment experiment, final MeasurementProfile profile, final PrecursorIonType ion) {
         final SimpleMutableSpectrum spec = new SimpleMutableSpectrum(extractedSpectrum);
         normalize(spec, Normalization.Sum(1d));
         if (intensityOffset != 0d) {
@@ -282,28 +423,51 @@ public class IsotopePatternAnalysis implements Parameterized {
         }
         while (spec.getIntensityAt(spec.size() - 1) < cutoff) spec.removePeakAt(spec.size() - 1);
         normalize(spec, Normalization.Max(1));
-        final Spectrum<Peak> measuredSpectrum = new SimpleSpectrum(spec);
+        final MeasuredPattern measured = new MeasuredPattern(new SimpleSpectrum(spec), profile, isotopePatternScorers);
         final ArrayList<IsotopePattern> patterns = new ArrayList<>(formulas.size());
-        final SimpleSpectrum[] allPatternVariants = new SimpleSpectrum[measuredSpectrum.size()];
-        {
-            final SimpleMutableSpectrum mut = new SimpleMutableSpectrum(allPatternVariants.length);
-            for (int k = 0; k < allPatternVariants.length; ++k) {
-                mut.addPeak(measuredSpectrum.getMzAt(k), measuredSpectrum.getIntensityAt(k));
-                allPatternVariants[k] = new SimpleSpectrum(mut);
+        if (formulas.size() < parallelScoringThreshold) {
+            scoreFormulas(measured, formulas, experiment, profile, ion, patterns);
+        } else {
+            // this method is called from within jobs, so we must not block on sub jobs
+            final int maximalNumberOfChunks = 2 * SiriusJobs.getGlobalJobManager().getCPUThreads();
+            final List<IsotopePattern>[] chunks = new List[ParallelBatches.numberOfBatches(formulas.size(), maximalNumberOfChunks)];
+            ParallelBatches.forEachBatch(formulas.size(), maximalNumberOfChunks, new ParallelBatches.Procedure() {
+                @Override
+                public void process(int batch, int from, int to) {
+                    final ArrayList<IsotopePattern> scored = new ArrayList<>(to - from);
+                    scoreFormulas(measured, formulas.subList(from, to), experiment, profile, ion, scored);
+                    chunks[batch] = scored;
+                }
+            });
+            for (List<IsotopePattern> chunk : chunks) patterns.addAll(chunk);
+        }
+        Collections.sort(patterns, Scored.<MolecularFormula>desc());
+        return patterns;
+    }
+
+    private void scoreFormulas(MeasuredPattern measured, List<MolecularFormula> formulas, Ms2Experiment experiment, MeasurementProfile profile, PrecursorIonType ion, List<IsotopePattern> patterns) {
+        final Spectrum<Peak> measuredSpectrum = measured.spectrum;
+        final List<MolecularFormula> measuredFormulas = new ArrayList<>(formulas.size());
+        for (MolecularFormula formula : formulas) measuredFormulas.add(ion.neutralMoleculeToMeasuredNeutralMolecule(formula));
+        final SimpleSpectrum[] theoreticalSpectra = patternGenerator.simulatePatterns(measuredFormulas, ion.getIonization());
+        if (measured.fusedScorer != null) {
+            final double[] bestScores = new double[theoreticalSpectra.length];
+            final int[] bestPrefixes = new int[theoreticalSpectra.length];
+            measured.fusedScorer.score(theoreticalSpectra, 10, bestScores, bestPrefixes);
+            for (int i = 0; i < theoreticalSpectra.length; ++i) {
+                if (bestPrefixes[i] < 0) continue;
+                patterns.add(new IsotopePattern(formulas.get(i), bestScores[i], measured.allPatternVariants[bestPrefixes[i]]));
             }
+            return;
         }
-        int k = 0;
-        final double[] scoreBuffer = new double[allPatternVariants.length];
-        for (MolecularFormula formula : formulas) {
+        final double[] scoreBuffer = new double[measured.allPatternVariants.length];
+        for (int i = 0; i < theoreticalSpectra.length; ++i) {
             Arrays.fill(scoreBuffer, 0d);
-            final MolecularFormula f = ion.neutralMoleculeToMeasuredNeutralMolecule(formula);
-            Spectrum<Peak> measuredOne = measuredSpectrum;
-            Spectrum<Peak> theoreticalSpectrum = patternGenerator.simulatePattern(f, ion.getIonization());
+            Spectrum<Peak> theoreticalSpectrum = theoreticalSpectra[i];
             if (theoreticalSpectrum.size() == 0) continue;
             if (theoreticalSpectrum.size() > 10)
                 theoreticalSpectrum = Spectrums.getNormalizedSpectrum(Spectrums.subspectrum(theoreticalSpectrum, 0, 10), Normalization.Max(1d));
-            if (measuredSpectrum.size() > theoreticalSpectrum.size())
-                measuredOne = Spectrums.getNormalizedSpectrum(Spectrums.subspectrum(measuredSpectrum, 0, theoreticalSpectrum.size()), Normalization.Max(1d));
+            final Spectrum<Peak> measuredOne = measuredSpectrum.size() > theoreticalSpectrum.size() ? measured.normalizedPrefixes[theoreticalSpectrum.size()] : measuredSpectrum;
             for (IsotopePatternScorer scorer : isotopePatternScorers) {
                 scorer.score(scoreBuffer, measuredOne, theoreticalSpectrum, Normalization.Max(1), experiment, profile);
             }
@@ -311,10 +475,68 @@ public class IsotopePatternAnalysis implements Parameterized {
             for (int j = 0; j < scoreBuffer.length; ++j) {
                 if (scoreBuffer[j] > scoreBuffer[optScoreIndex]) optScoreIndex = j;
             }
-            patterns.add(new IsotopePattern(formula, scoreBuffer[optScoreIndex], allPatternVariants[optScoreIndex]));
+            patterns.add(new IsotopePattern(formulas.get(i), scoreBuffer[optScoreIndex], measured.allPatternVariants[optScoreIndex]));
         }
-        Collections.sort(patterns, Scored.<MolecularFormula>desc());
-        return patterns;
+    }
+
+    /**
+     * the normalized measured pattern together with all of its prefixes, which are computed once for all formulas.
+     * If all scorers can be fused, the patterns are scored by a {@link FusedIsotopePatternScorer}.
+     */
+    private static final class MeasuredPattern {
+        private final Spectrum<Peak> spectrum;
+        // allPatternVariants[k] contains the first k+1 peaks as given in the spectrum
+        private final SimpleSpectrum[] allPatternVariants;
+        // normalizedPrefixes[k] contains the first k peaks, normalized to the most intensive of them
+        private final SimpleSpectrum[] normalizedPrefixes;
+        private final FusedIsotopePatternScorer fusedScorer;
+
+        private MeasuredPattern(Spectrum<Peak> spectrum, MeasurementProfile profile, List<IsotopePatternScorer> scorers) {
+            this.spectrum = spectrum;
+            if (FusedIsotopePatternScorer.canFuse(scorers)) {
+                final double[] mz = new double[spectrum.size()], intensities = new double[spectrum.size()];
+                for (int k = 0; k < mz.length; ++k) {
+                    mz[k] = spectrum.getMzAt(k);
+                    intensities[k] = spectrum.getIntensityAt(k);
+                }
+                this.fusedScorer = new FusedIsotopePatternScorer(scorers, mz, intensities, profile);
+            } else {
+                this.fusedScorer = null;
+            }
+            this.allPatternVariants = new SimpleSpectrum[spectrum.size()];
+            this.normalizedPrefixes = new SimpleSpectrum[spectrum.size()];
+            final SimpleMutableSpectrum mut = new SimpleMutableSpectrum(allPatternVariants.length);
+            for (int k = 0; k < allPatternVariants.length; ++k) {
+                mut.addPeak(spectrum.getMzAt(k), spectrum.getIntensityAt(k));
+                allPatternVariants[k] = new SimpleSpectrum(mut);
+            }
+            for (int k = 1; k < normalizedPrefixes.length; ++k)
+                normalizedPrefixes[k] = Spectrums.getNormalizedSpectrum(Spectrums.subspectrum(spectrum, 0, k), Normalization.Max(1d));
+        }
+    }
+
+    public int getParallelScoringThreshold() {
+        return parallelScoringThreshold;
+    }
+
+    /**
+     * lists with at least the given number of formulas are scored in parallel chunks by jobs of the global job
+     * manager. Parallel scoring is disabled by default.
+     */
+    public void setParallelScoringThreshold(int parallelScoringThreshold) {
+        this.parallelScoringThreshold = parallelScoringThreshold;
+    }
+
+    public int getParallelIonModeThreshold() {
+        return parallelIonModeThreshold;
+    }
+
+    /**
+     * If the ionization of an experiment is unknown and there are at least the given number of ion modes with
+     * distinct neutral masses, they are decomposed and scored in parallel (see {@link ParallelBatches}).
+     */
+    public void setParallelIonModeThreshold(int parallelIonModeThreshold) {
+        this.parallelIonModeThreshold = parallelIonModeThreshold;
     }
 
     public MutableMeasurementProfile getDefaultProfile() {
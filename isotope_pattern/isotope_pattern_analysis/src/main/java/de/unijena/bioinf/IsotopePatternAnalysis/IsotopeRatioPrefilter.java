@@ -0,0 +1,187 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.IsotopePatternAnalysis;
+
+import de.unijena.bioinf.ChemistryBase.chem.*;
+import de.unijena.bioinf.ChemistryBase.chem.utils.IsotopicDistribution;
+import de.unijena.bioinf.ChemistryBase.ms.Peak;
+import de.unijena.bioinf.ChemistryBase.ms.Spectrum;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.FastTwoPeakSimulator;
+import de.unijena.bioinf.MassDecomposer.Alphabet;
+import de.unijena.bioinf.MassDecomposer.Chemistry.ChemicalAlphabetWrapper;
+import de.unijena.bioinf.MassDecomposer.DecompositionValidator;
+
+/**
+ * Rejects formulas whose M+1/M or M+2/M intensity ratio cannot explain the measured isotope pattern.
+ *
+ * Both ratios are computed from sums which are linear in the element amounts (see {@link FastTwoPeakSimulator}),
+ * so a decomposition is checked directly on its compomere, before any formula object or isotope pattern is built.
+ * The allowed ratios are bounded by interval arithmetic on the measured intensities, each of which might deviate by
+ * the given number of standard deviations. The standard deviation of an intensity I (relative to the most intensive
+ * peak) is sqrt(sigmaA^2 + (I*sigmaR)^2), as in the NormalDistributedIntensityScorer. Missing isotope peaks do not
+ * constrain the ratios.
+ */
+public class IsotopeRatioPrefilter implements DecompositionValidator<Element>, FormulaFilter {
+
+    private final FastTwoPeakSimulator simulator;
+    private final ChemicalAlphabet alphabet;
+    // coefficients of the alphabet elements. The amounts of the offset are added to all formulas
+    private final double[] plusOne, plusTwo, plusOneSquared;
+    private final double offsetOne, offsetTwo, offsetOneSquared;
+    private final double lowerOne, upperOne, lowerTwo, upperTwo;
+
+    /**
+     * @param distribution               isotopic distribution used for pattern simulation
+     * @param alphabet                   the alphabet of the decomposer whose decompositions are validated
+     * @param offset                     atoms which are added to each decomposition before simulating its pattern, e.g. adduct and ionization
+     * @param measured                   measured isotope pattern, starting with the monoisotopic peak
+     * @param sigmaA                     standard deviation of absolute intensity errors
+     * @param sigmaR                     standard deviation of relative intensity errors
+     * @param numberOfStandardDeviations allowed deviation of each intensity. Small values might reject the correct formula
+     */
+    public IsotopeRatioPrefilter(IsotopicDistribution distribution, ChemicalAlphabet alphabet, MolecularFormula offset, Spectrum<Peak> measured, double sigmaA, double sigmaR, double numberOfStandardDeviations) {
+        this.simulator = new FastTwoPeakSimulator(distribution);
+        this.alphabet = alphabet;
+        this.plusOne = new double[alphabet.size()];
+        this.plusTwo = new double[alphabet.size()];
+        this.plusOneSquared = new double[alphabet.size()];
+        for (int i = 0; i < alphabet.size(); ++i) {
+            final double[] coefficients = simulator.getRatioCoefficients(alphabet.get(i));
+            plusOne[i] = coefficients[0];
+            plusTwo[i] = coefficients[1];
+            plusOneSquared[i] = coefficients[2];
+        }
+        double one = 0d, two = 0d, oneSquared = 0d;
+        for (Element e : offset) {
+            final double[] coefficients = simulator.getRatioCoefficients(e);
+            final int amount = offset.numberOf(e);
+            one += amount * coefficients[0];
+            two += amount * coefficients[1];
+            oneSquared += amount * coefficients[2];
+        }
+        this.offsetOne = one;
+        this.offsetTwo = two;
+        this.offsetOneSquared = oneSquared;
+
+        double maxIntensity = 0d;
+        for (int k = 0; k < Math.min(3, measured.size()); ++k) maxIntensity = Math.max(maxIntensity, measured.getIntensityAt(k));
+        final double[] intensities = new double[3], deviations = new double[3];
+        for (int k = 0; k < Math.min(3, measured.size()); ++k) {
+            intensities[k] = measured.getIntensityAt(k) / maxIntensity;
+            deviations[k] = numberOfStandardDeviations * Math.sqrt(sigmaA * sigmaA + intensities[k] * intensities[k] * sigmaR * sigmaR);
+        }
+        final double maxMono = intensities[0] + deviations[0], minMono = intensities[0] - deviations[0];
+        if (measured.size() > 1) {
+            this.lowerOne = Math.max(0d, intensities[1] - deviations[1]) / maxMono;
+            this.upperOne = minMono <= 0 ? Double.POSITIVE_INFINITY : (intensities[1] + deviations[1]) / minMono;
+        } else {
+            this.lowerOne = 0d;
+            this.upperOne = Double.POSITIVE_INFINITY;
+        }
+        if (measured.size() > 2) {
+            this.lowerTwo = Math.max(0d, intensities[2] - deviations[2]) / maxMono;
+            this.upperTwo = minMono <= 0 ? Double.POSITIVE_INFINITY : (intensities[2] + deviations[2]) / minMono;
+        } else {
+            this.lowerTwo = 0d;
+            this.upperTwo = Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     * @param compomere    amounts of the elements given by characterIds
+     * @param characterIds indizes of the elements in the given alphabet
+     */
+    @Override
+    public boolean validate(int[] compomere, int[] characterIds, Alphabet<Element> alphabet) {
+        final boolean sameAlphabet = alphabet instanceof ChemicalAlphabetWrapper && (((ChemicalAlphabetWrapper) alphabet).getAlphabet() == this.alphabet || ((ChemicalAlphabetWrapper) alphabet).getAlphabet().equals(this.alphabet));
+        double one = offsetOne, two = offsetTwo, oneSquared = offsetOneSquared;
+        for (int i = 0; i < compomere.length; ++i) {
+            final int j = sameAlphabet ? characterIds[i] : this.alphabet.indexOf(alphabet.get(characterIds[i]));
+            if (j < 0) {
+                final double[] coefficients = simulator.getRatioCoefficients(alphabet.get(characterIds[i]));
+                one += compomere[i] * coefficients[0];
+                two += compomere[i] * coefficients[1];
+                oneSquared += compomere[i] * coefficients[2];
+                continue;
+            }
+            one += compomere[i] * plusOne[j];
+            two += compomere[i] * plusTwo[j];
+            oneSquared += compomere[i] * plusOneSquared[j];
+        }
+        return isValid(one, two, oneSquared);
+    }
+
+    /**
+     * validates a compomere whose amounts are given in the order of the alphabet of this filter
+     */
+    public boolean validate(int[] compomere) {
+        double one = offsetOne, two = offsetTwo, oneSquared = offsetOneSquared;
+        for (int i = 0; i < compomere.length; ++i) {
+            one += compomere[i] * plusOne[i];
+            two += compomere[i] * plusTwo[i];
+            oneSquared += compomere[i] * plusOneSquared[i];
+        }
+        return isValid(one, two, oneSquared);
+    }
+
+    @Override
+    public boolean isValid(MolecularFormula formula) {
+        double one = offsetOne, two = offsetTwo, oneSquared = offsetOneSquared;
+        for (Element e : formula) {
+            final int amount = formula.numberOf(e);
+            final int i = alphabet.indexOf(e);
+            if (i >= 0) {
+                one += amount * plusOne[i];
+                two += amount * plusTwo[i];
+                oneSquared += amount * plusOneSquared[i];
+            } else {
+                final double[] coefficients = simulator.getRatioCoefficients(e);
+                one += amount * coefficients[0];
+                two += amount * coefficients[1];
+                oneSquared += amount * coefficients[2];
+            }
+        }
+        return isValid(one, two, oneSquared);
+    }
+
+    private boolean isValid(double one, double two, double oneSquared) {
+        if (one < lowerOne || one > upperOne) return false;
+        final double ratioTwo = two + (one * one - oneSquared) / 2d;
+        return ratioTwo >= lowerTwo && ratioTwo <= upperTwo;
+    }
+
+    public ChemicalAlphabet getAlphabet() {
+        return alphabet;
+    }
+
+    public double getLowerBoundOfFirstRatio() {
+        return lowerOne;
+    }
+
+    public double getUpperBoundOfFirstRatio() {
+        return upperOne;
+    }
+
+    public double getLowerBoundOfSecondRatio() {
+        return lowerTwo;
+    }
+
+    public double getUpperBoundOfSecondRatio() {
+        return upperTwo;
+    }
+}
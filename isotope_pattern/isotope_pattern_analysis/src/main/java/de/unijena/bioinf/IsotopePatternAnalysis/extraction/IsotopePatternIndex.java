@@ -0,0 +1,204 @@
+package de.unijena.bioinf.IsotopePatternAnalysis.extraction;
+
+import de.unijena.bioinf.ChemistryBase.chem.ChemicalAlphabet;
+import de.unijena.bioinf.ChemistryBase.chem.FormulaConstraints;
+import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.MeasurementProfile;
+import de.unijena.bioinf.ChemistryBase.ms.Peak;
+import de.unijena.bioinf.ChemistryBase.ms.Spectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Index over the peaks of a MS1 spectrum for extracting isotope patterns of many features at once.
+ *
+ * The spectrum is sorted by mass only once and the mass windows of the isotope peaks are computed once for the
+ * chemical alphabet of the profile. Extracting the patterns of several target masses sorts the targets and
+ * sweeps through the spectrum with one cursor per isotope peak, such that each lookup only moves the cursors a few
+ * peaks forward instead of searching the whole spectrum again. Extracting the patterns of all features of a spectrum
+ * is thus close to linear in the number of peaks.
+ *
+ * The extracted patterns are the same as the ones of
+ * {@link de.unijena.bioinf.IsotopePatternAnalysis.IsotopePatternAnalysis#extractPattern(Spectrum, MeasurementProfile, double)}:
+ * the monoisotopic peak is the most intensive peak within the allowed mass deviation of the target mass, and each
+ * following isotope peak merges all peaks within its mass window. The pattern ends with the first missing isotope peak.
+ */
+public class IsotopePatternIndex {
+
+    /**
+     * maximal number of isotope peaks following the monoisotopic peak
+     */
+    public static final int MAXIMAL_NUMBER_OF_ISOTOPE_PEAKS = 5;
+
+    private final double[] mzs;
+    private final double[] intensities;
+    private final double[] minimalDefects;
+    private final double[] maximalDefects;
+    private final Deviation allowedDeviation;
+    private final Deviation massDifferenceDeviation;
+
+    public IsotopePatternIndex(Spectrum<? extends Peak> ms1Spec, MeasurementProfile profile) {
+        final SimpleSpectrum spectrum = new SimpleSpectrum(ms1Spec);
+        final int n = spectrum.size();
+        this.mzs = new double[n];
+        this.intensities = new double[n];
+        for (int i = 0; i < n; ++i) {
+            mzs[i] = spectrum.getMzAt(i);
+            intensities[i] = spectrum.getIntensityAt(i);
+        }
+        final ChemicalAlphabet stdalphabet = profile.getFormulaConstraints().getExtendedConstraints(new FormulaConstraints(ChemicalAlphabet.getExtendedAlphabet())).getChemicalAlphabet();
+        final PeriodicTable T = PeriodicTable.getInstance();
+        this.minimalDefects = new double[MAXIMAL_NUMBER_OF_ISOTOPE_PEAKS + 1];
+        this.maximalDefects = new double[MAXIMAL_NUMBER_OF_ISOTOPE_PEAKS + 1];
+        for (int k = 1; k <= MAXIMAL_NUMBER_OF_ISOTOPE_PEAKS; ++k) {
+            final double[] defects = T.getIsotopicMassDefects(stdalphabet, k);
+            minimalDefects[k] = defects[0];
+            maximalDefects[k] = defects[1];
+        }
+        this.allowedDeviation = profile.getAllowedMassDeviation();
+        this.massDifferenceDeviation = profile.getStandardMassDifferenceDeviation();
+    }
+
+    public int size() {
+        return mzs.length;
+    }
+
+    /**
+     * @return the isotope pattern of the given target mass or null, if there is no peak within the allowed mass
+     * deviation of the target mass
+     */
+    public SimpleSpectrum extractPattern(double targetMz) {
+        final int[] cursors = new int[MAXIMAL_NUMBER_OF_ISOTOPE_PEAKS + 1];
+        final int mono = mostIntensivePeakWithin(targetMz, cursors);
+        if (mono < 0) return null;
+        return extractChain(mono, cursors, new double[2][MAXIMAL_NUMBER_OF_ISOTOPE_PEAKS + 1]);
+    }
+
+    /**
+     * Extracts the isotope patterns of many target masses in a single sweep over the spectrum.
+     *
+     * @return an array with the isotope pattern of each target mass in the same order as the targets. Entries are
+     * null for target masses without a peak within the allowed mass deviation.
+     */
+    public SimpleSpectrum[] extractPatterns(final double[] targetMzs) {
+        final SimpleSpectrum[] patterns = new SimpleSpectrum[targetMzs.length];
+        final Integer[] order = new Integer[targetMzs.length];
+        for (int i = 0; i < order.length; ++i) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Double.compare(targetMzs[o1], targetMzs[o2]);
+            }
+        });
+        final int[] cursors = new int[MAXIMAL_NUMBER_OF_ISOTOPE_PEAKS + 1];
+        final double[][] buffer = new double[2][MAXIMAL_NUMBER_OF_ISOTOPE_PEAKS + 1];
+        for (int i : order) {
+            final int mono = mostIntensivePeakWithin(targetMzs[i], cursors);
+            if (mono < 0) continue;
+            patterns[i] = extractChain(mono, cursors, buffer);
+        }
+        return patterns;
+    }
+
+    /**
+     * Extracts the isotope pattern starting at each peak of the spectrum in a single sweep, i.e. each peak is
+     * considered as monoisotopic peak of a feature.
+     *
+     * @return an array with the isotope pattern of each peak in order of increasing mass. Peaks without any isotope
+     * peak yield a pattern with a single peak.
+     */
+    public SimpleSpectrum[] extractAllPatterns() {
+        final SimpleSpectrum[] patterns = new SimpleSpectrum[mzs.length];
+        final int[] cursors = new int[MAXIMAL_NUMBER_OF_ISOTOPE_PEAKS + 1];
+        final double[][] buffer = new double[2][MAXIMAL_NUMBER_OF_ISOTOPE_PEAKS + 1];
+        for (int i = 0; i < mzs.length; ++i) {
+            patterns[i] = extractChain(i, cursors, buffer);
+        }
+        return patterns;
+    }
+
+    private SimpleSpectrum extractChain(int mono, int[] cursors, double[][] buffer) {
+        final double[] patternMzs = buffer[0], patternIntensities = buffer[1];
+        final double monomz = mzs[mono];
+        patternMzs[0] = monomz;
+        patternIntensities[0] = intensities[mono];
+        int size = 1;
+        for (int k = 1; k <= MAXIMAL_NUMBER_OF_ISOTOPE_PEAKS; ++k) {
+            // same computation as PeriodicTable#getIsotopicMassWindow, but with precomputed mass defects
+            final double minmz = monomz + k + minimalDefects[k];
+            final double maxmz = monomz + k + maximalDefects[k];
+            final double a = minmz - allowedDeviation.absoluteFor(minmz);
+            final double b = maxmz + allowedDeviation.absoluteFor(maxmz);
+            final double startPoint = a - massDifferenceDeviation.absoluteFor(a);
+            final double endPoint = b + massDifferenceDeviation.absoluteFor(b);
+            final int nextIndex = firstPeakAbove(startPoint, cursors[k]);
+            cursors[k] = nextIndex;
+            if (nextIndex >= mzs.length || mzs[nextIndex] > endPoint) break;
+            double mzBuffer = 0d;
+            double intensityBuffer = 0d;
+            for (int i = nextIndex; i < mzs.length; ++i) {
+                final double mz = mzs[i];
+                if (mz > endPoint) break;
+                final double intensity = intensities[i];
+                mzBuffer += mz * intensity;
+                intensityBuffer += intensity;
+            }
+            mzBuffer /= intensityBuffer;
+            patternMzs[size] = mzBuffer;
+            patternIntensities[size] = intensityBuffer;
+            ++size;
+        }
+        return new SimpleSpectrum(Arrays.copyOf(patternMzs, size), Arrays.copyOf(patternIntensities, size));
+    }
+
+    private int mostIntensivePeakWithin(double mz, int[] cursors) {
+        final double diff = allowedDeviation.absoluteFor(mz);
+        final double end = mz + diff;
+        int k = firstPeakAbove(mz - diff, cursors[0]);
+        cursors[0] = k;
+        if (k >= mzs.length || mzs[k] > end) return -1;
+        double intensity = intensities[k];
+        for (int j = k + 1; j < mzs.length; ++j) {
+            if (mzs[j] > end) break;
+            if (intensities[j] > intensity) {
+                k = j;
+                intensity = intensities[j];
+            }
+        }
+        return k;
+    }
+
+    /**
+     * @return the index of the first peak with mass at least mz or the number of peaks, if there is no such peak.
+     * The search gallops forward from the given hint, so consecutive lookups with increasing masses are cheap.
+     */
+    private int firstPeakAbove(double mz, int hint) {
+        final int n = mzs.length;
+        if (hint > n) hint = n;
+        if (hint > 0 && mzs[hint - 1] >= mz) return lowerBound(mz, 0, hint - 1);
+        if (hint >= n || mzs[hint] >= mz) return hint;
+        // mzs[lo] < mz holds in each step
+        int lo = hint, step = 1;
+        int hi = lo + step;
+        while (hi < n && mzs[hi] < mz) {
+            lo = hi;
+            step <<= 1;
+            hi = lo + step;
+        }
+        return lowerBound(mz, lo + 1, Math.min(hi, n));
+    }
+
+    private int lowerBound(double mz, int from, int to) {
+        int lo = from, hi = to;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mzs[mid] < mz) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+}
@@ -21,29 +21,40 @@ import de.unijena.bioinf.ChemistryBase.chem.Element;
 import de.unijena.bioinf.ChemistryBase.chem.utils.IsotopicDistribution;
 
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Caches the isotopologue tables of powers of single elements. The table arrays are never modified after they are
+ * put into the map, but replaced by a modified copy, so lookups are lock-free and might be done by many threads
+ * concurrently. Tables with more than {@link #MAX_NUMBER_OF_ATOMS} atoms are not cached, as their size grows
+ * polynomially with the number of atoms.
+ */
 class CachedIsoTable {
 
-    private final HashMap<Element, IsotopologueTable[]> cache;
+    private static final int MAX_NUMBER_OF_ATOMS = 512;
+
+    private final ConcurrentHashMap<Element, IsotopologueTable[]> cache;
     private final IsotopicDistribution distribution;
 
     CachedIsoTable(IsotopicDistribution distribution) {
-        this.cache = new HashMap<Element, IsotopologueTable[]>();
+        this.cache = new ConcurrentHashMap<Element, IsotopologueTable[]>();
         this.distribution = distribution;
     }
 
-    public Isotopologues getIsotopologuesFor(Element element, int numberOfAtoms) {
-        IsotopologueTable[] tables = cache.get(element);
-        if (tables == null) {
-            tables = new IsotopologueTable[numberOfAtoms * 2];
-            cache.put(element, tables);
-        } else if (tables.length <= numberOfAtoms) {
-            tables = Arrays.copyOf(tables, numberOfAtoms * 2);
-        }
-        if (tables[numberOfAtoms] == null) {
-            tables[numberOfAtoms] = new IsotopologueTable(element, numberOfAtoms, distribution);
-        }
-        return tables[numberOfAtoms];
+    public Isotopologues getIsotopologuesFor(final Element element, final int numberOfAtoms) {
+        final IsotopologueTable[] tables = cache.get(element);
+        if (tables != null && tables.length > numberOfAtoms && tables[numberOfAtoms] != null)
+            return tables[numberOfAtoms];
+        final IsotopologueTable table = new IsotopologueTable(element, numberOfAtoms, distribution);
+        if (numberOfAtoms > MAX_NUMBER_OF_ATOMS) return table;
+        // if another thread computed the same table in the meantime, we keep its table
+        final IsotopologueTable[] updated = cache.compute(element, (e, current) -> {
+            if (current != null && current.length > numberOfAtoms && current[numberOfAtoms] != null) return current;
+            final IsotopologueTable[] copy = current == null ? new IsotopologueTable[numberOfAtoms * 2 + 1]
+                    : Arrays.copyOf(current, Math.max(current.length, numberOfAtoms * 2 + 1));
+            copy[numberOfAtoms] = table;
+            return copy;
+        });
+        return updated[numberOfAtoms];
     }
 }
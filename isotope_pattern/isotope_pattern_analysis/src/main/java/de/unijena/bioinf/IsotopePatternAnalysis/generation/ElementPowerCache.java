@@ -0,0 +1,152 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.IsotopePatternAnalysis.generation;
+
+import de.unijena.bioinf.ChemistryBase.chem.Element;
+import de.unijena.bioinf.ChemistryBase.chem.Isotopes;
+import de.unijena.bioinf.ChemistryBase.ms.Peak;
+import de.unijena.bioinf.ChemistryBase.ms.utils.ArrayWrapperSpectrum;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+/**
+ * Caches the isotope distributions of powers of single elements (e.g. C20), with one peak per nominal mass and
+ * at most a given number of peaks, as computed by {@link FastIsotopePatternGenerator}. The same powers of C, H, N
+ * and O recur for nearly all formulas, so most distributions have to be folded only once.
+ *
+ * The cache is shared by all generators. Entries are keyed by element, number of atoms and number of peaks and
+ * remember the isotopes they were computed from, so generators with different isotopic distributions do not
+ * see each others distributions. The map is split into stripes which are locked separately, so concurrent
+ * lookups rarely wait for each other. Each stripe is cleared when it is full, which bounds the memory of the
+ * cache. The cache stores read-only copies of the distributions, which throw an UnsupportedOperationException
+ * when they are modified, as they are shared between all threads.
+ */
+final class ElementPowerCache {
+
+    static final ElementPowerCache INSTANCE = new ElementPowerCache(16, 4096);
+
+    /**
+     * larger powers are not cached, such that element id, number of atoms and number of peaks occupy disjoint bits
+     * of the key
+     */
+    private static final int MAX_NUMBER_OF_ATOMS = (1 << 16) - 1, MAX_NUMBER_OF_PEAKS = (1 << 16) - 1;
+
+    private final TLongObjectHashMap<Entry>[] stripes;
+    private final int maximalStripeSize;
+
+    @SuppressWarnings("unchecked")
+    ElementPowerCache(int numberOfStripes, int maximalStripeSize) {
+        this.stripes = new TLongObjectHashMap[numberOfStripes];
+        for (int i = 0; i < numberOfStripes; ++i) stripes[i] = new TLongObjectHashMap<>();
+        this.maximalStripeSize = maximalStripeSize;
+    }
+
+    /**
+     * @return the cached distribution of the given power of the element or null, if it is not cached
+     */
+    ArrayWrapperSpectrum get(Element element, Isotopes isotopes, int numberOfAtoms, int maxNumberOfPeaks) {
+        if (!isCacheable(element, numberOfAtoms, maxNumberOfPeaks)) return null;
+        final long key = key(element, numberOfAtoms, maxNumberOfPeaks);
+        final TLongObjectHashMap<Entry> stripe = stripe(key);
+        final Entry entry;
+        synchronized (stripe) {
+            entry = stripe.get(key);
+        }
+        return entry != null && entry.isotopes == isotopes ? entry.distribution : null;
+    }
+
+    void put(Element element, Isotopes isotopes, int numberOfAtoms, int maxNumberOfPeaks, ArrayWrapperSpectrum distribution) {
+        if (distribution == null || !isCacheable(element, numberOfAtoms, maxNumberOfPeaks)) return;
+        final long key = key(element, numberOfAtoms, maxNumberOfPeaks);
+        final TLongObjectHashMap<Entry> stripe = stripe(key);
+        synchronized (stripe) {
+            if (stripe.size() >= maximalStripeSize) stripe.clear();
+            stripe.put(key, new Entry(isotopes, new ReadOnlyDistribution(distribution)));
+        }
+    }
+
+    void clear() {
+        for (TLongObjectHashMap<Entry> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    private static boolean isCacheable(Element element, int numberOfAtoms, int maxNumberOfPeaks) {
+        return element.getId() >= 0 && numberOfAtoms >= 0 && numberOfAtoms <= MAX_NUMBER_OF_ATOMS && maxNumberOfPeaks >= 0 && maxNumberOfPeaks <= MAX_NUMBER_OF_PEAKS;
+    }
+
+    static long key(Element element, int numberOfAtoms, int maxNumberOfPeaks) {
+        // bits 0-15: number of peaks, bits 16-31: number of atoms, bits 32-62: element id
+        return (((long) element.getId()) << 32) | (((long) numberOfAtoms) << 16) | maxNumberOfPeaks;
+    }
+
+    private TLongObjectHashMap<Entry> stripe(long key) {
+        // atoms and element vary most, so mix both into the stripe index
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return stripes[(int) ((h >>> 32) % stripes.length)];
+    }
+
+    private static final class ReadOnlyDistribution extends ArrayWrapperSpectrum {
+
+        private ReadOnlyDistribution(ArrayWrapperSpectrum distribution) {
+            super(distribution.getMzs().clone(), distribution.getInts().clone());
+        }
+
+        @Override
+        public double[] getMzs() {
+            return super.getMzs().clone();
+        }
+
+        @Override
+        public double[] getInts() {
+            return super.getInts().clone();
+        }
+
+        @Override
+        public void setPeakAt(int index, Peak peak) {
+            throw new UnsupportedOperationException("cached isotope distributions are read-only");
+        }
+
+        @Override
+        public void setMzAt(int index, double mz) {
+            throw new UnsupportedOperationException("cached isotope distributions are read-only");
+        }
+
+        @Override
+        public void setIntensityAt(int index, double intensity) {
+            throw new UnsupportedOperationException("cached isotope distributions are read-only");
+        }
+
+        @Override
+        public void swap(int index1, int index2) {
+            throw new UnsupportedOperationException("cached isotope distributions are read-only");
+        }
+    }
+
+    private static final class Entry {
+        private final Isotopes isotopes;
+        private final ArrayWrapperSpectrum distribution;
+
+        private Entry(Isotopes isotopes, ArrayWrapperSpectrum distribution) {
+            this.isotopes = isotopes;
+            this.distribution = distribution;
+        }
+    }
+
+}
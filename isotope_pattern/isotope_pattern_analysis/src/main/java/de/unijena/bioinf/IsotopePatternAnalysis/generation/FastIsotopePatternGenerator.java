@@ -28,6 +28,8 @@ import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
 
+import java.util.*;
+
 public class FastIsotopePatternGenerator extends IsotopePatternGenerator {
 
     public FastIsotopePatternGenerator(IsotopicDistribution distribution, Normalization mode) {
@@ -57,6 +59,97 @@ public class FastIsotopePatternGenerator extends IsotopePatternGenerator {
             diff = ion.getMass() - adduct.getMass();
         } else diff = ion.getMass();
         final SimpleMutableSpectrum spec = foldFormula(formula, this.maximalNumberOfPeaks, this.minimalProbabilityThreshold);
+        return toPattern(spec, formula, diff);
+    }
+
+    /**
+     * Simulates the patterns of all formulas with shared intermediate folds: the elements are ordered such that
+     * elements with few distinct amounts among all formulas come first, and the formulas are sorted by their
+     * amounts in this order. Neighbouring formulas then share a prefix of elements (usually the heteroatoms and
+     * often N and O) whose folded distribution is reused, and only the remaining elements are folded again.
+     * As the elements are folded in another order than in {@link #simulatePattern(MolecularFormula, Ionization)},
+     * masses and intensities are not bit-identical to the ones of single patterns, but differ only by rounding
+     * errors.
+     */
+    @Override
+    public SimpleSpectrum[] simulatePatterns(List<MolecularFormula> formulas, Ionization ion) {
+        final int n = formulas.size();
+        if (n <= 1) return super.simulatePatterns(formulas, ion);
+        final MolecularFormula adduct = ion.getAtoms();
+        final boolean addAdduct = adduct != null && adduct.getIntMass() > 0;
+        final double diff = addAdduct ? ion.getMass() - adduct.getMass() : ion.getMass();
+        final MolecularFormula[] ionFormulas = new MolecularFormula[n];
+        final LinkedHashSet<Element> elementSet = new LinkedHashSet<>();
+        for (int i = 0; i < n; ++i) {
+            ionFormulas[i] = addAdduct ? formulas.get(i).add(adduct) : formulas.get(i);
+            elementSet.addAll(Arrays.asList(ionFormulas[i].elementArray()));
+        }
+        final Element[] elements = elementSet.toArray(new Element[elementSet.size()]);
+        final int m = elements.length;
+        final int[][] amounts = new int[n][m];
+        final int[] numberOfDistinctAmounts = new int[m];
+        for (int j = 0; j < m; ++j) {
+            final HashSet<Integer> distinct = new HashSet<>();
+            for (int i = 0; i < n; ++i) {
+                amounts[i][j] = ionFormulas[i].numberOf(elements[j]);
+                // negative amounts cannot be folded
+                if (amounts[i][j] < 0) return super.simulatePatterns(formulas, ion);
+                distinct.add(amounts[i][j]);
+            }
+            numberOfDistinctAmounts[j] = distinct.size();
+        }
+        final Integer[] elementOrder = new Integer[m];
+        for (int j = 0; j < m; ++j) elementOrder[j] = j;
+        Arrays.sort(elementOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(numberOfDistinctAmounts[a], numberOfDistinctAmounts[b]);
+            }
+        });
+        final Integer[] formulaOrder = new Integer[n];
+        for (int i = 0; i < n; ++i) formulaOrder[i] = i;
+        Arrays.sort(formulaOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                for (Integer j : elementOrder) {
+                    final int c = Integer.compare(amounts[a][j], amounts[b][j]);
+                    if (c != 0) return c;
+                }
+                return 0;
+            }
+        });
+
+        final SimpleSpectrum[] patterns = new SimpleSpectrum[n];
+        // prefixes[k] is the folded distribution of the first k+1 elements of the previous formula
+        final ArrayWrapperSpectrum[] prefixes = new ArrayWrapperSpectrum[m];
+        int[] previous = null;
+        for (int i : formulaOrder) {
+            final int[] current = amounts[i];
+            int start = 0;
+            if (previous != null) {
+                while (start < m && current[elementOrder[start]] == previous[elementOrder[start]]) ++start;
+            }
+            for (int k = start; k < m; ++k) {
+                final int j = elementOrder[k];
+                final ArrayWrapperSpectrum prefix = k == 0 ? null : prefixes[k - 1];
+                prefixes[k] = current[j] == 0 ? prefix : fold(prefix, getElementDistribution(elements[j], current[j], maximalNumberOfPeaks), maximalNumberOfPeaks);
+            }
+            previous = current;
+            if (prefixes[m - 1] == null) {
+                patterns[i] = super.simulatePatterns(Collections.singletonList(formulas.get(i)), ion)[0];
+                continue;
+            }
+            final SimpleMutableSpectrum spec = new SimpleMutableSpectrum(prefixes[m - 1]);
+            for (int k = spec.size() - 1; k >= 0; --k) {
+                if (spec.getIntensityAt(k) < minimalProbabilityThreshold)
+                    spec.removePeakAt(k);
+            }
+            patterns[i] = toPattern(spec, ionFormulas[i], diff);
+        }
+        return patterns;
+    }
+
+    protected SimpleSpectrum toPattern(SimpleMutableSpectrum spec, MolecularFormula formula, double diff) {
         Spectrums.normalize(spec, mode);
         final double mono = formula.getIntMass();
         for (int k = 0; k < spec.size(); ++k) {
@@ -68,48 +161,7 @@ public class FastIsotopePatternGenerator extends IsotopePatternGenerator {
     protected SimpleMutableSpectrum foldFormula(MolecularFormula formula, int maxNumberOfPeaks, double minimalIntensity) {
         ArrayWrapperSpectrum candidateDistribution = null;
         for (Element e : formula) {
-            final Isotopes iso = distribution.getIsotopesFor(e);
-            final int monoIsotopicMass = iso.getIntegerMass(0);
-            int maxMass = iso.getIntegerMass(iso.getNumberOfIsotopes() - 1) - monoIsotopicMass;
-            final int n = Math.max(iso.getNumberOfIsotopes() - 1, maxMass);
-            final double[] modIsoMz = new double[n + 1];
-            final double[] modIsoInt = new double[n + 1];
-            ArrayWrapperSpectrum modIsoDist = new ArrayWrapperSpectrum(modIsoMz, modIsoInt);
-            int k = 0;
-            for (int i = 0; i <= n; i++) {
-                int diff = iso.getIntegerMass(k) - monoIsotopicMass;
-                while (diff > i) {
-                    modIsoMz[i] = 0;
-                    modIsoInt[i] = 0;
-                    ++i;
-                }
-                // Florian says: minus i is because the i-th isotope nominal mass is elemental nominal mass plus i!
-                modIsoMz[i] = iso.getMass(k) - e.getIntegerMass() - i;
-                modIsoInt[i] = iso.getAbundance(k);
-                ++k;
-            }
-
-            //get the reverse binary string of the quantity of an element
-            int exp = formula.numberOf(e),
-                    expLength = Integer.SIZE - Integer.numberOfLeadingZeros(exp);
-
-            //folding of one element
-            ArrayWrapperSpectrum helper = modIsoDist;
-            ArrayWrapperSpectrum list = null;
-
-            //if the first number of the binary exponent is 1,
-            if (isBitSet(exp, 0)) {
-                list = helper;
-            }
-
-            //helper list is always folded twice
-            //list is just folded if binary exponent is 1 at the current position
-            for (int i = 1; i < expLength; i++) {
-                helper = fold(helper, helper, maxNumberOfPeaks);
-                if (isBitSet(exp, i)) {
-                    list = fold(list, helper, maxNumberOfPeaks);
-                }
-            }
+            final ArrayWrapperSpectrum list = getElementDistribution(e, formula.numberOf(e), maxNumberOfPeaks);
             // folding all elements to the candidate peaks
             // fold returns only list if candidatePeaks is still null
             candidateDistribution = fold(candidateDistribution, list, maxNumberOfPeaks);
@@ -122,6 +174,67 @@ public class FastIsotopePatternGenerator extends IsotopePatternGenerator {
         return finalSpectrum;
     }
 
+    /**
+     * @return the isotope distribution of exp atoms of the given element. The distributions of single elements are
+     * shared by all generators and read-only
+     */
+    protected ArrayWrapperSpectrum getElementDistribution(Element e, int exp, int maxNumberOfPeaks) {
+        final Isotopes iso = distribution.getIsotopesFor(e);
+        ArrayWrapperSpectrum list = ElementPowerCache.INSTANCE.get(e, iso, exp, maxNumberOfPeaks);
+        if (list == null) {
+            list = foldElement(e, iso, exp, maxNumberOfPeaks);
+            ElementPowerCache.INSTANCE.put(e, iso, exp, maxNumberOfPeaks, list);
+        }
+        return list;
+    }
+
+    /**
+     * computes the isotope distribution of exp atoms of the given element by binary exponentiation
+     */
+    protected ArrayWrapperSpectrum foldElement(Element e, Isotopes iso, int exp, int maxNumberOfPeaks) {
+        final int monoIsotopicMass = iso.getIntegerMass(0);
+        int maxMass = iso.getIntegerMass(iso.getNumberOfIsotopes() - 1) - monoIsotopicMass;
+        final int n = Math.max(iso.getNumberOfIsotopes() - 1, maxMass);
+        final double[] modIsoMz = new double[n + 1];
+        final double[] modIsoInt = new double[n + 1];
+        ArrayWrapperSpectrum modIsoDist = new ArrayWrapperSpectrum(modIsoMz, modIsoInt);
+        int k = 0;
+        for (int i = 0; i <= n; i++) {
+            int diff = iso.getIntegerMass(k) - monoIsotopicMass;
+            while (diff > i) {
+                modIsoMz[i] = 0;
+                modIsoInt[i] = 0;
+                ++i;
+            }
+            // Florian says: minus i is because the i-th isotope nominal mass is elemental nominal mass plus i!
+            modIsoMz[i] = iso.getMass(k) - e.getIntegerMass() - i;
+            modIsoInt[i] = iso.getAbundance(k);
+            ++k;
+        }
+
+        //get the reverse binary string of the quantity of an element
+        final int expLength = Integer.SIZE - Integer.numberOfLeadingZeros(exp);
+
+        //folding of one element
+        ArrayWrapperSpectrum helper = modIsoDist;
+        ArrayWrapperSpectrum list = null;
+
+        //if the first number of the binary exponent is 1,
+        if (isBitSet(exp, 0)) {
+            list = helper;
+        }
+
+        //helper list is always folded twice
+        //list is just folded if binary exponent is 1 at the current position
+        for (int i = 1; i < expLength; i++) {
+            helper = fold(helper, helper, maxNumberOfPeaks);
+            if (isBitSet(exp, i)) {
+                list = fold(list, helper, maxNumberOfPeaks);
+            }
+        }
+        return list;
+    }
+
     protected ArrayWrapperSpectrum fold(ArrayWrapperSpectrum left, ArrayWrapperSpectrum right, int maxNumberOfPeaks) {
         if (left == null) return right;
         if (right == null) return left;
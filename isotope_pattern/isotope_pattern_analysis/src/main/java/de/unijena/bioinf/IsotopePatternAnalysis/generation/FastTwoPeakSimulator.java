@@ -17,9 +17,26 @@
  */
 package de.unijena.bioinf.IsotopePatternAnalysis.generation;
 
+import de.unijena.bioinf.ChemistryBase.chem.Element;
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.Isotopes;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
+import de.unijena.bioinf.ChemistryBase.chem.utils.IsotopicDistribution;
+
+/**
+ * Computes the intensities of the first isotope peaks (with one peak per nominal mass) relative to the
+ * monoisotopic peak without simulating the whole pattern.
+ *
+ * For a formula with n_e atoms of element e, let b_e (a_e) be the summed abundance of all isotopes of e which are
+ * one (two) nominal masses heavier than the monoisotopic one, divided by the monoisotopic abundance. Then
+ * M+1/M = sum_e n_e*b_e
+ * M+2/M = sum_e n_e*a_e + ((M+1/M)^2 - sum_e n_e*b_e^2) / 2
+ * So both ratios are computed from three sums which are linear in the element amounts.
+ */
 public class FastTwoPeakSimulator {
-    /*
-    protected IsotopicDistribution distribution;
+
+    protected final IsotopicDistribution distribution;
 
     public FastTwoPeakSimulator(IsotopicDistribution distribution) {
         this.distribution = distribution;
@@ -29,46 +46,59 @@ public class FastTwoPeakSimulator {
         this(PeriodicTable.getInstance().getDistribution());
     }
 
-    public double computeRatioOfFirstAndSecondIsotopicPeak(MolecularFormula formula, Ionization ion) {
-        final MolecularFormula adduct = ion.getAtoms();
-        if (adduct!=null) formula=formula.add(adduct);
-        return computeRatioOfFirstAndSecondIsotopicPeak(formula);
+    /**
+     * @return the coefficients {b_e, a_e, b_e^2} of the given element
+     */
+    public double[] getRatioCoefficients(Element element) {
+        final Isotopes iso = distribution.getIsotopesFor(element);
+        final double[] coefficients = new double[3];
+        if (iso == null || iso.getNumberOfIsotopes() <= 1) return coefficients;
+        final int mono = iso.getIntegerMass(0);
+        final double monoAbundance = iso.getAbundance(0);
+        for (int k = 1; k < iso.getNumberOfIsotopes(); ++k) {
+            final int diff = iso.getIntegerMass(k) - mono;
+            if (diff == 1) coefficients[0] += iso.getAbundance(k) / monoAbundance;
+            else if (diff == 2) coefficients[1] += iso.getAbundance(k) / monoAbundance;
+        }
+        coefficients[2] = coefficients[0] * coefficients[0];
+        return coefficients;
     }
 
-    public boolean filter(SimpleSpectrum spectrum, MolecularFormula formula, Ionization ion, double percentageThreshold) {
-        final MolecularFormula adduct = ion.getAtoms();
-        if (adduct!=null) formula = formula.add(adduct);
-        final double[] peaks = computeFirstTwoPeaks(formula);
-        return (Math.abs(spectrum.getMzAt(0)-peaks[0]) + Math.abs(spectrum.getMzAt(1)-peaks[1]) < percentageThreshold);
+    public double computeRatioOfSecondAndFirstIsotopicPeak(MolecularFormula formula, Ionization ion) {
+        return computeFirstThreePeaks(withIonization(formula, ion))[1];
     }
 
-    public double computeRatioOfFirstAndSecondIsotopicPeak(MolecularFormula formula) {
-        final double[] peaks = computeFirstTwoPeaks(formula);
-        return peaks[0]/peaks[1];
+    /**
+     * @return true if the relative intensities of the M+1 and M+2 peak deviate in sum less than the given threshold
+     * from the given spectrum, which has to be normalized to the monoisotopic peak
+     */
+    public boolean filter(double[] relativeIntensities, MolecularFormula formula, Ionization ion, double threshold) {
+        final double[] peaks = computeFirstThreePeaks(withIonization(formula, ion));
+        double deviation = 0d;
+        for (int k = 1; k < Math.min(peaks.length, relativeIntensities.length); ++k)
+            deviation += Math.abs(relativeIntensities[k] - peaks[k]);
+        return deviation < threshold;
     }
 
-    public double[] computeFirstTwoPeaks(MolecularFormula formula) {
-        final short[] amounts = formula.copyToBuffer();
-        final TableSelection sel = formula.getTableSelection();
-        final int n=amounts.length;
-        final Isotopes[] distributions = new Isotopes[n];
-        double nullProbability=1d;
-        double oneProbability=0d;
-        for (int k=0; k < n; ++k) {
-            if (amounts[k]==0) continue;
-            distributions[k] = distribution.getIsotopesFor(sel.get(k));
-            if (distributions[k].getNumberOfIsotopes()<=1) continue;
-            nullProbability *= Math.pow(distributions[k].getAbundance(0), amounts[k]);
-        }
-        for (int k=0; k < n; ++k) {
-            if (amounts[k]==0) continue;
-            if (distributions[k].getNumberOfIsotopes()<=1) continue;
-            oneProbability += (nullProbability/distributions[k].getAbundance(0)) * amounts[k] * distributions[k].getAbundance(1);
+    /**
+     * @return the intensities of the monoisotopic, the M+1 and the M+2 peak relative to the monoisotopic peak
+     */
+    public double[] computeFirstThreePeaks(MolecularFormula formula) {
+        double one = 0d, two = 0d, oneSquared = 0d;
+        for (Element e : formula) {
+            final double[] coefficients = getRatioCoefficients(e);
+            final int amount = formula.numberOf(e);
+            one += amount * coefficients[0];
+            two += amount * coefficients[1];
+            oneSquared += amount * coefficients[2];
         }
+        return new double[]{1d, one, two + (one * one - oneSquared) / 2d};
+    }
 
-        return new double[]{nullProbability, oneProbability};
-
+    private static MolecularFormula withIonization(MolecularFormula formula, Ionization ion) {
+        final MolecularFormula adduct = ion.getAtoms();
+        if (adduct != null && adduct.getIntMass() > 0) return formula.add(adduct);
+        return formula;
     }
-    */
 
 }
@@ -19,7 +19,8 @@ package de.unijena.bioinf.IsotopePatternAnalysis.generation;
 
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
-import gnu.trove.list.array.TDoubleArrayList;
+
+import java.util.Arrays;
 
 import static java.lang.Math.*;
 
@@ -28,86 +29,103 @@ import static java.lang.Math.*;
  */
 public class FineStructureMerger {
 
+    private static final int NUMBER_OF_NOMINAL_MASSES = 8;
+
     private final double resolution;
 
+    // buffers for the isotopologues of a pattern, reused for all patterns merged with this object
+    private double[] bufferMasses = new double[64], bufferIntensities = new double[64];
+    private double[] sortedMasses = new double[64], sortedIntensities = new double[64];
+    private int[] bufferNominals = new int[64];
+
     public FineStructureMerger(double resolution) {
         this.resolution = resolution;
     }
 
-    private static final double step(double x, double[] xs, double[] ints, double sigma) {
-        final double y1 = f1(x, xs, ints, sigma);
-        final double y2 = f2(x, xs, ints, sigma);
-        if (y1==0 && y2==0) return 0d;
-        else return y1/y2;
+    public double getResolution() {
+        return resolution;
     }
 
-    private static final double f0(double x, double[] xs, double[] ints, double sigma) {
-        double v = 0d;
-        for (int i = 0; i < xs.length; ++i) {
-            v += ints[i] * norm(x, xs[i], sigma);
-        }
-        return v;
-    }
-
-    private static final double f1(double x, double[] xs, double[] ints, double sigma) {
-        double v = 0d;
-        for (int i = 0; i < xs.length; ++i) {
-            v += ints[i] * norm1(x, xs[i], sigma);
+    /**
+     * computes the first and second derivative of the mixture of normal distributions in x in a single pass and
+     * returns their ratio, which is the newton step for finding the maximum of the mixture
+     */
+    private static double step(double x, double[] xs, double[] ints, int from, int to, double sigma) {
+        final double c = 1d / (sigma * sigma);
+        final double normalization = 1d / (sigma * sqrt(2d * PI));
+        double y1 = 0d, y2 = 0d;
+        for (int i = from; i < to; ++i) {
+            final double d = x - xs[i];
+            final double v = ints[i] * normalization * exp(-0.5d * d * d * c);
+            y1 += -(d * c) * v;
+            y2 += c * (c * d * d - 1) * v;
         }
-        return v;
+        if (y1==0 && y2==0) return 0d;
+        else return y1/y2;
     }
 
-    private static final double f2(double x, double[] xs, double[] ints, double sigma) {
+    private static double f0(double x, double[] xs, double[] ints, int from, int to, double sigma) {
+        final double c = 1d / (sigma * sigma);
+        final double normalization = 1d / (sigma * sqrt(2d * PI));
         double v = 0d;
-        for (int i = 0; i < xs.length; ++i) {
-            v += ints[i] * norm2(x, xs[i], sigma);
+        for (int i = from; i < to; ++i) {
+            final double d = x - xs[i];
+            v += ints[i] * normalization * exp(-0.5d * d * d * c);
         }
         return v;
     }
 
-    private final static double norm2(double x, double mu, double sigma) {
-        final double c = 1d / (sigma * sigma);
-        return c * (c * (x - mu) * (x - mu) - 1) * norm(x, mu, sigma);
-    }
-
-    private final static double norm1(double x, double mu, double sigma) {
-        return -((x - mu) / (sigma * sigma)) * (norm(x, mu, sigma));
-    }
-
-    private static double norm(double x, double mu, double sigma) {
-        return 1d / (sigma * sqrt(2d * PI)) * exp((-1d / 2d) * Math.pow((x - mu) / sigma, 2));
-    }
-
+    /**
+     * merges all isotopologues of the iterator which belong to the same nominal mass into a single peak. The
+     * isotopologues are collected in one pass and afterwards grouped by nominal mass with a stable counting sort.
+     */
     public SimpleSpectrum merge(FinestructureGenerator.Iterator iter, double monoMass) {
-        final TDoubleArrayList[] masses = new TDoubleArrayList[8];
-        final TDoubleArrayList[] intensities = new TDoubleArrayList[8];
+        final int[] offsets = new int[NUMBER_OF_NOMINAL_MASSES + 1];
+        int size = 0;
         while (iter.hasNext()) {
             iter.next();
             final double mz = iter.getMass();
-            final double intens = iter.getAbundance();
             final int nominal = (int) (Math.round(mz - monoMass));
-            if (nominal >= masses.length) continue;
-            if (masses[nominal] == null) {
-                masses[nominal] = new TDoubleArrayList();
-                intensities[nominal] = new TDoubleArrayList();
-            }
-            masses[nominal].add(mz);
-            intensities[nominal].add(intens);
+            if (nominal < 0 || nominal >= NUMBER_OF_NOMINAL_MASSES) continue;
+            if (size >= bufferMasses.length) grow();
+            bufferMasses[size] = mz;
+            bufferIntensities[size] = iter.getAbundance();
+            bufferNominals[size] = nominal;
+            ++offsets[nominal + 1];
+            ++size;
         }
-        final SimpleMutableSpectrum peaks = new SimpleMutableSpectrum(masses.length);
-        for (int k = 0; k < masses.length; ++k) {
-            if (masses[k] != null) {
-                final double[] mz = masses[k].toArray();
-                final double[] ints = intensities[k].toArray();
-                addByNewton(mz, ints, peaks);
+        for (int k = 1; k < offsets.length; ++k) offsets[k] += offsets[k - 1];
+        final int[] positions = offsets.clone();
+        for (int i = 0; i < size; ++i) {
+            final int j = positions[bufferNominals[i]]++;
+            sortedMasses[j] = bufferMasses[i];
+            sortedIntensities[j] = bufferIntensities[i];
+        }
+        final SimpleMutableSpectrum peaks = new SimpleMutableSpectrum(NUMBER_OF_NOMINAL_MASSES);
+        for (int k = 0; k < NUMBER_OF_NOMINAL_MASSES; ++k) {
+            if (offsets[k + 1] > offsets[k]) {
+                addByNewton(sortedMasses, sortedIntensities, offsets[k], offsets[k + 1], peaks);
             }
         }
         return new SimpleSpectrum(peaks);
     }
 
+    private void grow() {
+        final int capacity = bufferMasses.length * 2;
+        bufferMasses = Arrays.copyOf(bufferMasses, capacity);
+        bufferIntensities = Arrays.copyOf(bufferIntensities, capacity);
+        bufferNominals = Arrays.copyOf(bufferNominals, capacity);
+        sortedMasses = new double[capacity];
+        sortedIntensities = new double[capacity];
+    }
+
     public void addByNewton(double[] normalDistributions, double[] intensities, SimpleMutableSpectrum spec) {
-        int basePeak = 0;
-        for (int k = 0; k < normalDistributions.length; ++k) {
+        addByNewton(normalDistributions, intensities, 0, normalDistributions.length, spec);
+    }
+
+    private void addByNewton(double[] normalDistributions, double[] intensities, int from, int to, SimpleMutableSpectrum spec) {
+        int basePeak = from;
+        for (int k = from; k < to; ++k) {
             if (intensities[k] > intensities[basePeak]) {
                 basePeak = k;
             }
@@ -115,12 +133,12 @@ public class FineStructureMerger {
         final double sd = (normalDistributions[basePeak] / (2.35482*resolution));
         double x = normalDistributions[basePeak];
         for (int i = 0; i < 100; ++i) {
-            final double x2 = step(x, normalDistributions, intensities, sd);
+            final double x2 = step(x, normalDistributions, intensities, from, to, sd);
             if (Math.abs(x2) < 1e-10) {
                 break;
             } else x -= x2;
         }
-        spec.addPeak(x, f0(x, normalDistributions, intensities, sd));
+        spec.addPeak(x, f0(x, normalDistributions, intensities, from, to, sd));
     }
 
 }
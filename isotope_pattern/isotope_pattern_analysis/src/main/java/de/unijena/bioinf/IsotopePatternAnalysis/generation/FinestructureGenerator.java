@@ -28,15 +28,15 @@ import de.unijena.bioinf.ChemistryBase.ms.NormalizationMode;
 import de.unijena.bioinf.ChemistryBase.ms.Peak;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
-import java.util.PriorityQueue;
 
 public class FinestructureGenerator {
 
     private final IsotopicDistribution distribution;
     private final CachedIsoTable cache;
     private final Normalization mode;
+    private double pruningThreshold;
 
     public FinestructureGenerator(IsotopicDistribution dist, Normalization mode) {
         this(dist, mode, new CachedIsoTable(dist));
@@ -50,8 +50,25 @@ public class FinestructureGenerator {
             throw new NullPointerException("Expect non null parameters");
     }
 
+    /**
+     * @return the probability relative to the most abundant isotopologue below which isotopologues are skipped
+     */
+    public double getPruningThreshold() {
+        return pruningThreshold;
+    }
+
+    /**
+     * isotopologues with a probability below the given threshold times the probability of the most abundant
+     * isotopologue are skipped by all iterators of this generator. Zero (default) disables pruning.
+     */
+    public void setPruningThreshold(double pruningThreshold) {
+        if (pruningThreshold < 0 || pruningThreshold > 1)
+            throw new IllegalArgumentException("Pruning threshold has to be in [0,1] but " + pruningThreshold + " is given");
+        this.pruningThreshold = pruningThreshold;
+    }
+
     public RawIterator iterator(MolecularFormula formula, Ionization ion) {
-        return new RawIterator(cache, formula, ion, mode, distribution);
+        return new RawIterator(cache, formula, ion, mode, distribution, pruningThreshold);
     }
 
     public Iterator iteratorWithPeakLimit(MolecularFormula formula, Ionization ion, final int maxNumberOfPeaks) {
@@ -67,7 +84,10 @@ public class FinestructureGenerator {
 
     public Iterator iteratorWithIntensityThreshold(MolecularFormula formula, Ionization ion, final double intensity) {
         final double logIntensity = Math.log(intensity);
-        return new PredicatedIterator(iterator(formula, ion)) {
+        final RawIterator iterator = iterator(formula, ion);
+        // isotopologues below the threshold would stop the iteration anyway, so they are not enumerated at all
+        iterator.pruneBelowLogAbundance(logIntensity);
+        return new PredicatedIterator(iterator) {
             @Override
             protected boolean shouldStop() {
                 return getLogAbundance() < logIntensity;
@@ -177,18 +197,42 @@ public class FinestructureGenerator {
         }
     }
 
+    /**
+     * Enumerates the isotopologues of a formula in decreasing order of their probability. The candidates are kept in
+     * a binary heap over slots of primitive arrays, such that no objects are allocated per isotopologue and slots of
+     * polled isotopologues are reused for their successors.
+     *
+     * The successors of an isotopologue never have a larger probability than the isotopologue itself. Hence,
+     * successors below the pruning threshold are not added to the heap at all, as neither they nor any of their own
+     * successors could be reported above the threshold.
+     */
     final static class RawIterator extends Iterator {
 
         private final MolecularFormula formula;
         private final Normalization mode;
         private final double scale, logScale;
-        private final PriorityQueue<Isotopologue> heap;
         private Element[] isotopicElements;
         private double baseMass;
         private Isotopologues[] isotopologues;
-        private Isotopologue currentIsotopologue;
+
+        // the amounts of the isotopologue in slot s are stored in amounts[s*width ... (s+1)*width-1]
+        private final int width;
+        private short[] amounts;
+        private double[] masses, logAbundances;
+        private int[] heap, freeSlots;
+        private int heapSize, numberOfFreeSlots, numberOfSlots;
+        private double minimalLogAbundance;
+        private double currentMass, currentLogAbundance;
 
         protected RawIterator(final CachedIsoTable cache, MolecularFormula formula, Ionization ion, Normalization mode, final IsotopicDistribution distribution) {
+            this(cache, formula, ion, mode, distribution, 0d);
+        }
+
+        /**
+         * @param pruningThreshold isotopologues with a probability below this threshold times the probability of the
+         *                         most abundant isotopologue are skipped. Zero disables pruning
+         */
+        protected RawIterator(final CachedIsoTable cache, MolecularFormula formula, Ionization ion, Normalization mode, final IsotopicDistribution distribution, double pruningThreshold) {
             final MolecularFormula adduct = ion.getAtoms();
             if (adduct != null) {
                 this.formula = formula.add(adduct);
@@ -197,7 +241,6 @@ public class FinestructureGenerator {
                 this.formula = formula;
             }
             this.mode = mode;
-            this.heap = new PriorityQueue<Isotopologue>(10, Collections.reverseOrder());
             final ArrayList<Element> isoEls = new ArrayList<Element>();
             final ArrayList<Isotopologues> isoL = new ArrayList<Isotopologues>();
             this.baseMass = ion.getMass();
@@ -222,50 +265,121 @@ public class FinestructureGenerator {
             });
             this.isotopologues = isoL.toArray(new Isotopologues[isoL.size()]);
             this.isotopicElements = isoEls.toArray(new Element[isoEls.size()]);
-            // add zero vector to heap
-            addZeroVector();
+            this.width = isotopologues.length;
+            final int capacity = 16;
+            this.amounts = new short[capacity * Math.max(1, width)];
+            this.masses = new double[capacity];
+            this.logAbundances = new double[capacity];
+            this.heap = new int[capacity];
+            this.freeSlots = new int[capacity];
+            this.minimalLogAbundance = Double.NEGATIVE_INFINITY;
+            // add zero vector to heap. It is the most abundant isotopologue, as the isotopologues of each element
+            // are sorted by abundance
+            final int root = addZeroVector();
+            if (pruningThreshold > 0) minimalLogAbundance = logAbundances[root] + Math.log(pruningThreshold);
             if (mode.getMode() == NormalizationMode.MAX) {
-                final Isotopologue basePeak = heap.peek();
-                logScale = Math.log(mode.getBase()) - basePeak.logAbundance;
-                scale = mode.getBase() / Math.exp(basePeak.logAbundance);
+                logScale = Math.log(mode.getBase()) - logAbundances[root];
+                scale = mode.getBase() / Math.exp(logAbundances[root]);
             } else {
                 logScale = Math.log(mode.getBase());
                 scale = mode.getBase();
             }
-            currentIsotopologue = null;
         }
 
-        private void addZeroVector() {
-            final short[] vector = new short[isotopologues.length];
+        /**
+         * skips all isotopologues with a log abundance (with respect to the normalization) below the given value
+         */
+        void pruneBelowLogAbundance(double logAbundance) {
+            minimalLogAbundance = Math.max(minimalLogAbundance, logAbundance - logScale);
+        }
+
+        private int addZeroVector() {
             double mass = baseMass;
             double logAbundance = 0d;
-            for (int i = 0; i < vector.length; ++i) {
+            for (int i = 0; i < width; ++i) {
                 mass += isotopologues[i].mass(0);
                 logAbundance += isotopologues[i].logAbundance(0);
             }
-            final Isotopologue iso = new Isotopologue(vector, mass, logAbundance);
-            heap.offer(iso);
+            final int slot = allocateSlot();
+            Arrays.fill(amounts, slot * width, (slot + 1) * width, (short) 0);
+            masses[slot] = mass;
+            logAbundances[slot] = logAbundance;
+            push(slot);
+            return slot;
         }
 
         public boolean hasNext() {
-            return !heap.isEmpty();
+            return heapSize > 0;
         }
 
         public void next() {
             if (!hasNext()) throw new NoSuchElementException();
-            currentIsotopologue = heap.poll();
-            final short[] base = currentIsotopologue.amounts;
+            final int slot = poll();
+            currentMass = masses[slot];
+            currentLogAbundance = logAbundances[slot];
+            final int offset = slot * width;
             // add corresponding isotopologues to the heap
-            for (int i = isotopologues.length - 1; i >= 0; --i) {
-                if (base[i] + 1 < isotopologues[i].size()) {
-                    final short[] vector = base.clone();
-                    final double mz = currentIsotopologue.mass - isotopologues[i].mass(vector[i]);
-                    final double ab = currentIsotopologue.logAbundance - isotopologues[i].logAbundance(vector[i]);
-                    ++vector[i];
-                    heap.offer(new Isotopologue(vector, mz + isotopologues[i].mass(vector[i]), ab + isotopologues[i].logAbundance(vector[i])));
+            for (int i = width - 1; i >= 0; --i) {
+                final int amount = amounts[offset + i];
+                if (amount + 1 < isotopologues[i].size()) {
+                    final double ab = currentLogAbundance - isotopologues[i].logAbundance(amount) + isotopologues[i].logAbundance(amount + 1);
+                    if (ab >= minimalLogAbundance) {
+                        final int child = allocateSlot();
+                        final int childOffset = child * width;
+                        System.arraycopy(amounts, offset, amounts, childOffset, width);
+                        ++amounts[childOffset + i];
+                        masses[child] = currentMass - isotopologues[i].mass(amount) + isotopologues[i].mass(amount + 1);
+                        logAbundances[child] = ab;
+                        push(child);
+                    }
+                }
+                if (amount != 0) break;
+            }
+            freeSlots[numberOfFreeSlots++] = slot;
+        }
+
+        private int allocateSlot() {
+            if (numberOfFreeSlots > 0) return freeSlots[--numberOfFreeSlots];
+            if (numberOfSlots >= masses.length) {
+                final int capacity = masses.length * 2;
+                amounts = Arrays.copyOf(amounts, capacity * Math.max(1, width));
+                masses = Arrays.copyOf(masses, capacity);
+                logAbundances = Arrays.copyOf(logAbundances, capacity);
+                heap = Arrays.copyOf(heap, capacity);
+                freeSlots = Arrays.copyOf(freeSlots, capacity);
+            }
+            return numberOfSlots++;
+        }
+
+        private void push(int slot) {
+            final double value = logAbundances[slot];
+            int i = heapSize++;
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (logAbundances[heap[parent]] >= value) break;
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = slot;
+        }
+
+        private int poll() {
+            final int top = heap[0];
+            final int last = heap[--heapSize];
+            if (heapSize > 0) {
+                final double value = logAbundances[last];
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= heapSize) break;
+                    if (child + 1 < heapSize && logAbundances[heap[child + 1]] > logAbundances[heap[child]]) ++child;
+                    if (logAbundances[heap[child]] <= value) break;
+                    heap[i] = heap[child];
+                    i = child;
                 }
-                if (base[i] != 0) break;
+                heap[i] = last;
             }
+            return top;
         }
 
         public Peak getPeak() {
@@ -273,23 +387,23 @@ public class FinestructureGenerator {
         }
 
         public double getMass() {
-            return currentIsotopologue.mass;
+            return currentMass;
         }
 
         public double getProbability() {
-            return Math.exp(currentIsotopologue.logAbundance);
+            return Math.exp(currentLogAbundance);
         }
 
         public double getLogProbability() {
-            return currentIsotopologue.logAbundance;
+            return currentLogAbundance;
         }
 
         public double getLogAbundance() {
-            return currentIsotopologue.logAbundance + logScale;
+            return currentLogAbundance + logScale;
         }
 
         public double getAbundance() {
-            return Math.exp(currentIsotopologue.logAbundance) * scale;
+            return Math.exp(currentLogAbundance) * scale;
         }
 
     }
@@ -32,6 +32,9 @@ public class FinestructurePatternGenerator extends IsotopePatternGenerator {
 
     protected final CachedIsoTable cache;
     protected double resolution = 75000d;
+    protected double pruningThreshold = 1e-8d;
+    // one merger per thread, such that its buffers are reused for all patterns simulated by this thread
+    private final ThreadLocal<FineStructureMerger> mergers = new ThreadLocal<FineStructureMerger>();
 
 
     public FinestructurePatternGenerator(IsotopicDistribution distribution, Normalization mode) {
@@ -51,8 +54,10 @@ public class FinestructurePatternGenerator extends IsotopePatternGenerator {
 
     @Override
     public SimpleSpectrum simulatePattern(MolecularFormula formula, Ionization ionization) {
-        final FineStructureMerger merger = new FineStructureMerger(resolution);
-        final SimpleSpectrum spectrum = merger.merge(new FinestructureGenerator(distribution, mode, cache).iteratorSumingUpTo(formula, ionization, 0.999d), ionization.addToMass(formula.getMass()));
+        final FineStructureMerger merger = merger();
+        final FinestructureGenerator generator = new FinestructureGenerator(distribution, mode, cache);
+        generator.setPruningThreshold(pruningThreshold);
+        final SimpleSpectrum spectrum = merger.merge(generator.iteratorSumingUpTo(formula, ionization, 0.999d), ionization.addToMass(formula.getMass()));
         //final SimpleSpectrum spectrum = merger.merge(new FinestructureGenerator(distribution, mode, cache).iterator(formula, ionization), ionization.addToMass(formula.getMass()));
         //final SimpleSpectrum spectrum = merger.merge(new FinestructureGenerator(distribution, mode, cache).iteratorWithIntensityThreshold(formula, ionization, 0.0001), ionization.addToMass(formula.getMass()));
         // cut spectrum to allow only maxNumber peaks
@@ -65,6 +70,15 @@ public class FinestructurePatternGenerator extends IsotopePatternGenerator {
         return new SimpleSpectrum(spec);
     }
 
+    private FineStructureMerger merger() {
+        FineStructureMerger merger = mergers.get();
+        if (merger == null || merger.getResolution() != resolution) {
+            merger = new FineStructureMerger(resolution);
+            mergers.set(merger);
+        }
+        return merger;
+    }
+
     public double getResolution() {
         return resolution;
     }
@@ -73,5 +87,17 @@ public class FinestructurePatternGenerator extends IsotopePatternGenerator {
         this.resolution = resolution;
     }
 
+    public double getPruningThreshold() {
+        return pruningThreshold;
+    }
+
+    /**
+     * isotopologues with a probability below the given threshold times the probability of the most abundant
+     * isotopologue are not enumerated. Zero disables pruning.
+     */
+    public void setPruningThreshold(double pruningThreshold) {
+        this.pruningThreshold = pruningThreshold;
+    }
+
 
 }
@@ -29,6 +29,9 @@ import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
 import gnu.trove.list.array.TDoubleArrayList;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Random;
 
 public class FragmentIsotopeGenerator extends FastIsotopePatternGenerator {
@@ -102,6 +105,15 @@ public class FragmentIsotopeGenerator extends FastIsotopePatternGenerator {
      * @return
      */
     public SimpleSpectrum simulatePattern(Spectrum<Peak> ms1, MolecularFormula parent, MolecularFormula loss, Ionization ionization, boolean simulateExactMasses) {
+        return simulatePattern(prepareParentPattern(ms1, parent, ionization, simulateExactMasses), loss);
+    }
+
+    /**
+     * Shifts and normalizes the MS1 pattern of the parent once, such that the patterns of all its fragments can be
+     * simulated without repeating this step (and the simulation of the exact parent masses) for each fragment.
+     * Parameters are the same as in {@link #simulatePattern(Spectrum, MolecularFormula, MolecularFormula, Ionization, boolean)}
+     */
+    public ParentPattern prepareParentPattern(Spectrum<Peak> ms1, MolecularFormula parent, Ionization ionization, boolean simulateExactMasses) {
         final SimpleMutableSpectrum parentSpectrum = new SimpleMutableSpectrum(ms1.size());
         for (int k=0; k < ms1.size(); ++k) {
             parentSpectrum.addPeak(ionization.subtractFromMass(ms1.getMzAt(k)), ms1.getIntensityAt(k));
@@ -125,43 +137,92 @@ public class FragmentIsotopeGenerator extends FastIsotopePatternGenerator {
 
 
         Spectrums.normalize(parentSpectrum, Normalization.Sum(1));
-        final SimpleMutableSpectrum lossSpectrum = foldFormula(loss, parentSpectrum.size(), 0d);
-        while (lossSpectrum.size() < parentSpectrum.size()) lossSpectrum.addPeak(0d, 0d);
-
-        final double[] intensities = new double[parentSpectrum.size()];
         final double[] masses = new double[parentSpectrum.size()];
-        for (int k=0; k < intensities.length; ++k) {
+        final double[] intensities = new double[parentSpectrum.size()];
+        for (int k=0; k < masses.length; ++k) {
+            masses[k] = parentSpectrum.getMzAt(k);
             intensities[k] = parentSpectrum.getIntensityAt(k);
-            masses[k] = parentSpectrum.getMzAt(k)*parentSpectrum.getIntensityAt(k);
+        }
+        return new ParentPattern(parent, ionization, masses, intensities);
+    }
+
+    /**
+     * Simulates the isotope pattern of the fragment with the given loss from a prepared parent pattern
+     */
+    public SimpleSpectrum simulatePattern(ParentPattern parent, MolecularFormula loss) {
+        final int n = parent.size();
+        return simulatePattern(parent, loss, new double[n], new double[n], new double[n], new double[n]);
+    }
+
+    /**
+     * Simulates the isotope patterns of the fragments with the given losses from a prepared parent pattern. Each
+     * distinct loss formula is simulated only once and all simulations share the same buffers.
+     * @return one pattern for each loss in the same order
+     */
+    public SimpleSpectrum[] simulatePatterns(ParentPattern parent, List<MolecularFormula> losses) {
+        final int n = parent.size();
+        final double[] lossMasses = new double[n], lossIntensities = new double[n];
+        final double[] masses = new double[n], intensities = new double[n];
+        final HashMap<MolecularFormula, SimpleSpectrum> patternsByLoss = new HashMap<>();
+        final SimpleSpectrum[] patterns = new SimpleSpectrum[losses.size()];
+        for (int i=0; i < patterns.length; ++i) {
+            final MolecularFormula loss = losses.get(i);
+            SimpleSpectrum pattern = patternsByLoss.get(loss);
+            if (pattern == null) {
+                pattern = simulatePattern(parent, loss, lossMasses, lossIntensities, masses, intensities);
+                patternsByLoss.put(loss, pattern);
+            }
+            patterns[i] = pattern;
+        }
+        return patterns;
+    }
+
+    private SimpleSpectrum simulatePattern(ParentPattern parent, MolecularFormula loss, double[] lossMasses, double[] lossIntensities, double[] masses, double[] intensities) {
+        final int n = parent.size();
+        final SimpleMutableSpectrum lossSpectrum = foldFormula(loss, n, 0d);
+        for (int k=0; k < n; ++k) {
+            if (k < lossSpectrum.size()) {
+                lossMasses[k] = lossSpectrum.getMzAt(k);
+                lossIntensities[k] = lossSpectrum.getIntensityAt(k);
+            } else {
+                lossMasses[k] = 0d;
+                lossIntensities[k] = 0d;
+            }
+        }
+
+        for (int k=0; k < n; ++k) {
+            intensities[k] = parent.intensities[k];
+            masses[k] = parent.masses[k]*parent.intensities[k];
             for (int j=k; j > 0; --j) {
-                final double folded = lossSpectrum.getIntensityAt(j)*intensities[k-j];
+                final double folded = lossIntensities[j]*intensities[k-j];
                 intensities[k] -= folded;
-                masses[k] -= (lossSpectrum.getMzAt(j)+masses[k-j])*folded;
+                masses[k] -= (lossMasses[j]+masses[k-j])*folded;
             }
-            intensities[k] /= lossSpectrum.getIntensityAt(0);
-            masses[k] -= lossSpectrum.getMzAt(0)*intensities[k]*lossSpectrum.getIntensityAt(0);
-            masses[k] /= (intensities[k]*lossSpectrum.getIntensityAt(0));
+            intensities[k] /= lossIntensities[0];
+            masses[k] -= lossMasses[0]*intensities[k]*lossIntensities[0];
+            masses[k] /= (intensities[k]*lossIntensities[0]);
         }
 
-        final double monof = parent.getIntMass()-loss.getIntMass();
-        for (int k=0; k < masses.length; ++k) {
+        final Ionization ionization = parent.ionization;
+        final double monof = parent.formula.getIntMass()-loss.getIntMass();
+        for (int k=0; k < n; ++k) {
             masses[k] = monof + k+ionization.addToMass(masses[k]);
         }
 
 
         //may have negative intensities after folding
         boolean someNegative = false;
-        for (double intensity : intensities) {
-            if (intensity<0) {
+        for (int k=0; k < n; ++k) {
+            if (intensities[k]<0) {
                 someNegative = true;
                 break;
             }
         }
-        if (!someNegative) return new SimpleSpectrum(masses, intensities);
+        if (!someNegative) return new SimpleSpectrum(Arrays.copyOf(masses, n), Arrays.copyOf(intensities, n));
 
-        final TDoubleArrayList mzs = new TDoubleArrayList(intensities.length);
-        final TDoubleArrayList ints = new TDoubleArrayList(intensities.length);
-        for (int i = 0; i < intensities.length; i++) {
+        final TDoubleArrayList mzs = new TDoubleArrayList(n);
+        final TDoubleArrayList ints = new TDoubleArrayList(n);
+        for (int i = 0; i < n; i++) {
             if (intensities[i]>=getMinimalProbabilityThreshold()){
                 ints.add(intensities[i]);
                 mzs.add(masses[i]);
@@ -170,4 +231,28 @@ public class FragmentIsotopeGenerator extends FastIsotopePatternGenerator {
         return new SimpleSpectrum(mzs.toArray(), ints.toArray());
     }
 
+    /**
+     * MS1 pattern of a parent ion, shifted to the monoisotopic nominal mass and normalized to sum 1
+     */
+    public static final class ParentPattern {
+        private final MolecularFormula formula;
+        private final Ionization ionization;
+        private final double[] masses, intensities;
+
+        private ParentPattern(MolecularFormula formula, Ionization ionization, double[] masses, double[] intensities) {
+            this.formula = formula;
+            this.ionization = ionization;
+            this.masses = masses;
+            this.intensities = intensities;
+        }
+
+        public MolecularFormula getFormula() {
+            return formula;
+        }
+
+        public int size() {
+            return masses.length;
+        }
+    }
+
 }
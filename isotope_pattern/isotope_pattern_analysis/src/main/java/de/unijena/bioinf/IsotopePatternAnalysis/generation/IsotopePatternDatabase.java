@@ -0,0 +1,198 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.IsotopePatternAnalysis.generation;
+
+import de.unijena.bioinf.ChemistryBase.chem.Element;
+import de.unijena.bioinf.ChemistryBase.chem.Isotopes;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.utils.IsotopicDistribution;
+import de.unijena.bioinf.ChemistryBase.chem.utils.MolecularFormulaPacker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only table of precomputed isotope distributions, memory-mapped from a file written by
+ * {@link IsotopePatternDatabaseBuilder}. Each record stores the first peaks of the folded isotope distribution of one
+ * molecular formula: the mass defect of each peak relative to its nominal mass and its probability, i.e. the same
+ * values {@link FastIsotopePatternGenerator} computes before it removes low intensive peaks, normalizes the pattern
+ * and adds the ionization. Formulas are keyed by their encoding with the {@link MolecularFormulaPacker} stored in the
+ * file and records are sorted by key, so a lookup is a binary search over the mapped file.
+ *
+ * The header stores a fingerprint of the isotopic distribution the file was written with, such that a generator
+ * can check whether the stored distributions match its own. A database is immutable after opening and can be
+ * shared by all threads.
+ */
+public class IsotopePatternDatabase {
+
+    protected static final int MAGIC_NUMBER = 0x49534f44;
+    protected static final int VERSION = 2;
+
+    private final MolecularFormulaPacker packer;
+    private final int numberOfPeaks;
+    private final int size;
+    private final long distributionFingerprint;
+    private final int recordSize;
+    private final int recordsPerSegment;
+    private final MappedByteBuffer[] segments;
+
+    /**
+     * maps the given database file into memory
+     */
+    public static IsotopePatternDatabase open(File file) throws IOException {
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.readInt() != MAGIC_NUMBER)
+                throw new IOException(file + " is not an isotope pattern database");
+            final int version = raf.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported version " + version + " of isotope pattern database " + file);
+            final int numberOfPeaks = raf.readInt();
+            final int size = raf.readInt();
+            final long distributionFingerprint = raf.readLong();
+            final MolecularFormulaPacker packer = MolecularFormulaPacker.fromString(raf.readUTF());
+            final long offset = raf.getFilePointer();
+            final int recordSize = recordSize(numberOfPeaks);
+            if (raf.length() < offset + (long) size * recordSize)
+                throw new IOException("Isotope pattern database " + file + " is truncated");
+            // a single mapping is limited to 2 GB, so larger files are split into several segments
+            final int recordsPerSegment = Integer.MAX_VALUE / recordSize;
+            final MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + (long) recordsPerSegment - 1) / recordsPerSegment)];
+            final FileChannel channel = raf.getChannel();
+            for (int s = 0; s < segments.length; ++s) {
+                final int records = Math.min(recordsPerSegment, size - s * recordsPerSegment);
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, offset + (long) s * recordsPerSegment * recordSize, (long) records * recordSize);
+            }
+            return new IsotopePatternDatabase(packer, numberOfPeaks, size, distributionFingerprint, recordsPerSegment, segments);
+        }
+    }
+
+    private IsotopePatternDatabase(MolecularFormulaPacker packer, int numberOfPeaks, int size, long distributionFingerprint, int recordsPerSegment, MappedByteBuffer[] segments) {
+        this.packer = packer;
+        this.numberOfPeaks = numberOfPeaks;
+        this.size = size;
+        this.distributionFingerprint = distributionFingerprint;
+        this.recordSize = recordSize(numberOfPeaks);
+        this.recordsPerSegment = recordsPerSegment;
+        this.segments = segments;
+    }
+
+    /**
+     * a record consists of the key, the number of peaks and the mass defects and probabilities of all peaks
+     */
+    protected static int recordSize(int numberOfPeaks) {
+        return 8 + 4 + 16 * numberOfPeaks;
+    }
+
+    /**
+     * @return a hash of the masses and abundances of the isotopes of the given elements
+     */
+    protected static long fingerprint(IsotopicDistribution distribution, Element[] elements) {
+        long hash = 17L;
+        for (Element e : elements) {
+            hash = 31L * hash + e.getSymbol().hashCode();
+            final Isotopes iso = distribution.getIsotopesFor(e);
+            if (iso == null) continue;
+            for (int k = 0; k < iso.getNumberOfIsotopes(); ++k) {
+                hash = 31L * hash + Double.doubleToLongBits(iso.getMass(k));
+                hash = 31L * hash + Double.doubleToLongBits(iso.getAbundance(k));
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return true if the isotopes of all elements of this database are the same in the given distribution as in
+     * the distribution the database was written with
+     */
+    public boolean isWrittenWith(IsotopicDistribution distribution) {
+        return fingerprint(distribution, packer.getElements()) == distributionFingerprint;
+    }
+
+    public MolecularFormulaPacker getPacker() {
+        return packer;
+    }
+
+    /**
+     * @return the maximal number of peaks stored for each formula
+     */
+    public int getNumberOfPeaks() {
+        return numberOfPeaks;
+    }
+
+    /**
+     * @return number of formulas in the database
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the key of the given formula or a negative value, if the formula cannot be encoded and is therefore
+     * not contained in the database
+     */
+    public long key(MolecularFormula formula) {
+        return packer.tryEncode(formula);
+    }
+
+    public boolean contains(MolecularFormula formula) {
+        final long key = key(formula);
+        return key >= 0 && indexOf(key) >= 0;
+    }
+
+    /**
+     * Reads the isotope distribution of the formula with the given key.
+     *
+     * @param key           key of the formula
+     * @param massDefects   array which is filled with the mass defect of each peak relative to its nominal mass
+     * @param probabilities array which is filled with the probability of each peak
+     * @return the number of peaks written into the arrays or -1, if the formula is not contained in the database
+     */
+    public int lookup(long key, double[] massDefects, double[] probabilities) {
+        if (key < 0) return -1;
+        final int index = indexOf(key);
+        if (index < 0) return -1;
+        final MappedByteBuffer segment = segments[index / recordsPerSegment];
+        int offset = (index % recordsPerSegment) * recordSize + 8;
+        final int n = Math.min(segment.getInt(offset), Math.min(massDefects.length, probabilities.length));
+        offset += 4;
+        for (int k = 0; k < n; ++k) massDefects[k] = segment.getDouble(offset + 8 * k);
+        offset += 8 * numberOfPeaks;
+        for (int k = 0; k < n; ++k) probabilities[k] = segment.getDouble(offset + 8 * k);
+        return n;
+    }
+
+    private int indexOf(long key) {
+        int lo = 0, hi = size - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final long midKey = keyAt(mid);
+            if (midKey < key) lo = mid + 1;
+            else if (midKey > key) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    private long keyAt(int index) {
+        return segments[index / recordsPerSegment].getLong((index % recordsPerSegment) * recordSize);
+    }
+
+}
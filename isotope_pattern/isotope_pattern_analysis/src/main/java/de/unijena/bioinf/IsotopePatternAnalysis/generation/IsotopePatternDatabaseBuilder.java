@@ -0,0 +1,151 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.IsotopePatternAnalysis.generation;
+
+import de.unijena.bioinf.ChemistryBase.chem.ChemicalAlphabet;
+import de.unijena.bioinf.ChemistryBase.chem.FormulaConstraints;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
+import de.unijena.bioinf.ChemistryBase.chem.utils.IsotopicDistribution;
+import de.unijena.bioinf.ChemistryBase.chem.utils.MolecularFormulaPacker;
+import de.unijena.bioinf.ChemistryBase.ms.Normalization;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
+
+import java.io.*;
+
+/**
+ * Writes an {@link IsotopePatternDatabase} with the isotope distributions of all molecular formulas within the given
+ * element bounds and below the given maximal mass. Formulas are not filtered by RDBE or valence, as the database is
+ * queried with ion formulas which include the atoms of the adduct.
+ *
+ * usage: IsotopePatternDatabaseBuilder [output file] [element bounds, e.g. C[80]H[160]N[20]O[30]P[4]S[4]] [maximal mass] [number of peaks]
+ */
+public class IsotopePatternDatabaseBuilder {
+
+    private final FormulaConstraints bounds;
+    private final double maximalMass;
+    private final int numberOfPeaks;
+    private final IsotopicDistribution distribution;
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("usage: IsotopePatternDatabaseBuilder <output file> <element bounds> [maximal mass] [number of peaks]");
+            return;
+        }
+        final double maximalMass = args.length > 2 ? Double.parseDouble(args[2]) : 1000d;
+        final int numberOfPeaks = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        try {
+            final int size = new IsotopePatternDatabaseBuilder(new FormulaConstraints(args[1]), maximalMass, numberOfPeaks).build(new File(args[0]));
+            System.out.println("Write " + size + " isotope patterns into " + args[0]);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param bounds        lower and upper bound of each element
+     * @param maximalMass   maximal mass of a formula in the database
+     * @param numberOfPeaks number of isotope peaks stored for each formula
+     */
+    public IsotopePatternDatabaseBuilder(FormulaConstraints bounds, double maximalMass, int numberOfPeaks) {
+        this(bounds, maximalMass, numberOfPeaks, PeriodicTable.getInstance().getDistribution());
+    }
+
+    public IsotopePatternDatabaseBuilder(FormulaConstraints bounds, double maximalMass, int numberOfPeaks, IsotopicDistribution distribution) {
+        if (numberOfPeaks < 1) throw new IllegalArgumentException("Expect at least one isotope peak");
+        this.bounds = bounds;
+        this.maximalMass = maximalMass;
+        this.numberOfPeaks = numberOfPeaks;
+        this.distribution = distribution;
+    }
+
+    /**
+     * enumerates all formulas and writes their isotope distributions into the given file
+     *
+     * @return number of formulas written into the database
+     */
+    public int build(File file) throws IOException {
+        final ChemicalAlphabet alphabet = bounds.getChemicalAlphabet();
+        final int m = alphabet.size();
+        final double[] masses = new double[m];
+        final int[] lowerbounds = new int[m];
+        final int[] upperbounds = new int[m];
+        for (int i = 0; i < m; ++i) {
+            masses[i] = alphabet.get(i).getMass();
+            lowerbounds[i] = bounds.getLowerbounds()[i];
+            upperbounds[i] = Math.min(bounds.getUpperbounds()[i], (int) (maximalMass / masses[i]));
+        }
+        // the first element is encoded in the lowest bits, so enumerating the amounts of the first element in the
+        // innermost loop yields the formulas in ascending order of their keys
+        final MolecularFormulaPacker packer = MolecularFormulaPacker.newPacker(alphabet, upperbounds);
+        final FastIsotopePatternGenerator generator = new FastIsotopePatternGenerator(distribution, Normalization.Sum(1d));
+        final int[] amounts = lowerbounds.clone();
+
+        int size = 0;
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(IsotopePatternDatabase.MAGIC_NUMBER);
+            out.writeInt(IsotopePatternDatabase.VERSION);
+            out.writeInt(numberOfPeaks);
+            out.writeInt(0); // number of records is written after enumeration
+            out.writeLong(IsotopePatternDatabase.fingerprint(distribution, packer.getElements()));
+            out.writeUTF(packer.serializeToString());
+            long lastKey = -1L;
+            while (true) {
+                if (massOf(amounts, masses) <= maximalMass) {
+                    final MolecularFormula formula = alphabet.decompositionToFormula(amounts);
+                    if (!formula.isEmpty()) {
+                        final long key = packer.encode(formula);
+                        if (key <= lastKey) throw new IllegalStateException("Formulas are not enumerated in order of their keys");
+                        lastKey = key;
+                        write(out, key, generator.foldFormula(formula, numberOfPeaks, 0d));
+                        ++size;
+                    }
+                }
+                // increment amounts, carry over if the upperbound or the maximal mass is exceeded
+                int i = 0;
+                while (i < m) {
+                    ++amounts[i];
+                    if (amounts[i] <= upperbounds[i] && massOf(amounts, masses) <= maximalMass) break;
+                    amounts[i] = lowerbounds[i];
+                    ++i;
+                }
+                if (i >= m) break;
+            }
+        }
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(12);
+            raf.writeInt(size);
+        }
+        return size;
+    }
+
+    private static double massOf(int[] amounts, double[] masses) {
+        double mass = 0d;
+        for (int i = 0; i < amounts.length; ++i) mass += amounts[i] * masses[i];
+        return mass;
+    }
+
+    private void write(DataOutputStream out, long key, SimpleMutableSpectrum distribution) throws IOException {
+        final int n = Math.min(distribution.size(), numberOfPeaks);
+        out.writeLong(key);
+        out.writeInt(n);
+        for (int k = 0; k < numberOfPeaks; ++k) out.writeDouble(k < n ? distribution.getMzAt(k) : 0d);
+        for (int k = 0; k < numberOfPeaks; ++k) out.writeDouble(k < n ? distribution.getIntensityAt(k) : 0d);
+    }
+
+}
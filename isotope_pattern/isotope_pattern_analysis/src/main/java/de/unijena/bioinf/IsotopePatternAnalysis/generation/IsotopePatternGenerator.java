@@ -24,6 +24,8 @@ import de.unijena.bioinf.ChemistryBase.chem.utils.IsotopicDistribution;
 import de.unijena.bioinf.ChemistryBase.ms.Normalization;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 
+import java.util.List;
+
 /*
     Simulates isotopic patterns for a given molecular formula with one peak per nominal mass.
 
@@ -78,6 +80,18 @@ public abstract class IsotopePatternGenerator {
 
     public abstract SimpleSpectrum simulatePattern(MolecularFormula formula, Ionization ionization);
 
+    /**
+     * Simulates the isotope patterns of many formulas with the same ionization. Implementations might share
+     * intermediate results between similar formulas, so the patterns might differ from the ones of
+     * {@link #simulatePattern(MolecularFormula, Ionization)} by floating point rounding.
+     * @return the patterns in the order of the given formulas
+     */
+    public SimpleSpectrum[] simulatePatterns(List<MolecularFormula> formulas, Ionization ionization) {
+        final SimpleSpectrum[] patterns = new SimpleSpectrum[formulas.size()];
+        for (int i = 0; i < patterns.length; ++i) patterns[i] = simulatePattern(formulas.get(i), ionization);
+        return patterns;
+    }
+
     public int getMaximalNumberOfPeaks() {
         return maximalNumberOfPeaks;
     }
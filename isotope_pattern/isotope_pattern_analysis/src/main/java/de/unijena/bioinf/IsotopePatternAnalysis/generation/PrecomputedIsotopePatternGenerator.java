@@ -0,0 +1,122 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.IsotopePatternAnalysis.generation;
+
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.utils.IsotopicDistribution;
+import de.unijena.bioinf.ChemistryBase.ms.Normalization;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads isotope distributions from a precomputed {@link IsotopePatternDatabase} and simulates only the patterns of
+ * formulas which are not contained in the database. Patterns are the same as the ones of
+ * {@link FastIsotopePatternGenerator}, as the database has to be written with the isotopic distribution of this
+ * generator.
+ *
+ * The database is used only if it stores at least as many peaks as the maximal number of peaks of this generator.
+ */
+public class PrecomputedIsotopePatternGenerator extends FastIsotopePatternGenerator {
+
+    private final IsotopePatternDatabase database;
+
+    /**
+     * @throws IllegalArgumentException if the database was written with another isotopic distribution
+     */
+    public PrecomputedIsotopePatternGenerator(IsotopePatternDatabase database, IsotopicDistribution distribution, Normalization mode) {
+        super(distribution, mode);
+        this.database = checkDistribution(database);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the database was not written with the isotopic distribution of the
+     * periodic table
+     */
+    public PrecomputedIsotopePatternGenerator(IsotopePatternDatabase database, Normalization mode) {
+        super(mode);
+        this.database = checkDistribution(database);
+    }
+
+    private IsotopePatternDatabase checkDistribution(IsotopePatternDatabase database) {
+        if (!database.isWrittenWith(distribution))
+            throw new IllegalArgumentException("Isotope pattern database was written with another isotopic distribution");
+        return database;
+    }
+
+    public IsotopePatternDatabase getDatabase() {
+        return database;
+    }
+
+    /**
+     * Reads the patterns of all formulas contained in the database with a single lookup each and simulates the
+     * remaining formulas together.
+     */
+    @Override
+    public SimpleSpectrum[] simulatePatterns(List<MolecularFormula> formulas, Ionization ion) {
+        if (maximalNumberOfPeaks > database.getNumberOfPeaks()) return super.simulatePatterns(formulas, ion);
+        final MolecularFormula adduct = ion.getAtoms();
+        final boolean addAdduct = adduct != null && adduct.getIntMass() > 0;
+        final double diff = addAdduct ? ion.getMass() - adduct.getMass() : ion.getMass();
+        final SimpleSpectrum[] patterns = new SimpleSpectrum[formulas.size()];
+        final List<MolecularFormula> missing = new ArrayList<>();
+        final List<Integer> missingIndizes = new ArrayList<>();
+        final double[] massDefects = new double[maximalNumberOfPeaks];
+        final double[] probabilities = new double[maximalNumberOfPeaks];
+        for (int i = 0; i < patterns.length; ++i) {
+            final MolecularFormula formula = formulas.get(i);
+            final MolecularFormula ionFormula = addAdduct ? formula.add(adduct) : formula;
+            final int n = database.lookup(database.key(ionFormula), massDefects, probabilities);
+            if (n >= 0) {
+                patterns[i] = toPattern(toSpectrum(massDefects, probabilities, n, minimalProbabilityThreshold), ionFormula, diff);
+            } else {
+                missing.add(formula);
+                missingIndizes.add(i);
+            }
+        }
+        if (!missing.isEmpty()) {
+            final SimpleSpectrum[] simulated = super.simulatePatterns(missing, ion);
+            for (int k = 0; k < simulated.length; ++k) patterns[missingIndizes.get(k)] = simulated[k];
+        }
+        return patterns;
+    }
+
+    @Override
+    protected SimpleMutableSpectrum foldFormula(MolecularFormula formula, int maxNumberOfPeaks, double minimalIntensity) {
+        if (maxNumberOfPeaks <= database.getNumberOfPeaks()) {
+            final double[] massDefects = new double[maxNumberOfPeaks];
+            final double[] probabilities = new double[maxNumberOfPeaks];
+            final int n = database.lookup(database.key(formula), massDefects, probabilities);
+            if (n >= 0) return toSpectrum(massDefects, probabilities, n, minimalIntensity);
+        }
+        return super.foldFormula(formula, maxNumberOfPeaks, minimalIntensity);
+    }
+
+    private static SimpleMutableSpectrum toSpectrum(double[] massDefects, double[] probabilities, int n, double minimalIntensity) {
+        final SimpleMutableSpectrum spec = new SimpleMutableSpectrum(n);
+        for (int k = 0; k < n; ++k) {
+            if (probabilities[k] >= minimalIntensity)
+                spec.addPeak(massDefects[k], probabilities[k]);
+        }
+        return spec;
+    }
+
+}
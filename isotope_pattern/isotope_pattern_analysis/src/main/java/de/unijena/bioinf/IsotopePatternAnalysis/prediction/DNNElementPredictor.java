@@ -5,10 +5,13 @@ import de.unijena.bioinf.ChemistryBase.chem.Element;
 import de.unijena.bioinf.ChemistryBase.chem.FormulaConstraints;
 import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import gnu.trove.list.array.TIntArrayList;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 
 public class DNNElementPredictor implements ElementPredictor {
 
@@ -91,6 +94,44 @@ public class DNNElementPredictor implements ElementPredictor {
 
     @Override
     public FormulaConstraints predictConstraints(SimpleSpectrum pickedPattern) {
+        final TrainedElementDetectionNetwork network = selectNetwork(pickedPattern);
+        return toConstraints(pickedPattern, network == null ? null : network.predict(pickedPattern));
+    }
+
+    /**
+     * predicts the constraints of all patterns in one batch per network
+     */
+    @Override
+    public FormulaConstraints[] predictConstraints(List<SimpleSpectrum> pickedPatterns) {
+        final double[][] predictions = new double[pickedPatterns.size()][];
+        for (TrainedElementDetectionNetwork network : networks) {
+            final TIntArrayList indizes = new TIntArrayList();
+            final List<SimpleSpectrum> patterns = new ArrayList<>();
+            for (int i=0; i < predictions.length; ++i) {
+                if (selectNetwork(pickedPatterns.get(i)) == network) {
+                    indizes.add(i);
+                    patterns.add(pickedPatterns.get(i));
+                }
+            }
+            if (patterns.isEmpty()) continue;
+            final double[][] networkPredictions = network.predict(patterns);
+            for (int i=0; i < networkPredictions.length; ++i)
+                predictions[indizes.get(i)] = networkPredictions[i];
+        }
+        final FormulaConstraints[] constraints = new FormulaConstraints[predictions.length];
+        for (int i=0; i < constraints.length; ++i)
+            constraints[i] = toConstraints(pickedPatterns.get(i), predictions[i]);
+        return constraints;
+    }
+
+    private TrainedElementDetectionNetwork selectNetwork(SimpleSpectrum pickedPattern) {
+        for (TrainedElementDetectionNetwork network : networks) {
+            if (network.numberOfPeaks() <= pickedPattern.size()) return network;
+        }
+        return null;
+    }
+
+    private FormulaConstraints toConstraints(SimpleSpectrum pickedPattern, double[] prediction) {
         final HashSet<Element> elements = new HashSet<>(10);
         elements.addAll(Arrays.asList(FREE_ELEMENTS));
         // special case for selene
@@ -106,15 +147,11 @@ public class DNNElementPredictor implements ElementPredictor {
             intensityAfterFifth /= intensityBeforeFifth;
             if (intensityAfterFifth > 0.25) elements.add(SELENE);
         }
-        for (TrainedElementDetectionNetwork network : networks) {
-            if (network.numberOfPeaks() <= pickedPattern.size() ) {
-                final double[] prediction = network.predict(pickedPattern);
-                for (int i=0; i < prediction.length; ++i) {
-                    if (prediction[i] >= thresholds[i]) {
-                        elements.add(DETECTABLE_ELEMENTS[i]);
-                    }
+        if (prediction != null) {
+            for (int i=0; i < prediction.length; ++i) {
+                if (prediction[i] >= thresholds[i]) {
+                    elements.add(DETECTABLE_ELEMENTS[i]);
                 }
-                break;
             }
         }
         final ChemicalAlphabet alphabet = new ChemicalAlphabet(elements.toArray(new Element[elements.size()]));
@@ -5,11 +5,14 @@ import de.unijena.bioinf.ChemistryBase.chem.Element;
 import de.unijena.bioinf.ChemistryBase.chem.FormulaConstraints;
 import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import gnu.trove.list.array.TIntArrayList;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 
 public class DNNRegressionPredictor implements ElementPredictor {
 
@@ -89,6 +92,44 @@ public class DNNRegressionPredictor implements ElementPredictor {
 
     @Override
     public FormulaConstraints predictConstraints(SimpleSpectrum pickedPattern) {
+        final TrainedElementDetectionNetwork network = selectNetwork(pickedPattern);
+        return toConstraints(pickedPattern, network == null ? null : network.predict(pickedPattern));
+    }
+
+    /**
+     * predicts the constraints of all patterns in one batch per network
+     */
+    @Override
+    public FormulaConstraints[] predictConstraints(List<SimpleSpectrum> pickedPatterns) {
+        final double[][] predictions = new double[pickedPatterns.size()][];
+        for (TrainedElementDetectionNetwork network : networks) {
+            final TIntArrayList indizes = new TIntArrayList();
+            final List<SimpleSpectrum> patterns = new ArrayList<>();
+            for (int i=0; i < predictions.length; ++i) {
+                if (selectNetwork(pickedPatterns.get(i)) == network) {
+                    indizes.add(i);
+                    patterns.add(pickedPatterns.get(i));
+                }
+            }
+            if (patterns.isEmpty()) continue;
+            final double[][] networkPredictions = network.predict(patterns);
+            for (int i=0; i < networkPredictions.length; ++i)
+                predictions[indizes.get(i)] = networkPredictions[i];
+        }
+        final FormulaConstraints[] constraints = new FormulaConstraints[predictions.length];
+        for (int i=0; i < constraints.length; ++i)
+            constraints[i] = toConstraints(pickedPatterns.get(i), predictions[i]);
+        return constraints;
+    }
+
+    private TrainedElementDetectionNetwork selectNetwork(SimpleSpectrum pickedPattern) {
+        for (TrainedElementDetectionNetwork network : networks) {
+            if (network.numberOfPeaks() <= pickedPattern.size()) return network;
+        }
+        return null;
+    }
+
+    private FormulaConstraints toConstraints(SimpleSpectrum pickedPattern, double[] prediction) {
         final HashMap<Element, Integer> elements = new HashMap<>(10);
         for (Element e : FREE_ELEMENTS)
             elements.put(e, Integer.MAX_VALUE);
@@ -105,17 +146,13 @@ public class DNNRegressionPredictor implements ElementPredictor {
             intensityAfterFifth /= intensityBeforeFifth;
             if (intensityAfterFifth > 0.25) elements.put(SELENE, 1);
         }
-        for (TrainedElementDetectionNetwork network : networks) {
-            if (network.numberOfPeaks() <= pickedPattern.size() ) {
-                final double[] prediction = network.predict(pickedPattern);
-                for (int i=0; i < prediction.length; ++i) {
-                    final Element e = DETECTABLE_ELEMENTS[i];
-                    int number = (int)Math.ceil(prediction[i]-0.22);
-                    if (number > 0) number = (int)Math.ceil(prediction[i]+modifiers[i]);
-                    if (elements.containsKey(e)) elements.put(e, Math.max(elements.get(e), number));
-                    else elements.put(e, number);
-                }
-                break;
+        if (prediction != null) {
+            for (int i=0; i < prediction.length; ++i) {
+                final Element e = DETECTABLE_ELEMENTS[i];
+                int number = (int)Math.ceil(prediction[i]-0.22);
+                if (number > 0) number = (int)Math.ceil(prediction[i]+modifiers[i]);
+                if (elements.containsKey(e)) elements.put(e, Math.max(elements.get(e), number));
+                else elements.put(e, number);
             }
         }
         {
@@ -5,6 +5,8 @@ import de.unijena.bioinf.ChemistryBase.chem.Element;
 import de.unijena.bioinf.ChemistryBase.chem.FormulaConstraints;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 
+import java.util.List;
+
 /**
  * Predicts presence of chemical elements from isotope patterns
  */
@@ -12,6 +14,18 @@ public interface ElementPredictor {
 
     FormulaConstraints predictConstraints(SimpleSpectrum pickedPattern);
 
+    /**
+     * predicts the constraints for many isotope patterns at once. Implementations might override this method to
+     * process all patterns in a single batch.
+     * @return one constraint per pattern in the same order
+     */
+    default FormulaConstraints[] predictConstraints(List<SimpleSpectrum> pickedPatterns) {
+        final FormulaConstraints[] constraints = new FormulaConstraints[pickedPatterns.size()];
+        for (int i=0; i < constraints.length; ++i)
+            constraints[i] = predictConstraints(pickedPatterns.get(i));
+        return constraints;
+    }
+
     ChemicalAlphabet getChemicalAlphabet();
 
     boolean isPredictable(Element element);
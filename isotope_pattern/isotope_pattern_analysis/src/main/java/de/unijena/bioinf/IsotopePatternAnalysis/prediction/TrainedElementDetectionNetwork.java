@@ -8,6 +8,8 @@ import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
 
 class TrainedElementDetectionNetwork {
 
@@ -21,6 +23,18 @@ class TrainedElementDetectionNetwork {
 
     protected interface Layer {
         double[] activate(double[] vector);
+
+        /**
+         * activates a batch of vectors at once
+         * @param input row-major matrix with one input vector per row
+         * @param output row-major matrix with one output vector per row
+         * @param batchSize number of rows
+         * @param inputSize length of a single input vector
+         * @return length of a single output vector
+         */
+        int activate(double[] input, double[] output, int batchSize, int inputSize);
+
+        int outputSize(int inputSize);
     }
 
     protected static class PreprocessingLayer implements Layer {
@@ -39,6 +53,21 @@ class TrainedElementDetectionNetwork {
             }
             return output;
         }
+
+        @Override
+        public int activate(double[] input, double[] output, int batchSize, int inputSize) {
+            for (int row=0, offset=0; row < batchSize; ++row, offset += inputSize) {
+                for (int i=0; i < centering.length; ++i) {
+                    output[offset+i] = (input[offset+i]-centering[i])/scaling[i];
+                }
+            }
+            return inputSize;
+        }
+
+        @Override
+        public int outputSize(int inputSize) {
+            return inputSize;
+        }
     }
 
     protected static class PlattSigmoidLayer implements Layer {
@@ -58,6 +87,20 @@ class TrainedElementDetectionNetwork {
             return output;
         }
 
+        @Override
+        public int activate(double[] input, double[] output, int batchSize, int inputSize) {
+            for (int row=0, offset=0; row < batchSize; ++row, offset += inputSize) {
+                for (int i=0; i < As.length; ++i) {
+                    output[offset+i] = sigmoid_predict(input[offset+i], As[i], Bs[i]);
+                }
+            }
+            return inputSize;
+        }
+
+        @Override
+        public int outputSize(int inputSize) {
+            return inputSize;
+        }
 
         private static double sigmoid_predict(double decision_value, double A, double B)
         {
@@ -84,41 +127,110 @@ class TrainedElementDetectionNetwork {
             }
             return out;
         }
+
+        @Override
+        public int activate(double[] input, double[] output, int batchSize, int inputSize) {
+            final int n = batchSize*inputSize;
+            for (int i=0; i < n; ++i) {
+                output[i] = Math.exp(input[i]);
+            }
+            return inputSize;
+        }
+
+        @Override
+        public int outputSize(int inputSize) {
+            return inputSize;
+        }
     }
 
 
 
+    /**
+     * Dense layer with row-major weight matrix W (one row of length in per neuron). The batched activation computes
+     * the dot products of four input rows with the same weight row at once, such that each weight row is loaded
+     * only once for four inputs. The summation order is the same as for single vectors, so both paths yield
+     * identical results.
+     */
     protected static class FullyConnectedLayer implements Layer {
-        protected final double[][] W;
+        protected final double[] W;
         protected final double[] b;
+        protected final int in, out;
         protected final ActivationFunction function;
 
-        public FullyConnectedLayer(double[][] w, double[] b, ActivationFunction f) {
+        public FullyConnectedLayer(double[] w, double[] b, int in, ActivationFunction f) {
             W = w;
             this.b = b;
+            this.in = in;
+            this.out = b.length;
             this.function = f;
         }
 
         public double[] activate(double[] vector) {
-            final double[] result = new double[W.length];
-            for (int row=0; row < W.length; ++row) {
-                final double[] w = W[row];
+            final double[] result = new double[out];
+            for (int row=0; row < out; ++row) {
+                final int offset = row*in;
                 double score = b[row];
-                for (int i=0; i < w.length; ++i) {
-                    score += vector[i]*w[i];
-                }
-                switch (function) {
-                    case RELU:
-                        score = Math.max(0, score); break;
-                    case TANH:
-                        score = Math.tanh(score); break;
-                    case LINEAR:
+                for (int i=0; i < in; ++i) {
+                    score += vector[i]*W[offset+i];
                 }
-                result[row] = score;
+                result[row] = activation(score);
             }
             return result;
         }
 
+        @Override
+        public int activate(double[] input, double[] output, int batchSize, int inputSize) {
+            int row=0;
+            for (; row+4 <= batchSize; row += 4) {
+                final int x0 = row*in, x1 = x0+in, x2 = x1+in, x3 = x2+in;
+                final int y0 = row*out, y1 = y0+out, y2 = y1+out, y3 = y2+out;
+                for (int j=0; j < out; ++j) {
+                    final int offset = j*in;
+                    double s0 = b[j], s1 = s0, s2 = s0, s3 = s0;
+                    for (int i=0; i < in; ++i) {
+                        final double w = W[offset+i];
+                        s0 += input[x0+i]*w;
+                        s1 += input[x1+i]*w;
+                        s2 += input[x2+i]*w;
+                        s3 += input[x3+i]*w;
+                    }
+                    output[y0+j] = activation(s0);
+                    output[y1+j] = activation(s1);
+                    output[y2+j] = activation(s2);
+                    output[y3+j] = activation(s3);
+                }
+            }
+            for (; row < batchSize; ++row) {
+                final int x = row*in, y = row*out;
+                for (int j=0; j < out; ++j) {
+                    final int offset = j*in;
+                    double score = b[j];
+                    for (int i=0; i < in; ++i) {
+                        score += input[x+i]*W[offset+i];
+                    }
+                    output[y+j] = activation(score);
+                }
+            }
+            return out;
+        }
+
+        @Override
+        public int outputSize(int inputSize) {
+            return out;
+        }
+
+        private double activation(double score) {
+            switch (function) {
+                case RELU:
+                    return Math.max(0, score);
+                case TANH:
+                    return Math.tanh(score);
+                case LINEAR:
+                default:
+                    return score;
+            }
+        }
+
     }
 
     private final static int INPUT_SIZE = 69;
@@ -156,19 +268,16 @@ class TrainedElementDetectionNetwork {
             layers[0] = new PreprocessingLayer(centering, normalization);
             int in = nfeatures;
             for (int l=0; l < nlayers; ++l) {
-                final double[][] W = new double[neurons[l]][in];
+                final double[] W = new double[neurons[l]*in];
                 final double[] B = new double[neurons[l]];
                 for (int i=0; i < W.length; ++i) {
-                    final double[] row = W[i];
-                    for (int j=0; j < row.length; ++j) {
-                        row[j] = vec[k++];
-                    }
+                    W[i] = vec[k++];
                 }
                 for (int i=0; i < B.length; ++i) {
                     B[i] = vec[k++];
                 }
+                layers[l+1] = new FullyConnectedLayer(W, B, in, l < nlayers-1 ? ActivationFunction.TANH : ActivationFunction.LINEAR);
                 in = neurons[l];
-                layers[l+1] = new FullyConnectedLayer(W, B, l < nlayers-1 ? ActivationFunction.TANH : ActivationFunction.LINEAR);
             }
             layers[nlayers+1] = new ExponentialLayer();
             return new TrainedElementDetectionNetwork(npeaks, layers);
@@ -209,19 +318,16 @@ class TrainedElementDetectionNetwork {
             layers[0] = new PreprocessingLayer(centering, normalization);
             int in = nfeatures;
             for (int l=0; l < nlayers; ++l) {
-                final double[][] W = new double[neurons[l]][in];
+                final double[] W = new double[neurons[l]*in];
                 final double[] B = new double[neurons[l]];
                 for (int i=0; i < W.length; ++i) {
-                    final double[] row = W[i];
-                    for (int j=0; j < row.length; ++j) {
-                        row[j] = vec[k++];
-                    }
+                    W[i] = vec[k++];
                 }
                 for (int i=0; i < B.length; ++i) {
                     B[i] = vec[k++];
                 }
+                layers[l+1] = new FullyConnectedLayer(W, B, in, l < nlayers-1 ? ActivationFunction.TANH : ActivationFunction.LINEAR);
                 in = neurons[l];
-                layers[l+1] = new FullyConnectedLayer(W, B, l < nlayers-1 ? ActivationFunction.TANH : ActivationFunction.LINEAR);
             }
             layers[nlayers+1] = new PlattSigmoidLayer(As, Bs);
             return new TrainedElementDetectionNetwork(npeaks, layers);
@@ -230,12 +336,35 @@ class TrainedElementDetectionNetwork {
         }
     }
 
+    /**
+     * number of feature vectors which are propagated together through all layers in batched mode. The activations of
+     * a block stay in cache from the first to the last layer.
+     */
+    private final static int BLOCK_SIZE = 64;
+
     private final int npeaks;
     private final Layer[] layers;
+    private final int inputSize, maximalLayerSize;
+    // two activation buffers per thread, used alternately as input and output of the layers
+    private final ThreadLocal<double[][]> buffers;
 
     protected TrainedElementDetectionNetwork(int npeaks, Layer[] layers) {
         this.layers = layers;
         this.npeaks = npeaks;
+        this.inputSize = ((PreprocessingLayer)layers[0]).centering.length;
+        int size = inputSize;
+        int maxSize = size;
+        for (Layer layer : layers) {
+            size = layer.outputSize(size);
+            maxSize = Math.max(maxSize, size);
+        }
+        this.maximalLayerSize = maxSize;
+        this.buffers = new ThreadLocal<double[][]>() {
+            @Override
+            protected double[][] initialValue() {
+                return new double[][]{new double[BLOCK_SIZE*maximalLayerSize], new double[BLOCK_SIZE*maximalLayerSize]};
+            }
+        };
     }
 
     public double[] predict(SimpleSpectrum spectrum) {
@@ -246,6 +375,48 @@ class TrainedElementDetectionNetwork {
         return inputVector;
     }
 
+    /**
+     * predicts all given spectra at once. Each spectrum has to contain at least {@link #numberOfPeaks()} peaks.
+     * @return one prediction per spectrum in the same order
+     */
+    public double[][] predict(List<SimpleSpectrum> spectra) {
+        final FeatureVector[] vectors = new FeatureVector[spectra.size()];
+        for (int i=0; i < vectors.length; ++i)
+            vectors[i] = new FeatureVector(spectra.get(i), npeaks);
+        return predict(vectors);
+    }
+
+    /**
+     * predicts all given feature vectors at once. The vectors are propagated in blocks through the network, using
+     * activation buffers which are reused for all calls of the same thread.
+     * @return one prediction per feature vector in the same order
+     */
+    public double[][] predict(FeatureVector[] vectors) {
+        final double[][] predictions = new double[vectors.length][];
+        final double[][] buffer = buffers.get();
+        for (int start=0; start < vectors.length; start += BLOCK_SIZE) {
+            final int batchSize = Math.min(BLOCK_SIZE, vectors.length-start);
+            double[] input = buffer[0], output = buffer[1];
+            for (int row=0; row < batchSize; ++row) {
+                final double[] features = vectors[start+row].getFeatureVector(npeaks);
+                if (features.length != inputSize)
+                    throw new IllegalArgumentException("Expect feature vectors of length " + inputSize + " but got " + features.length);
+                System.arraycopy(features, 0, input, row*inputSize, inputSize);
+            }
+            int size = inputSize;
+            for (Layer layer : layers) {
+                size = layer.activate(input, output, batchSize, size);
+                final double[] swap = input;
+                input = output;
+                output = swap;
+            }
+            for (int row=0; row < batchSize; ++row) {
+                predictions[start+row] = Arrays.copyOfRange(input, row*size, (row+1)*size);
+            }
+        }
+        return predictions;
+    }
+
 
 
 }
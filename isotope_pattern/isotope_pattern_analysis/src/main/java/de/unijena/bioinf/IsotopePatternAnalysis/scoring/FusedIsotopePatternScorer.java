@@ -0,0 +1,261 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.IsotopePatternAnalysis.scoring;
+
+import de.unijena.bioinf.ChemistryBase.ms.MeasurementProfile;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import org.apache.commons.math3.special.Erf;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Scores theoretical isotope patterns against a single measured pattern with a list of scorers in one loop over
+ * primitive arrays. All terms which depend only on the measured pattern (the normalized prefixes of the pattern and
+ * the standard deviations of masses and intensities) are computed once in the constructor, such that scoring a
+ * theoretical pattern does not allocate any objects.
+ *
+ * Only {@link MassDeviationScorer}, {@link MassDifferenceDeviationScorer}, {@link NormalDistributedIntensityScorer}
+ * and {@link MissingPeakScorer} can be fused (see {@link #canFuse(List)}). The scores are the same as computed by
+ * the single scorers with Max(1) normalized spectra. Instances are immutable and can be shared between threads.
+ */
+public final class FusedIsotopePatternScorer {
+
+    private final static double root2 = Math.sqrt(2d);
+    private final static int MASS = 0, MASS_DIFFERENCE = 1, INTENSITY = 2, MISSING_PEAK = 3;
+
+    private final double[] mz, mzDifferences;
+    // intensities[k] are the intensities of the first k peaks, normalized to the most intensive of them
+    private final double[][] intensities;
+    private final int[] kinds;
+    // terms of each scorer for each peak of each prefix: the denominator of the erfc for mass scorers and the
+    // variance and normalization of the intensity scorer
+    private final double[][][] terms, normalizations;
+    private final double[] lambdas, thresholds;
+    private final int numberOfMissingPeakScorers;
+
+    public static boolean canFuse(List<IsotopePatternScorer> scorers) {
+        for (IsotopePatternScorer scorer : scorers) {
+            if (kindOf(scorer) < 0) return false;
+        }
+        return true;
+    }
+
+    private static int kindOf(IsotopePatternScorer scorer) {
+        // subclasses might override the score method, so we only fuse the exact classes
+        final Class<?> klass = scorer.getClass();
+        if (klass == MassDeviationScorer.class) return MASS;
+        if (klass == MassDifferenceDeviationScorer.class) return MASS_DIFFERENCE;
+        if (klass == NormalDistributedIntensityScorer.class) return INTENSITY;
+        if (klass == MissingPeakScorer.class) return MISSING_PEAK;
+        return -1;
+    }
+
+    /**
+     * @param scorers             scorers which are fused. Their parameters are copied, so later changes are not considered
+     * @param measuredMz          masses of the measured pattern
+     * @param measuredIntensities intensities of the measured pattern, normalized to a maximum of 1
+     * @param profile             measurement profile used for the mass deviations
+     */
+    public FusedIsotopePatternScorer(List<IsotopePatternScorer> scorers, double[] measuredMz, double[] measuredIntensities, MeasurementProfile profile) {
+        if (!canFuse(scorers)) throw new IllegalArgumentException("Cannot fuse scorers " + scorers);
+        final int n = measuredMz.length;
+        this.mz = measuredMz.clone();
+        this.mzDifferences = new double[n];
+        for (int i = 1; i < n; ++i) mzDifferences[i] = mz[i] - mz[0];
+        // the complete pattern is used as it is, all shorter prefixes are normalized again
+        this.intensities = new double[n + 1][];
+        intensities[n] = measuredIntensities.clone();
+        for (int k = 1; k < n; ++k) {
+            double maxIntensity = 0d;
+            for (int i = 0; i < k; ++i) {
+                if (maxIntensity < measuredIntensities[i]) maxIntensity = measuredIntensities[i];
+            }
+            final double scale = 1d / maxIntensity;
+            intensities[k] = new double[k];
+            for (int i = 0; i < k; ++i) intensities[k][i] = measuredIntensities[i] * scale;
+        }
+
+        this.kinds = new int[scorers.size()];
+        this.terms = new double[kinds.length][][];
+        this.normalizations = new double[kinds.length][][];
+        this.lambdas = new double[kinds.length];
+        this.thresholds = new double[kinds.length];
+        int missing = 0;
+        for (int s = 0; s < kinds.length; ++s) {
+            final IsotopePatternScorer scorer = scorers.get(s);
+            kinds[s] = kindOf(scorer);
+            switch (kinds[s]) {
+                case MASS: {
+                    final MassDeviationScorer massScorer = (MassDeviationScorer) scorer;
+                    terms[s] = new double[n + 1][];
+                    for (int k = 1; k <= n; ++k) {
+                        terms[s][k] = new double[k];
+                        for (int i = 0; i < k; ++i) {
+                            final double sd = profile.getStandardMs1MassDeviation().absoluteFor(mz[i]) * massScorer.dependency.getValueAt(intensities[k][i]);
+                            terms[s][k][i] = root2 * sd;
+                        }
+                    }
+                    break;
+                }
+                case MASS_DIFFERENCE: {
+                    final MassDifferenceDeviationScorer massScorer = (MassDifferenceDeviationScorer) scorer;
+                    terms[s] = new double[n + 1][];
+                    for (int k = 1; k <= n; ++k) {
+                        terms[s][k] = new double[k];
+                        for (int i = 1; i < k; ++i) {
+                            final double sd = profile.getStandardMassDifferenceDeviation().absoluteFor(mz[i]) * massScorer.dependency.getValueAt(intensities[k][i]);
+                            terms[s][k][i] = root2 * sd;
+                        }
+                    }
+                    break;
+                }
+                case INTENSITY: {
+                    final double sigmaA = ((NormalDistributedIntensityScorer) scorer).getSigmaA();
+                    final double sigmaR = ((NormalDistributedIntensityScorer) scorer).getSigmaR();
+                    terms[s] = new double[n + 1][];
+                    normalizations[s] = new double[n + 1][];
+                    for (int k = 1; k <= n; ++k) {
+                        terms[s][k] = new double[k];
+                        normalizations[s][k] = new double[k];
+                        for (int i = 1; i < k; ++i) {
+                            final double measuredIntensity = intensities[k][i];
+                            terms[s][k][i] = (2*(sigmaA*sigmaA + measuredIntensity*measuredIntensity*sigmaR*sigmaR));
+                            normalizations[s][k][i] = (2*Math.PI*measuredIntensity*sigmaR*sigmaA);
+                        }
+                    }
+                    break;
+                }
+                case MISSING_PEAK: {
+                    lambdas[s] = ((MissingPeakScorer) scorer).lambda;
+                    thresholds[s] = ((MissingPeakScorer) scorer).threshold;
+                    ++missing;
+                    break;
+                }
+            }
+        }
+        this.numberOfMissingPeakScorers = missing;
+    }
+
+    /**
+     * @return number of peaks in the measured pattern, which is also the length of the score arrays
+     */
+    public int size() {
+        return mz.length;
+    }
+
+    /**
+     * Adds the scores of the theoretical pattern to the given array: scores[k] is the score of the first k+1 peaks
+     * @param scores                 array with {@link #size()} entries
+     * @param theoreticalMz          masses of the theoretical pattern
+     * @param theoreticalIntensities intensities of the theoretical pattern, normalized to a maximum of 1
+     * @param theoreticalSize        number of peaks of the theoretical pattern
+     */
+    public void score(double[] scores, double[] theoreticalMz, double[] theoreticalIntensities, int theoreticalSize) {
+        score(scores, theoreticalMz, theoreticalIntensities, theoreticalSize, new double[kinds.length], new double[numberOfMissingPeakScorers * theoreticalSize], theoreticalSize);
+    }
+
+    /**
+     * Scores all theoretical patterns (normalized to a maximum of 1) against the measured pattern. Patterns with more
+     * than the given number of peaks are cut and normalized again.
+     * @param bestScores   receives for each pattern the score of the best scoring prefix of the measured pattern
+     * @param bestPrefixes receives for each pattern the number of peaks of the best scoring prefix minus one, or
+     *                     -1 if the pattern is empty
+     */
+    public void score(SimpleSpectrum[] theoreticalPatterns, int maximalNumberOfPeaks, double[] bestScores, int[] bestPrefixes) {
+        final double[] scores = new double[mz.length];
+        final double[] theoreticalMz = new double[maximalNumberOfPeaks], theoreticalIntensities = new double[maximalNumberOfPeaks];
+        final double[] sums = new double[kinds.length];
+        final double[] missing = new double[numberOfMissingPeakScorers * maximalNumberOfPeaks];
+        for (int p = 0; p < theoreticalPatterns.length; ++p) {
+            final SimpleSpectrum pattern = theoreticalPatterns[p];
+            if (pattern.size() == 0) {
+                bestScores[p] = Double.NaN;
+                bestPrefixes[p] = -1;
+                continue;
+            }
+            final int size = Math.min(pattern.size(), maximalNumberOfPeaks);
+            double maxIntensity = 0d;
+            for (int i = 0; i < size; ++i) {
+                theoreticalMz[i] = pattern.getMzAt(i);
+                theoreticalIntensities[i] = pattern.getIntensityAt(i);
+                if (maxIntensity < theoreticalIntensities[i]) maxIntensity = theoreticalIntensities[i];
+            }
+            if (pattern.size() > maximalNumberOfPeaks) {
+                final double scale = 1d / maxIntensity;
+                for (int i = 0; i < size; ++i) theoreticalIntensities[i] *= scale;
+            }
+            Arrays.fill(scores, 0d);
+            score(scores, theoreticalMz, theoreticalIntensities, size, sums, missing, maximalNumberOfPeaks);
+            int optScoreIndex = 0;
+            for (int j = 0; j < scores.length; ++j) {
+                if (scores[j] > scores[optScoreIndex]) optScoreIndex = j;
+            }
+            bestScores[p] = scores[optScoreIndex];
+            bestPrefixes[p] = optScoreIndex;
+        }
+    }
+
+    private void score(double[] scores, double[] thMz, double[] thIntensities, int thSize, double[] sums, double[] missing, int stride) {
+        final int k = Math.min(mz.length, thSize);
+        // missing peak scores are accumulated from the last theoretical peak backwards
+        for (int s = 0, m = 0; s < kinds.length; ++s) {
+            if (kinds[s] != MISSING_PEAK) continue;
+            final int offset = (m++) * stride;
+            double score = 0d;
+            for (int j = thSize - 1; j >= 0; --j) {
+                final double intensity = thIntensities[j];
+                if (intensity >= thresholds[s]) {
+                    missing[offset + j] = score;
+                    score -= intensity * lambdas[s];
+                } else {
+                    missing[offset + j] = 0d;
+                }
+            }
+        }
+        Arrays.fill(sums, 0d);
+        final double[] measuredIntensities = intensities[k];
+        for (int i = 0; i < k; ++i) {
+            for (int s = 0, m = 0; s < kinds.length; ++s) {
+                switch (kinds[s]) {
+                    case MASS:
+                        sums[s] += Math.log(Erf.erfc(Math.abs(thMz[i] - mz[i]) / terms[s][k][i]));
+                        scores[i] += sums[s];
+                        break;
+                    case MASS_DIFFERENCE:
+                        if (i > 0) {
+                            sums[s] += Math.log(Erf.erfc(Math.abs((thMz[i] - thMz[0]) - mzDifferences[i]) / terms[s][k][i]));
+                            scores[i] += sums[s];
+                        }
+                        break;
+                    case INTENSITY:
+                        if (i > 0) {
+                            final double delta = measuredIntensities[i] - thIntensities[i];
+                            sums[s] += Math.log(Math.exp(-(delta * delta) / terms[s][k][i]) / normalizations[s][k][i]);
+                            scores[i] += sums[s];
+                        }
+                        break;
+                    case MISSING_PEAK:
+                        scores[i] += missing[(m++) * stride + i];
+                        break;
+                }
+            }
+        }
+    }
+
+}
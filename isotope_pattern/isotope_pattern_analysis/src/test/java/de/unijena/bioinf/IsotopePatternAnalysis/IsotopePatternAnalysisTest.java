@@ -0,0 +1,223 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.IsotopePatternAnalysis;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.Scored;
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.*;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.FastIsotopePatternGenerator;
+import de.unijena.bioinf.IsotopePatternAnalysis.scoring.*;
+import de.unijena.bioinf.MassDecomposer.Chemistry.MassToFormulaDecomposer;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class IsotopePatternAnalysisTest {
+
+    private static SimpleSpectrum measuredPattern(String formula, PrecursorIonType ion) {
+        final FastIsotopePatternGenerator generator = new FastIsotopePatternGenerator(Normalization.Max(1d));
+        final SimpleMutableSpectrum spec = new SimpleMutableSpectrum(generator.simulatePattern(ion.neutralMoleculeToMeasuredNeutralMolecule(MolecularFormula.parse(formula)), ion.getIonization()));
+        // some measurement noise
+        for (int k = 0; k < spec.size(); ++k) {
+            spec.setMzAt(k, spec.getMzAt(k) + (k % 2 == 0 ? 1e-3 : -5e-4));
+            spec.setIntensityAt(k, spec.getIntensityAt(k) * (k % 2 == 0 ? 1.05 : 0.9));
+        }
+        return new SimpleSpectrum(spec);
+    }
+
+    private static List<MolecularFormula> candidateFormulas() {
+        final List<MolecularFormula> formulas = new ArrayList<>();
+        for (int c = 5; c <= 12; ++c)
+            for (int h = 8; h <= 20; ++h)
+                for (int n = 0; n <= 5; ++n)
+                    for (int o = 0; o <= 8; ++o)
+                        formulas.add(MolecularFormula.parse("C" + c + "H" + h + "N" + n + "O" + o));
+        return formulas;
+    }
+
+    private static HashMap<MolecularFormula, Double> scoresOf(List<IsotopePattern> patterns) {
+        final HashMap<MolecularFormula, Double> scores = new HashMap<>();
+        for (IsotopePattern pattern : patterns) assertNull(scores.put(pattern.getCandidate(), pattern.getScore()));
+        return scores;
+    }
+
+    /**
+     * scoring in parallel chunks yields the same scores as scoring all formulas in one batch. Chunks share
+     * intermediate folds only within themselves, so scores are compared up to rounding errors
+     */
+    @Test
+    public void testParallelScoringEqualsSequentialScoring() {
+        final PrecursorIonType ion = PeriodicTable.getInstance().ionByName("[M+H]+");
+        final MutableMs2Experiment experiment = new MutableMs2Experiment();
+        experiment.setPrecursorIonType(ion);
+        final SimpleSpectrum pattern = measuredPattern("C10H13N5O4", ion);
+        final List<MolecularFormula> formulas = candidateFormulas();
+
+        final IsotopePatternAnalysis sequential = IsotopePatternAnalysis.defaultAnalyzer();
+        final MeasurementProfile profile = sequential.getDefaultProfile();
+        final List<IsotopePattern> expected = sequential.scoreFormulas(pattern, formulas, experiment, profile, ion);
+
+        final IsotopePatternAnalysis parallel = IsotopePatternAnalysis.defaultAnalyzer();
+        parallel.setParallelScoringThreshold(1);
+        final List<IsotopePattern> actual = parallel.scoreFormulas(pattern, formulas, experiment, profile, ion);
+
+        assertFalse(expected.isEmpty());
+        assertEquals(expected.size(), actual.size());
+        final HashMap<MolecularFormula, Double> expectedScores = scoresOf(expected), actualScores = scoresOf(actual);
+        for (MolecularFormula formula : expectedScores.keySet())
+            assertEquals(expectedScores.get(formula), actualScores.get(formula), 1e-9);
+        for (int i = 1; i < actual.size(); ++i)
+            assertTrue(actual.get(i - 1).getScore() >= actual.get(i).getScore());
+    }
+
+    /**
+     * compares the fused scoring with the former loop over the single scorers, which is still used if one of the
+     * scorers cannot be fused (here: anonymous subclasses of the same scorers). The fused scorer sums the terms
+     * in the same order, so scores have to be bit-identical.
+     */
+    @Test
+    public void testFusedScoresEqualSingleScorers() {
+        final PrecursorIonType ion = PeriodicTable.getInstance().ionByName("[M+H]+");
+        final MutableMs2Experiment experiment = new MutableMs2Experiment();
+        experiment.setPrecursorIonType(ion);
+        final List<MolecularFormula> formulas = candidateFormulas();
+        formulas.addAll(Arrays.asList(MolecularFormula.parse("C20H25ClN2O5S"), MolecularFormula.parse("C12H9Br2NO"), MolecularFormula.parse("C254H377N65O75S6")));
+
+        final IsotopePatternAnalysis fused = IsotopePatternAnalysis.defaultAnalyzer();
+        fused.getIsotopePatternScorers().clear();
+        fused.getIsotopePatternScorers().addAll(Arrays.asList(new MassDeviationScorer(), new MassDifferenceDeviationScorer(), new NormalDistributedIntensityScorer(), new MissingPeakScorer()));
+        final IsotopePatternAnalysis single = IsotopePatternAnalysis.defaultAnalyzer();
+        single.getIsotopePatternScorers().clear();
+        single.getIsotopePatternScorers().addAll(Arrays.<IsotopePatternScorer>asList(new MassDeviationScorer() {
+        }, new MassDifferenceDeviationScorer() {
+        }, new NormalDistributedIntensityScorer() {
+        }, new MissingPeakScorer() {
+        }));
+        assertTrue(FusedIsotopePatternScorer.canFuse(fused.getIsotopePatternScorers()));
+        assertFalse(FusedIsotopePatternScorer.canFuse(single.getIsotopePatternScorers()));
+        // theoretical patterns with more than 10 peaks are cut and normalized again
+        fused.getPatternGenerator().setMaximalNumberOfPeaks(12);
+        single.getPatternGenerator().setMaximalNumberOfPeaks(12);
+        fused.getPatternGenerator().setMinimalProbabilityThreshold(1e-12);
+        single.getPatternGenerator().setMinimalProbabilityThreshold(1e-12);
+
+        final MeasurementProfile profile = fused.getDefaultProfile();
+        for (String measuredFormula : new String[]{"C6H12O6", "C10H13N5O4", "C20H25ClN2O5S", "C12H9Br2NO"}) {
+            final SimpleSpectrum measured = measuredPattern(measuredFormula, ion);
+            // measured patterns with fewer and with more peaks than the theoretical patterns
+            for (int size = 2; size <= measured.size(); ++size) {
+                final SimpleSpectrum pattern = new SimpleSpectrum(Arrays.copyOf(masses(measured), size), Arrays.copyOf(intensities(measured), size));
+                final List<IsotopePattern> expected = single.scoreFormulas(pattern, formulas, experiment, profile, ion);
+                final List<IsotopePattern> actual = fused.scoreFormulas(pattern, formulas, experiment, profile, ion);
+                assertEquals(expected.size(), actual.size());
+                final HashMap<MolecularFormula, IsotopePattern> actualPatterns = new HashMap<>();
+                for (IsotopePattern p : actual) actualPatterns.put(p.getCandidate(), p);
+                for (IsotopePattern p : expected) {
+                    final IsotopePattern q = actualPatterns.get(p.getCandidate());
+                    assertNotNull(q);
+                    assertEquals(p.getScore(), q.getScore(), 0d);
+                    assertEquals(p.getPattern().size(), q.getPattern().size());
+                }
+            }
+        }
+    }
+
+    /**
+     * compares the deisotoping of an experiment with unknown ionization, which decomposes and scores groups of ion
+     * modes in parallel, with the former loop over all ion modes. Both score the same formulas for each ion mode, so
+     * the merged and sorted patterns have to contain the same formulas with the same scores.
+     */
+    @Test
+    public void testParallelIonModesEqualFormerIonModeLoop() {
+        final PossibleIonModes sodium = new PossibleIonModes();
+        for (String ion : new String[]{"[M+H]+", "[M+Na]+", "[M+K]+"})
+            sodium.add(PeriodicTable.getInstance().ionByName(ion).getIonization(), 1d);
+        final Object[][] cases = new Object[][]{
+                {"C10H13N5O4", "[M+H]+", null}, {"C16H18N2O4S", "[M-H]-", null}, {"C9H13NO2", "[M+Na]+", sodium}
+        };
+        for (Object[] c : cases) {
+            final PrecursorIonType ion = PeriodicTable.getInstance().ionByName((String) c[1]);
+            final SimpleSpectrum pattern = measuredPattern((String) c[0], ion);
+            final MutableMs2Experiment experiment = new MutableMs2Experiment();
+            experiment.setPrecursorIonType(PrecursorIonType.unknown(ion.getCharge()));
+            experiment.setIonMass(pattern.getMzAt(0));
+            experiment.setMergedMs1Spectrum(pattern);
+            if (c[2] != null) experiment.setAnnotation(PossibleIonModes.class, (PossibleIonModes) c[2]);
+
+            final IsotopePatternAnalysis sequential = IsotopePatternAnalysis.defaultAnalyzer();
+            sequential.setParallelIonModeThreshold(Integer.MAX_VALUE);
+            final IsotopePatternAnalysis parallel = IsotopePatternAnalysis.defaultAnalyzer();
+            parallel.setParallelIonModeThreshold(1);
+            final MeasurementProfile profile = sequential.getDefaultProfile();
+            final List<IsotopePattern> expected = formerDeisotope(sequential, experiment, profile);
+            assertFalse(expected.isEmpty());
+            for (IsotopePatternAnalysis analyzer : new IsotopePatternAnalysis[]{sequential, parallel}) {
+                final List<IsotopePattern> actual = analyzer.deisotope(experiment, profile);
+                assertEquals(expected.size(), actual.size());
+                final HashMap<MolecularFormula, Double> expectedScores = scoresOf(expected), actualScores = scoresOf(actual);
+                for (MolecularFormula formula : expectedScores.keySet())
+                    assertEquals(expectedScores.get(formula), actualScores.get(formula), 1e-9);
+                for (int i = 1; i < actual.size(); ++i)
+                    assertTrue(actual.get(i - 1).getScore() >= actual.get(i).getScore());
+            }
+        }
+    }
+
+    /**
+     * the former IsotopePatternAnalysis#deisotope for experiments with unknown ionization
+     */
+    private static List<IsotopePattern> formerDeisotope(IsotopePatternAnalysis analyzer, Ms2Experiment experiment, MeasurementProfile profile) {
+        final SimpleSpectrum pattern = analyzer.extractPattern(experiment, profile, experiment.getIonMass());
+        final List<IsotopePattern> ionFormulas = new ArrayList<>();
+        final Iterable<Ionization> ionModes = experiment.hasAnnotation(PossibleIonModes.class)
+                ? experiment.getAnnotation(PossibleIonModes.class).getIonModes()
+                : PeriodicTable.getInstance().getKnownIonModes(experiment.getPrecursorIonType().getCharge());
+        final MassToFormulaDecomposer decomposer = new MassToFormulaDecomposer(profile.getFormulaConstraints().getChemicalAlphabet());
+        for (Ionization ion : ionModes) {
+            final PrecursorIonType ionType = PrecursorIonType.getPrecursorIonType(ion);
+            final double neutralMass = ion.subtractFromMass(pattern.getMzAt(0));
+            final List<MolecularFormula> formulas = analyzer.getPrefilterStandardDeviations() <= 0
+                    ? decomposer.decomposeToFormulas(neutralMass, profile.getAllowedMassDeviation(), profile.getFormulaConstraints())
+                    : decomposer.decomposeToFormulas(neutralMass, profile.getAllowedMassDeviation(), profile.getFormulaConstraints(),
+                    analyzer.createIsotopeRatioPrefilter(pattern, decomposer.getChemicalAlphabet(), ionType));
+            ionFormulas.addAll(analyzer.scoreFormulas(pattern, formulas, experiment, profile, ionType));
+        }
+        Collections.sort(ionFormulas, Scored.<MolecularFormula>desc());
+        return ionFormulas;
+    }
+
+    private static double[] masses(SimpleSpectrum spectrum) {
+        final double[] masses = new double[spectrum.size()];
+        for (int k = 0; k < masses.length; ++k) masses[k] = spectrum.getMzAt(k);
+        return masses;
+    }
+
+    private static double[] intensities(SimpleSpectrum spectrum) {
+        final double[] intensities = new double[spectrum.size()];
+        for (int k = 0; k < intensities.length; ++k) intensities[k] = spectrum.getIntensityAt(k);
+        return intensities;
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.IsotopePatternAnalysis;
+
+import com.google.common.collect.Range;
+import de.unijena.bioinf.ChemistryBase.chem.*;
+import de.unijena.bioinf.ChemistryBase.ms.*;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.IsotopePatternAnalysis.extraction.IsotopePatternIndex;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.FastIsotopePatternGenerator;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the extraction of {@link IsotopePatternIndex} with the former extraction, which copied and sorted the
+ * spectrum for every target mass and searched every isotope peak by binary search. Both compute the merged isotope
+ * peaks in the same order, so the patterns have to be identical.
+ */
+public class IsotopePatternIndexTest {
+
+    private static final String[] FORMULAS = new String[]{
+            "C6H12O6", "C10H13N5O4", "C20H25ClN2O5S", "C12H9Br2NO", "C27H42FeN9O12", "C8H11NO", "C9H13NO2",
+            "C55H72MgN4O5", "C16H18N2O4S", "C21H30O2", "C17H19NO3", "C22H23NO7"
+    };
+
+    @Test
+    public void testExtractPatternEqualsFormerExtraction() {
+        final MeasurementProfile profile = IsotopePatternAnalysis.defaultAnalyzer().getDefaultProfile();
+        final SimpleSpectrum spectrum = ms1Spectrum(new Random(42));
+        final IsotopePatternIndex index = new IsotopePatternIndex(spectrum, profile);
+        final double[] targets = targetMasses(spectrum, new Random(7));
+        for (double target : targets) {
+            final SimpleSpectrum expected = formerExtractPattern(spectrum, profile, target);
+            assertSamePattern(expected, index.extractPattern(target));
+            assertSamePattern(expected, IsotopePatternAnalysis.defaultAnalyzer().extractPattern(spectrum, profile, target));
+        }
+    }
+
+    @Test
+    public void testExtractPatternsEqualsFormerExtraction() {
+        final MeasurementProfile profile = IsotopePatternAnalysis.defaultAnalyzer().getDefaultProfile();
+        for (int seed = 0; seed < 5; ++seed) {
+            final SimpleSpectrum spectrum = ms1Spectrum(new Random(seed));
+            // targets in random order and with duplicates
+            final double[] targets = targetMasses(spectrum, new Random(seed + 100));
+            final SimpleSpectrum[] patterns = new IsotopePatternIndex(spectrum, profile).extractPatterns(targets);
+            assertEquals(targets.length, patterns.length);
+            for (int i = 0; i < targets.length; ++i)
+                assertSamePattern(formerExtractPattern(spectrum, profile, targets[i]), patterns[i]);
+        }
+    }
+
+    @Test
+    public void testExtractAllPatternsEqualsFormerExtraction() {
+        final MeasurementProfile profile = IsotopePatternAnalysis.defaultAnalyzer().getDefaultProfile();
+        final SimpleSpectrum spectrum = ms1Spectrum(new Random(3));
+        final Spectrum<Peak> massOrdered = Spectrums.getMassOrderedSpectrum(spectrum);
+        final SimpleSpectrum[] patterns = new IsotopePatternIndex(spectrum, profile).extractAllPatterns();
+        assertEquals(massOrdered.size(), patterns.length);
+        for (int i = 0; i < patterns.length; ++i)
+            assertSamePattern(formerChain(massOrdered, profile, i), patterns[i]);
+    }
+
+    @Test
+    public void testEmptySpectrum() {
+        final MeasurementProfile profile = IsotopePatternAnalysis.defaultAnalyzer().getDefaultProfile();
+        final IsotopePatternIndex index = new IsotopePatternIndex(new SimpleSpectrum(new double[0], new double[0]), profile);
+        assertNull(index.extractPattern(181.07));
+        assertArrayEquals(new SimpleSpectrum[]{null, null}, index.extractPatterns(new double[]{181.07, 100d}));
+        assertEquals(0, index.extractAllPatterns().length);
+    }
+
+    /**
+     * simulated isotope patterns of several compounds (some of them overlapping) with noise peaks, in random order
+     */
+    private static SimpleSpectrum ms1Spectrum(Random random) {
+        final FastIsotopePatternGenerator generator = new FastIsotopePatternGenerator(Normalization.Max(1d));
+        final PrecursorIonType[] ions = new PrecursorIonType[]{PeriodicTable.getInstance().ionByName("[M+H]+"), PeriodicTable.getInstance().ionByName("[M+Na]+")};
+        final SimpleMutableSpectrum spectrum = new SimpleMutableSpectrum();
+        for (String f : FORMULAS) {
+            for (PrecursorIonType ion : ions) {
+                final MolecularFormula formula = ion.neutralMoleculeToMeasuredNeutralMolecule(MolecularFormula.parse(f));
+                final SimpleSpectrum pattern = generator.simulatePattern(formula, ion.getIonization());
+                final double intensity = 1 + random.nextDouble() * 1000;
+                for (int k = 0; k < pattern.size(); ++k) {
+                    final double mz = pattern.getMzAt(k) * (1 + (random.nextDouble() - 0.5) * 4e-6);
+                    spectrum.addPeak(mz, pattern.getIntensityAt(k) * intensity * (0.9 + random.nextDouble() * 0.2));
+                }
+            }
+        }
+        for (int i = 0; i < 300; ++i)
+            spectrum.addPeak(100 + random.nextDouble() * 1000, random.nextDouble() * 50);
+        // peaks which are very close to each other are merged into one isotope peak
+        for (int i = 0; i < 20; ++i) {
+            final double mz = spectrum.getMzAt(random.nextInt(spectrum.size()));
+            spectrum.addPeak(mz + 1.0034 + (random.nextDouble() - 0.5) * 1e-3, random.nextDouble() * 100);
+        }
+        for (int i = spectrum.size() - 1; i > 0; --i) spectrum.swap(i, random.nextInt(i + 1));
+        return new SimpleSpectrum(spectrum);
+    }
+
+    private static double[] targetMasses(SimpleSpectrum spectrum, Random random) {
+        final double[] targets = new double[2 * spectrum.size() + 100];
+        int k = 0;
+        for (int i = 0; i < spectrum.size(); ++i) {
+            targets[k++] = spectrum.getMzAt(i);
+            // within or slightly outside of the allowed mass deviation
+            targets[k++] = spectrum.getMzAt(i) * (1 + (random.nextDouble() - 0.5) * 3e-5);
+        }
+        while (k < targets.length) {
+            targets[k++] = 50 + random.nextDouble() * 1200;
+        }
+        for (int i = targets.length - 1; i > 0; --i) {
+            final int j = random.nextInt(i + 1);
+            final double swap = targets[i];
+            targets[i] = targets[j];
+            targets[j] = swap;
+        }
+        targets[0] = targets[targets.length - 1];
+        return targets;
+    }
+
+    private static void assertSamePattern(SimpleSpectrum expected, SimpleSpectrum actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertNotNull(actual);
+        assertEquals(expected.size(), actual.size());
+        for (int k = 0; k < expected.size(); ++k) {
+            assertEquals(expected.getMzAt(k), actual.getMzAt(k), 0d);
+            assertEquals(expected.getIntensityAt(k), actual.getIntensityAt(k), 0d);
+        }
+    }
+
+    /**
+     * the former IsotopePatternAnalysis#extractPattern
+     */
+    private static SimpleSpectrum formerExtractPattern(Spectrum<Peak> ms1Spec, MeasurementProfile profile, double targetMz) {
+        final Spectrum<Peak> massOrderedSpectrum = Spectrums.getMassOrderedSpectrum(ms1Spec);
+        final int index = Spectrums.mostIntensivePeakWithin(massOrderedSpectrum, targetMz, profile.getAllowedMassDeviation());
+        if (index < 0) return null;
+        return formerChain(massOrderedSpectrum, profile, index);
+    }
+
+    private static SimpleSpectrum formerChain(Spectrum<Peak> massOrderedSpectrum, MeasurementProfile profile, int index) {
+        final ChemicalAlphabet stdalphabet = profile.getFormulaConstraints().getExtendedConstraints(new FormulaConstraints(ChemicalAlphabet.getExtendedAlphabet())).getChemicalAlphabet();
+        final SimpleMutableSpectrum spec = new SimpleMutableSpectrum();
+        spec.addPeak(massOrderedSpectrum.getPeakAt(index));
+        for (int k = 1; k <= 5; ++k) {
+            final Range<Double> nextMz = PeriodicTable.getInstance().getIsotopicMassWindow(stdalphabet, profile.getAllowedMassDeviation(), spec.getMzAt(0), k);
+            final double a = nextMz.lowerEndpoint();
+            final double b = nextMz.upperEndpoint();
+            final double startPoint = a - profile.getStandardMassDifferenceDeviation().absoluteFor(a);
+            final double endPoint = b + profile.getStandardMassDifferenceDeviation().absoluteFor(b);
+            final int nextIndex = Spectrums.indexOfFirstPeakWithin(massOrderedSpectrum, startPoint, endPoint);
+            if (nextIndex < 0) break;
+            double mzBuffer = 0d;
+            double intensityBuffer = 0d;
+            for (int i = nextIndex; i < massOrderedSpectrum.size(); ++i) {
+                final double mz = massOrderedSpectrum.getMzAt(i);
+                if (mz > endPoint) break;
+                final double intensity = massOrderedSpectrum.getIntensityAt(i);
+                mzBuffer += mz * intensity;
+                intensityBuffer += intensity;
+            }
+            mzBuffer /= intensityBuffer;
+            spec.addPeak(mzBuffer, intensityBuffer);
+        }
+        return new SimpleSpectrum(spec);
+    }
+
+}
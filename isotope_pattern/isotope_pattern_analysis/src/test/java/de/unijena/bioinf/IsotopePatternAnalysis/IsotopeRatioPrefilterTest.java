@@ -0,0 +1,164 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.IsotopePatternAnalysis;
+
+import de.unijena.bioinf.ChemistryBase.chem.ChemicalAlphabet;
+import de.unijena.bioinf.ChemistryBase.chem.Element;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.Normalization;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.FastIsotopePatternGenerator;
+import de.unijena.bioinf.MassDecomposer.Chemistry.ChemicalAlphabetWrapper;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class IsotopeRatioPrefilterTest {
+
+    private static final PeriodicTable T = PeriodicTable.getInstance();
+    private static final ChemicalAlphabet CHNOPS = new ChemicalAlphabet(T.getAllByName("C", "H", "N", "O", "P", "S"));
+
+    private static SimpleSpectrum simulatedPattern(MolecularFormula formula, PrecursorIonType ion) {
+        final FastIsotopePatternGenerator generator = new FastIsotopePatternGenerator(Normalization.Max(1d));
+        return generator.simulatePattern(ion.neutralMoleculeToMeasuredNeutralMolecule(formula), ion.getIonization());
+    }
+
+    private static IsotopeRatioPrefilter defaultPrefilter(SimpleSpectrum pattern, ChemicalAlphabet alphabet, PrecursorIonType ion) {
+        final IsotopePatternAnalysis analyzer = IsotopePatternAnalysis.defaultAnalyzer();
+        assertTrue(analyzer.getPrefilterStandardDeviations() <= 0);
+        return analyzer.createIsotopeRatioPrefilter(pattern, alphabet, ion);
+    }
+
+    /**
+     * validating a compomere in the order of the filter alphabet, a compomere of another alphabet and the
+     * corresponding molecular formula have to yield the same decision
+     */
+    @Test
+    public void testValidationsAgree() {
+        final PrecursorIonType ion = T.ionByName("[M+H]+");
+        final IsotopeRatioPrefilter filter = defaultPrefilter(simulatedPattern(MolecularFormula.parse("C20H25N3O5"), ion), CHNOPS, ion);
+        // another alphabet with a different order of elements and an element which is unknown to the filter
+        final ChemicalAlphabet other = new ChemicalAlphabet(T.getAllByName("S", "O", "N", "H", "C", "Cl"));
+        final ChemicalAlphabetWrapper sameWrapper = new ChemicalAlphabetWrapper(CHNOPS);
+        final ChemicalAlphabetWrapper otherWrapper = new ChemicalAlphabetWrapper(other);
+        final Random random = new Random(4711);
+        int accepted = 0, rejected = 0;
+        for (int i = 0; i < 5000; ++i) {
+            final int[] compomere = new int[CHNOPS.size()];
+            for (int k = 0; k < compomere.length; ++k) {
+                final Element e = CHNOPS.get(k);
+                if (e.getSymbol().equals("C")) compomere[k] = random.nextInt(60);
+                else if (e.getSymbol().equals("H")) compomere[k] = random.nextInt(100);
+                else compomere[k] = random.nextInt(8);
+            }
+            final MolecularFormula formula = CHNOPS.decompositionToFormula(compomere);
+            final boolean expected = filter.isValid(formula);
+            if (expected) ++accepted;
+            else ++rejected;
+            assertEquals(formula.toString(), expected, filter.validate(compomere));
+            final int[] characterIds = new int[compomere.length];
+            for (int k = 0; k < characterIds.length; ++k) characterIds[k] = k;
+            assertEquals(formula.toString(), expected, filter.validate(compomere, characterIds, sameWrapper));
+
+            // the same formula plus some chlorine, given as compomere of the other alphabet in reverse order
+            final int chlorine = random.nextInt(3);
+            final MolecularFormula withChlorine = formula.add(MolecularFormula.parse("Cl").multiply(chlorine));
+            final int[] otherCompomere = new int[other.size()];
+            final int[] otherIds = new int[other.size()];
+            for (int k = 0; k < other.size(); ++k) {
+                final int id = other.size() - 1 - k;
+                otherIds[k] = id;
+                otherCompomere[k] = withChlorine.numberOf(other.get(id));
+            }
+            assertEquals(withChlorine, other.decompositionToFormula(amountsInOrder(otherCompomere, otherIds)));
+            assertEquals(withChlorine.toString(), filter.isValid(withChlorine), filter.validate(otherCompomere, otherIds, otherWrapper));
+        }
+        assertTrue(accepted > 0);
+        assertTrue(rejected > 0);
+    }
+
+    /**
+     * the correct formula of a simulated pattern is never rejected with the default number of standard deviations,
+     * even if the intensities deviate by one standard deviation
+     */
+    @Test
+    public void testCorrectFormulaIsNeverRejected() {
+        final ChemicalAlphabet alphabet = new ChemicalAlphabet(T.getAllByName("C", "H", "N", "O", "P", "S", "Cl", "Br"));
+        final Random random = new Random(12345);
+        for (PrecursorIonType ion : new PrecursorIonType[]{T.ionByName("[M+H]+"), T.ionByName("[M+Na]+")}) {
+            for (int i = 0; i < 1000; ++i) {
+                final MolecularFormula formula = MolecularFormula.parse("C").multiply(1 + random.nextInt(60))
+                        .add(MolecularFormula.parse("H").multiply(2 + random.nextInt(100)))
+                        .add(MolecularFormula.parse("N").multiply(random.nextInt(10)))
+                        .add(MolecularFormula.parse("O").multiply(random.nextInt(20)))
+                        .add(MolecularFormula.parse("S").multiply(random.nextInt(3)))
+                        .add(MolecularFormula.parse("Cl").multiply(random.nextInt(3)))
+                        .add(MolecularFormula.parse("Br").multiply(random.nextInt(2)));
+                final SimpleSpectrum exact = simulatedPattern(formula, ion);
+                assertTrue(formula.toString(), defaultPrefilter(exact, alphabet, ion).isValid(formula));
+                final SimpleMutableSpectrum noisy = new SimpleMutableSpectrum(exact);
+                for (int k = 0; k < noisy.size(); ++k) {
+                    final double intensity = noisy.getIntensityAt(k);
+                    final double sd = Math.sqrt(0.03 * 0.03 + intensity * intensity * 0.1 * 0.1);
+                    noisy.setIntensityAt(k, Math.max(0d, intensity + (2 * random.nextDouble() - 1) * sd));
+                }
+                assertTrue(formula.toString(), defaultPrefilter(new SimpleSpectrum(noisy), alphabet, ion).isValid(formula));
+            }
+        }
+    }
+
+    /**
+     * formulas whose M+1/M (or M+2/M) ratio clearly differs from the measured pattern are rejected
+     */
+    @Test
+    public void testWrongRatiosAreRejected() {
+        final PrecursorIonType ion = T.ionByName("[M+H]+");
+        final ChemicalAlphabet alphabet = new ChemicalAlphabet(T.getAllByName("C", "H", "N", "O", "P", "S", "Cl"));
+
+        // M+1 of about 4% cannot be explained by 50 carbon atoms
+        final MolecularFormula small = MolecularFormula.parse("C3H7NO2");
+        final IsotopeRatioPrefilter smallFilter = defaultPrefilter(simulatedPattern(small, ion), alphabet, ion);
+        assertTrue(smallFilter.isValid(small));
+        assertFalse(smallFilter.isValid(MolecularFormula.parse("C50H80O10")));
+
+        // M+1 of about 68% cannot be explained by 5 carbon atoms
+        final MolecularFormula large = MolecularFormula.parse("C60H100N2O20");
+        final IsotopeRatioPrefilter largeFilter = defaultPrefilter(simulatedPattern(large, ion), alphabet, ion);
+        assertTrue(largeFilter.isValid(large));
+        assertFalse(largeFilter.isValid(MolecularFormula.parse("C5H10O5")));
+
+        // the same number of carbon atoms explains M+1, but two chlorine atoms yield a far too intensive M+2
+        final MolecularFormula medium = MolecularFormula.parse("C20H25N3O5");
+        final IsotopeRatioPrefilter mediumFilter = defaultPrefilter(simulatedPattern(medium, ion), alphabet, ion);
+        assertTrue(mediumFilter.isValid(medium));
+        assertTrue(mediumFilter.isValid(MolecularFormula.parse("C20H25N3O4")));
+        assertFalse(mediumFilter.isValid(MolecularFormula.parse("C20H23Cl2N3O3")));
+    }
+
+    private static int[] amountsInOrder(int[] compomere, int[] characterIds) {
+        final int[] amounts = new int[compomere.length];
+        for (int k = 0; k < compomere.length; ++k) amounts[characterIds[k]] = compomere[k];
+        return amounts;
+    }
+
+}
@@ -18,6 +18,8 @@
 package de.unijena.bioinf.IsotopePatternAnalysis;
 
 import de.unijena.bioinf.ChemistryBase.chem.Charge;
+import de.unijena.bioinf.ChemistryBase.chem.Element;
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
 import de.unijena.bioinf.ChemistryBase.chem.utils.IsotopicDistributionJSONFile;
@@ -25,14 +27,19 @@ import de.unijena.bioinf.ChemistryBase.ms.MutableSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.Normalization;
 import de.unijena.bioinf.ChemistryBase.ms.Peak;
 import de.unijena.bioinf.ChemistryBase.ms.Spectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.ArrayWrapperSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.FastIsotopePatternGenerator;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 public class PatternGeneratorTest {
 
@@ -123,4 +130,142 @@ public class PatternGeneratorTest {
 		assertTrue(Spectrums.haveEqualPeaks(s, spectrum2));
 		*/
 	}
+
+    private static final String[] FORMULAS = new String[]{
+            "C6H12O6", "C10H13N5O4", "C27H42FeN9O12", "C20H25ClN2O5S", "C12H9Br2NO", "C55H72MgN4O5", "H2O", "C",
+            "C8H11N", "C8H11NO", "C9H11NO", "C9H13NO2", "C254H377N65O75S6", "C70000H2"
+    };
+
+    /**
+     * computes the isotope distributions of single elements without the cache which is shared by all generators
+     */
+    private static class UncachedGenerator extends FastIsotopePatternGenerator {
+        private UncachedGenerator(Normalization mode) {
+            super(mode);
+        }
+
+        @Override
+        protected ArrayWrapperSpectrum getElementDistribution(Element e, int exp, int maxNumberOfPeaks) {
+            return foldElement(e, distribution.getIsotopesFor(e), exp, maxNumberOfPeaks);
+        }
+    }
+
+    private static class ExposedGenerator extends FastIsotopePatternGenerator {
+        private ExposedGenerator(Normalization mode) {
+            super(mode);
+        }
+
+        private ArrayWrapperSpectrum distributionOf(Element e, int exp) {
+            return getElementDistribution(e, exp, maximalNumberOfPeaks);
+        }
+    }
+
+    private static List<MolecularFormula> testFormulas() {
+        final List<MolecularFormula> formulas = new ArrayList<MolecularFormula>();
+        for (String f : FORMULAS) formulas.add(MolecularFormula.parse(f));
+        return formulas;
+    }
+
+    private static void assertSamePattern(Spectrum<? extends Peak> expected, Spectrum<? extends Peak> actual, double delta) {
+        assertEquals(expected.size(), actual.size());
+        for (int k = 0; k < expected.size(); ++k) {
+            assertEquals(expected.getMzAt(k), actual.getMzAt(k), delta);
+            assertEquals(expected.getIntensityAt(k), actual.getIntensityAt(k), delta);
+        }
+    }
+
+    /**
+     * the cached distributions are copies of the uncached ones, so the patterns are identical, also for different
+     * numbers of peaks and for powers which are too large to be cached
+     */
+    @Test
+    public void testCachedAndUncachedPatternsAreIdentical() {
+        final Ionization ion = PeriodicTable.getInstance().ionByName("[M+H]+").getIonization();
+        for (int maximalNumberOfPeaks : new int[]{1, 5, 10}) {
+            final UncachedGenerator uncached = new UncachedGenerator(Normalization.Max(1d));
+            uncached.setMaximalNumberOfPeaks(maximalNumberOfPeaks);
+            // the second round reads all distributions from the cache
+            for (int round = 0; round < 2; ++round) {
+                final FastIsotopePatternGenerator cached = new FastIsotopePatternGenerator(Normalization.Max(1d));
+                cached.setMaximalNumberOfPeaks(maximalNumberOfPeaks);
+                for (MolecularFormula formula : testFormulas()) {
+                    assertSamePattern(uncached.simulatePattern(formula, ion), cached.simulatePattern(formula, ion), 0d);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCachedPatternsAreIdenticalUnderConcurrentUse() throws Exception {
+        final Ionization ion = PeriodicTable.getInstance().ionByName("[M+H]+").getIonization();
+        final List<MolecularFormula> formulas = testFormulas();
+        final UncachedGenerator uncached = new UncachedGenerator(Normalization.Max(1d));
+        final List<SimpleSpectrum> expected = new ArrayList<SimpleSpectrum>();
+        for (MolecularFormula formula : formulas) expected.add(uncached.simulatePattern(formula, ion));
+        final ExecutorService service = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<List<SimpleSpectrum>>> futures = new ArrayList<Future<List<SimpleSpectrum>>>();
+            for (int i = 0; i < 32; ++i) {
+                final int offset = i;
+                futures.add(service.submit(new Callable<List<SimpleSpectrum>>() {
+                    @Override
+                    public List<SimpleSpectrum> call() throws Exception {
+                        final FastIsotopePatternGenerator generator = new FastIsotopePatternGenerator(Normalization.Max(1d));
+                        final SimpleSpectrum[] patterns = new SimpleSpectrum[formulas.size()];
+                        // each thread starts with another formula, so the threads fill the cache concurrently
+                        for (int k = 0; k < formulas.size(); ++k) {
+                            final int j = (k + offset) % formulas.size();
+                            patterns[j] = generator.simulatePattern(formulas.get(j), ion);
+                        }
+                        final List<SimpleSpectrum> list = new ArrayList<SimpleSpectrum>();
+                        for (SimpleSpectrum pattern : patterns) list.add(pattern);
+                        return list;
+                    }
+                }));
+            }
+            for (Future<List<SimpleSpectrum>> future : futures) {
+                final List<SimpleSpectrum> patterns = future.get();
+                for (int j = 0; j < expected.size(); ++j) assertSamePattern(expected.get(j), patterns.get(j), 0d);
+            }
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    public void testCachedDistributionsAreReadOnly() {
+        final ExposedGenerator generator = new ExposedGenerator(Normalization.Max(1d));
+        final Element carbon = PeriodicTable.getInstance().getByName("C");
+        generator.distributionOf(carbon, 17);
+        final ArrayWrapperSpectrum cached = generator.distributionOf(carbon, 17);
+        final double intensity = cached.getIntensityAt(0);
+        try {
+            cached.setIntensityAt(0, 0d);
+            fail("cached distributions should be read-only");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        cached.getInts()[0] = 0d;
+        assertEquals(intensity, generator.distributionOf(carbon, 17).getIntensityAt(0), 0d);
+    }
+
+    /**
+     * the batch folds the elements in another order than single patterns, so both agree up to rounding errors
+     */
+    @Test
+    public void testBatchPatternsEqualSinglePatterns() {
+        final List<MolecularFormula> formulas = testFormulas();
+        // formulas with shared prefixes, duplicates and elements which occur only in few formulas
+        for (String f : new String[]{"C10H13N5O4", "C10H14N5O4", "C11H13N5O4", "C10H13N5O4", "C10H13N5O4S", "C9H13ClN5O4", "C10H13N4O4P", "C10H13N5O5Na"})
+            formulas.add(MolecularFormula.parse(f));
+        for (String ionName : new String[]{"[M+H]+", "[M+Na]+", "[M-H]-"}) {
+            final Ionization ion = PeriodicTable.getInstance().ionByName(ionName).getIonization();
+            final FastIsotopePatternGenerator generator = new FastIsotopePatternGenerator(Normalization.Max(1d));
+            final SimpleSpectrum[] batch = generator.simulatePatterns(formulas, ion);
+            assertEquals(formulas.size(), batch.length);
+            for (int i = 0; i < formulas.size(); ++i) {
+                assertSamePattern(generator.simulatePattern(formulas.get(i), ion), batch[i], 1e-9);
+            }
+        }
+    }
 }
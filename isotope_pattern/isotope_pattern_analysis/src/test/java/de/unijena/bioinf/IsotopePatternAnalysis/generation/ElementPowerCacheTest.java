@@ -0,0 +1,81 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.IsotopePatternAnalysis.generation;
+
+import de.unijena.bioinf.ChemistryBase.chem.Element;
+import de.unijena.bioinf.ChemistryBase.chem.Isotopes;
+import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
+import de.unijena.bioinf.ChemistryBase.ms.utils.ArrayWrapperSpectrum;
+import gnu.trove.set.hash.TLongHashSet;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ElementPowerCacheTest {
+
+    @Test
+    public void testKeysAreUnique() {
+        final PeriodicTable T = PeriodicTable.getInstance();
+        final TLongHashSet keys = new TLongHashSet();
+        int count = 0;
+        for (String symbol : new String[]{"H", "C", "N", "O", "S", "Fe"}) {
+            final Element e = T.getByName(symbol);
+            for (int atoms : new int[]{0, 1, 2, 255, 256, 65534, 65535}) {
+                for (int peaks : new int[]{0, 1, 10, 255, 256, 65535}) {
+                    final long key = ElementPowerCache.key(e, atoms, peaks);
+                    assertTrue(key >= 0);
+                    keys.add(key);
+                    ++count;
+                }
+            }
+        }
+        assertEquals(count, keys.size());
+    }
+
+    @Test
+    public void testOutOfRangePowersAreNotCached() {
+        final ElementPowerCache cache = new ElementPowerCache(4, 16);
+        final Element carbon = PeriodicTable.getInstance().getByName("C");
+        final Isotopes isotopes = PeriodicTable.getInstance().getDistribution().getIsotopesFor(carbon);
+        final ArrayWrapperSpectrum distribution = new ArrayWrapperSpectrum(new double[]{0d, 0d}, new double[]{0.9, 0.1});
+        cache.put(carbon, isotopes, 1 << 16, 1, distribution);
+        cache.put(carbon, isotopes, 1, 1 << 16, distribution);
+        cache.put(carbon, isotopes, -1, 1, distribution);
+        assertNull(cache.get(carbon, isotopes, 1 << 16, 1));
+        assertNull(cache.get(carbon, isotopes, 1, 1 << 16));
+        assertNull(cache.get(carbon, isotopes, -1, 1));
+        // in particular, these powers do not overwrite the distribution of other powers
+        assertNull(cache.get(carbon, isotopes, 1, 1));
+        assertNull(cache.get(carbon, isotopes, 0, 1));
+    }
+
+    @Test
+    public void testCachedDistributionsAreCopies() {
+        final ElementPowerCache cache = new ElementPowerCache(4, 16);
+        final Element carbon = PeriodicTable.getInstance().getByName("C");
+        final Isotopes isotopes = PeriodicTable.getInstance().getDistribution().getIsotopesFor(carbon);
+        final ArrayWrapperSpectrum distribution = new ArrayWrapperSpectrum(new double[]{0d, 0d}, new double[]{0.9, 0.1});
+        cache.put(carbon, isotopes, 1, 2, distribution);
+        distribution.setIntensityAt(0, 0d);
+        final ArrayWrapperSpectrum cached = cache.get(carbon, isotopes, 1, 2);
+        assertNotNull(cached);
+        assertEquals(0.9, cached.getIntensityAt(0), 0d);
+        assertNull(cache.get(carbon, PeriodicTable.getInstance().getDistribution().getIsotopesFor(PeriodicTable.getInstance().getByName("N")), 1, 2));
+    }
+
+}
@@ -0,0 +1,394 @@
+package de.unijena.bioinf.IsotopePatternAnalysis.generation;
+
+import de.unijena.bioinf.ChemistryBase.chem.*;
+import de.unijena.bioinf.ChemistryBase.chem.utils.FormulaVisitor;
+import de.unijena.bioinf.ChemistryBase.chem.utils.IsotopicDistribution;
+import de.unijena.bioinf.ChemistryBase.ms.Normalization;
+import de.unijena.bioinf.ChemistryBase.ms.NormalizationMode;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import gnu.trove.list.array.TDoubleArrayList;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the isotopologue enumeration of {@link FinestructureGenerator}, which keeps candidates in a primitive heap
+ * and prunes unlikely successors, and the merging of {@link FineStructureMerger} with the former implementations,
+ * which kept a PriorityQueue of {@link Isotopologue} objects and merged each nominal mass with separate sums for
+ * both derivatives of the Newton step.
+ *
+ * Isotopologues with the same probability might be enumerated in another order, so enumerations are compared as
+ * sets of (log probability, mass) pairs.
+ */
+public class FinestructureGeneratorTest {
+
+    private static final String[] SMALL_FORMULAS = new String[]{"C6H12O6", "C10H13N5O4", "C12H9Br2NO", "C8H7ClO3S"};
+    private static final String[] LARGE_FORMULAS = new String[]{"C20H25ClN2O5S", "C27H42FeN9O12", "C55H72MgN4O5"};
+
+    @Test
+    public void testUnprunedEnumerationEqualsFormerEnumeration() {
+        for (String f : SMALL_FORMULAS) {
+            final MolecularFormula formula = MolecularFormula.parse(f);
+            final List<double[]> expected = enumerate(former(formula));
+            final List<double[]> actual = enumerate(generator(0d).iterator(formula, ion()));
+            assertDecreasing(actual);
+            assertSameIsotopologues(expected, actual);
+        }
+    }
+
+    @Test
+    public void testPruningKeepsAllIsotopologuesAboveThreshold() {
+        for (double threshold : new double[]{1e-4, 1e-8}) {
+            for (String f : SMALL_FORMULAS) assertPrunedEnumeration(MolecularFormula.parse(f), threshold);
+            assertPrunedEnumeration(MolecularFormula.parse(LARGE_FORMULAS[0]), threshold);
+        }
+    }
+
+    @Test
+    public void testIntensityThresholdIteratorReportsOnlyIsotopologuesAboveThreshold() {
+        final double intensity = 1e-3;
+        for (String f : SMALL_FORMULAS) {
+            final MolecularFormula formula = MolecularFormula.parse(f);
+            final FormerRawIterator former = former(formula);
+            final List<double[]> expected = new ArrayList<>();
+            while (former.hasNext()) {
+                former.next();
+                if (former.getLogAbundance() >= Math.log(intensity))
+                    expected.add(new double[]{former.getLogProbability(), former.getMass()});
+            }
+            final List<double[]> actual = enumerate(generator(0d).iteratorWithIntensityThreshold(formula, ion(), intensity));
+            assertSameIsotopologues(expected, actual);
+        }
+    }
+
+    @Test
+    public void testMergedPatternsEqualFormerPatterns() {
+        final List<String> formulas = new ArrayList<>(Arrays.asList(SMALL_FORMULAS));
+        formulas.addAll(Arrays.asList(LARGE_FORMULAS));
+        for (String f : formulas) {
+            final MolecularFormula formula = MolecularFormula.parse(f);
+            final double monoMass = ion().addToMass(formula.getMass());
+            final SimpleSpectrum expected = new FormerMerger(75000d).merge(summingUpTo(former(formula), 0.999d), monoMass);
+            // without pruning, only the merging differs from the former implementation
+            assertSamePattern(expected, new FineStructureMerger(75000d).merge(generator(0d).iteratorSumingUpTo(formula, ion(), 0.999d), monoMass), 1e-8);
+            // the pruned isotopologues sum up to less than the tolerance
+            assertSamePattern(expected, new FineStructureMerger(75000d).merge(generator(1e-8).iteratorSumingUpTo(formula, ion(), 0.999d), monoMass), 1e-6);
+        }
+    }
+
+    /**
+     * the merger of a pattern generator is reused for all patterns of a thread. Its buffers must not leak into the
+     * next pattern, and changing the resolution has to take effect
+     */
+    @Test
+    public void testReusedMergerYieldsSamePatternsAsFreshMerger() throws InterruptedException {
+        final List<String> formulas = new ArrayList<>(Arrays.asList(LARGE_FORMULAS));
+        formulas.addAll(Arrays.asList(SMALL_FORMULAS));
+        final FinestructurePatternGenerator reused = new FinestructurePatternGenerator(Normalization.Max(1d));
+        for (double resolution : new double[]{75000d, 20000d}) {
+            reused.setResolution(resolution);
+            for (String f : formulas) {
+                final MolecularFormula formula = MolecularFormula.parse(f);
+                final FinestructurePatternGenerator fresh = new FinestructurePatternGenerator(Normalization.Max(1d));
+                fresh.setResolution(resolution);
+                assertSamePattern(fresh.simulatePattern(formula, ion()), reused.simulatePattern(formula, ion()), 0d);
+            }
+        }
+        // another thread uses its own merger
+        final List<SimpleSpectrum> patterns = Collections.synchronizedList(new ArrayList<SimpleSpectrum>());
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (String f : formulas) patterns.add(reused.simulatePattern(MolecularFormula.parse(f), ion()));
+            }
+        });
+        thread.start();
+        thread.join();
+        assertEquals(formulas.size(), patterns.size());
+        for (int i = 0; i < formulas.size(); ++i)
+            assertSamePattern(reused.simulatePattern(MolecularFormula.parse(formulas.get(i)), ion()), patterns.get(i), 0d);
+    }
+
+    private static void assertPrunedEnumeration(MolecularFormula formula, double threshold) {
+        final FormerRawIterator former = former(formula);
+        final List<double[]> all = enumerate(former);
+        final double minimalLogProbability = all.get(0)[0] + Math.log(threshold);
+        final List<double[]> expected = new ArrayList<>(), boundary = new ArrayList<>();
+        for (double[] iso : all) {
+            // isotopologues on the threshold might be kept or not, due to rounding errors
+            if (Math.abs(iso[0] - minimalLogProbability) < 1e-9) boundary.add(iso);
+            else if (iso[0] > minimalLogProbability) expected.add(iso);
+        }
+        final List<double[]> actual = new ArrayList<>();
+        for (double[] iso : enumerate(generator(threshold).iterator(formula, ion()))) {
+            if (Math.abs(iso[0] - minimalLogProbability) >= 1e-9) actual.add(iso);
+        }
+        assertDecreasing(actual);
+        assertSameIsotopologues(expected, actual);
+    }
+
+    private static Ionization ion() {
+        return PeriodicTable.getInstance().ionByName("[M+H]+").getIonization();
+    }
+
+    private static FinestructureGenerator generator(double pruningThreshold) {
+        final FinestructureGenerator generator = new FinestructureGenerator(PeriodicTable.getInstance().getDistribution(), Normalization.Max(1d));
+        generator.setPruningThreshold(pruningThreshold);
+        return generator;
+    }
+
+    private static FormerRawIterator former(MolecularFormula formula) {
+        final IsotopicDistribution distribution = PeriodicTable.getInstance().getDistribution();
+        return new FormerRawIterator(new CachedIsoTable(distribution), formula, ion(), Normalization.Max(1d), distribution);
+    }
+
+    private static List<double[]> enumerate(FinestructureGenerator.Iterator iterator) {
+        final List<double[]> isotopologues = new ArrayList<>();
+        while (iterator.hasNext()) {
+            iterator.next();
+            isotopologues.add(new double[]{iterator.getLogProbability(), iterator.getMass()});
+        }
+        return isotopologues;
+    }
+
+    private static void assertDecreasing(List<double[]> isotopologues) {
+        for (int i = 1; i < isotopologues.size(); ++i)
+            assertTrue(isotopologues.get(i - 1)[0] >= isotopologues.get(i)[0]);
+    }
+
+    private static void assertSameIsotopologues(List<double[]> expected, List<double[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        final Comparator<double[]> order = new Comparator<double[]>() {
+            @Override
+            public int compare(double[] a, double[] b) {
+                final int c = Double.compare(a[0], b[0]);
+                return c != 0 ? c : Double.compare(a[1], b[1]);
+            }
+        };
+        final List<double[]> a = new ArrayList<>(expected), b = new ArrayList<>(actual);
+        Collections.sort(a, order);
+        Collections.sort(b, order);
+        for (int i = 0; i < a.size(); ++i) {
+            assertEquals(a.get(i)[0], b.get(i)[0], 1e-12);
+            assertEquals(a.get(i)[1], b.get(i)[1], 1e-9);
+        }
+    }
+
+    private static void assertSamePattern(SimpleSpectrum expected, SimpleSpectrum actual, double delta) {
+        assertEquals(expected.size(), actual.size());
+        for (int k = 0; k < expected.size(); ++k) {
+            assertEquals(expected.getMzAt(k), actual.getMzAt(k), delta);
+            assertEquals(expected.getIntensityAt(k), actual.getIntensityAt(k), delta);
+        }
+    }
+
+    private static FinestructureGenerator.Iterator summingUpTo(final FormerRawIterator iterator, double sumIntensity) {
+        final double threshold = 1d - sumIntensity;
+        return new FinestructureGenerator.Iterator() {
+            double intensitySum = 1d;
+            boolean stop = false;
+
+            @Override
+            public void next() {
+                iterator.next();
+                intensitySum -= getAbundance();
+                stop = intensitySum <= threshold;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !stop && iterator.hasNext();
+            }
+
+            @Override
+            public double getMass() {
+                return iterator.getMass();
+            }
+
+            @Override
+            public double getAbundance() {
+                return iterator.getAbundance();
+            }
+
+            @Override
+            public double getLogAbundance() {
+                return iterator.getLogAbundance();
+            }
+
+            @Override
+            public double getProbability() {
+                return iterator.getProbability();
+            }
+
+            @Override
+            public double getLogProbability() {
+                return iterator.getLogProbability();
+            }
+        };
+    }
+
+    /**
+     * the isotopologue enumeration before pruning and pooling were added
+     */
+    private static final class FormerRawIterator extends FinestructureGenerator.Iterator {
+
+        private final double scale, logScale;
+        private final PriorityQueue<Isotopologue> heap;
+        private double baseMass;
+        private Isotopologues[] isotopologues;
+        private Isotopologue currentIsotopologue;
+
+        private FormerRawIterator(final CachedIsoTable cache, MolecularFormula formula, Ionization ion, Normalization mode, final IsotopicDistribution distribution) {
+            this.heap = new PriorityQueue<Isotopologue>(10, Collections.reverseOrder());
+            final ArrayList<Isotopologues> isoL = new ArrayList<Isotopologues>();
+            this.baseMass = ion.getMass();
+            formula.visit(new FormulaVisitor<Object>() {
+                @Override
+                public Object visit(Element element, int amount) {
+                    if (amount > 0) {
+                        final Isotopes iso = distribution.getIsotopesFor(element);
+                        if (iso != null && iso.getNumberOfIsotopes() > 1) {
+                            if (iso.getNumberOfIsotopes() == 2) {
+                                isoL.add(new SimpleIsotopologues(element, distribution, amount));
+                            } else {
+                                isoL.add(cache.getIsotopologuesFor(element, amount));
+                            }
+                        } else {
+                            baseMass += element.getMass() * amount;
+                        }
+                    }
+                    return null;
+                }
+            });
+            this.isotopologues = isoL.toArray(new Isotopologues[isoL.size()]);
+            final short[] vector = new short[isotopologues.length];
+            double mass = baseMass;
+            double logAbundance = 0d;
+            for (int i = 0; i < vector.length; ++i) {
+                mass += isotopologues[i].mass(0);
+                logAbundance += isotopologues[i].logAbundance(0);
+            }
+            heap.offer(new Isotopologue(vector, mass, logAbundance));
+            if (mode.getMode() == NormalizationMode.MAX) {
+                final Isotopologue basePeak = heap.peek();
+                logScale = Math.log(mode.getBase()) - basePeak.logAbundance;
+                scale = mode.getBase() / Math.exp(basePeak.logAbundance);
+            } else {
+                logScale = Math.log(mode.getBase());
+                scale = mode.getBase();
+            }
+        }
+
+        public boolean hasNext() {
+            return !heap.isEmpty();
+        }
+
+        public void next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            currentIsotopologue = heap.poll();
+            final short[] base = currentIsotopologue.amounts;
+            for (int i = isotopologues.length - 1; i >= 0; --i) {
+                if (base[i] + 1 < isotopologues[i].size()) {
+                    final short[] vector = base.clone();
+                    final double mz = currentIsotopologue.mass - isotopologues[i].mass(vector[i]);
+                    final double ab = currentIsotopologue.logAbundance - isotopologues[i].logAbundance(vector[i]);
+                    ++vector[i];
+                    heap.offer(new Isotopologue(vector, mz + isotopologues[i].mass(vector[i]), ab + isotopologues[i].logAbundance(vector[i])));
+                }
+                if (base[i] != 0) break;
+            }
+        }
+
+        public double getMass() {
+            return currentIsotopologue.mass;
+        }
+
+        public double getProbability() {
+            return Math.exp(currentIsotopologue.logAbundance);
+        }
+
+        public double getLogProbability() {
+            return currentIsotopologue.logAbundance;
+        }
+
+        public double getLogAbundance() {
+            return currentIsotopologue.logAbundance + logScale;
+        }
+
+        public double getAbundance() {
+            return Math.exp(currentIsotopologue.logAbundance) * scale;
+        }
+    }
+
+    /**
+     * the merging of isotopologues before they were collected into primitive buffers
+     */
+    private static final class FormerMerger {
+        private final double resolution;
+
+        private FormerMerger(double resolution) {
+            this.resolution = resolution;
+        }
+
+        private SimpleSpectrum merge(FinestructureGenerator.Iterator iter, double monoMass) {
+            final TDoubleArrayList[] masses = new TDoubleArrayList[8];
+            final TDoubleArrayList[] intensities = new TDoubleArrayList[8];
+            while (iter.hasNext()) {
+                iter.next();
+                final double mz = iter.getMass();
+                final int nominal = (int) (Math.round(mz - monoMass));
+                if (nominal >= masses.length) continue;
+                if (masses[nominal] == null) {
+                    masses[nominal] = new TDoubleArrayList();
+                    intensities[nominal] = new TDoubleArrayList();
+                }
+                masses[nominal].add(mz);
+                intensities[nominal].add(iter.getAbundance());
+            }
+            final SimpleMutableSpectrum peaks = new SimpleMutableSpectrum(masses.length);
+            for (int k = 0; k < masses.length; ++k) {
+                if (masses[k] != null) addByNewton(masses[k].toArray(), intensities[k].toArray(), peaks);
+            }
+            return new SimpleSpectrum(peaks);
+        }
+
+        private void addByNewton(double[] xs, double[] ints, SimpleMutableSpectrum spec) {
+            int basePeak = 0;
+            for (int k = 0; k < xs.length; ++k) {
+                if (ints[k] > ints[basePeak]) basePeak = k;
+            }
+            final double sd = (xs[basePeak] / (2.35482 * resolution));
+            double x = xs[basePeak];
+            for (int i = 0; i < 100; ++i) {
+                double y1 = 0d, y2 = 0d;
+                for (int j = 0; j < xs.length; ++j) {
+                    y1 += ints[j] * norm1(x, xs[j], sd);
+                    y2 += ints[j] * norm2(x, xs[j], sd);
+                }
+                final double x2 = (y1 == 0 && y2 == 0) ? 0d : y1 / y2;
+                if (Math.abs(x2) < 1e-10) break;
+                else x -= x2;
+            }
+            double v = 0d;
+            for (int j = 0; j < xs.length; ++j) v += ints[j] * norm(x, xs[j], sd);
+            spec.addPeak(x, v);
+        }
+
+        private static double norm2(double x, double mu, double sigma) {
+            final double c = 1d / (sigma * sigma);
+            return c * (c * (x - mu) * (x - mu) - 1) * norm(x, mu, sigma);
+        }
+
+        private static double norm1(double x, double mu, double sigma) {
+            return -((x - mu) / (sigma * sigma)) * (norm(x, mu, sigma));
+        }
+
+        private static double norm(double x, double mu, double sigma) {
+            return 1d / (sigma * Math.sqrt(2d * Math.PI)) * Math.exp((-1d / 2d) * Math.pow((x - mu) / sigma, 2));
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.IsotopePatternAnalysis.generation;
+
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
+import de.unijena.bioinf.ChemistryBase.ms.Normalization;
+import de.unijena.bioinf.ChemistryBase.ms.Peak;
+import de.unijena.bioinf.ChemistryBase.ms.Spectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import gnu.trove.list.array.TDoubleArrayList;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FragmentIsotopeGeneratorTest {
+
+    private static final Ionization PROTONATION = PeriodicTable.getInstance().ionByName("[M+H]+").getIonization();
+    private static final MolecularFormula PARENT = MolecularFormula.parse("C10H13N5O4");
+
+    /**
+     * the batched simulation from a prepared parent pattern has to yield exactly the same patterns as simulating each
+     * fragment on its own, no matter if the exact masses are simulated or the measured masses are used
+     */
+    @Test
+    public void testBatchedSimulationEqualsPerFragmentSimulation() {
+        final FormerFragmentIsotopeGenerator generator = new FormerFragmentIsotopeGenerator();
+        final List<MolecularFormula> losses = losses();
+        for (SimpleSpectrum ms1 : new SimpleSpectrum[]{simulatedMs1(), biasedMs1()}) {
+            for (boolean simulateExactMasses : new boolean[]{true, false}) {
+                final FragmentIsotopeGenerator.ParentPattern parentPattern = generator.prepareParentPattern(ms1, PARENT, PROTONATION, simulateExactMasses);
+                assertEquals(ms1.size(), parentPattern.size());
+                assertEquals(PARENT, parentPattern.getFormula());
+                final SimpleSpectrum[] patterns = generator.simulatePatterns(parentPattern, losses);
+                assertEquals(losses.size(), patterns.length);
+                for (int i = 0; i < losses.size(); ++i) {
+                    final SimpleSpectrum expected = generator.formerSimulatePattern(ms1, PARENT, losses.get(i), PROTONATION, simulateExactMasses);
+                    assertSpectrumEquals(expected, patterns[i]);
+                    assertSpectrumEquals(expected, generator.simulatePattern(parentPattern, losses.get(i)));
+                    assertSpectrumEquals(expected, generator.simulatePattern(ms1, PARENT, losses.get(i), PROTONATION, simulateExactMasses));
+                }
+            }
+        }
+    }
+
+    /**
+     * losses which occur several times in the batch share their simulated pattern
+     */
+    @Test
+    public void testDuplicateLossesShareTheirPattern() {
+        final FragmentIsotopeGenerator generator = new FragmentIsotopeGenerator();
+        final List<MolecularFormula> losses = losses();
+        final SimpleSpectrum[] patterns = generator.simulatePatterns(generator.prepareParentPattern(simulatedMs1(), PARENT, PROTONATION, true), losses);
+        for (int i = 0; i < losses.size(); ++i) {
+            for (int j = i + 1; j < losses.size(); ++j) {
+                if (losses.get(i).equals(losses.get(j))) assertSame(patterns[i], patterns[j]);
+            }
+        }
+        assertSame(patterns[1], patterns[losses.size() - 1]);
+    }
+
+    /**
+     * a MS1 pattern with a too small M+1 peak yields negative intensities after unfolding the loss. The batched
+     * simulation has to remove the same peaks as the former implementation.
+     */
+    @Test
+    public void testNegativeIntensitiesAreRemovedLikeBefore() {
+        final FormerFragmentIsotopeGenerator generator = new FormerFragmentIsotopeGenerator();
+        final SimpleMutableSpectrum distorted = new SimpleMutableSpectrum(simulatedMs1());
+        distorted.setIntensityAt(1, distorted.getIntensityAt(1) / 10d);
+        final SimpleSpectrum ms1 = new SimpleSpectrum(distorted);
+        final List<MolecularFormula> losses = losses();
+        int truncated = 0;
+        for (boolean simulateExactMasses : new boolean[]{true, false}) {
+            final SimpleSpectrum[] patterns = generator.simulatePatterns(generator.prepareParentPattern(ms1, PARENT, PROTONATION, simulateExactMasses), losses);
+            for (int i = 0; i < losses.size(); ++i) {
+                final SimpleSpectrum expected = generator.formerSimulatePattern(ms1, PARENT, losses.get(i), PROTONATION, simulateExactMasses);
+                assertSpectrumEquals(expected, patterns[i]);
+                if (patterns[i].size() < ms1.size()) ++truncated;
+            }
+        }
+        assertTrue("distorted MS1 pattern should yield negative fragment intensities", truncated > 0);
+    }
+
+    private static List<MolecularFormula> losses() {
+        final ArrayList<MolecularFormula> losses = new ArrayList<MolecularFormula>();
+        for (String loss : new String[]{"H2O", "C5H8O4", "NH3", "CH2O", "C5H8O4", "C5H9NO4", "H2O", "C2H4O2", "C5H6O3", "HCN", "H2O"}) {
+            losses.add(MolecularFormula.parse(loss));
+        }
+        losses.add(MolecularFormula.parse("C5H8O4"));
+        return losses;
+    }
+
+    private static SimpleSpectrum simulatedMs1() {
+        final FastIsotopePatternGenerator generator = new FastIsotopePatternGenerator(Normalization.Max(1d));
+        generator.setMaximalNumberOfPeaks(4);
+        return generator.simulatePattern(PARENT, PROTONATION);
+    }
+
+    /**
+     * measured masses are shifted by a few ppm and the intensities deviate from the simulation
+     */
+    private static SimpleSpectrum biasedMs1() {
+        final SimpleMutableSpectrum spectrum = new SimpleMutableSpectrum(simulatedMs1());
+        final double[] intensityBias = new double[]{1d, 1.15, 0.8, 1.3};
+        for (int k = 0; k < spectrum.size(); ++k) {
+            spectrum.setMzAt(k, spectrum.getMzAt(k) + 0.0007 * (k + 1));
+            spectrum.setIntensityAt(k, spectrum.getIntensityAt(k) * intensityBias[k]);
+        }
+        return new SimpleSpectrum(spectrum);
+    }
+
+    private static void assertSpectrumEquals(SimpleSpectrum expected, SimpleSpectrum actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int k = 0; k < expected.size(); ++k) {
+            assertEquals(expected.getMzAt(k), actual.getMzAt(k), 0d);
+            assertEquals(expected.getIntensityAt(k), actual.getIntensityAt(k), 0d);
+        }
+    }
+
+    /**
+     * The per-fragment simulation as it was implemented before the parent pattern was prepared once for all fragments
+     */
+    private static class FormerFragmentIsotopeGenerator extends FragmentIsotopeGenerator {
+
+        private SimpleSpectrum formerSimulatePattern(Spectrum<Peak> ms1, MolecularFormula parent, MolecularFormula loss, Ionization ionization, boolean simulateExactMasses) {
+            final SimpleMutableSpectrum parentSpectrum = new SimpleMutableSpectrum(ms1.size());
+            for (int k=0; k < ms1.size(); ++k) {
+                parentSpectrum.addPeak(ionization.subtractFromMass(ms1.getMzAt(k)), ms1.getIntensityAt(k));
+            }
+
+            if (simulateExactMasses) {
+                final FastIsotopePatternGenerator gen = new FastIsotopePatternGenerator(distribution, mode);
+                gen.setMaximalNumberOfPeaks(ms1.size());
+                gen.setMinimalProbabilityThreshold(0d);
+                final SimpleSpectrum exactMasses = gen.simulatePattern(parent,ionization);
+                final int mono=parent.getIntMass();
+                for (int k=0; k < parentSpectrum.size(); ++k) {
+                    parentSpectrum.setMzAt(k, ionization.subtractFromMass(exactMasses.getMzAt(k))-mono - k);
+                }
+            } else {
+                final int mono=parent.getIntMass();
+                for (int k=0; k < parentSpectrum.size(); ++k) {
+                    parentSpectrum.setMzAt(k, parentSpectrum.getMzAt(k)-mono - k);
+                }
+            }
+
+            Spectrums.normalize(parentSpectrum, Normalization.Sum(1));
+            final SimpleMutableSpectrum lossSpectrum = foldFormula(loss, parentSpectrum.size(), 0d);
+            while (lossSpectrum.size() < parentSpectrum.size()) lossSpectrum.addPeak(0d, 0d);
+
+            final double[] intensities = new double[parentSpectrum.size()];
+            final double[] masses = new double[parentSpectrum.size()];
+            for (int k=0; k < intensities.length; ++k) {
+                intensities[k] = parentSpectrum.getIntensityAt(k);
+                masses[k] = parentSpectrum.getMzAt(k)*parentSpectrum.getIntensityAt(k);
+                for (int j=k; j > 0; --j) {
+                    final double folded = lossSpectrum.getIntensityAt(j)*intensities[k-j];
+                    intensities[k] -= folded;
+                    masses[k] -= (lossSpectrum.getMzAt(j)+masses[k-j])*folded;
+                }
+                intensities[k] /= lossSpectrum.getIntensityAt(0);
+                masses[k] -= lossSpectrum.getMzAt(0)*intensities[k]*lossSpectrum.getIntensityAt(0);
+                masses[k] /= (intensities[k]*lossSpectrum.getIntensityAt(0));
+            }
+
+            final double monof = parent.getIntMass()-loss.getIntMass();
+            for (int k=0; k < masses.length; ++k) {
+                masses[k] = monof + k+ionization.addToMass(masses[k]);
+            }
+
+            boolean someNegative = false;
+            for (double intensity : intensities) {
+                if (intensity<0) {
+                    someNegative = true;
+                    break;
+                }
+            }
+            if (!someNegative) return new SimpleSpectrum(masses, intensities);
+
+            final TDoubleArrayList mzs = new TDoubleArrayList(intensities.length);
+            final TDoubleArrayList ints = new TDoubleArrayList(intensities.length);
+            for (int i = 0; i < intensities.length; i++) {
+                if (intensities[i]>=getMinimalProbabilityThreshold()){
+                    ints.add(intensities[i]);
+                    mzs.add(masses[i]);
+                }
+            }
+            return new SimpleSpectrum(mzs.toArray(), ints.toArray());
+        }
+
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.IsotopePatternAnalysis.generation;
+
+import de.unijena.bioinf.ChemistryBase.chem.*;
+import de.unijena.bioinf.ChemistryBase.chem.utils.IsotopicDistribution;
+import de.unijena.bioinf.ChemistryBase.ms.Normalization;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class IsotopePatternDatabaseTest {
+
+    private static final double MAXIMAL_MASS = 180.5;
+    private static final int NUMBER_OF_PEAKS = 6;
+
+    @Test
+    public void testWrittenDistributionsAreReadBack() throws IOException {
+        final File file = buildDatabase();
+        try {
+            final IsotopePatternDatabase database = IsotopePatternDatabase.open(file);
+            final List<MolecularFormula> formulas = enumerateFormulas();
+            assertEquals(formulas.size(), database.size());
+            assertEquals(NUMBER_OF_PEAKS, database.getNumberOfPeaks());
+            final FastIsotopePatternGenerator generator = new FastIsotopePatternGenerator(Normalization.Sum(1d));
+            final double[] massDefects = new double[NUMBER_OF_PEAKS];
+            final double[] probabilities = new double[NUMBER_OF_PEAKS];
+            for (MolecularFormula formula : formulas) {
+                assertTrue(formula.toString(), database.contains(formula));
+                final SimpleMutableSpectrum expected = generator.foldFormula(formula, NUMBER_OF_PEAKS, 0d);
+                final int n = database.lookup(database.key(formula), massDefects, probabilities);
+                assertEquals(formula.toString(), Math.min(expected.size(), NUMBER_OF_PEAKS), n);
+                for (int k = 0; k < n; ++k) {
+                    assertEquals(expected.getMzAt(k), massDefects[k], 0d);
+                    assertEquals(expected.getIntensityAt(k), probabilities[k], 0d);
+                }
+            }
+            // lookups with smaller arrays read only the first peaks
+            final double[] first = new double[2];
+            assertEquals(2, database.lookup(database.key(MolecularFormula.parse("C6H12O6")), first, new double[2]));
+            assertEquals(generator.foldFormula(MolecularFormula.parse("C6H12O6"), NUMBER_OF_PEAKS, 0d).getMzAt(1), first[1], 0d);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMissingFormulasAreNotContained() throws IOException {
+        final File file = buildDatabase();
+        try {
+            final IsotopePatternDatabase database = IsotopePatternDatabase.open(file);
+            // exceeds the element bounds
+            assertFalse(database.contains(MolecularFormula.parse("C9H12")));
+            // exceeds the maximal mass
+            assertFalse(database.contains(MolecularFormula.parse("C8H16N3O4")));
+            // element which is not part of the alphabet
+            assertTrue(database.key(MolecularFormula.parse("C6H12S")) < 0);
+            assertFalse(database.contains(MolecularFormula.parse("C6H12S")));
+            assertEquals(-1, database.lookup(-1L, new double[NUMBER_OF_PEAKS], new double[NUMBER_OF_PEAKS]));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testPrecomputedPatternsEqualSimulatedPatterns() throws IOException {
+        final File file = buildDatabase();
+        try {
+            final PrecomputedIsotopePatternGenerator precomputed = new PrecomputedIsotopePatternGenerator(IsotopePatternDatabase.open(file), Normalization.Max(1d));
+            final FastIsotopePatternGenerator simulated = new FastIsotopePatternGenerator(Normalization.Max(1d));
+            precomputed.setMaximalNumberOfPeaks(NUMBER_OF_PEAKS);
+            simulated.setMaximalNumberOfPeaks(NUMBER_OF_PEAKS);
+            final PrecursorIonType ion = PeriodicTable.getInstance().ionByName("[M+H]+");
+            final List<MolecularFormula> formulas = new ArrayList<>();
+            // the last formula is not contained in the database and has to be simulated
+            for (String f : new String[]{"C6H12O6", "C8H11NO", "C9H13NO2", "C5H5N5", "C20H25ClN2O5S"})
+                formulas.add(MolecularFormula.parse(f));
+            final SimpleSpectrum[] patterns = precomputed.simulatePatterns(formulas, ion.getIonization());
+            for (int i = 0; i < patterns.length; ++i) {
+                final SimpleSpectrum expected = simulated.simulatePattern(formulas.get(i), ion.getIonization());
+                assertEquals(expected.size(), patterns[i].size());
+                for (int k = 0; k < expected.size(); ++k) {
+                    assertEquals(expected.getMzAt(k), patterns[i].getMzAt(k), 1e-9);
+                    assertEquals(expected.getIntensityAt(k), patterns[i].getIntensityAt(k), 1e-9);
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testDatabaseOfAnotherDistributionIsRejected() throws IOException {
+        final IsotopicDistribution defaultDistribution = PeriodicTable.getInstance().getDistribution();
+        final IsotopicDistribution modified = defaultDistribution.subset(Arrays.asList(PeriodicTable.getInstance().getAllByName("C", "H", "N", "O")));
+        modified.addIsotope("C", new double[]{12d, 13.0033548378}, new double[]{0.95, 0.05});
+        final File file = File.createTempFile("isotopes", ".db");
+        file.deleteOnExit();
+        try {
+            new IsotopePatternDatabaseBuilder(new FormulaConstraints("C[8]H[16]N[3]O[4]"), MAXIMAL_MASS, NUMBER_OF_PEAKS, modified).build(file);
+            final IsotopePatternDatabase database = IsotopePatternDatabase.open(file);
+            assertTrue(database.isWrittenWith(modified));
+            assertFalse(database.isWrittenWith(defaultDistribution));
+            new PrecomputedIsotopePatternGenerator(database, modified, Normalization.Max(1d));
+            try {
+                new PrecomputedIsotopePatternGenerator(database, Normalization.Max(1d));
+                fail("database of another isotopic distribution is accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            file.delete();
+        }
+        final File defaultFile = buildDatabase();
+        try {
+            assertTrue(IsotopePatternDatabase.open(defaultFile).isWrittenWith(defaultDistribution));
+            assertFalse(IsotopePatternDatabase.open(defaultFile).isWrittenWith(modified));
+        } finally {
+            defaultFile.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrongMagicNumberIsRejected() throws IOException {
+        final File file = buildDatabase();
+        try {
+            overwriteInt(file, 0, 0xCAFEBABE);
+            IsotopePatternDatabase.open(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrongVersionIsRejected() throws IOException {
+        final File file = buildDatabase();
+        try {
+            overwriteInt(file, 4, IsotopePatternDatabase.VERSION + 1);
+            IsotopePatternDatabase.open(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedFileIsRejected() throws IOException {
+        final File file = buildDatabase();
+        try {
+            try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(raf.length() - 1);
+            }
+            IsotopePatternDatabase.open(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testEmptyFileIsRejected() throws IOException {
+        final File file = File.createTempFile("isotopes", ".db");
+        try {
+            IsotopePatternDatabase.open(file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static File buildDatabase() throws IOException {
+        final File file = File.createTempFile("isotopes", ".db");
+        file.deleteOnExit();
+        new IsotopePatternDatabaseBuilder(new FormulaConstraints("C[8]H[16]N[3]O[4]"), MAXIMAL_MASS, NUMBER_OF_PEAKS).build(file);
+        return file;
+    }
+
+    private static void overwriteInt(File file, long position, int value) throws IOException {
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            raf.writeInt(value);
+        }
+    }
+
+    private static List<MolecularFormula> enumerateFormulas() {
+        final PeriodicTable T = PeriodicTable.getInstance();
+        final double c = T.getByName("C").getMass(), h = T.getByName("H").getMass(), n = T.getByName("N").getMass(), o = T.getByName("O").getMass();
+        final List<MolecularFormula> formulas = new ArrayList<>();
+        for (int a = 0; a <= 8; ++a)
+            for (int b = 0; b <= 16; ++b)
+                for (int d = 0; d <= 3; ++d)
+                    for (int e = 0; e <= 4; ++e) {
+                        if (a + b + d + e == 0 || a * c + b * h + d * n + e * o > MAXIMAL_MASS) continue;
+                        formulas.add(MolecularFormula.parse((a > 0 ? "C" + a : "") + (b > 0 ? "H" + b : "") + (d > 0 ? "N" + d : "") + (e > 0 ? "O" + e : "")));
+                    }
+        return formulas;
+    }
+
+}
@@ -0,0 +1,175 @@
+package de.unijena.bioinf.IsotopePatternAnalysis.prediction;
+
+import de.unijena.bioinf.ChemistryBase.chem.FormulaConstraints;
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
+import de.unijena.bioinf.ChemistryBase.ms.Normalization;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.FastIsotopePatternGenerator;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the batched inference of {@link TrainedElementDetectionNetwork} with single predictions and with the
+ * former network, which stored the weights of each dense layer as two-dimensional array and propagated one feature
+ * vector at a time. Both use the same summation order, so all predictions have to be bit-identical.
+ */
+public class TrainedElementDetectionNetworkTest {
+
+    private static final String[] CLASSIFICATION_NETWORKS = new String[]{"/dnn_element_detection_5.param", "/dnn_element_detection_4.param", "/dnn_element_detection_3.param"};
+    private static final String[] REGRESSION_NETWORKS = new String[]{"/regression5.param", "/regression4.param", "/regression3.param"};
+
+    @Test
+    public void testBatchedPredictionsEqualFormerPredictions() throws IOException {
+        final List<SimpleSpectrum> patterns = testPatterns(5);
+        for (String name : CLASSIFICATION_NETWORKS) assertSamePredictions(name, false, patterns);
+        for (String name : REGRESSION_NETWORKS) assertSamePredictions(name, true, patterns);
+    }
+
+    @Test
+    public void testBatchedConstraintsEqualSingleConstraints() {
+        final List<SimpleSpectrum> patterns = new ArrayList<>();
+        // mix patterns for all three networks and patterns which are too short for any network
+        for (int size = 2; size <= 5; ++size) patterns.addAll(testPatterns(size));
+        for (ElementPredictor predictor : new ElementPredictor[]{new DNNElementPredictor(), new DNNRegressionPredictor()}) {
+            final FormulaConstraints[] batch = predictor.predictConstraints(patterns);
+            assertEquals(patterns.size(), batch.length);
+            for (int i = 0; i < patterns.size(); ++i)
+                assertEquals(predictor.predictConstraints(patterns.get(i)), batch[i]);
+        }
+    }
+
+    private static void assertSamePredictions(String name, boolean regression, List<SimpleSpectrum> patterns) throws IOException {
+        final TrainedElementDetectionNetwork network = regression
+                ? TrainedElementDetectionNetwork.readRegressionNetwork(TrainedElementDetectionNetworkTest.class.getResourceAsStream(name))
+                : TrainedElementDetectionNetwork.readNetwork(TrainedElementDetectionNetworkTest.class.getResourceAsStream(name));
+        final FormerNetwork former = FormerNetwork.read(TrainedElementDetectionNetworkTest.class.getResourceAsStream(name), regression);
+        assertEquals(former.npeaks, network.numberOfPeaks());
+        // more patterns than a single block, and a number of patterns which is not a multiple of four
+        assertTrue(patterns.size() > 64 && patterns.size() % 4 != 0);
+        final double[][] batch = network.predict(patterns);
+        assertEquals(patterns.size(), batch.length);
+        for (int i = 0; i < patterns.size(); ++i) {
+            final double[] expected = former.predict(patterns.get(i));
+            assertArrayEquals(name, expected, network.predict(patterns.get(i)), 0d);
+            assertArrayEquals(name, expected, batch[i], 0d);
+        }
+    }
+
+    private static List<SimpleSpectrum> testPatterns(int numberOfPeaks) {
+        final FastIsotopePatternGenerator generator = new FastIsotopePatternGenerator(Normalization.Max(1d));
+        generator.setMaximalNumberOfPeaks(numberOfPeaks);
+        generator.setMinimalProbabilityThreshold(0d);
+        final Ionization ion = PeriodicTable.getInstance().ionByName("[M+H]+").getIonization();
+        final String[] heteroatoms = new String[]{"", "S", "Cl", "Br", "S2Cl", "Se", "B", "Si", "Br2", "P", "F3", "I"};
+        final List<SimpleSpectrum> patterns = new ArrayList<>();
+        for (int c = 4; c <= 40; c += 3) {
+            for (String hetero : heteroatoms) {
+                final MolecularFormula formula = MolecularFormula.parse("C" + c + "H" + (c + 4) + "N" + (c % 4) + "O" + (c % 7) + hetero);
+                final SimpleSpectrum pattern = generator.simulatePattern(formula, ion);
+                patterns.add(Spectrums.subspectrum(pattern, 0, Math.min(numberOfPeaks, pattern.size())));
+            }
+        }
+        // odd number of patterns
+        patterns.remove(patterns.size() - 1);
+        return patterns;
+    }
+
+    /**
+     * the network as it was read and evaluated before batched inference was added
+     */
+    private static class FormerNetwork {
+        private final int npeaks;
+        private final double[] centering, scaling;
+        private final double[][][] weights;
+        private final double[][] biases;
+        // null for regression networks, which use an exponential output layer
+        private final double[] As, Bs;
+
+        private FormerNetwork(int npeaks, double[] centering, double[] scaling, double[][][] weights, double[][] biases, double[] as, double[] bs) {
+            this.npeaks = npeaks;
+            this.centering = centering;
+            this.scaling = scaling;
+            this.weights = weights;
+            this.biases = biases;
+            As = as;
+            Bs = bs;
+        }
+
+        private static FormerNetwork read(InputStream inputStream, boolean regression) throws IOException {
+            try (final DataInputStream stream = new DataInputStream(new BufferedInputStream(inputStream))) {
+                final int npeaks = stream.readInt();
+                final int nfeatures = stream.readInt();
+                final int npredictors = stream.readInt();
+                for (int i = 0; i < npredictors; ++i) stream.readInt();
+                double[] As = null, Bs = null;
+                if (!regression) {
+                    As = new double[npredictors];
+                    Bs = new double[npredictors];
+                    for (int i = 0; i < npredictors; ++i) As[i] = stream.readDouble();
+                    for (int i = 0; i < npredictors; ++i) Bs[i] = stream.readDouble();
+                }
+                final int nlayers = stream.readInt();
+                final int[] neurons = new int[nlayers];
+                for (int i = 0; i < nlayers; ++i) neurons[i] = stream.readInt();
+                final double[] vec = new double[stream.readInt()];
+                for (int i = 0; i < vec.length; ++i) vec[i] = stream.readDouble();
+                int k = 0;
+                final double[] centering = new double[nfeatures], scaling = new double[nfeatures];
+                for (int i = 0; i < nfeatures; ++i) centering[i] = vec[k++];
+                for (int i = 0; i < nfeatures; ++i) scaling[i] = vec[k++];
+                final double[][][] weights = new double[nlayers][][];
+                final double[][] biases = new double[nlayers][];
+                int in = nfeatures;
+                for (int l = 0; l < nlayers; ++l) {
+                    weights[l] = new double[neurons[l]][in];
+                    biases[l] = new double[neurons[l]];
+                    for (double[] row : weights[l])
+                        for (int j = 0; j < row.length; ++j) row[j] = vec[k++];
+                    for (int i = 0; i < neurons[l]; ++i) biases[l][i] = vec[k++];
+                    in = neurons[l];
+                }
+                return new FormerNetwork(npeaks, centering, scaling, weights, biases, As, Bs);
+            }
+        }
+
+        private double[] predict(SimpleSpectrum spectrum) {
+            final double[] features = new FeatureVector(spectrum, npeaks).getFeatureVector(npeaks);
+            double[] vector = new double[features.length];
+            for (int i = 0; i < centering.length; ++i) vector[i] = (features[i] - centering[i]) / scaling[i];
+            for (int l = 0; l < weights.length; ++l) {
+                final double[][] W = weights[l];
+                final double[] result = new double[W.length];
+                for (int row = 0; row < W.length; ++row) {
+                    final double[] w = W[row];
+                    double score = biases[l][row];
+                    for (int i = 0; i < w.length; ++i) score += vector[i] * w[i];
+                    // all hidden layers use tanh, the last dense layer is linear
+                    result[row] = l < weights.length - 1 ? Math.tanh(score) : score;
+                }
+                vector = result;
+            }
+            final double[] output = new double[vector.length];
+            if (As == null) {
+                for (int i = 0; i < vector.length; ++i) output[i] = Math.exp(vector[i]);
+            } else {
+                for (int i = 0; i < As.length; ++i) {
+                    final double fApB = vector[i] * As[i] + Bs[i];
+                    output[i] = fApB >= 0 ? Math.exp(-fApB) / (1.0 + Math.exp(-fApB)) : 1.0 / (1 + Math.exp(fApB));
+                }
+            }
+            return output;
+        }
+    }
+
+}
@@ -21,6 +21,7 @@ import de.unijena.bioinf.ChemistryBase.chem.*;
 import de.unijena.bioinf.ChemistryBase.chem.utils.FormulaFilterList;
 import de.unijena.bioinf.ChemistryBase.ms.Deviation;
 import de.unijena.bioinf.MassDecomposer.DecompIterator;
+import de.unijena.bioinf.MassDecomposer.DecompositionValidator;
 import de.unijena.bioinf.MassDecomposer.Interval;
 import de.unijena.bioinf.MassDecomposer.RangeMassDecomposer;
 import de.unijena.bioinf.MassDecomposer.ValencyAlphabet;
@@ -92,6 +93,27 @@ public class MassToFormulaDecomposer extends RangeMassDecomposer<Element> {
         return decomposeToFormulas(mass, deviation, getBoundaries(constraints), FormulaFilterList.create(constraints.getFilters()));
     }
 
+    /**
+     * Decomposes the given mass and rejects all decompositions which are not valid for the given validator, before
+     * creating formula objects for them. The validator is called with the element indizes of the alphabet of this
+     * decomposer.
+     */
+    public List<MolecularFormula> decomposeToFormulas(double mass, Deviation deviation, FormulaConstraints constraints, DecompositionValidator<Element> validator) {
+        final FormulaFilter filter = FormulaFilterList.create(constraints.getFilters());
+        final List<int[]> decompositions = super.decompose(mass, deviation, getBoundaries(constraints));
+        final ValencyAlphabet<Element> wrapper = getAlphabet();
+        final int[] characterIds = new int[alphabet.size()];
+        for (int i = 0; i < characterIds.length; ++i) characterIds[i] = i;
+        final ArrayList<MolecularFormula> formulas = new ArrayList<MolecularFormula>();
+        for (int[] ary : decompositions) {
+            if (!validator.validate(ary, characterIds, wrapper)) continue;
+            final MolecularFormula formula = alphabet.decompositionToFormula(ary);
+            if (filter!=null && !filter.isValid(formula)) continue;
+            formulas.add(formula);
+        }
+        return formulas;
+    }
+
     private Map<Element, Interval> getBoundaries(FormulaConstraints constraints) {
         final Map<Element, Interval> boundaries = alphabet.toMap();
         if (!constraints.getChemicalAlphabet().equals(alphabet)) {
@@ -35,7 +35,9 @@ import de.unijena.bioinf.FragmentationTreeConstruction.computation.TreeComputati
 import de.unijena.bioinf.FragmentationTreeConstruction.model.*;
 import de.unijena.bioinf.IsotopePatternAnalysis.IsotopePattern;
 import de.unijena.bioinf.IsotopePatternAnalysis.IsotopePatternAnalysis;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.IsotopePatternDatabase;
 import de.unijena.bioinf.IsotopePatternAnalysis.generation.IsotopePatternGenerator;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.PrecomputedIsotopePatternGenerator;
 import de.unijena.bioinf.IsotopePatternAnalysis.prediction.DNNRegressionPredictor;
 import de.unijena.bioinf.IsotopePatternAnalysis.prediction.ElementPredictor;
 import de.unijena.bioinf.babelms.CloseableIterator;
@@ -263,6 +265,21 @@ public class Sirius {
         return profile.isotopePatternAnalysis;
     }
 
+    /**
+     * Reads isotope patterns from the given precomputed database and simulates only the patterns of formulas which
+     * are not contained in it. This affects {@link #simulateIsotopePattern(MolecularFormula, Ionization)} as well as
+     * the isotope pattern analysis of MS1 spectra.
+     * @throws IllegalArgumentException if the database was written with another isotopic distribution than the one
+     * of the current pattern generator
+     */
+    public void setIsotopePatternDatabase(IsotopePatternDatabase database) {
+        final IsotopePatternGenerator current = getMs1Analyzer().getPatternGenerator();
+        final IsotopePatternGenerator generator = new PrecomputedIsotopePatternGenerator(database, current.getDistribution(), current.getMode());
+        generator.setMaximalNumberOfPeaks(current.getMaximalNumberOfPeaks());
+        generator.setMinimalProbabilityThreshold(current.getMinimalProbabilityThreshold());
+        getMs1Analyzer().setPatternGenerator(generator);
+    }
+
     private void loadMeasurementProfile() {
         this.table = PeriodicTable.getInstance();
         // make mutable